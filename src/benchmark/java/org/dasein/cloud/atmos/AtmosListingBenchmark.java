@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.storage.Blob;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks for turning a namespace directory listing into {@link Blob} instances, measured separately for
+ * the whole parse and for the DOM-to-{@link Blob} conversion alone. Listings mimic what Atmos returns with
+ * <code>x-emc-include-meta</code> set: a mix of directories and regular objects, each with its system metadata and
+ * a few user metadata entries.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AtmosListingBenchmark {
+    static public @Nonnull String toListing(@Nonnegative int entries) {
+        StringBuilder xml = new StringBuilder(entries * 900);
+
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>");
+        xml.append("<ListDirectoryResponse xmlns='http://www.emc.com/cos/'><DirectoryList>");
+        for( int i=0; i<entries; i++ ) {
+            boolean directory = (i % 10 == 0);
+            String objectId = String.format("4ef49feaa106904c04ef4a066e778104f%015d", i);
+            String name = (directory ? "folder-" + i : "object-" + i + ".dat");
+
+            xml.append("<DirectoryEntry>");
+            xml.append("<ObjectID>").append(objectId).append("</ObjectID>");
+            xml.append("<FileType>").append(directory ? "directory" : "regular").append("</FileType>");
+            xml.append("<Filename>").append(name).append("</Filename>");
+            xml.append("<SystemMetadataList>");
+            meta(xml, "atime", "2013-07-01T00:00:00Z");
+            meta(xml, "mtime", "2013-07-01T00:00:00Z");
+            meta(xml, "ctime", "2013-07-01T00:00:00Z");
+            meta(xml, "itime", "2013-07-01T00:00:00Z");
+            meta(xml, "type", directory ? "directory" : "regular");
+            meta(xml, "uid", "benchmark");
+            meta(xml, "gid", "apache");
+            meta(xml, "objectid", objectId);
+            meta(xml, "objname", name);
+            meta(xml, "size", String.valueOf(directory ? 0 : 1024L * i));
+            meta(xml, "nlink", "1");
+            meta(xml, "policyname", "default");
+            xml.append("</SystemMetadataList>");
+            xml.append("<UserMetadataList>");
+            meta(xml, "owner", "greese");
+            meta(xml, "project", "dasein");
+            xml.append("</UserMetadataList>");
+            xml.append("</DirectoryEntry>");
+        }
+        xml.append("</DirectoryList></ListDirectoryResponse>");
+        return xml.toString();
+    }
+
+    static private void meta(@Nonnull StringBuilder xml, @Nonnull String name, @Nonnull String value) {
+        xml.append("<Metadata><Name>").append(name).append("</Name><Value>").append(value).append("</Value></Metadata>");
+    }
+
+    @Param({ "10", "1000", "100000" })
+    public int entries;
+
+    private ProviderContext ctx;
+    private NodeList        directoryEntries;
+    private AtmosMethod     method;
+    private String          xml;
+
+    @Setup
+    public void setup() throws CloudException, InternalException, IOException, ParserConfigurationException, SAXException {
+        Atmos provider = AtmosMethodBenchmark.connect();
+
+        ctx = provider.getContext();
+        method = new AtmosMethod(provider);
+        xml = toListing(entries);
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("utf-8")));
+
+        directoryEntries = doc.getElementsByTagName("DirectoryEntry");
+    }
+
+    @Benchmark
+    public List<Blob> parseListing() throws CloudException, InternalException, IOException, ParserConfigurationException, SAXException {
+        return method.parseListing(ctx, xml, "/benchmarks/");
+    }
+
+    @Benchmark
+    public List<Blob> toBlob() throws CloudException, InternalException {
+        ArrayList<Blob> blobs = new ArrayList<Blob>(entries);
+
+        for( int i=0; i<directoryEntries.getLength(); i++ ) {
+            Node entry = directoryEntries.item(i);
+
+            blobs.add(method.toBlob(ctx, entry, "/benchmarks/"));
+        }
+        return blobs;
+    }
+}
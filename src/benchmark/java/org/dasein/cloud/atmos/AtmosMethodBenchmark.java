@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.message.BasicHeader;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.Nonnull;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks for the per-request work {@link AtmosMethod} does before and after talking to Atmos: building
+ * and signing the canonical request, formatting and parsing timestamps, and parsing user metadata headers. Run
+ * with <code>-prof gc</code> to see the allocation rate alongside throughput.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AtmosMethodBenchmark {
+    static public final String ENDPOINT = "https://atmos.example.com/";
+
+    static public @Nonnull Atmos connect() throws CloudException, InternalException {
+        ProviderContext ctx = new ProviderContext("0123456789abcdef0123456789abcdef", "atmos");
+
+        try {
+            ctx.setAccessPublic("benchmark".getBytes("utf-8"));
+            ctx.setAccessPrivate("MTIzNDU2Nzg5MDEyMzQ1Njc4OTA=".getBytes("utf-8"));
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+        ctx.setEndpoint(ENDPOINT);
+        ctx.setAccountNumber("0123456789abcdef0123456789abcdef");
+        ctx.setRegionId("atmos");
+
+        Atmos provider = new Atmos();
+
+        provider.connect(ctx);
+        return provider;
+    }
+
+    private ProviderContext   ctx;
+    private String            date;
+    private ArrayList<Header> emcHeaders;
+    private Header            metadata;
+    private AtmosMethod       method;
+    private Atmos             provider;
+    private HttpPut           put;
+    private String            signatureString;
+    private URI               uri;
+    private Header            utf8Metadata;
+
+    @Setup
+    public void setup() throws CloudException, InternalException {
+        provider = connect();
+        ctx = provider.getContext();
+        method = new AtmosMethod(provider);
+        date = provider.formatTime(System.currentTimeMillis());
+        uri = URI.create(ENDPOINT + "rest/namespace/benchmarks/2013/07/some%20object-name.dat?offset=0");
+        put = new HttpPut(uri);
+        put.addHeader("x-emc-uid", "benchmark/" + ctx.getAccountNumber());
+        put.addHeader("x-emc-meta", "owner=greese,  project=dasein   cloud,stage=benchmark");
+        put.addHeader("x-emc-listable-meta", "tier=gold");
+        put.addHeader("x-emc-utf8", "true");
+        put.addHeader("Date", date);
+        emcHeaders = new ArrayList<Header>();
+        for( Header h : put.getAllHeaders() ) {
+            if( h.getName().toLowerCase().startsWith("x-emc") ) {
+                emcHeaders.add(h);
+            }
+        }
+        signatureString = method.toSignatureString(put, "application/octet-stream", "", date, uri, emcHeaders);
+
+        StringBuilder plain = new StringBuilder();
+
+        for( int i=0; i<20; i++ ) {
+            if( i > 0 ) {
+                plain.append(',');
+            }
+            plain.append("name").append(i).append("=value, with a comma ").append(i);
+        }
+        metadata = new BasicHeader("x-emc-meta", plain.toString());
+
+        StringBuilder encoded = new StringBuilder();
+
+        for( int i=0; i<20; i++ ) {
+            if( i > 0 ) {
+                encoded.append(',');
+            }
+            encoded.append("n%C3%A4me").append(i).append("=v%C3%A4lue%2C%20").append(i);
+        }
+        utf8Metadata = new BasicHeader("x-emc-meta", encoded.toString());
+    }
+
+    @Benchmark
+    public HttpGet authorize() throws CloudException, InternalException {
+        HttpGet get = new HttpGet(uri);
+
+        get.addHeader("x-emc-meta", "owner=greese");
+        method.authorize(ctx, get, "", null);
+        return get;
+    }
+
+    @Benchmark
+    public String formatTime() {
+        return provider.formatTime(1372636800000L);
+    }
+
+    @Benchmark
+    public long parseTime() {
+        return provider.parseTime("2013-07-01T00:00:00Z");
+    }
+
+    @Benchmark
+    public long parseLegacyTime() {
+        return provider.parseTime("Mon Jul 01 00:00:00 GMT 2013");
+    }
+
+    @Benchmark
+    public String sign() throws InternalException {
+        return method.sign(ctx, signatureString);
+    }
+
+    @Benchmark
+    public String toSignatureString() {
+        return method.toSignatureString(put, "application/octet-stream", "", date, uri, emcHeaders);
+    }
+
+    @Benchmark
+    public Properties toProperties() {
+        return method.toProperties(metadata, false);
+    }
+
+    @Benchmark
+    public Properties toPropertiesUtf8() {
+        return method.toProperties(utf8Metadata, true);
+    }
+}
@@ -19,23 +19,45 @@
 
 package org.dasein.cloud.atmos;
 
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.atmos.storage.AtmosStorageServices;
 import org.dasein.cloud.compute.ComputeServices;
 import org.dasein.cloud.compute.VirtualMachineSupport;
 import org.dasein.cloud.storage.BlobStoreSupport;
 import org.dasein.cloud.storage.StorageServices;
+import org.dasein.util.NamedThreadFactory;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provider class for interacting with the EMC Atmos REST API.
@@ -45,6 +67,8 @@ import java.util.TimeZone;
  * @since 2012.09
  */
 public class Atmos extends AbstractCloud {
+    static private final Logger logger = getLogger(Atmos.class);
+
     static private String getLastItem(String name) {
         int idx = name.lastIndexOf('.');
 
@@ -73,8 +97,558 @@ public class Atmos extends AbstractCloud {
         return Logger.getLogger("dasein.cloud.atmos.wire." + getLastItem(cls.getPackage().getName()) + "." + getLastItem(cls.getName()));
     }
 
+    private transient volatile HttpAsyncClient                 asyncClient;
+    private transient volatile AtmosThreadPool                 asyncExecutor;
+    private transient volatile AtmosBufferPool                 bufferPool;
+    private transient volatile PoolingClientConnectionManager  connectionManager;
+    private transient volatile ScheduledThreadPoolExecutor     deadlineScheduler;
+    private transient volatile AtmosDeduplicator               deduplicator;
+    private transient volatile AtmosDiskCache                  diskCache;
+    private transient volatile AtmosThreadPool                 hedgeExecutor;
+    private transient volatile AtmosLoadBalancer               loadBalancer;
+    private transient volatile AtmosSpool                      spool;
+    private transient volatile AtmosTracer                     tracer;
+    private transient volatile AtmosThreadPool                 listingExecutor;
+    private final AtmosHedger                                  hedger       = new AtmosHedger(this);
+    private volatile AtmosMetrics                              metrics      = new AtmosMetricsRegistry();
+    private final AtmosSingleFlight                            singleFlight = new AtmosSingleFlight();
+    private final ConcurrentHashMap<String,AtmosPacker>        packers      = new ConcurrentHashMap<String, AtmosPacker>();
+    private final ConcurrentHashMap<String,AtmosThrottle>      throttles    = new ConcurrentHashMap<String, AtmosThrottle>();
+
     public Atmos() { }
 
+    @Override
+    public void close() {
+        for( AtmosPacker packer : packers.values() ) {
+            try {
+                packer.flush();
+            }
+            catch( Exception e ) {
+                logger.error("Unable to flush packed objects in " + packer.getDirectory() + ": " + e.getMessage());
+            }
+        }
+        packers.clear();
+        super.close();
+        synchronized( this ) {
+            if( asyncClient != null ) {
+                try {
+                    asyncClient.shutdown();
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted shutting down the asynchronous client");
+                }
+                asyncClient = null;
+            }
+            if( asyncExecutor != null ) {
+                asyncExecutor.shutdown();
+                asyncExecutor = null;
+            }
+            if( listingExecutor != null ) {
+                listingExecutor.shutdown();
+                listingExecutor = null;
+            }
+            if( spool != null ) {
+                spool.close();
+                spool = null;
+            }
+            if( hedgeExecutor != null ) {
+                hedgeExecutor.shutdown();
+                hedgeExecutor = null;
+            }
+            if( loadBalancer != null ) {
+                loadBalancer.close();
+                loadBalancer = null;
+            }
+            if( deadlineScheduler != null ) {
+                deadlineScheduler.shutdownNow();
+                deadlineScheduler = null;
+            }
+            if( connectionManager != null ) {
+                connectionManager.shutdown();
+                connectionManager = null;
+            }
+            if( bufferPool != null ) {
+                bufferPool.clear();
+                bufferPool = null;
+            }
+            deduplicator = null;
+            diskCache = null;
+        }
+    }
+
+    /**
+     * Provides the non-blocking HTTP client behind {@link AtmosAsyncMethod}. Every outstanding asynchronous request
+     * is multiplexed over a few I/O dispatch threads, set by the <code>asyncIoThreads</code> custom property (default
+     * 2), and a connection pool limited by the <code>maxConnections</code> and <code>maxConnectionsPerRoute</code>
+     * custom properties.
+     * @return the shared, running asynchronous client
+     * @throws InternalException the I/O reactor could not be started
+     */
+    public @Nonnull HttpAsyncClient getAsyncClient() throws InternalException {
+        HttpAsyncClient client = asyncClient;
+
+        if( client == null ) {
+            synchronized( this ) {
+                if( asyncClient == null ) {
+                    IOReactorConfig config = new IOReactorConfig();
+
+                    config.setIoThreadCount(Math.max(1, getIntProperty("asyncIoThreads", 2)));
+                    config.setConnectTimeout(Math.max(0, getIntProperty("connectTimeoutMs", 10000)));
+                    config.setSoTimeout(Math.max(0, getIntProperty("readTimeoutMs", 30000)));
+                    try {
+                        DefaultConnectingIOReactor reactor = new DefaultConnectingIOReactor(config, new NamedThreadFactory(Atmos.class, "async-io"));
+                        PoolingClientAsyncConnectionManager manager = new PoolingClientAsyncConnectionManager(reactor);
+
+                        manager.setMaxTotal(getIntProperty("maxConnections", 200));
+                        manager.setDefaultMaxPerRoute(getIntProperty("maxConnectionsPerRoute", 50));
+                        DefaultHttpAsyncClient created = new DefaultHttpAsyncClient(manager);
+
+                        HttpProtocolParams.setContentCharset(created.getParams(), HTTP.UTF_8);
+                        HttpProtocolParams.setUserAgent(created.getParams(), "Dasein Cloud");
+                        created.start();
+                        asyncClient = created;
+                    }
+                    catch( IOReactorException e ) {
+                        throw new InternalException(e);
+                    }
+                }
+                client = asyncClient;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Provides the pool for background work such as packer flushes, streaming upload chunks and health probes. The
+     * pool size and queue length are controlled by the <code>asyncThreads</code> and <code>asyncQueueSize</code>
+     * custom properties.
+     * @return the shared pool for background work against this cloud
+     */
+    public @Nonnull AtmosThreadPool getAsyncExecutor() {
+        AtmosThreadPool pool = asyncExecutor;
+
+        if( pool == null ) {
+            synchronized( this ) {
+                if( asyncExecutor == null ) {
+                    asyncExecutor = new AtmosThreadPool("async", getIntProperty("asyncThreads", 32), getIntProperty("asyncQueueSize", 10000), AtmosThreadPool.Rejection.ABORT);
+                }
+                pool = asyncExecutor;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Provides the transfer buffers shared by all uploads, downloads and checksum calculations against this cloud.
+     * The buffer size, the most memory held in pooled buffers and how long a transfer waits for one when they are
+     * all in use are controlled by the <code>bufferSize</code> (default 256 KB), <code>bufferPoolBytes</code>
+     * (default 32 MB) and <code>bufferWaitMs</code> (default 100) custom properties.
+     * @return the shared buffer pool
+     */
+    public @Nonnull AtmosBufferPool getBufferPool() {
+        AtmosBufferPool pool = bufferPool;
+
+        if( pool == null ) {
+            synchronized( this ) {
+                if( bufferPool == null ) {
+                    bufferPool = new AtmosBufferPool(getIntProperty("bufferSize", 256 * 1024), getIntProperty("bufferPoolBytes", 32 * 1024 * 1024), getIntProperty("bufferWaitMs", 100));
+                }
+                pool = bufferPool;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Provides the connection pool shared by all requests against this cloud. Pool limits are controlled by the
+     * <code>maxConnections</code> and <code>maxConnectionsPerRoute</code> custom properties.
+     * @return the shared connection manager
+     */
+    public @Nonnull ClientConnectionManager getConnectionManager() {
+        PoolingClientConnectionManager manager = connectionManager;
+
+        if( manager == null ) {
+            synchronized( this ) {
+                if( connectionManager == null ) {
+                    PoolingClientConnectionManager created = new AtmosConnectionManager(this);
+
+                    created.setMaxTotal(getIntProperty("maxConnections", 200));
+                    created.setDefaultMaxPerRoute(getIntProperty("maxConnectionsPerRoute", 50));
+                    connectionManager = created;
+                }
+                manager = connectionManager;
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Provides the deduplicator shared by all uploads against this cloud, if deduplication has been enabled through
+     * the <code>deduplicate</code> custom property. The number of content hashes remembered locally is controlled by
+     * the <code>dedupIndexSize</code> custom property (default 10,000).
+     * @return the shared deduplicator, or null if uploads are not deduplicated
+     */
+    public @Nullable AtmosDeduplicator getDeduplicator() {
+        if( !"true".equalsIgnoreCase(getStringProperty("deduplicate", "false")) ) {
+            return null;
+        }
+        AtmosDeduplicator d = deduplicator;
+
+        if( d == null ) {
+            synchronized( this ) {
+                if( deduplicator == null ) {
+                    deduplicator = new AtmosDeduplicator(this, getIntProperty("dedupIndexSize", 10000));
+                }
+                d = deduplicator;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Provides the local disk cache shared by all downloads through the object store, if one has been configured
+     * through the <code>cacheDirectory</code> custom property (see {@link AtmosDiskCache} for its other properties).
+     * @return the shared disk cache, or null if downloads are not cached
+     */
+    public @Nullable AtmosDiskCache getDiskCache() {
+        String dir = getStringProperty("cacheDirectory", null);
+
+        if( dir == null || dir.trim().length() < 1 ) {
+            return null;
+        }
+        AtmosDiskCache cache = diskCache;
+
+        if( cache == null ) {
+            synchronized( this ) {
+                if( diskCache == null ) {
+                    long maxBytes = getIntProperty("cacheMaxMegabytes", 1024) * 1024L * 1024L;
+                    long revalidateMs = getIntProperty("cacheRevalidateSeconds", 0) * 1000L;
+
+                    diskCache = new AtmosDiskCache(this, new File(dir.trim()), maxBytes, AtmosDiskCache.Eviction.parse(getStringProperty("cacheEviction", null)), revalidateMs);
+                }
+                cache = diskCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Lists the base URLs of the Atmos access nodes this provider may talk to. The list comes from the comma-separated
+     * <code>endpoints</code> custom property, falling back to the context endpoint. Each entry ends with a slash.
+     * @return the access node base URLs, the first being the preferred node
+     */
+    public @Nonnull List<String> getEndpoints() {
+        ArrayList<String> endpoints = new ArrayList<String>();
+        String list = getStringProperty("endpoints", null);
+
+        if( list == null ) {
+            ProviderContext ctx = getContext();
+
+            list = (ctx == null ? null : ctx.getEndpoint());
+        }
+        if( list != null ) {
+            for( String endpoint : list.split(",") ) {
+                endpoint = endpoint.trim();
+                if( endpoint.length() > 0 ) {
+                    endpoints.add(endpoint.endsWith("/") ? endpoint : endpoint + "/");
+                }
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Provides the pool on which the individual requests of hedged reads run. It is kept apart from the other pools
+     * so that a read waiting on its hedges can never starve them of threads. The pool size is controlled by the
+     * <code>hedgeThreads</code> custom property; when it is saturated, reads simply go unhedged.
+     * @return the shared pool for hedged requests
+     */
+    public @Nonnull AtmosThreadPool getHedgeExecutor() {
+        AtmosThreadPool pool = hedgeExecutor;
+
+        if( pool == null ) {
+            synchronized( this ) {
+                if( hedgeExecutor == null ) {
+                    hedgeExecutor = new AtmosThreadPool("hedge", getIntProperty("hedgeThreads", 32), getIntProperty("hedgeThreads", 32), AtmosThreadPool.Rejection.ABORT);
+                }
+                pool = hedgeExecutor;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Provides the load balancer over this provider's access nodes, creating it from {@link #getEndpoints()} on
+     * first use.
+     * @return the load balancer
+     */
+    public @Nonnull AtmosLoadBalancer getLoadBalancer() {
+        AtmosLoadBalancer balancer = loadBalancer;
+
+        if( balancer == null ) {
+            synchronized( this ) {
+                if( loadBalancer == null ) {
+                    loadBalancer = new AtmosLoadBalancer(this, getEndpoints());
+                }
+                balancer = loadBalancer;
+            }
+        }
+        return balancer;
+    }
+
+    /**
+     * @return the coordinator for hedged reads across this provider's access nodes
+     */
+    public @Nonnull AtmosHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * Provides the timer that aborts requests running past their deadline (see {@link AtmosTimeouts}) and schedules
+     * node health probes. Tasks run on it must be short; probes themselves run on the async pool.
+     * @return the shared timer
+     */
+    public @Nonnull ScheduledThreadPoolExecutor getDeadlineScheduler() {
+        ScheduledThreadPoolExecutor scheduler = deadlineScheduler;
+
+        if( scheduler == null ) {
+            synchronized( this ) {
+                if( deadlineScheduler == null ) {
+                    ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(Atmos.class, "deadline"));
+
+                    created.setKeepAliveTime(60L, TimeUnit.SECONDS);
+                    created.allowCoreThreadTimeOut(true);
+                    deadlineScheduler = created;
+                }
+                scheduler = deadlineScheduler;
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Provides the connection pool for requests to the specified URL. Each access node managed by the load balancer
+     * has its own pool; any other URL uses the shared pool.
+     * @param url the URL of the request
+     * @return the connection manager for the request
+     */
+    public @Nonnull ClientConnectionManager getConnectionManager(@Nonnull String url) {
+        AtmosLoadBalancer.Node node = getLoadBalancer().getNode(url);
+
+        return (node == null ? getConnectionManager() : node.getConnectionManager());
+    }
+
+    /**
+     * @return the recipient of request measurements for this cloud, an {@link AtmosMetricsRegistry} unless another
+     * implementation has been plugged in
+     */
+    public @Nonnull AtmosMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Provides the packer that stores small objects in containers within the specified directory (see
+     * {@link AtmosPacker}). Every caller packing into the same directory shares one packer, and so one batch; any
+     * buffered entries are flushed when this provider is closed.
+     * @param directory the directory holding the containers
+     * @return the shared packer for the directory
+     */
+    public @Nonnull AtmosPacker getPacker(@Nonnull String directory) {
+        String key = (directory.endsWith("/") ? directory : directory + "/");
+        AtmosPacker packer = packers.get(key);
+
+        if( packer == null ) {
+            AtmosPacker existing = packers.putIfAbsent(key, packer = new AtmosPacker(this, key));
+
+            if( existing != null ) {
+                packer = existing;
+            }
+        }
+        return packer;
+    }
+
+    /**
+     * Plugs in a different recipient for request measurements.
+     * @param metrics the new recipient, or null to stop measuring
+     */
+    public void setMetrics(@Nullable AtmosMetrics metrics) {
+        this.metrics = (metrics == null ? AtmosMetrics.NONE : metrics);
+    }
+
+    /**
+     * Provides the tracer that samples calls against this cloud for phase timings, configured from the
+     * <code>traceSampleRate</code> custom property on first use.
+     * @return the tracer
+     */
+    public @Nonnull AtmosTracer getTracer() {
+        AtmosTracer t = tracer;
+
+        if( t == null ) {
+            synchronized( this ) {
+                if( tracer == null ) {
+                    tracer = new AtmosTracer(this);
+                }
+                t = tracer;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Provides the pool that populates directory listings in the background. The pool size, queue length and
+     * saturation behavior are controlled by the <code>listingThreads</code>, <code>listingQueueSize</code> and
+     * <code>listingRejection</code> (<code>abort</code> or <code>callerRuns</code>) custom properties.
+     * @return the shared pool for listing population
+     */
+    public @Nonnull AtmosThreadPool getListingExecutor() {
+        AtmosThreadPool pool = listingExecutor;
+
+        if( pool == null ) {
+            synchronized( this ) {
+                if( listingExecutor == null ) {
+                    String rejection = getStringProperty("listingRejection", AtmosThreadPool.Rejection.CALLER_RUNS.name());
+
+                    listingExecutor = new AtmosThreadPool("listing", getIntProperty("listingThreads", 16), getIntProperty("listingQueueSize", 1000), AtmosThreadPool.Rejection.parse(rejection));
+                }
+                pool = listingExecutor;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return the coordinator that lets concurrent identical reads against this cloud share one request
+     */
+    public @Nonnull AtmosSingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * Provides the write-behind spool for uploads and deletes through the object store, if one has been configured
+     * through the <code>spoolDirectory</code> custom property (see {@link AtmosSpool} for its other properties).
+     * Operations still spooled when this provider is closed are applied by the next spool opened on the directory.
+     * @return the shared spool, or null if uploads and deletes go straight to Atmos
+     */
+    public @Nullable AtmosSpool getSpool() {
+        String dir = getStringProperty("spoolDirectory", null);
+
+        if( dir == null || dir.trim().length() < 1 ) {
+            return null;
+        }
+        AtmosSpool current = spool;
+
+        if( current == null ) {
+            synchronized( this ) {
+                if( spool == null ) {
+                    boolean sync = !"false".equalsIgnoreCase(getStringProperty("spoolSync", "true"));
+                    long retryMaxMs = getIntProperty("spoolRetryMaxSeconds", 60) * 1000L;
+                    long awaitMs = getIntProperty("spoolAwaitSeconds", 60) * 1000L;
+
+                    spool = new AtmosSpool(this, new File(dir.trim()), getIntProperty("spoolThreads", 4), sync, retryMaxMs, awaitMs);
+                }
+                current = spool;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Provides the admission control for requests to the specified endpoint, creating it from the current custom
+     * properties on first use. See {@link AtmosThrottle} for the properties that configure it.
+     * @param endpoint the scheme, host and port of the endpoint
+     * @return the throttle for the endpoint
+     */
+    public @Nonnull AtmosThrottle getThrottle(@Nonnull String endpoint) {
+        AtmosThrottle throttle = throttles.get(endpoint);
+
+        if( throttle == null ) {
+            AtmosThrottle created = new AtmosThrottle(this, endpoint);
+
+            throttle = throttles.putIfAbsent(endpoint, created);
+            if( throttle == null ) {
+                throttle = created;
+            }
+        }
+        return throttle;
+    }
+
+    /**
+     * @return the throttles for every endpoint this provider has talked to
+     */
+    public @Nonnull Collection<AtmosThrottle> getThrottles() {
+        return Collections.unmodifiableCollection(throttles.values());
+    }
+
+    /**
+     * Indicates whether concurrent identical reads (info, directory listing pages and in-memory downloads) should
+     * share a single request. Enabled unless the <code>coalesceReads</code> custom property is set to false.
+     * @return true if reads are coalesced
+     */
+    public boolean isCoalescingReads() {
+        return !"false".equalsIgnoreCase(getStringProperty("coalesceReads", "true"));
+    }
+
+    /**
+     * Reads an integer tuning value from the custom properties of the current context.
+     * @param name the name of the custom property
+     * @param defaultValue the value to use if the property is not set or is not a valid integer
+     * @return the configured value or the default
+     */
+    public int getIntProperty(@Nonnull String name, int defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value == null || value.trim().length() < 1 ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a long tuning value, such as a size in bytes, from the custom properties of the current context.
+     * @param name the name of the custom property
+     * @param defaultValue the value to use if the property is not set or is not a valid long
+     * @return the configured value or the default
+     */
+    public long getLongProperty(@Nonnull String name, long defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value == null || value.trim().length() < 1 ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a string tuning value from the custom properties of the current context.
+     * @param name the name of the custom property
+     * @param defaultValue the value to use if the property is not set
+     * @return the configured value or the default
+     */
+    public @Nullable String getStringProperty(@Nonnull String name, @Nullable String defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        return (value == null || value.trim().length() < 1 ? defaultValue : value.trim());
+    }
+
     public @Nonnull AtmosProvider getAtmosProvider() {
         if( getProviderName().equalsIgnoreCase("at&t") || getProviderName().equalsIgnoreCase("att") ) {
             return AtmosProvider.ATT;
@@ -0,0 +1,757 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.entity.ContentType;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous counterparts to the operations in {@link AtmosMethod}, built on the provider's non-blocking HTTP client
+ * (see {@link Atmos#getAsyncClient()}). Each operation immediately returns a {@link Future}, and no thread waits on a
+ * request while it is in flight: requests are multiplexed over a few I/O dispatch threads, while admission by the
+ * endpoint's {@link AtmosThrottle}, retry pauses and deadlines are scheduled rather than slept. An optional
+ * {@link AtmosCallback} is notified on completion, and cancelling a future aborts its request.
+ * <p>Requests are signed, throttled, retried under the {@link AtmosRetryPolicy}, bounded by their deadline and
+ * reported to {@link AtmosMetrics} just like their blocking counterparts, but they are neither hedged nor coalesced.
+ * Response bodies are buffered as they arrive, so {@link #download(String, String, AtmosCallback)} suits objects that
+ * fit comfortably in memory; larger objects should be streamed through {@link AtmosMethod}.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosAsyncMethod {
+    static private final Logger logger = Atmos.getLogger(AtmosAsyncMethod.class);
+    static private final Logger wire = Atmos.getWireLogger(AtmosAsyncMethod.class);
+
+    static private class AtmosFuture<T> extends BasicFuture<T> {
+        private volatile Future<HttpResponse> request;
+
+        public AtmosFuture(@Nullable AtmosCallback<T> callback) {
+            super(callback == null ? null : new Notifier<T>(callback));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if( !super.cancel(mayInterruptIfRunning) ) {
+                return false;
+            }
+            Future<HttpResponse> current = request;
+
+            if( current != null ) {
+                current.cancel(true);
+            }
+            return true;
+        }
+    }
+
+    static private class Notifier<T> implements FutureCallback<T> {
+        private final AtmosCallback<T> callback;
+
+        public Notifier(@Nonnull AtmosCallback<T> callback) { this.callback = callback; }
+
+        @Override
+        public void cancelled() {
+            try {
+                callback.cancelled();
+            }
+            catch( RuntimeException e ) {
+                logger.error("Asynchronous callback failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void completed(T result) {
+            try {
+                callback.completed(result);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Asynchronous callback failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void failed(Exception error) {
+            try {
+                callback.failed(error);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Asynchronous callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Carries one logical request through admission, signing, retries and its deadline. Every step runs on whatever
+     * thread finished the previous one: the caller, an I/O dispatch thread or the provider's deadline scheduler.
+     * @param <T> the type of the result
+     */
+    private abstract class Exchange<T> implements FutureCallback<HttpResponse>, AtmosThrottle.Admission {
+        private int                           attempt;
+        private final String                  contentType;
+        protected final ProviderContext       ctx;
+        private final long                    deadlineAt;
+        private final AtomicBoolean           expired = new AtomicBoolean(false);
+        protected final AtmosFuture<T>        future;
+        private final AtmosLoadBalancer.Node  node;
+        private final String                  operation;
+        private final AtmosRetryPolicy        policy;
+        protected final HttpRequestBase       request;
+        private final long                    sent;
+        private volatile long                 sentAt;
+        private final long                    startedAt;
+        private final AtmosThrottle           throttle;
+        private final AtmosTimeouts           timeouts;
+        private final AtmosTrace              trace;
+        private volatile ScheduledFuture<?>   watchdog;
+
+        public Exchange(@Nonnull String operation, @Nonnull ProviderContext ctx, @Nonnull HttpRequestBase request, @Nonnull String contentType, @Nonnull AtmosTimeouts timeouts, @Nonnull AtmosFuture<T> future) {
+            URI uri = request.getURI();
+            HttpHost proxy = method.getProxy(ctx, uri.toString());
+
+            this.operation = operation;
+            this.ctx = ctx;
+            this.request = request;
+            this.contentType = contentType;
+            this.timeouts = timeouts;
+            this.future = future;
+            this.throttle = provider.getThrottle(uri.getScheme() + "://" + uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : ""));
+            this.node = provider.getLoadBalancer().getNode(uri);
+            this.policy = new AtmosRetryPolicy(provider);
+            this.startedAt = System.nanoTime();
+            this.deadlineAt = (timeouts.getDeadline() > 0 ? startedAt + TimeUnit.MILLISECONDS.toNanos(timeouts.getDeadline()) : Long.MAX_VALUE);
+            if( request instanceof HttpEntityEnclosingRequest ) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
+
+                this.sent = (entity == null ? 0L : Math.max(0L, entity.getContentLength()));
+            }
+            else {
+                this.sent = 0L;
+            }
+            this.trace = provider.getTracer().sample(operation, request);
+            if( trace != null ) {
+                request.setHeader("X-Request-Id", trace.getRequestId());
+            }
+            if( proxy != null ) {
+                request.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+            }
+            timeouts.apply(request);
+        }
+
+        /**
+         * Interprets a response that Atmos did not flag as overloaded, ending the exchange through
+         * {@link #complete(Object)} or by throwing.
+         * @param response the response, with its body fully buffered
+         * @throws CloudException Atmos refused the request
+         * @throws InternalException the response could not be interpreted
+         */
+        protected abstract void handle(@Nonnull HttpResponse response) throws CloudException, InternalException;
+
+        /**
+         * Releases anything held for the request once the exchange has ended, however it ended.
+         */
+        protected void cleanup() {
+            // nothing by default
+        }
+
+        @Override
+        public void admitted() {
+            send();
+        }
+
+        @Override
+        public void cancelled() {
+            ended(0, 0L, false);
+            throttle.release(false);
+            if( expired.get() && !future.isCancelled() ) {
+                fail(new CloudException(CloudErrorType.COMMUNICATION, 0, "DeadlineExceeded", "Aborted " + request.getMethod() + " " + request.getURI().getPath() + " after its " + timeouts.getDeadline() + "ms deadline"));
+            }
+            else {
+                fail(new CancellationException());
+            }
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            boolean overloaded = (status >= 500 || status == 429);
+
+            ended(status, entity == null ? 0L : Math.max(0L, entity.getContentLength()), status >= 500);
+            throttle.release(overloaded);
+            if( wire.isDebugEnabled() ) {
+                wire.debug(response.getStatusLine().toString());
+            }
+            if( overloaded ) {
+                AtmosException error = new AtmosException(response);
+
+                provider.getMetrics().requestFailed(operation, error.getProviderCode());
+                retry(AtmosRetryPolicy.classify(status, error.getProviderCode()), error);
+                return;
+            }
+            try {
+                handle(response);
+            }
+            catch( CloudException e ) {
+                fail(e);
+            }
+            catch( InternalException e ) {
+                fail(e);
+            }
+            catch( RuntimeException e ) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void failed(Exception error) {
+            ended(0, 0L, !future.isCancelled());
+            throttle.release(true);
+            if( future.isCancelled() ) {
+                fail(new CancellationException());
+            }
+            else if( expired.get() ) {
+                fail(new CloudException(CloudErrorType.COMMUNICATION, 0, "DeadlineExceeded", "Aborted " + request.getMethod() + " " + request.getURI().getPath() + " after its " + timeouts.getDeadline() + "ms deadline"));
+            }
+            else if( error instanceof IOException ) {
+                provider.getMetrics().requestFailed(operation, error.getClass().getSimpleName());
+                retry(AtmosRetryPolicy.classify((IOException)error), error);
+            }
+            else {
+                fail(error);
+            }
+        }
+
+        @Override
+        public void refused(@Nonnull CloudException error) {
+            fail(error);
+        }
+
+        /**
+         * Ends the exchange successfully.
+         * @param result the result of the operation
+         */
+        protected void complete(@Nullable T result) {
+            cleanup();
+            if( trace != null ) {
+                trace.finish(null);
+                trace.publish();
+            }
+            future.completed(result);
+        }
+
+        private void ended(int status, long received, boolean failed) {
+            long latency = System.nanoTime() - sentAt;
+            ScheduledFuture<?> timer = watchdog;
+
+            if( timer != null ) {
+                ScheduledThreadPoolExecutor scheduler = provider.getDeadlineScheduler();
+
+                timer.cancel(false);
+                watchdog = null;
+                // cancelled watchdogs otherwise stay queued until their deadline would have passed
+                if( scheduler.getQueue().size() > 1000 ) {
+                    scheduler.purge();
+                }
+            }
+            if( node != null ) {
+                node.finish(latency, failed);
+            }
+            provider.getMetrics().requestCompleted(operation, status, latency, sent, received);
+            if( trace != null ) {
+                trace.attempted(status, latency, sent, received);
+            }
+        }
+
+        private void fail(@Nonnull Exception error) {
+            cleanup();
+            if( trace != null ) {
+                trace.finish(error);
+                trace.publish();
+            }
+            future.failed(error);
+        }
+
+        private void retry(@Nullable AtmosRetryPolicy.Failure failure, @Nonnull Exception cause) {
+            long delay = policy.getRetryDelay(request, failure, attempt, startedAt);
+
+            if( delay >= 0L && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) >= deadlineAt ) {
+                delay = -1L;
+            }
+            if( delay < 0L ) {
+                if( cause instanceof CloudException ) {
+                    fail(cause);
+                }
+                else {
+                    logger.error("I/O error from server communications: " + cause.getMessage());
+                    fail(new InternalException(cause));
+                }
+                return;
+            }
+            provider.getMetrics().requestRetried(operation);
+            logger.warn("Retrying " + request.getMethod() + " " + request.getURI().getPath() + " in " + delay + "ms after attempt " + attempt + " failed with " + (cause instanceof CloudException ? ((CloudException)cause).getHttpCode() + "/" + ((CloudException)cause).getProviderCode() : cause.toString()));
+            request.reset();
+            try {
+                provider.getDeadlineScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        start();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            catch( RejectedExecutionException e ) {
+                fail(new InternalException(e));
+            }
+        }
+
+        private void send() {
+            if( future.isCancelled() ) {
+                throttle.release(false);
+                fail(new CancellationException());
+                return;
+            }
+            request.removeHeaders("Date");
+            request.removeHeaders("x-emc-uid");
+            request.removeHeaders("x-emc-signature");
+            try {
+                Header rangeHeader = request.getFirstHeader("Range");
+                long signStart = System.nanoTime();
+
+                method.authorize(ctx, request, contentType, rangeHeader == null ? null : rangeHeader.getValue());
+                if( trace != null ) {
+                    trace.addSign(System.nanoTime() - signStart);
+                }
+                if( deadlineAt != Long.MAX_VALUE ) {
+                    long remaining = deadlineAt - System.nanoTime();
+
+                    if( remaining <= 0L ) {
+                        throw new CloudException(CloudErrorType.COMMUNICATION, 0, "DeadlineExceeded", "The " + timeouts.getDeadline() + "ms deadline for " + request.getMethod() + " " + request.getURI().getPath() + " passed before the request could be sent");
+                    }
+                    watchdog = provider.getDeadlineScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            Future<HttpResponse> current = future.request;
+
+                            expired.set(true);
+                            if( current != null ) {
+                                current.cancel(true);
+                            }
+                        }
+                    }, remaining, TimeUnit.NANOSECONDS);
+                }
+                if( wire.isDebugEnabled() ) {
+                    wire.debug(request.getRequestLine().toString());
+                    for( Header header : request.getAllHeaders() ) {
+                        wire.debug(header.getName() + ": " + header.getValue());
+                    }
+                    wire.debug("");
+                }
+                if( node != null ) {
+                    node.start();
+                }
+                provider.getMetrics().requestStarted(operation);
+                sentAt = System.nanoTime();
+                future.request = provider.getAsyncClient().execute(request, this);
+            }
+            catch( CloudException e ) {
+                abandon(e);
+                return;
+            }
+            catch( InternalException e ) {
+                abandon(e);
+                return;
+            }
+            catch( RuntimeException e ) {
+                // the client or the deadline scheduler has been shut down
+                abandon(e);
+                return;
+            }
+            if( future.isCancelled() || expired.get() ) {
+                future.request.cancel(true);
+            }
+        }
+
+        private void abandon(@Nonnull Exception error) {
+            if( sentAt > 0L ) {
+                ended(0, 0L, false);
+            }
+            else {
+                ScheduledFuture<?> timer = watchdog;
+
+                if( timer != null ) {
+                    timer.cancel(false);
+                }
+            }
+            throttle.release(false);
+            fail(error);
+        }
+
+        /**
+         * Starts the next attempt by asking the throttle for admission.
+         */
+        void start() {
+            if( future.isCancelled() ) {
+                fail(new CancellationException());
+                return;
+            }
+            attempt++;
+            sentAt = 0L;
+            if( deadlineAt != Long.MAX_VALUE && deadlineAt - System.nanoTime() <= 0L ) {
+                fail(new CloudException(CloudErrorType.COMMUNICATION, 0, "DeadlineExceeded", "The " + timeouts.getDeadline() + "ms deadline for " + request.getMethod() + " " + request.getURI().getPath() + " passed before the request could be sent"));
+                return;
+            }
+            throttle.acquire(AtmosOperation.classify(request), this);
+        }
+    }
+
+    private final AtmosMethod method;
+    private final Atmos       provider;
+
+    public AtmosAsyncMethod(@Nonnull Atmos provider) {
+        this.provider = provider;
+        this.method = new AtmosMethod(provider);
+    }
+
+    public @Nonnull Future<Blob> create(@Nonnull String bucket, @Nonnull String name, @Nullable AtmosCallback<Blob> callback) throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+
+        if( !bucket.endsWith("/") ) {
+            bucket = bucket + "/";
+        }
+        if( !bucket.startsWith("/") ) {
+            bucket = "/" + bucket;
+        }
+        if( !name.endsWith("/") ) {
+            name = name + "/";
+        }
+        final String path = (bucket.equals("/") ? name : bucket + name);
+        HttpPost post = new HttpPost(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, bucket + name));
+
+        post.addHeader("Accept", "*/*");
+        post.addHeader("Content-Type", "application/octet-stream");
+        return submit(new Exchange<Blob>("create", ctx, post, "application/octet-stream", AtmosTimeouts.forMetadata(provider), new AtmosFuture<Blob>(callback)) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                if( response.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED ) {
+                    throw new AtmosException(response);
+                }
+                complete(method.toBlob(ctx, response, path, null, null));
+            }
+        });
+    }
+
+    public @Nonnull Future<Void> delete(@Nonnull String bucketName, @Nullable String objectName, @Nullable AtmosCallback<Void> callback) throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+        HttpDelete delete = new HttpDelete(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, method.toPath(bucketName, objectName)));
+
+        delete.addHeader("Accept", "*/*");
+        delete.addHeader("Content-Type", "application/octet-stream");
+        return submit(new Exchange<Void>("delete", ctx, delete, "application/octet-stream", AtmosTimeouts.forMetadata(provider), new AtmosFuture<Void>(callback)) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                if( response.getStatusLine().getStatusCode() != HttpStatus.SC_NO_CONTENT ) {
+                    throw new AtmosException(response);
+                }
+                complete(null);
+            }
+        });
+    }
+
+    /**
+     * Starts a download. The content is buffered in memory as it arrives and objects stored with client-side
+     * compression (see {@link AtmosCompression}) are decompressed as the stream handed back is read.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @param callback an optional callback to notify on completion
+     * @return a future for the object content
+     * @throws CloudException no context was set for the request
+     * @throws InternalException the request could not be started
+     */
+    public @Nonnull Future<InputStream> download(@Nonnull String bucket, @Nonnull String name, @Nullable AtmosCallback<InputStream> callback) throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+        HttpGet get = new HttpGet(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, method.toPath(bucket, name)));
+
+        get.addHeader("Accept", "*/*");
+        return submit(new Exchange<InputStream>("download", ctx, get, "", AtmosTimeouts.forTransfer(provider), new AtmosFuture<InputStream>(callback)) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                if( response.getStatusLine().getStatusCode() != HttpStatus.SC_OK ) {
+                    throw new AtmosException(response);
+                }
+                HttpEntity entity = response.getEntity();
+
+                if( entity == null ) {
+                    throw new CloudException("No content was returned");
+                }
+                Header header = response.getFirstHeader("x-emc-meta");
+                AtmosCompression.Codec codec = AtmosCompression.getCodec(header == null ? null : AtmosMetadata.parse(header.getValue(), method.isUtf8(response)));
+
+                try {
+                    InputStream input = entity.getContent();
+
+                    complete(codec == null ? input : codec.decompress(input));
+                }
+                catch( IOException e ) {
+                    throw new InternalException(e);
+                }
+            }
+        });
+    }
+
+    public @Nonnull Future<Blob> info(@Nonnull String bucket, @Nonnull String name, @Nullable AtmosCallback<Blob> callback) throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+
+        if( ctx.getRegionId() == null ) {
+            throw new CloudException("No region was set for this request");
+        }
+        final String directory = method.toPath(bucket, null);
+        HttpGet get = new HttpGet(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, method.toPath(bucket, name)) + "?metadata/system");
+
+        get.addHeader("Accept", "*/*");
+        get.addHeader("x-emc-tags", AtmosMetadata.encodeNames(Arrays.asList(AtmosMethod.INFO_SYSTEM_TAGS), false));
+        get.addHeader("x-emc-utf8", "true");
+        return submit(new Exchange<Blob>("info", ctx, get, "", AtmosTimeouts.forMetadata(provider), new AtmosFuture<Blob>(callback)) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status == HttpStatus.SC_NOT_FOUND ) {
+                    complete(null);
+                    return;
+                }
+                if( status != HttpStatus.SC_OK ) {
+                    throw new AtmosException(response);
+                }
+                complete(method.toInfo(ctx, response, directory));
+            }
+        });
+    }
+
+    /**
+     * Lists the full contents of a directory, fetching each page of results as soon as the previous one arrives.
+     * @param directory the directory to list
+     * @param callback an optional callback to notify on completion
+     * @return a future for the directories and objects in the directory
+     * @throws CloudException no context was set for the request
+     * @throws InternalException the request could not be started
+     */
+    public @Nonnull Future<Iterable<Blob>> list(@Nonnull String directory, @Nullable AtmosCallback<Iterable<Blob>> callback) throws CloudException, InternalException {
+        AtmosFuture<Iterable<Blob>> future = new AtmosFuture<Iterable<Blob>>(callback);
+
+        submit(listPage(getContext(), method.toPath(directory, null), null, new ArrayList<Blob>(), future));
+        return future;
+    }
+
+    private @Nonnull Exchange<Iterable<Blob>> listPage(@Nonnull ProviderContext ctx, final @Nonnull String directory, @Nullable String token, final @Nonnull ArrayList<Blob> entries, @Nonnull AtmosFuture<Iterable<Blob>> future) throws CloudException, InternalException {
+        HttpGet get = new HttpGet(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, directory));
+
+        get.addHeader("x-emc-include-meta", "true");
+        get.addHeader("x-emc-system-tags", AtmosMetadata.encodeNames(Arrays.asList(AtmosMethod.LIST_SYSTEM_TAGS), false));
+        if( token != null ) {
+            get.addHeader("x-emc-token", token);
+        }
+        get.addHeader("Accept", "text/xml");
+        return new Exchange<Iterable<Blob>>("list", ctx, get, "", AtmosTimeouts.forMetadata(provider), future) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                if( response.getStatusLine().getStatusCode() != HttpStatus.SC_OK ) {
+                    throw new AtmosException(response);
+                }
+                AtmosListPage page = method.toPage(ctx, response, directory);
+
+                entries.addAll(page.getEntries());
+                if( page.getNextToken() == null ) {
+                    complete(entries);
+                }
+                else {
+                    submit(listPage(ctx, directory, page.getNextToken(), entries, future));
+                }
+            }
+        };
+    }
+
+    public @Nonnull Future<Void> move(@Nonnull String fromPath, @Nonnull String toPath, boolean force, @Nullable AtmosCallback<Void> callback) throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+
+        if( !fromPath.startsWith("/") ) {
+            fromPath = "/" + fromPath;
+        }
+        while( toPath.startsWith("/") ) {
+            toPath = toPath.substring(1);
+        }
+        if( fromPath.equals("/") || toPath.length() < 1 ) {
+            throw new CloudException("The namespace root cannot be moved or replaced");
+        }
+        if( fromPath.endsWith("/") != toPath.endsWith("/") ) {
+            throw new CloudException("Cannot move a directory to an object path or an object to a directory path");
+        }
+        HttpPost post = new HttpPost(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, fromPath) + "?rename");
+
+        post.addHeader("Accept", "*/*");
+        post.addHeader("Content-Type", "application/octet-stream");
+        post.addHeader("x-emc-path", toPath);
+        if( force ) {
+            post.addHeader("x-emc-force", "true");
+        }
+        return submit(new Exchange<Void>("move", ctx, post, "application/octet-stream", AtmosTimeouts.forMetadata(provider), new AtmosFuture<Void>(callback)) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_OK ) {
+                    throw new AtmosException(response);
+                }
+                complete(null);
+            }
+        });
+    }
+
+    public @Nonnull Future<Void> rename(@Nonnull String root, @Nonnull String oldName, @Nonnull String newName, @Nullable AtmosCallback<Void> callback) throws CloudException, InternalException {
+        if( !root.endsWith("/") ) {
+            root = root + "/";
+        }
+        if( !root.startsWith("/") ) {
+            root = "/" + root;
+        }
+        if( !oldName.endsWith("/") ) {
+            oldName = oldName + "/";
+        }
+        if( !newName.endsWith("/") ) {
+            newName = newName + "/";
+        }
+        return move(root + oldName, root + newName, false, callback);
+    }
+
+    public @Nonnull Future<Blob> upload(@Nonnull String bucket, final @Nonnull String name, @Nonnull String contentType, @Nonnull String content, @Nullable AtmosCallback<Blob> callback) throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+        final String directory = method.toPath(bucket, null);
+        HttpPost post = method.newUpload(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, directory + name), name, contentType, content, null, null);
+
+        return submit(new Exchange<Blob>("upload", ctx, post, contentType, AtmosTimeouts.forMetadata(provider), new AtmosFuture<Blob>(callback)) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                if( response.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED ) {
+                    throw new AtmosException(response);
+                }
+                complete(method.toBlob(ctx, response, directory, name, null));
+            }
+        });
+    }
+
+    /**
+     * Starts an upload of streamed content. The stream is read by an I/O dispatch thread whenever the connection can
+     * take more data, so it should come from memory or a local file rather than from the network. Content the
+     * provider is configured to compress is compressed on the calling thread before the request starts.
+     * @param bucket the directory into which the content is uploaded
+     * @param name the name of the new object
+     * @param input the content, which is closed once the upload ends however it ends
+     * @param size the length of the content
+     * @param callback an optional callback to notify on completion
+     * @return a future for the new object
+     * @throws CloudException no context was set for the request
+     * @throws InternalException the request could not be started
+     */
+    public @Nonnull Future<Blob> upload(@Nonnull String bucket, final @Nonnull String name, final @Nonnull InputStream input, @Nonnull Storage<?> size, @Nullable AtmosCallback<Blob> callback) throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+        final String directory = method.toPath(bucket, null);
+        long length = size.convertTo(Storage.BYTE).getQuantity().longValue();
+        HttpPost post = new HttpPost(method.getEndpoint(ctx, AtmosMethod.EndpointType.NAMESPACE, directory + name));
+        AtmosCompression compression = new AtmosCompression(provider);
+        final AtmosCompression.Compressed compressed;
+
+        if( compression.shouldCompress(name, "application/octet-stream", length) ) {
+            compressed = compression.compress(input, length);
+            post.setEntity(compressed.toEntity(ContentType.APPLICATION_OCTET_STREAM));
+            method.addMetadata(post, compression.toMetadata(null, length), null);
+        }
+        else {
+            compressed = null;
+            post.setEntity(new AtmosStreamEntity(input, length, ContentType.APPLICATION_OCTET_STREAM, provider.getBufferPool()));
+        }
+        return submit(new Exchange<Blob>("upload", ctx, post, "application/octet-stream", AtmosTimeouts.forTransfer(provider), new AtmosFuture<Blob>(callback)) {
+            @Override
+            protected void handle(@Nonnull HttpResponse response) throws CloudException, InternalException {
+                if( response.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED ) {
+                    throw new AtmosException(response);
+                }
+                complete(method.toBlob(ctx, response, directory, name, null));
+            }
+
+            @Override
+            protected void cleanup() {
+                if( compressed != null ) {
+                    compressed.close();
+                }
+                try {
+                    input.close();
+                }
+                catch( IOException e ) {
+                    logger.warn("Unable to close the content uploaded to " + directory + name + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private @Nonnull ProviderContext getContext() throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return ctx;
+    }
+
+    private @Nonnull <T> Future<T> submit(@Nonnull Exchange<T> exchange) {
+        exchange.start();
+        return exchange.future;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of large transfer buffers shared by every upload, download and checksum pass against a cloud, so that bulk
+ * transfers reuse a fixed set of arrays instead of allocating fresh ones for each object. Buffers are plain heap
+ * arrays because every transfer path works on streams. The memory held in pooled buffers, whether idle or in use, is
+ * bounded: once every pooled buffer is out, a caller waits a short, bounded time for one to come back and otherwise
+ * gets a small buffer from outside the pool, so a burst of transfers slows down rather than exhausting the heap.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosBufferPool {
+    /**
+     * The largest unpooled buffer handed out when every pooled buffer is in use.
+     */
+    static public final int FALLBACK_SIZE = 8 * 1024;
+
+    private final AtomicLong                    allocated = new AtomicLong(0L);
+    private final int                           bufferSize;
+    private final AtomicLong                    fallbacks = new AtomicLong(0L);
+    private final ConcurrentLinkedQueue<byte[]> free      = new ConcurrentLinkedQueue<byte[]>();
+    private final int                           maxBuffers;
+    private final long                          maxWaitMs;
+    private final Semaphore                     permits;
+    private final AtomicInteger                 retained  = new AtomicInteger(0);
+    private final AtomicLong                    reused    = new AtomicLong(0L);
+
+    /**
+     * Constructs a pool of buffers of a single size.
+     * @param bufferSize the size of each buffer in bytes
+     * @param maxBytes the most memory the pool holds in buffers, idle or in use
+     * @param maxWaitMs how long an acquisition waits for a pooled buffer before settling for an unpooled one
+     */
+    public AtmosBufferPool(@Nonnegative int bufferSize, @Nonnegative long maxBytes, @Nonnegative long maxWaitMs) {
+        this.bufferSize = Math.max(4096, bufferSize);
+        this.maxBuffers = (int)Math.min(Integer.MAX_VALUE, Math.max(1L, maxBytes / this.bufferSize));
+        this.maxWaitMs = Math.max(0L, maxWaitMs);
+        this.permits = new Semaphore(maxBuffers);
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none is idle and the pool is below its footprint. When every
+     * pooled buffer is in use, the call waits up to the configured time for one to be released and then falls back
+     * to a {@link #FALLBACK_SIZE} buffer that is not pooled. Callers must therefore size their reads by the length
+     * of the buffer they get, hand it back through {@link #release(byte[])} once the transfer completes, and not
+     * touch it afterwards.
+     * @return a buffer of {@link #getBufferSize()} bytes, or exceptionally of at most {@link #FALLBACK_SIZE} bytes,
+     * with arbitrary content
+     */
+    public @Nonnull byte[] acquire() {
+        boolean pooled = permits.tryAcquire();
+
+        if( !pooled && maxWaitMs > 0L ) {
+            try {
+                pooled = permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if( !pooled ) {
+            fallbacks.incrementAndGet();
+            // never the pooled size, so that releasing it cannot hand back a permit it never took
+            return new byte[Math.min(FALLBACK_SIZE, bufferSize / 2)];
+        }
+        byte[] buffer = free.poll();
+
+        if( buffer == null ) {
+            allocated.incrementAndGet();
+            return new byte[bufferSize];
+        }
+        retained.decrementAndGet();
+        reused.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Drops every idle buffer.
+     */
+    public void clear() {
+        while( free.poll() != null ) {
+            retained.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of buffers allocated because the pool was empty
+     */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public @Nonnegative int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of acquisitions that got an unpooled buffer because every pooled buffer was in use
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    /**
+     * @return the number of pooled buffers currently handed out
+     */
+    public int getInUseCount() {
+        return maxBuffers - permits.availablePermits();
+    }
+
+    /**
+     * @return the most buffers the pool holds, idle or in use
+     */
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    /**
+     * @return the number of idle buffers currently held
+     */
+    public int getRetainedCount() {
+        return retained.get();
+    }
+
+    /**
+     * @return the number of acquisitions satisfied by an idle buffer
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * Returns a buffer to the pool. Unpooled fallback buffers and buffers of the wrong size are simply dropped.
+     * @param buffer the buffer to return (null is ignored)
+     */
+    public void release(@Nullable byte[] buffer) {
+        if( buffer == null || buffer.length != bufferSize ) {
+            return;
+        }
+        retained.incrementAndGet();
+        free.offer(buffer);
+        permits.release();
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "[bufferSize=" + bufferSize + ",inUse=" + getInUseCount() + "/" + maxBuffers + ",retained=" + getRetainedCount() + ",allocated=" + getAllocatedCount() + ",reused=" + getReusedCount() + ",fallbacks=" + getFallbackCount() + "]";
+    }
+}
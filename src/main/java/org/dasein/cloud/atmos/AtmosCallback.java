@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Receives notification of the outcome of an operation started through {@link AtmosAsyncMethod}. Callbacks usually
+ * run on one of the few I/O dispatch threads shared by every asynchronous request, so they must return quickly and
+ * must never block, for example by waiting on another asynchronous operation.
+ * @param <T> the type of result produced by the operation
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public interface AtmosCallback<T> {
+    /**
+     * Called when the operation was cancelled before it completed.
+     */
+    public void cancelled();
+
+    /**
+     * Called when the operation completed successfully.
+     * @param result the result of the operation (null for operations with no result)
+     */
+    public void completed(@Nullable T result);
+
+    /**
+     * Called when the operation failed.
+     * @param error the cause of the failure, typically a {@link org.dasein.cloud.CloudException} or
+     * {@link org.dasein.cloud.InternalException}
+     */
+    public void failed(@Nonnull Throwable error);
+}
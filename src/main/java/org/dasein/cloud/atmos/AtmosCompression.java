@@ -0,0 +1,380 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Optional client-side compression of object content. When enabled, uploads of compressible content are compressed
+ * before they leave the client and the codec and original size are recorded in the user metadata of the object;
+ * downloads of objects carrying that metadata are decompressed transparently. Objects written without compression,
+ * or by other clients, are read as they are.
+ * <p>Compression is controlled through the following custom properties:</p>
+ * <ul>
+ *     <li><code>compression</code> - <code>gzip</code> or <code>deflate</code> to enable compression (default off)</li>
+ *     <li><code>compressionLevel</code> - 1 (fastest) to 9 (smallest), default 6</li>
+ *     <li><code>compressionMinBytes</code> - smaller objects are stored as they are (default 1024)</li>
+ *     <li><code>compressionMaxBytes</code> - larger objects are stored as they are (default unlimited)</li>
+ *     <li><code>compressionTypes</code> - comma-separated content type prefixes worth compressing (default
+ *     <code>text/,application/json,application/xml,application/javascript</code>)</li>
+ *     <li><code>compressionSuffixes</code> - comma-separated name suffixes worth compressing regardless of content
+ *     type (default <code>.log,.txt,.csv,.json,.xml</code>)</li>
+ *     <li><code>compressionSpoolBytes</code> - objects up to this size are compressed in memory rather than through a
+ *     temporary file (default 8 MB)</li>
+ * </ul>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosCompression {
+    static private final Logger logger = Atmos.getLogger(AtmosCompression.class);
+
+    /**
+     * The user metadata entry naming the codec an object was compressed with.
+     */
+    static public final String CODEC         = "dasein-codec";
+    /**
+     * The user metadata entry holding the size of an object before compression.
+     */
+    static public final String ORIGINAL_SIZE = "dasein-original-size";
+
+    /**
+     * The supported compression codecs.
+     */
+    public enum Codec {
+        GZIP, DEFLATE;
+
+        static public @Nullable Codec parse(@Nullable String value) {
+            if( value == null ) {
+                return null;
+            }
+            for( Codec c : values() ) {
+                if( c.name().equalsIgnoreCase(value.trim()) ) {
+                    return c;
+                }
+            }
+            return null;
+        }
+
+        public @Nonnull InputStream decompress(@Nonnull InputStream input) throws IOException {
+            if( equals(GZIP) ) {
+                return new GZIPInputStream(input, 65536);
+            }
+            return new InflaterInputStream(input, new Inflater(), 65536) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+
+        public @Nonnull String toMetadata() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Compressed content ready to upload, either in memory or in a temporary file that is deleted by
+     * {@link #close()}.
+     */
+    static public class Compressed {
+        private final byte[] content;
+        private final File   file;
+        private final long   length;
+
+        private Compressed(@Nullable byte[] content, @Nullable File file, @Nonnegative long length) {
+            this.content = content;
+            this.file = file;
+            this.length = length;
+        }
+
+        public void close() {
+            if( file != null && !file.delete() ) {
+                logger.warn("Unable to delete compression spool file " + file);
+                file.deleteOnExit();
+            }
+        }
+
+        public @Nonnegative long getLength() {
+            return length;
+        }
+
+        /**
+         * @param contentType the content type of the uncompressed object
+         * @return a repeatable entity with the compressed content
+         */
+        public @Nonnull HttpEntity toEntity(@Nonnull ContentType contentType) {
+            return (file == null ? new ByteArrayEntity(content, contentType) : new FileEntity(file, contentType));
+        }
+    }
+
+    /**
+     * Looks up the codec recorded in an object's user metadata.
+     * @param metadata the user metadata of the object
+     * @return the codec the object was compressed with, or null if it is stored as it is
+     */
+    static public @Nullable Codec getCodec(@Nullable Map<String,String> metadata) {
+        return (metadata == null ? null : Codec.parse(metadata.get(CODEC)));
+    }
+
+    /**
+     * Looks up the size an object had before it was compressed.
+     * @param metadata the user metadata of the object
+     * @return the original size, or -1 if the object is stored as it is or its size was not recorded
+     */
+    static public long getOriginalSize(@Nullable Map<String,String> metadata) {
+        String value = (metadata == null || getCodec(metadata) == null ? null : metadata.get(ORIGINAL_SIZE));
+
+        if( value == null ) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            return -1L;
+        }
+    }
+
+    static private @Nonnull ArrayList<String> split(@Nonnull String list) {
+        ArrayList<String> values = new ArrayList<String>();
+
+        for( String value : list.split(",") ) {
+            value = value.trim().toLowerCase();
+            if( value.length() > 0 ) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private final Codec             codec;
+    private final int               level;
+    private final long              maxBytes;
+    private final long              minBytes;
+    private final Atmos             provider;
+    private final long              spoolBytes;
+    private final ArrayList<String> suffixes;
+    private final ArrayList<String> types;
+
+    public AtmosCompression(@Nonnull Atmos provider) {
+        this.provider = provider;
+        this.codec = Codec.parse(provider.getStringProperty("compression", null));
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, provider.getIntProperty("compressionLevel", 6)));
+        this.minBytes = provider.getIntProperty("compressionMinBytes", 1024);
+        this.maxBytes = provider.getLongProperty("compressionMaxBytes", Long.MAX_VALUE);
+        this.spoolBytes = provider.getIntProperty("compressionSpoolBytes", 8 * 1024 * 1024);
+        String types = provider.getStringProperty("compressionTypes", "text/,application/json,application/xml,application/javascript");
+        String suffixes = provider.getStringProperty("compressionSuffixes", ".log,.txt,.csv,.json,.xml");
+
+        this.types = split(types == null ? "" : types);
+        this.suffixes = split(suffixes == null ? "" : suffixes);
+    }
+
+    /**
+     * Compresses a byte array in memory.
+     * @param content the content to compress
+     * @return the compressed content
+     * @throws InternalException the content could not be compressed
+     */
+    public @Nonnull byte[] compress(@Nonnull byte[] content) throws InternalException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+
+        try {
+            OutputStream out = wrap(output);
+
+            out.write(content);
+            out.close();
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Compresses a stream, in memory if it is small enough or through a temporary file otherwise. The input stream is
+     * closed once it has been read.
+     * @param input the content to compress
+     * @param length the length of the uncompressed content
+     * @return the compressed content, which the caller must {@link Compressed#close() close}
+     * @throws InternalException the content could not be read or compressed
+     */
+    public @Nonnull Compressed compress(@Nonnull InputStream input, @Nonnegative long length) throws InternalException {
+        AtmosBufferPool pool = provider.getBufferPool();
+        byte[] buffer = pool.acquire();
+        ByteArrayOutputStream memory = null;
+        File file = null;
+
+        try {
+            OutputStream sink;
+
+            if( length <= spoolBytes ) {
+                memory = new ByteArrayOutputStream((int)Math.max(64L, length / 4));
+                sink = memory;
+            }
+            else {
+                file = File.createTempFile("atmos-compress", ".tmp");
+                sink = new FileOutputStream(file);
+            }
+            OutputStream out = wrap(sink);
+
+            try {
+                long remaining = length;
+                int count;
+
+                while( remaining > 0 && (count = input.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1 ) {
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                if( remaining > 0 ) {
+                    throw new EOFException("Expected " + length + " bytes but the content ended after " + (length - remaining));
+                }
+            }
+            finally {
+                out.close();
+            }
+            if( memory != null ) {
+                byte[] content = memory.toByteArray();
+
+                return new Compressed(content, null, content.length);
+            }
+            return new Compressed(null, file, file.length());
+        }
+        catch( IOException e ) {
+            if( file != null && !file.delete() ) {
+                file.deleteOnExit();
+            }
+            throw new InternalException(e);
+        }
+        finally {
+            pool.release(buffer);
+            try { input.close(); }
+            catch( IOException ignore ) { }
+        }
+    }
+
+    /**
+     * @return the codec uploads are compressed with, or null if compression is disabled
+     */
+    public @Nullable Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Builds the user metadata for a compressed object from the metadata the caller asked for.
+     * @param metadata the caller's user metadata, if any
+     * @param originalSize the size of the uncompressed content
+     * @return the user metadata to store with the compressed object
+     */
+    public @Nonnull Map<String,String> toMetadata(@Nullable Map<String,String> metadata, @Nonnegative long originalSize) {
+        LinkedHashMap<String,String> m = new LinkedHashMap<String, String>();
+
+        if( metadata != null ) {
+            m.putAll(metadata);
+        }
+        m.put(CODEC, codec == null ? "" : codec.toMetadata());
+        m.put(ORIGINAL_SIZE, String.valueOf(originalSize));
+        return m;
+    }
+
+    /**
+     * Decides whether an upload is worth compressing, based on its size, content type and name.
+     * @param name the name of the object
+     * @param contentType the content type of the object
+     * @param length the uncompressed length of the object
+     * @return true if the upload should be compressed
+     */
+    public boolean shouldCompress(@Nonnull String name, @Nullable String contentType, long length) {
+        if( codec == null || length < 1 || length < minBytes || length > maxBytes ) {
+            return false;
+        }
+        if( contentType != null ) {
+            String type = contentType.toLowerCase();
+
+            for( String t : types ) {
+                if( type.startsWith(t) ) {
+                    return true;
+                }
+            }
+        }
+        String n = name.toLowerCase();
+
+        for( String suffix : suffixes ) {
+            if( n.endsWith(suffix) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private @Nonnull OutputStream wrap(@Nonnull OutputStream output) throws IOException {
+        if( Codec.GZIP.equals(codec) ) {
+            final int l = level;
+
+            return new GZIPOutputStream(output, 65536) {
+                {
+                    def.setLevel(l);
+                }
+            };
+        }
+        return new DeflaterOutputStream(output, new Deflater(level), 65536) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    def.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pooling connection manager that reports how long each request waits to lease a connection to the provider's
+ * {@link AtmosMetrics}, and both lease and connect times to the {@link AtmosTrace} in progress, if any.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosConnectionManager extends PoolingClientConnectionManager {
+    private final Atmos provider;
+
+    public AtmosConnectionManager(@Nonnull Atmos provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    protected ClientConnectionOperator createConnectionOperator(SchemeRegistry registry) {
+        return new DefaultClientConnectionOperator(registry) {
+            @Override
+            public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local, HttpContext context, HttpParams params) throws IOException {
+                long start = System.nanoTime();
+
+                try {
+                    super.openConnection(conn, target, local, context, params);
+                }
+                finally {
+                    AtmosTrace trace = AtmosTracer.current();
+
+                    if( trace != null ) {
+                        trace.addConnect(System.nanoTime() - start);
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ClientConnectionRequest request = super.requestConnection(route, state);
+
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(long timeout, TimeUnit unit) throws InterruptedException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+
+                try {
+                    return request.getConnection(timeout, unit);
+                }
+                finally {
+                    long wait = System.nanoTime() - start;
+                    AtmosTrace trace = AtmosTracer.current();
+
+                    provider.getMetrics().connectionLeased(wait);
+                    if( trace != null ) {
+                        trace.addLease(wait);
+                    }
+                }
+            }
+
+            @Override
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+}
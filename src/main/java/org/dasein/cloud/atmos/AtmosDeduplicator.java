@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed deduplication of uploads. Each object uploaded through this class carries a listable tag named
+ * after the SHA-256 hash of its content whose value is the path it was stored under. Before uploading, the content is
+ * hashed and, if an object with the same hash already exists, the new path is created as a server side link to that
+ * object instead of sending the content again. Recently seen hashes are remembered locally so that repeated uploads
+ * of the same content do not need to query Atmos first. A path found in the index or in a tag is only linked to after
+ * confirming the object now stored there still carries the tag, since it may since have been replaced.
+ * <p>The hash has to be known before deciding whether to send the content at all, so content that is not a
+ * duplicate is read twice: once to hash it and once to upload it.</p>
+ * <p>Deduplication is enabled by setting the <code>deduplicate</code> custom property to <code>true</code>; the
+ * <code>dedupIndexSize</code> property (default 10,000) bounds the number of hashes remembered locally.</p>
+ * <p>Linked paths share the object's content and metadata, so only uploads without user metadata are deduplicated
+ * and deduplicated objects should be treated as immutable.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosDeduplicator {
+    static private final Logger logger = Atmos.getLogger(AtmosDeduplicator.class);
+
+    /**
+     * The prefix of the listable tag holding the content hash of a deduplicated object.
+     */
+    static public final String TAG_PREFIX = "dasein-sha256-";
+
+    static private final int MAX_CANDIDATES = 10;
+
+    static private final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static private @Nonnull String toHex(@Nonnull byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+
+        for( int i=0; i<bytes.length; i++ ) {
+            hex[i*2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i*2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    static private @Nonnull String toPath(@Nonnull String bucket, @Nonnull String name) {
+        while( bucket.startsWith("/") ) {
+            bucket = bucket.substring(1);
+        }
+        while( bucket.endsWith("/") ) {
+            bucket = bucket.substring(0, bucket.length()-1);
+        }
+        while( name.startsWith("/") ) {
+            name = name.substring(1);
+        }
+        return (bucket.length() < 1 ? "/" + name : "/" + bucket + "/" + name);
+    }
+
+    private final AtomicLong         bytesSaved = new AtomicLong(0L);
+    private final AtomicLong         indexHits  = new AtomicLong(0L);
+    private final Map<String,String> index;
+    private final AtomicLong         linked     = new AtomicLong(0L);
+    private final Atmos              provider;
+    private final AtomicLong         uploaded   = new AtomicLong(0L);
+
+    public AtmosDeduplicator(@Nonnull Atmos provider, @Nonnegative final int indexSize) {
+        this.provider = provider;
+        this.index = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+                return size() > indexSize;
+            }
+        });
+    }
+
+    /**
+     * @return the number of content bytes that did not have to be sent because a link was created instead
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return the number of uploads whose existing copy was found in the local index without querying Atmos
+     */
+    public long getIndexHits() {
+        return indexHits.get();
+    }
+
+    /**
+     * @return the number of uploads satisfied by linking to an existing object
+     */
+    public long getLinkedCount() {
+        return linked.get();
+    }
+
+    /**
+     * @return the number of uploads that had to send their content
+     */
+    public long getUploadedCount() {
+        return uploaded.get();
+    }
+
+    /**
+     * Calculates the hash by which content is deduplicated, reading the file once through a pooled buffer.
+     * @param file the file to hash
+     * @return the hex-encoded SHA-256 hash of the file content
+     * @throws InternalException the file could not be read
+     */
+    public @Nonnull String hash(@Nonnull File file) throws InternalException {
+        AtmosBufferPool pool = provider.getBufferPool();
+        byte[] buffer = pool.acquire();
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            InputStream input = new FileInputStream(file);
+
+            try {
+                int count;
+
+                while( (count = input.read(buffer)) != -1 ) {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            finally {
+                input.close();
+            }
+            return toHex(digest.digest());
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new InternalException(e);
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Uploads a file unless an object with identical content already exists, in which case the new path is linked
+     * to that object.
+     * @param file the file to upload
+     * @param bucket the directory into which the file is uploaded
+     * @param name the name of the new object
+     * @return the new object
+     * @throws CloudException an error occurred in Atmos storing the object
+     * @throws InternalException an error occurred within Dasein Cloud reading or hashing the file
+     */
+    public @Nonnull Blob upload(@Nonnull File file, @Nonnull String bucket, @Nonnull String name) throws CloudException, InternalException {
+        AtmosMethod method = new AtmosMethod(provider);
+        String hash = hash(file);
+        String tag = TAG_PREFIX + hash;
+        String target = toPath(bucket, name);
+        String known = index.get(hash);
+
+        if( known != null ) {
+            if( link(method, known, target, tag) ) {
+                indexHits.incrementAndGet();
+                return linked(method, file, bucket, name);
+            }
+            index.remove(hash);
+        }
+        List<String> candidates = method.listTagValues(tag, MAX_CANDIDATES);
+
+        for( String candidate : candidates ) {
+            if( candidate.equals(known) ) {
+                continue;
+            }
+            if( link(method, candidate, target, tag) ) {
+                index.put(hash, candidate);
+                return linked(method, file, bucket, name);
+            }
+        }
+        InputStream input;
+
+        try {
+            input = new FileInputStream(file);
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        try {
+            Blob blob = method.upload(bucket, name, input, new Storage<org.dasein.util.uom.storage.Byte>(file.length(), Storage.BYTE), null, Collections.singletonMap(tag, target));
+
+            uploaded.incrementAndGet();
+            index.put(hash, target);
+            return blob;
+        }
+        finally {
+            try {
+                input.close();
+            }
+            catch( IOException ignore ) {
+                // the upload either consumed the stream or never got that far
+            }
+        }
+    }
+
+    private boolean link(@Nonnull AtmosMethod method, @Nonnull String source, @Nonnull String target, @Nonnull String tag) throws CloudException, InternalException {
+        int idx = source.lastIndexOf('/');
+        AtmosMetadata metadata = method.getMetadata(source.substring(0, idx + 1), source.substring(idx + 1), Collections.singletonList(tag));
+
+        // the path may have been deleted and reused, or renamed over, since the hash was recorded against it
+        if( metadata == null || metadata.getListable().get(tag) == null ) {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Not linking " + target + " to " + source + ": it no longer carries " + tag);
+            }
+            return false;
+        }
+        try {
+            method.link(source, target);
+            return true;
+        }
+        catch( CloudException e ) {
+            // only a source deleted since it was indexed is worth skipping; anything else would also fail an upload
+            if( e.getHttpCode() != 404 && !AtmosException.NOT_FOUND.equals(e.getProviderCode()) ) {
+                throw e;
+            }
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Unable to link " + target + " to " + source + ": " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private @Nonnull Blob linked(@Nonnull AtmosMethod method, @Nonnull File file, @Nonnull String bucket, @Nonnull String name) throws CloudException, InternalException {
+        linked.incrementAndGet();
+        bytesSaved.addAndGet(file.length());
+        Blob blob = method.info(bucket, name);
+
+        if( blob == null ) {
+            throw new CloudException("The linked object " + toPath(bucket, name) + " disappeared before it could be read");
+        }
+        return blob;
+    }
+}
@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.storage.FileTransfer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A read-through cache of object content on local disk, for objects such as configuration files and models that
+ * many processes download over and over. Entries are keyed by object ID, size and modification time, so a cached
+ * copy is only used while the object in Atmos is unchanged; each hit is revalidated with a system metadata request
+ * rather than a download. Hits are copied out of the cache with {@link FileChannel#transferTo}, and the cache
+ * survives restarts because entries are found again by their key.
+ * <p>The cache is configured through the following custom properties:</p>
+ * <ul>
+ *     <li><code>cacheDirectory</code> - the directory holding cached content; the cache is off unless this is set</li>
+ *     <li><code>cacheMaxMegabytes</code> - the most content to keep (default 1024)</li>
+ *     <li><code>cacheEviction</code> - <code>lru</code> (default) or <code>lfu</code></li>
+ *     <li><code>cacheRevalidateSeconds</code> - how long a validated entry is trusted without asking Atmos again
+ *     (default 0, always revalidate)</li>
+ * </ul>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosDiskCache {
+    static private final Logger logger = Atmos.getLogger(AtmosDiskCache.class);
+
+    static private final List<String> VERSION_TAGS = Collections.unmodifiableList(Arrays.asList("objectid", "size", "mtime"));
+
+    static private final String TEMP_PREFIX = ".fill-";
+
+    static private final Pattern ENTRY_NAME = Pattern.compile("[0-9a-fA-F]+-\\d+-\\d+");
+    static private final Pattern TEMP_NAME  = Pattern.compile(Pattern.quote(TEMP_PREFIX) + "\\d+\\.tmp");
+
+    /**
+     * How entries are chosen for eviction once the cache is full.
+     */
+    public enum Eviction {
+        /**
+         * Evict the entry that was used least recently.
+         */
+        LRU,
+        /**
+         * Evict the entry that was used least often, breaking ties by recency.
+         */
+        LFU;
+
+        static public @Nonnull Eviction parse(@Nullable String value) {
+            return ("lfu".equalsIgnoreCase(value == null ? null : value.trim()) ? LFU : LRU);
+        }
+    }
+
+    /**
+     * Fills the cache for an object that is not cached yet.
+     */
+    public interface Loader {
+        /**
+         * Downloads the current content of the object into the specified file.
+         * @param target the file to write
+         * @throws CloudException an error occurred in Atmos downloading the object
+         * @throws InternalException an error occurred within Dasein Cloud downloading the object
+         */
+        public void load(@Nonnull File target) throws CloudException, InternalException;
+    }
+
+    static private class Entry {
+        private final File   file;
+        private long         hits;
+        private final String key;
+        private long         lastAccess;
+        private final long   size;
+
+        public Entry(@Nonnull String key, @Nonnull File file, long size, long lastAccess) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    static private class Validation {
+        private final String key;
+        private final long   validatedAt;
+
+        public Validation(@Nonnull String key, long validatedAt) {
+            this.key = key;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    private final File                                directory;
+    private final HashMap<String,Entry>               entries     = new HashMap<String, Entry>();
+    private final Eviction                            eviction;
+    private final AtomicLong                          evictions   = new AtomicLong(0L);
+    private final AtomicLong                          hits        = new AtomicLong(0L);
+    private final long                                maxBytes;
+    private final AtomicLong                          misses      = new AtomicLong(0L);
+    private final Atmos                               provider;
+    private final long                                revalidateMs;
+    private long                                      totalBytes;
+    private final ConcurrentHashMap<String,Validation> validations = new ConcurrentHashMap<String, Validation>();
+
+    public AtmosDiskCache(@Nonnull Atmos provider, @Nonnull File directory, @Nonnegative long maxBytes, @Nonnull Eviction eviction, @Nonnegative long revalidateMs) {
+        this.provider = provider;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.eviction = eviction;
+        this.revalidateMs = revalidateMs;
+        if( !directory.isDirectory() && !directory.mkdirs() ) {
+            logger.warn("Unable to create cache directory " + directory);
+        }
+        scan();
+    }
+
+    /**
+     * Copies the current content of an object into a file, from the cache if the cached copy is still current or
+     * from Atmos (through the loader, filling the cache) if it is not.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @param toFile the file to write
+     * @param transfer an optional transfer to keep informed of progress
+     * @param loader the means of downloading the object on a miss
+     * @throws CloudException an error occurred in Atmos validating or downloading the object
+     * @throws InternalException an error occurred within Dasein Cloud reading or writing the cache
+     */
+    public void get(@Nonnull String bucket, @Nonnull String name, @Nonnull File toFile, @Nullable FileTransfer transfer, @Nonnull final Loader loader) throws CloudException, InternalException {
+        String path = toPath(bucket, name);
+        String key = getKey(bucket, name, path);
+
+        if( key == null ) {
+            // unknown to Atmos as well; let the loader report it the way an uncached download would
+            loader.load(toFile);
+            return;
+        }
+        Entry entry = touch(key);
+
+        if( entry == null ) {
+            misses.incrementAndGet();
+            entry = fill(key, loader);
+        }
+        else {
+            hits.incrementAndGet();
+        }
+        try {
+            transfer(entry.file, toFile, transfer);
+        }
+        catch( IOException e ) {
+            // the entry may have been evicted while it was being copied
+            validations.remove(path);
+            logger.warn("Unable to read cached copy of " + path + ": " + e.getMessage());
+            loader.load(toFile);
+        }
+        finally {
+            if( !isCached(entry) ) {
+                delete(entry.file);
+            }
+        }
+    }
+
+    public @Nonnull File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the size limit
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of reads served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of reads that had to download the object
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the total size of the cached content
+     */
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public synchronized void clear() {
+        for( Entry entry : entries.values() ) {
+            delete(entry.file);
+        }
+        entries.clear();
+        validations.clear();
+        totalBytes = 0L;
+    }
+
+    private synchronized @Nullable Entry add(@Nonnull String key, @Nonnull File file) {
+        long size = file.length();
+
+        if( size > maxBytes ) {
+            return null;
+        }
+        Entry existing = entries.remove(key);
+
+        if( existing != null ) {
+            totalBytes -= existing.size;
+        }
+        Entry entry = new Entry(key, file, size, System.currentTimeMillis());
+
+        entry.hits = 1;
+        entries.put(key, entry);
+        totalBytes += size;
+        evict(entry);
+        return entry;
+    }
+
+    private void delete(@Nonnull File file) {
+        if( file.exists() && !file.delete() ) {
+            file.deleteOnExit();
+        }
+    }
+
+    private void evict(@Nullable Entry keep) {
+        if( totalBytes <= maxBytes ) {
+            return;
+        }
+        ArrayList<Entry> candidates = new ArrayList<Entry>(entries.values());
+
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if( eviction.equals(Eviction.LFU) && a.hits != b.hits ) {
+                    return (a.hits < b.hits ? -1 : 1);
+                }
+                return (a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1));
+            }
+        });
+        for( Entry entry : candidates ) {
+            if( totalBytes <= maxBytes ) {
+                break;
+            }
+            if( entry == keep ) {
+                continue;
+            }
+            entries.remove(entry.key);
+            totalBytes -= entry.size;
+            delete(entry.file);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private @Nonnull Entry fill(@Nonnull final String key, @Nonnull final Loader loader) throws CloudException, InternalException {
+        // concurrent misses for the same version share one download
+        return provider.getSingleFlight().execute("cache:" + key, new AtmosSingleFlight.Call<Entry>() {
+            @Override
+            public Entry call() throws CloudException, InternalException {
+                Entry entry = touch(key);
+
+                if( entry != null ) {
+                    return entry;
+                }
+                File temp;
+
+                try {
+                    temp = File.createTempFile(TEMP_PREFIX, ".tmp", directory);
+                }
+                catch( IOException e ) {
+                    throw new InternalException(e);
+                }
+                try {
+                    loader.load(temp);
+                    File target = new File(directory, key);
+
+                    delete(target);
+                    if( !temp.renameTo(target) ) {
+                        throw new InternalException("Unable to move " + temp + " into the cache as " + target);
+                    }
+                    entry = add(key, target);
+                    // an object too big to cache is handed over once and then deleted by get()
+                    return (entry == null ? new Entry(key, target, target.length(), System.currentTimeMillis()) : entry);
+                }
+                finally {
+                    delete(temp);
+                }
+            }
+        });
+    }
+
+    private @Nullable String getKey(@Nonnull String bucket, @Nonnull String name, @Nonnull String path) throws CloudException, InternalException {
+        Validation validation = validations.get(path);
+        long now = System.currentTimeMillis();
+
+        if( validation != null && revalidateMs > 0L && now - validation.validatedAt < revalidateMs ) {
+            return validation.key;
+        }
+        Map<String,String> metadata = new AtmosMethod(provider).getSystemMetadata(bucket, name, VERSION_TAGS);
+
+        if( metadata == null || metadata.get("objectid") == null ) {
+            validations.remove(path);
+            return null;
+        }
+        String mtime = metadata.get("mtime");
+        String key = metadata.get("objectid") + "-" + metadata.get("size") + "-" + (mtime == null ? 0L : provider.parseTime(mtime));
+
+        validations.put(path, new Validation(key, now));
+        if( validation != null && !validation.key.equals(key) ) {
+            // the object changed, so the old copy is dead weight
+            remove(validation.key);
+        }
+        return key;
+    }
+
+    private synchronized boolean isCached(@Nonnull Entry entry) {
+        return (entries.get(entry.key) == entry);
+    }
+
+    private synchronized void remove(@Nonnull String key) {
+        Entry entry = entries.remove(key);
+
+        if( entry != null ) {
+            totalBytes -= entry.size;
+            delete(entry.file);
+        }
+    }
+
+    private void scan() {
+        File[] files = directory.listFiles();
+
+        if( files == null ) {
+            return;
+        }
+        synchronized( this ) {
+            for( File file : files ) {
+                String name = file.getName();
+
+                if( !file.isFile() ) {
+                    continue;
+                }
+                if( TEMP_NAME.matcher(name).matches() ) {
+                    delete(file);
+                    continue;
+                }
+                // the directory may be shared, so anything not named like an entry is left alone
+                if( !ENTRY_NAME.matcher(name).matches() ) {
+                    continue;
+                }
+                Entry entry = new Entry(name, file, file.length(), file.lastModified());
+
+                entries.put(entry.key, entry);
+                totalBytes += entry.size;
+            }
+            evict(null);
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Found " + entries.size() + " cached objects (" + totalBytes + " bytes) in " + directory);
+        }
+    }
+
+    private @Nonnull String toPath(@Nonnull String bucket, @Nonnull String name) {
+        return (bucket.endsWith("/") ? bucket : bucket + "/") + name;
+    }
+
+    private synchronized @Nullable Entry touch(@Nonnull String key) {
+        Entry entry = entries.get(key);
+
+        if( entry != null ) {
+            if( !entry.file.exists() ) {
+                entries.remove(key);
+                totalBytes -= entry.size;
+                return null;
+            }
+            entry.hits++;
+            entry.lastAccess = System.currentTimeMillis();
+            // keeps recency across restarts, since scan() seeds it from the modification time
+            if( !entry.file.setLastModified(entry.lastAccess) ) {
+                logger.debug("Unable to record access time of " + entry.file);
+            }
+        }
+        return entry;
+    }
+
+    private void transfer(@Nonnull File from, @Nonnull File to, @Nullable FileTransfer xfer) throws IOException {
+        FileInputStream input = new FileInputStream(from);
+
+        try {
+            FileOutputStream output = new FileOutputStream(to);
+
+            try {
+                FileChannel source = input.getChannel();
+                FileChannel target = output.getChannel();
+                long size = source.size();
+                long position = 0L;
+
+                if( xfer != null ) {
+                    xfer.setBytesTransferred(0L);
+                }
+                while( position < size ) {
+                    long count = source.transferTo(position, size - position, target);
+
+                    if( count < 1 ) {
+                        throw new IOException("Cached copy " + from + " ended at " + position + " of " + size + " bytes");
+                    }
+                    position += count;
+                    if( xfer != null ) {
+                        xfer.setBytesTransferred(position);
+                    }
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+}
@@ -19,18 +19,103 @@
 
 package org.dasein.cloud.atmos;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+
 /**
- * Parses errors received from Atmos so they can be understood in a Dasein Cloud context.
+ * Parses errors received from Atmos so they can be understood in a Dasein Cloud context. Atmos reports errors as
+ * <code>&lt;Error&gt;&lt;Code&gt;1003&lt;/Code&gt;&lt;Message&gt;...&lt;/Message&gt;&lt;/Error&gt;</code>; the
+ * numeric code becomes the provider code of the exception.
  * <p>Created by George Reese: 10/5/12 9:48 AM</p>
  * @author George Reese
  * @version 2012.09 initial version
+ * @version 2013.07 parse the Atmos error code and message from the response body
  * @since 2012.09
  */
 public class AtmosException extends CloudException {
-    public AtmosException(HttpResponse response) {
+    /**
+     * Atmos error code for an internal server error that may succeed if retried.
+     */
+    static public final String INTERNAL_ERROR = "1001";
+
+    /**
+     * Atmos error code for a request naming an object or path that does not exist.
+     */
+    static public final String NOT_FOUND      = "1003";
+
+    /**
+     * Atmos error code for an attempt to create an object or directory at a path that is already taken.
+     */
+    static public final String OBJECT_EXISTS  = "1016";
+
+    /**
+     * Atmos error code for a server too busy to handle the request.
+     */
+    static public final String SERVER_BUSY    = "1040";
+
+    static private @Nullable String element(@Nonnull String body, @Nonnull String name) {
+        int start = body.indexOf("<" + name + ">");
+
+        if( start < 0 ) {
+            return null;
+        }
+        start += name.length() + 2;
+        int end = body.indexOf("</" + name + ">", start);
+
+        return (end < 0 ? null : body.substring(start, end).trim());
+    }
+
+    static private @Nonnull String[] parse(@Nonnull HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        String body = null;
+
+        if( entity != null ) {
+            try {
+                body = EntityUtils.toString(entity);
+            }
+            catch( IOException ignore ) {
+                // the status line is all there is to report
+            }
+        }
+        String code = (body == null ? null : element(body, "Code"));
+        String message = (body == null ? null : element(body, "Message"));
+
+        if( code == null ) {
+            code = String.valueOf(response.getStatusLine().getStatusCode());
+        }
+        if( message == null ) {
+            message = response.getStatusLine().toString();
+        }
+        return new String[] { code, message };
+    }
+
+    static private @Nonnull CloudErrorType toType(int status, @Nonnull String code) {
+        if( status == HttpStatus.SC_UNAUTHORIZED || status == HttpStatus.SC_FORBIDDEN ) {
+            return CloudErrorType.AUTHENTICATION;
+        }
+        if( status == 429 || code.equals(SERVER_BUSY) ) {
+            return CloudErrorType.THROTTLING;
+        }
+        return CloudErrorType.GENERAL;
+    }
+
+    /**
+     * Constructs an exception from an error response, consuming the response body.
+     * @param response the error response from Atmos
+     */
+    public AtmosException(@Nonnull HttpResponse response) {
+        this(response.getStatusLine().getStatusCode(), parse(response));
+    }
 
+    private AtmosException(int status, @Nonnull String[] error) {
+        super(toType(status, error[0]), status, error[0], error[1]);
     }
 }
@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues hedged reads across multiple Atmos access nodes. A read is first sent to one node; if it has not answered
+ * within the hedge delay, a duplicate is sent to another node chosen by the {@link AtmosLoadBalancer} and whichever
+ * answers first wins, with the other request aborted. The hedge delay tracks a percentile of recently observed read
+ * latencies, so only the slowest reads are duplicated and the extra load stays proportional to that percentile.
+ * <p>Hedging only applies to idempotent reads and only when more than one endpoint is configured (see
+ * {@link Atmos#getEndpoints()}). It is controlled by the following custom properties:</p>
+ * <ul>
+ *     <li><code>hedgeReads</code> - set to true to enable hedging (default false)</li>
+ *     <li><code>hedgePercentile</code> - the latency percentile after which a read is hedged (default 95)</li>
+ *     <li><code>hedgeMinDelayMs</code> - the smallest hedge delay ever used (default 5)</li>
+ *     <li><code>hedgeDelayMs</code> - the delay used until enough latencies have been observed (default 100)</li>
+ * </ul>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosHedger {
+    static private final Logger logger = Atmos.getLogger(AtmosHedger.class);
+
+    static private final int SAMPLES = 256;
+
+    /**
+     * An idempotent read that can be directed at any access node.
+     * @param <T> the type of the result
+     */
+    public interface Read<T> {
+        /**
+         * Performs the read.
+         * @param method a method bound to the node the read should go to
+         * @return the result of the read
+         * @throws CloudException an error occurred in Atmos
+         * @throws InternalException an error occurred within Dasein Cloud
+         */
+        public @Nullable T read(@Nonnull AtmosMethod method) throws CloudException, InternalException;
+    }
+
+    private class Leg<T> implements Callable<T> {
+        private final AtmosMethod method;
+        private final Read<T>     read;
+
+        public Leg(@Nonnull String endpoint, @Nonnull Read<T> read) {
+            this.method = new AtmosMethod(provider, endpoint);
+            this.read = read;
+        }
+
+        @Override
+        public T call() throws Exception {
+            long start = System.nanoTime();
+            T result = read.read(method);
+
+            record(System.nanoTime() - start);
+            return result;
+        }
+    }
+
+    private final AtomicLong    hedged   = new AtomicLong(0L);
+    private final AtomicLong    hedgeWins = new AtomicLong(0L);
+    private final Atmos         provider;
+    private final long[]        samples  = new long[SAMPLES];
+    private int                 sampleCount;
+    private int                 sampleIndex;
+    private long                threshold = -1L;
+
+    public AtmosHedger(@Nonnull Atmos provider) { this.provider = provider; }
+
+    /**
+     * Performs a read, hedging it to a second access node if it runs longer than the current hedge delay.
+     * @param read the read to perform
+     * @param <T> the type of the result
+     * @return the result from whichever node answered first
+     * @throws CloudException the read failed in Atmos
+     * @throws InternalException the read failed within Dasein Cloud
+     */
+    public @Nullable <T> T execute(@Nonnull Read<T> read) throws CloudException, InternalException {
+        List<String> endpoints = provider.getEndpoints();
+
+        if( endpoints.size() < 2 || !"true".equalsIgnoreCase(provider.getStringProperty("hedgeReads", "false")) ) {
+            return read.read(new AtmosMethod(provider));
+        }
+        AtmosLoadBalancer balancer = provider.getLoadBalancer();
+        String primary = balancer.choose(null);
+        String secondary = balancer.choose(primary);
+
+        if( primary == null || secondary == null || primary.equals(secondary) ) {
+            return read.read(new AtmosMethod(provider));
+        }
+        CompletionService<T> completion = new ExecutorCompletionService<T>(provider.getHedgeExecutor());
+        Leg<T> first = new Leg<T>(primary, read);
+        Leg<T> second = null;
+        Future<T> firstFuture, secondFuture = null;
+
+        try {
+            firstFuture = completion.submit(first);
+        }
+        catch( RejectedExecutionException e ) {
+            return read.read(new AtmosMethod(provider));
+        }
+        try {
+            Future<T> done = completion.poll(getDelay(), TimeUnit.MILLISECONDS);
+
+            if( done == null ) {
+                second = new Leg<T>(secondary, read);
+                try {
+                    secondFuture = completion.submit(second);
+                    hedged.incrementAndGet();
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("Hedging read from " + primary + " to " + secondary);
+                    }
+                }
+                catch( RejectedExecutionException e ) {
+                    second = null;
+                }
+                done = completion.take();
+            }
+            int outstanding = (second == null ? 0 : 1);
+
+            while( true ) {
+                try {
+                    T result = done.get();
+
+                    if( done == secondFuture ) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return result;
+                }
+                catch( ExecutionException e ) {
+                    if( outstanding < 1 ) {
+                        throw unwrap(e);
+                    }
+                    outstanding--;
+                    done = completion.take();
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        finally {
+            first.method.abort();
+            firstFuture.cancel(true);
+            if( second != null ) {
+                second.method.abort();
+                secondFuture.cancel(true);
+            }
+        }
+    }
+
+    private @Nonnull InternalException unwrap(@Nonnull ExecutionException e) throws CloudException {
+        Throwable cause = e.getCause();
+
+        if( cause instanceof CloudException ) {
+            throw (CloudException)cause;
+        }
+        if( cause instanceof InternalException ) {
+            return (InternalException)cause;
+        }
+        if( cause instanceof RuntimeException ) {
+            throw (RuntimeException)cause;
+        }
+        return new InternalException(cause == null ? e : cause);
+    }
+
+    /**
+     * @return the current hedge delay in milliseconds
+     */
+    public synchronized long getDelay() {
+        long min = Math.max(0, provider.getIntProperty("hedgeMinDelayMs", 5));
+
+        if( sampleCount < SAMPLES / 4 ) {
+            return Math.max(min, provider.getIntProperty("hedgeDelayMs", 100));
+        }
+        if( threshold < 0L ) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            int percentile = Math.min(100, Math.max(1, provider.getIntProperty("hedgePercentile", 95)));
+
+            Arrays.sort(sorted);
+            threshold = TimeUnit.NANOSECONDS.toMillis(sorted[Math.min(sampleCount - 1, (sampleCount * percentile) / 100)]);
+        }
+        return Math.max(min, threshold);
+    }
+
+    /**
+     * @return the number of reads that were duplicated to a second node
+     */
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /**
+     * @return the number of hedged reads in which the duplicate answered first
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    private synchronized void record(long latency) {
+        samples[sampleIndex] = latency;
+        sampleIndex = (sampleIndex + 1) % SAMPLES;
+        if( sampleCount < SAMPLES ) {
+            sampleCount++;
+        }
+        // recompute the percentile lazily every so often rather than on every read
+        if( sampleIndex % 32 == 0 ) {
+            threshold = -1L;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.dasein.cloud.storage.Blob;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single page of results from a paginated Atmos listing along with the continuation token, if any, needed to
+ * fetch the next page.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosListPage {
+    private List<Blob> entries;
+    private String     nextToken;
+
+    public AtmosListPage(@Nonnull List<Blob> entries, @Nullable String nextToken) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.nextToken = nextToken;
+    }
+
+    public @Nonnull List<Blob> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the token to pass when requesting the next page, or null if this is the last page
+     */
+    public @Nullable String getNextToken() {
+        return nextToken;
+    }
+
+    public boolean isComplete() {
+        return (nextToken == null);
+    }
+}
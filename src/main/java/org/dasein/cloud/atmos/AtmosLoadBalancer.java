@@ -0,0 +1,435 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side load balancing over the Atmos access nodes listed in {@link Atmos#getEndpoints()}. Each request goes
+ * to the less loaded of two randomly chosen healthy nodes (power of two choices), comparing outstanding requests
+ * and then recent latency. Each node has its own connection pool.
+ * <p>Node health is tracked passively from every request and actively through periodic probes. A node is ejected
+ * from rotation for a growing period after repeated consecutive failures, or when its latency becomes an outlier
+ * compared to the other nodes. A successful probe returns a node ejected for failures to rotation early. A node
+ * returning to rotation starts over with no latency history, and each long run of successful requests forgives one
+ * past ejection, so a recovered node is not ejected for ever longer periods. No more than a configured share of nodes
+ * is ever ejected at once, and if every node is ejected, requests still go to the one closest to returning.</p>
+ * <p>Configured through the following custom properties:</p>
+ * <ul>
+ *     <li><code>ejectAfterFailures</code> - consecutive failures that eject a node (default 5)</li>
+ *     <li><code>ejectionMs</code> - base ejection time, multiplied by the number of times the node has been ejected
+ *     (default 30000)</li>
+ *     <li><code>maxEjectionPercent</code> - the largest share of nodes that may be ejected at once (default 50)</li>
+ *     <li><code>outlierLatencyFactor</code> - how many times the median node latency makes a node an outlier
+ *     (default 3)</li>
+ *     <li><code>outlierMinLatencyMs</code> - latency below which no node is considered an outlier (default 100)</li>
+ *     <li><code>probeIntervalMs</code> - the time between health probes, 0 to disable (default 10000)</li>
+ * </ul>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosLoadBalancer {
+    static private final Logger logger = Atmos.getLogger(AtmosLoadBalancer.class);
+
+    static private final int DECAY_AFTER_SUCCESSES = 100;
+    static private final int MIN_LATENCY_SAMPLES   = 20;
+
+    static private boolean equal(@Nullable String a, @Nullable String b) {
+        return (a == null ? b == null : a.equalsIgnoreCase(b));
+    }
+
+    /**
+     * A single access node and what is known about its health.
+     */
+    public class Node {
+        private final AtmosConnectionManager         connectionManager;
+        private int                                  consecutiveFailures;
+        private final String                         endpoint;
+        private long                                 ejectedUntil;
+        private boolean                              ejected;
+        private boolean                              ejectedForFailures;
+        private int                                  ejections;
+        private double                               latency;
+        private int                                  latencySamples;
+        private final AtomicInteger                  outstanding = new AtomicInteger(0);
+        private long                                 requests;
+        private long                                 failures;
+        private int                                  successes;
+        private final URI                            uri;
+
+        private Node(@Nonnull String endpoint, @Nonnull URI uri, @Nonnegative int maxConnections) {
+            this.endpoint = endpoint;
+            this.uri = uri;
+            connectionManager = new AtmosConnectionManager(provider);
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+        }
+
+        /**
+         * Records the end of a request to this node.
+         * @param latencyNs how long the node took to answer
+         * @param failed true if the request failed at the network level or with a server error
+         */
+        public void finish(long latencyNs, boolean failed) {
+            outstanding.decrementAndGet();
+            boolean eject = false;
+
+            synchronized( this ) {
+                restore(System.currentTimeMillis());
+                requests++;
+                if( failed ) {
+                    failures++;
+                    consecutiveFailures++;
+                    successes = 0;
+                    eject = (consecutiveFailures >= ejectAfterFailures);
+                }
+                else {
+                    double ms = latencyNs / 1000000.0;
+
+                    consecutiveFailures = 0;
+                    latencySamples++;
+                    latency = (latencySamples <= 1 ? ms : latency + 0.2 * (ms - latency));
+                    if( ++successes >= DECAY_AFTER_SUCCESSES ) {
+                        successes = 0;
+                        if( ejections > 0 ) {
+                            ejections--;
+                        }
+                    }
+                }
+            }
+            if( eject ) {
+                eject(this, true);
+            }
+            else if( !failed && isLatencyOutlier(this) ) {
+                eject(this, false);
+            }
+        }
+
+        public @Nonnull ClientConnectionManager getConnectionManager() {
+            return connectionManager;
+        }
+
+        public @Nonnull String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return the number of past ejections that still lengthen this node's next ejection
+         */
+        public synchronized int getEjectionCount() {
+            return ejections;
+        }
+
+        public synchronized long getFailureCount() {
+            return failures;
+        }
+
+        /**
+         * @return the smoothed latency of successful requests to this node in milliseconds
+         */
+        public synchronized double getLatency() {
+            return latency;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public synchronized long getRequestCount() {
+            return requests;
+        }
+
+        public synchronized boolean isEjected() {
+            return (ejectedUntil > System.currentTimeMillis());
+        }
+
+        /**
+         * Returns the node to rotation with a clean slate once its ejection has ended, so the latency that got it
+         * ejected cannot immediately get it ejected again. Must be called while holding the node's lock.
+         * @param now the current time
+         */
+        private void restore(long now) {
+            if( ejected && ejectedUntil <= now ) {
+                ejected = false;
+                latency = 0.0;
+                latencySamples = 0;
+                consecutiveFailures = 0;
+                successes = 0;
+            }
+        }
+
+        /**
+         * Records the start of a request to this node.
+         */
+        public void start() {
+            outstanding.incrementAndGet();
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return endpoint + "[outstanding=" + getOutstanding() + ",latencyMs=" + Math.round(getLatency()) + ",requests=" + getRequestCount() + ",failures=" + getFailureCount() + (isEjected() ? ",ejected" : "") + "]";
+        }
+    }
+
+    private final int                ejectAfterFailures;
+    private final Object             ejectionLock = new Object();
+    private final long               ejectionMs;
+    private final int                maxEjectionPercent;
+    private final List<Node>         nodes;
+    private final double             outlierFactor;
+    private final long               outlierMinMs;
+    private final ScheduledFuture<?> prober;
+    private final Atmos              provider;
+    private final Random             random = new Random();
+
+    public AtmosLoadBalancer(@Nonnull Atmos provider, @Nonnull List<String> endpoints) {
+        ArrayList<Node> list = new ArrayList<Node>();
+        int maxConnections = provider.getIntProperty("maxConnectionsPerRoute", 50);
+
+        this.provider = provider;
+        for( String endpoint : endpoints ) {
+            try {
+                list.add(new Node(endpoint, new URI(endpoint), maxConnections));
+            }
+            catch( URISyntaxException e ) {
+                logger.error("Ignoring invalid Atmos endpoint " + endpoint + ": " + e.getMessage());
+            }
+        }
+        nodes = Collections.unmodifiableList(list);
+        ejectAfterFailures = Math.max(1, provider.getIntProperty("ejectAfterFailures", 5));
+        ejectionMs = Math.max(0, provider.getIntProperty("ejectionMs", 30000));
+        maxEjectionPercent = Math.min(100, Math.max(0, provider.getIntProperty("maxEjectionPercent", 50)));
+        outlierFactor = Math.max(1, provider.getIntProperty("outlierLatencyFactor", 3));
+        outlierMinMs = Math.max(0, provider.getIntProperty("outlierMinLatencyMs", 100));
+
+        int interval = provider.getIntProperty("probeIntervalMs", 10000);
+
+        if( interval > 0 && nodes.size() > 1 ) {
+            prober = provider.getDeadlineScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probe();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        else {
+            prober = null;
+        }
+    }
+
+    /**
+     * Chooses the node for the next request.
+     * @param exclude a node to avoid if any other is usable, such as the node already handling the original of a
+     * hedged read
+     * @return the base URL of the chosen node, or null if no nodes are configured
+     */
+    public @Nullable String choose(@Nullable String exclude) {
+        ArrayList<Node> candidates = new ArrayList<Node>(nodes.size());
+        long now = System.currentTimeMillis();
+
+        for( Node node : nodes ) {
+            synchronized( node ) {
+                node.restore(now);
+                if( node.ejectedUntil <= now && !node.endpoint.equals(exclude) ) {
+                    candidates.add(node);
+                }
+            }
+        }
+        if( candidates.isEmpty() ) {
+            Node best = null;
+            long soonest = Long.MAX_VALUE;
+
+            // everything is ejected; prefer the node that will return to rotation first
+            for( Node node : nodes ) {
+                synchronized( node ) {
+                    if( !node.endpoint.equals(exclude) && node.ejectedUntil < soonest ) {
+                        soonest = node.ejectedUntil;
+                        best = node;
+                    }
+                }
+            }
+            if( best == null ) {
+                return (nodes.isEmpty() ? null : nodes.get(0).endpoint);
+            }
+            return best.endpoint;
+        }
+        if( candidates.size() == 1 ) {
+            return candidates.get(0).endpoint;
+        }
+        int a, b;
+
+        synchronized( random ) {
+            a = random.nextInt(candidates.size());
+            b = random.nextInt(candidates.size() - 1);
+        }
+        if( b >= a ) {
+            b++;
+        }
+        Node first = candidates.get(a), second = candidates.get(b);
+        int diff = first.getOutstanding() - second.getOutstanding();
+
+        if( diff == 0 ) {
+            return (first.getLatency() <= second.getLatency() ? first.endpoint : second.endpoint);
+        }
+        return (diff < 0 ? first.endpoint : second.endpoint);
+    }
+
+    /**
+     * Stops health probes and closes every node's connection pool.
+     */
+    public void close() {
+        if( prober != null ) {
+            prober.cancel(false);
+        }
+        for( Node node : nodes ) {
+            node.connectionManager.shutdown();
+        }
+    }
+
+    private void eject(@Nonnull Node node, boolean forFailures) {
+        // counting and ejecting under one lock keeps nodes failing together from all slipping under the cap
+        synchronized( ejectionLock ) {
+            int ejected = 0;
+            long now = System.currentTimeMillis();
+
+            for( Node n : nodes ) {
+                if( n != node && n.isEjected() ) {
+                    ejected++;
+                }
+            }
+            if( (ejected + 1) * 100 > nodes.size() * maxEjectionPercent ) {
+                return;
+            }
+            synchronized( node ) {
+                if( node.ejectedUntil > now ) {
+                    return;
+                }
+                node.ejections++;
+                node.ejected = true;
+                node.ejectedUntil = now + ejectionMs * Math.min(node.ejections, 10);
+                node.ejectedForFailures = forFailures;
+                node.consecutiveFailures = 0;
+                node.successes = 0;
+            }
+        }
+        logger.warn("Ejecting Atmos node " + node + " for " + (forFailures ? "repeated failures" : "high latency"));
+    }
+
+    /**
+     * Finds the node serving a request URL.
+     * @param url the URL of a request or the base URL of a node
+     * @return the matching node, or null if the URL does not belong to any configured node
+     */
+    public @Nullable Node getNode(@Nonnull String url) {
+        try {
+            return getNode(new URI(url));
+        }
+        catch( URISyntaxException e ) {
+            return null;
+        }
+    }
+
+    public @Nullable Node getNode(@Nonnull URI uri) {
+        for( Node node : nodes ) {
+            if( node.uri.getPort() == uri.getPort() && equal(node.uri.getScheme(), uri.getScheme()) && equal(node.uri.getHost(), uri.getHost()) ) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    public @Nonnull List<Node> getNodes() {
+        return nodes;
+    }
+
+    private boolean isLatencyOutlier(@Nonnull Node node) {
+        if( nodes.size() < 3 ) {
+            return false;
+        }
+        double[] latencies = new double[nodes.size()];
+        double mine;
+        int count = 0;
+
+        synchronized( node ) {
+            if( node.latencySamples < MIN_LATENCY_SAMPLES || node.latency < outlierMinMs ) {
+                return false;
+            }
+            mine = node.latency;
+        }
+        for( Node n : nodes ) {
+            synchronized( n ) {
+                if( n.latencySamples >= MIN_LATENCY_SAMPLES ) {
+                    latencies[count++] = n.latency;
+                }
+            }
+        }
+        if( count < 3 ) {
+            return false;
+        }
+        Arrays.sort(latencies, 0, count);
+        return (mine > outlierFactor * latencies[count / 2]);
+    }
+
+    private void probe() {
+        for( final Node node : nodes ) {
+            try {
+                provider.getAsyncExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean healthy = new AtmosMethod(provider, node.endpoint).probe();
+
+                        if( healthy ) {
+                            synchronized( node ) {
+                                if( node.ejectedForFailures && node.ejectedUntil > System.currentTimeMillis() ) {
+                                    node.ejectedUntil = 0L;
+                                    logger.info("Atmos node " + node.endpoint + " passed its health probe and is back in rotation");
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+            catch( RejectedExecutionException e ) {
+                logger.warn("Skipping health probe of " + node.endpoint + ": the async pool is saturated");
+            }
+        }
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return nodes.toString();
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * User metadata attached to an Atmos object or directory, split into its regular and listable (indexed) parts.
+ * Also handles the wire format of the <code>x-emc-meta</code>, <code>x-emc-listable-meta</code> and
+ * <code>x-emc-tags</code> headers: comma-separated <code>name=value</code> pairs which, when the request or
+ * response carries <code>x-emc-utf8: true</code>, have their names and values percent-encoded as UTF-8.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosMetadata {
+    static private final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Encodes metadata for an <code>x-emc-meta</code> or <code>x-emc-listable-meta</code> header.
+     * @param metadata the metadata to encode
+     * @param utf8 true if the request will carry <code>x-emc-utf8: true</code>
+     * @return the header value
+     */
+    static public @Nonnull String encode(@Nonnull Map<String,String> metadata, boolean utf8) {
+        StringBuilder header = new StringBuilder(metadata.size() * 32);
+
+        for( Map.Entry<String,String> entry : metadata.entrySet() ) {
+            String value = entry.getValue();
+
+            if( header.length() > 0 ) {
+                header.append(',');
+            }
+            append(header, entry.getKey(), utf8);
+            header.append('=');
+            if( value != null ) {
+                append(header, value, utf8);
+            }
+        }
+        return header.toString();
+    }
+
+    /**
+     * Encodes metadata names for an <code>x-emc-tags</code> header.
+     * @param names the names to encode
+     * @param utf8 true if the request will carry <code>x-emc-utf8: true</code>
+     * @return the header value
+     */
+    static public @Nonnull String encodeNames(@Nonnull Collection<String> names, boolean utf8) {
+        StringBuilder header = new StringBuilder(names.size() * 16);
+
+        for( String name : names ) {
+            if( header.length() > 0 ) {
+                header.append(',');
+            }
+            append(header, name, utf8);
+        }
+        return header.toString();
+    }
+
+    /**
+     * Parses an <code>x-emc-meta</code> or <code>x-emc-listable-meta</code> header value. Each entry is split at
+     * its first <code>=</code>, so values may contain <code>=</code>. Without UTF-8 encoding, a comma only ends an
+     * entry when the text following it contains a <code>=</code> before the next comma, which keeps legacy values
+     * containing commas intact.
+     * @param header the header value
+     * @param utf8 true if the response carried <code>x-emc-utf8: true</code>
+     * @return the parsed metadata in header order
+     */
+    static public @Nonnull Map<String,String> parse(@Nullable String header, boolean utf8) {
+        LinkedHashMap<String,String> metadata = new LinkedHashMap<String, String>();
+
+        if( header == null ) {
+            return metadata;
+        }
+        int len = header.length();
+        int start = 0;
+
+        while( start < len ) {
+            int eq = header.indexOf('=', start);
+
+            if( eq < 0 ) {
+                break;
+            }
+            int comma = header.indexOf(',', eq + 1);
+            int end;
+
+            while( true ) {
+                if( comma < 0 ) {
+                    end = len;
+                    break;
+                }
+                int nextComma = header.indexOf(',', comma + 1);
+                int nextEq = header.indexOf('=', comma + 1);
+
+                if( utf8 || (nextEq > -1 && (nextComma < 0 || nextEq < nextComma)) ) {
+                    end = comma;
+                    break;
+                }
+                comma = nextComma;
+            }
+            String name = slice(header, start, eq, utf8);
+
+            if( name.length() > 0 ) {
+                metadata.put(name, slice(header, eq + 1, end, utf8));
+            }
+            start = end + 1;
+        }
+        return metadata;
+    }
+
+    /**
+     * Indicates whether any of the specified names or values contain characters that cannot be sent in an
+     * Atmos metadata header without UTF-8 encoding.
+     * @param metadata the metadata to check (may be null)
+     * @return true if the request must use <code>x-emc-utf8: true</code>
+     */
+    static public boolean requiresEncoding(@Nullable Map<String,String> metadata) {
+        if( metadata == null ) {
+            return false;
+        }
+        for( Map.Entry<String,String> entry : metadata.entrySet() ) {
+            if( requiresEncoding(entry.getKey()) || requiresEncoding(entry.getValue()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static public boolean requiresEncoding(@Nullable String str) {
+        if( str == null ) {
+            return false;
+        }
+        for( int i=0; i<str.length(); i++ ) {
+            char c = str.charAt(i);
+
+            if( c < 0x20 || c > 0x7e || c == ',' || c == '=' || c == '%' ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static private void append(@Nonnull StringBuilder header, @Nonnull String str, boolean utf8) {
+        if( !utf8 ) {
+            header.append(str);
+            return;
+        }
+        for( int i=0; i<str.length(); i++ ) {
+            char c = str.charAt(i);
+
+            if( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~' ) {
+                header.append(c);
+            }
+            else if( c < 0x80 ) {
+                header.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+            else {
+                int end = i + 1;
+
+                if( Character.isHighSurrogate(c) && end < str.length() ) {
+                    end++;
+                }
+                try {
+                    for( byte b : str.substring(i, end).getBytes("utf-8") ) {
+                        header.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+                    }
+                }
+                catch( UnsupportedEncodingException e ) {
+                    throw new RuntimeException(e);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    static private int hex(char c) {
+        if( c >= '0' && c <= '9' ) {
+            return c - '0';
+        }
+        if( c >= 'a' && c <= 'f' ) {
+            return c - 'a' + 10;
+        }
+        if( c >= 'A' && c <= 'F' ) {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    static private @Nonnull String slice(@Nonnull String header, int start, int end, boolean utf8) {
+        while( start < end && header.charAt(start) == ' ' ) {
+            start++;
+        }
+        while( end > start && header.charAt(end-1) == ' ' ) {
+            end--;
+        }
+        int pct = (utf8 ? header.indexOf('%', start) : -1);
+
+        if( pct < 0 || pct >= end ) {
+            return header.substring(start, end);
+        }
+        byte[] bytes = new byte[end - start];
+        int count = 0;
+
+        for( int i=start; i<end; i++ ) {
+            char c = header.charAt(i);
+
+            if( c == '%' && i + 2 < end && hex(header.charAt(i+1)) > -1 && hex(header.charAt(i+2)) > -1 ) {
+                bytes[count++] = (byte)((hex(header.charAt(i+1)) << 4) | hex(header.charAt(i+2)));
+                i += 2;
+            }
+            else {
+                bytes[count++] = (byte)c;
+            }
+        }
+        try {
+            return new String(bytes, 0, count, "utf-8");
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<String,String> listable;
+    private Map<String,String> metadata;
+
+    public AtmosMetadata(@Nonnull Map<String,String> metadata, @Nonnull Map<String,String> listable) {
+        this.metadata = Collections.unmodifiableMap(metadata);
+        this.listable = Collections.unmodifiableMap(listable);
+    }
+
+    /**
+     * @return the listable (indexed) user metadata
+     */
+    public @Nonnull Map<String,String> getListable() {
+        return listable;
+    }
+
+    /**
+     * @return the regular, non-listable user metadata
+     */
+    public @Nonnull Map<String,String> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Looks up a metadata value regardless of whether it is listable.
+     * @param name the name of the metadata entry
+     * @return the value, or null if no such entry exists
+     */
+    public @Nullable String getValue(@Nonnull String name) {
+        String value = metadata.get(name);
+
+        return (value == null ? listable.get(name) : value);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return metadata + " " + listable;
+    }
+}
@@ -22,6 +22,7 @@ package org.dasein.cloud.atmos;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -29,19 +30,23 @@ import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
@@ -61,6 +66,7 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -68,16 +74,24 @@ import java.net.URI;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles all RESTful interaction with the Atmos endpoint in order to perform specific REST operations.
  * <p>Created by George Reese: 10/5/12 9:14 AM</p>
  * @author George Reese
  * @version 2012.09 initial version
+ * @version 2013.07 added user/listable metadata and object index queries
  * @since 2012.09
  */
 public class AtmosMethod {
@@ -89,13 +103,63 @@ public class AtmosMethod {
         }
     }
 
+    /**
+     * The system metadata needed to build a {@link Blob} from a directory listing entry.
+     */
+    static public final String[] LIST_SYSTEM_TAGS = { "size", "itime" };
+
+    /**
+     * The system metadata needed to build a {@link Blob} from an info request.
+     */
+    static public final String[] INFO_SYSTEM_TAGS = { "objectid", "objname", "size", "ctime" };
+
     static private final Logger logger = Atmos.getLogger(AtmosMethod.class);
     static private final Logger wire = Atmos.getWireLogger(AtmosMethod.class);
 
-    private Atmos provider;
+    private volatile boolean         aborted;
+    private volatile HttpRequestBase current;
+    private String                   endpoint;
+    private Atmos                    provider;
 
     public AtmosMethod(Atmos provider) { this.provider = provider; }
 
+    /**
+     * Constructs a method whose requests all go to the specified access node rather than the provider's default.
+     * @param provider the provider
+     * @param endpoint the base URL of the access node, as listed in {@link Atmos#getEndpoints()}
+     */
+    public AtmosMethod(Atmos provider, @Nonnull String endpoint) {
+        this.provider = provider;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Aborts the request this method is currently executing, if any, and prevents it from issuing further requests
+     * or retries. Used to cancel the losing side of a hedged read.
+     */
+    public void abort() {
+        HttpRequestBase method = current;
+
+        aborted = true;
+        if( method != null ) {
+            method.abort();
+        }
+    }
+
+    void addMetadata(@Nonnull HttpRequestBase method, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) {
+        boolean utf8 = AtmosMetadata.requiresEncoding(metadata) || AtmosMetadata.requiresEncoding(listable);
+
+        if( metadata != null && !metadata.isEmpty() ) {
+            method.addHeader("x-emc-meta", AtmosMetadata.encode(metadata, utf8));
+        }
+        if( listable != null && !listable.isEmpty() ) {
+            method.addHeader("x-emc-listable-meta", AtmosMetadata.encode(listable, utf8));
+        }
+        if( utf8 ) {
+            method.addHeader("x-emc-utf8", "true");
+        }
+    }
+
     protected void authorize(@Nonnull ProviderContext ctx, @Nonnull HttpRequestBase method, @Nonnull String contentType, @Nullable String range) throws CloudException, InternalException {
         ArrayList<Header> emcHeaders = new ArrayList<Header>();
         String date = provider.formatTime(System.currentTimeMillis());
@@ -115,15 +179,32 @@ public class AtmosMethod {
             }
         }
         String signatureString = toSignatureString(method, contentType, range == null ? "" : range, date, method.getURI(), emcHeaders);
-        logger.debug(signatureString);
         String signature = sign(ctx, signatureString);
-        logger.debug(signature);
+
+        if( logger.isDebugEnabled() ) {
+            logger.debug(signatureString);
+            logger.debug(signature);
+        }
         method.addHeader("x-emc-signature", signature);
     }
 
     public @Nonnull Blob create(@Nonnull String bucket, @Nonnull String name) throws CloudException, InternalException {
+        return create(bucket, name, null, null);
+    }
+
+    /**
+     * Creates a directory, attaching the specified user metadata to it in the same request.
+     * @param bucket the parent directory
+     * @param name the name of the new directory
+     * @param metadata any non-listable user metadata to attach
+     * @param listable any listable user metadata (tags that may be queried with {@link #listObjects(String, String, int)})
+     * @return the newly created directory
+     * @throws CloudException an error occurred in Atmos creating the directory
+     * @throws InternalException an error occurred within Dasein Cloud creating the directory
+     */
+    public @Nonnull Blob create(@Nonnull String bucket, @Nonnull String name, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".create(" + bucket + "," + name + ")");
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".create(" + bucket + "," + name + "," + metadata + "," + listable + ")");
         }
         if( wire.isDebugEnabled() ) {
             wire.debug("");
@@ -150,37 +231,24 @@ public class AtmosMethod {
 
             post.addHeader("Accept", "*/*");
             post.addHeader("Content-Type", "application/octet-stream");
-            authorize(ctx, post, "application/octet-stream", null);
-            if( wire.isDebugEnabled() ) {
-                wire.debug(post.getRequestLine().toString());
-                for( Header header : post.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-            }
-            HttpResponse response;
+            addMetadata(post, metadata, listable);
+            HttpResponse response = execute("create", ctx, client, post, "application/octet-stream");
 
             try {
-                response = client.execute(post);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
-                }
-            }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
-            }
-            int status = response.getStatusLine().getStatusCode();
+                int status = response.getStatusLine().getStatusCode();
 
-            if( status == HttpStatus.SC_CREATED ) {
-                if( !bucket.equals("/") ) {
-                    name = bucket + name;
+                if( status == HttpStatus.SC_CREATED ) {
+                    if( !bucket.equals("/") ) {
+                        name = bucket + name;
+                    }
+                    return toBlob(ctx, response, name, null, null);
+                }
+                else {
+                    throw new AtmosException(response);
                 }
-                return toBlob(ctx, response, name, null, null);
             }
-            else {
-                throw new AtmosException(response);
+            finally {
+                release(response);
             }
         }
         finally {
@@ -228,47 +296,116 @@ public class AtmosMethod {
 
             delete.addHeader("Accept", "*/*");
             delete.addHeader("Content-Type", "application/octet-stream");
-            authorize(ctx, delete, "application/octet-stream", null);
-            if( wire.isDebugEnabled() ) {
-                wire.debug(delete.getRequestLine().toString());
-                for( Header header : delete.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
+            HttpResponse response = execute("delete", ctx, client, delete, "application/octet-stream");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status != HttpStatus.SC_NO_CONTENT ) {
+                    throw new AtmosException(response);
                 }
+            }
+            finally {
+                release(response);
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".delete()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [DELETE] -> " + bucketName + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
-            HttpResponse response;
+        }
+    }
 
-            try {
-                response = client.execute(delete);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
+    /**
+     * Removes the named user metadata entries (listable or not) from an object or directory in a single request.
+     * @param bucket the directory holding the object, or the directory itself if <code>name</code> is null
+     * @param name the object whose metadata is being removed, or null to target the directory
+     * @param names the names of the metadata entries to remove
+     * @throws CloudException an error occurred in Atmos removing the metadata
+     * @throws InternalException an error occurred within Dasein Cloud removing the metadata
+     */
+    public void deleteMetadata(@Nonnull String bucket, @Nullable String name, @Nonnull Collection<String> names) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".deleteMetadata(" + bucket + "," + name + "," + names + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [DELETE/metadata] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            if( names.isEmpty() ) {
+                return;
+            }
+            boolean utf8 = false;
+
+            for( String n : names ) {
+                if( AtmosMetadata.requiresEncoding(n) ) {
+                    utf8 = true;
+                    break;
                 }
             }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, toPath(bucket, name));
+            HttpDelete delete = new HttpDelete(endpoint + "?metadata/user");
+            HttpClient client = getClient(endpoint);
+
+            delete.addHeader("Accept", "*/*");
+            delete.addHeader("Content-Type", "application/octet-stream");
+            delete.addHeader("x-emc-tags", AtmosMetadata.encodeNames(names, utf8));
+            if( utf8 ) {
+                delete.addHeader("x-emc-utf8", "true");
             }
-            int status = response.getStatusLine().getStatusCode();
+            HttpResponse response = execute("deleteMetadata", ctx, client, delete, "application/octet-stream");
 
-            if( status != HttpStatus.SC_NO_CONTENT ) {
-                throw new AtmosException(response);
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_OK ) {
+                    throw new AtmosException(response);
+                }
+            }
+            finally {
+                release(response);
             }
         }
         finally {
             if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".delete()");
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".deleteMetadata()");
             }
             if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [DELETE] -> " + bucketName + "--------------------------------------------------------------------------------------");
+                wire.debug("<<< [DELETE/metadata] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
         }
     }
 
     public @Nonnull InputStream download(@Nonnull String bucket, @Nonnull String name) throws CloudException, InternalException {
+        return download(bucket, name, 0L, -1L);
+    }
+
+    /**
+     * Downloads part of an object. Objects stored with client-side compression (see {@link AtmosCompression}) are
+     * decompressed transparently. Since compressed content cannot be read from an arbitrary offset, a partial read
+     * of a compressed object streams it from the beginning and discards everything before the offset.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read, or a negative number to read to the end of the object
+     * @return the requested part of the object content
+     * @throws CloudException an error occurred in Atmos downloading the object
+     * @throws InternalException an error occurred within Dasein Cloud reading the response
+     */
+    public @Nonnull InputStream download(@Nonnull String bucket, @Nonnull String name, long offset, long length) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".download(" + bucket + "," + name + ")");
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".download(" + bucket + "," + name + "," + offset + "," + length + ")");
         }
         if( wire.isDebugEnabled() ) {
             wire.debug("");
@@ -280,74 +417,381 @@ public class AtmosMethod {
             if( ctx == null ) {
                 throw new CloudException("No context was set for this request");
             }
-            if( !bucket.endsWith("/") ) {
-                bucket = bucket + "/";
-            }
-            if( !bucket.startsWith("/") ) {
-                bucket = "/" + bucket;
-            }
-            if( !name.endsWith("/") ) {
-                name = name + "/";
+            if( length == 0L ) {
+                return new ByteArrayInputStream(new byte[0]);
             }
-            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, bucket + name);
+            boolean ranged = (offset > 0L || length > 0L);
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, toPath(bucket, name));
             HttpGet get = new HttpGet(endpoint);
             HttpClient client = getClient(endpoint);
 
             get.addHeader("Accept", "*/*");
-            authorize(ctx, get, "", null);
-            if( wire.isDebugEnabled() ) {
-                wire.debug(get.getRequestLine().toString());
-                for( Header header : get.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
+            if( ranged ) {
+                get.addHeader("Range", "Bytes=" + Math.max(0L, offset) + "-" + (length < 0L ? "" : String.valueOf(Math.max(0L, offset) + length - 1)));
+            }
+            HttpResponse response = execute("download", ctx, client, get, "", AtmosTimeouts.forTransfer(provider));
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status == HttpStatus.SC_OK || (ranged && status == HttpStatus.SC_PARTIAL_CONTENT) ) {
+                    HttpEntity entity = response.getEntity();
+
+                    if( entity == null ) {
+                        throw new CloudException("No content was returned");
+                    }
+                    if( wire.isDebugEnabled() ) {
+                        wire.debug("[CONTENT:" + entity.getContentType() + " - " + entity.getContentLength() + "]");
+                    }
+                    Header header = response.getFirstHeader("x-emc-meta");
+                    AtmosCompression.Codec codec = AtmosCompression.getCodec(header == null ? null : AtmosMetadata.parse(header.getValue(), isUtf8(response)));
+
+                    if( codec != null && ranged ) {
+                        // the range applies to the compressed bytes, so read the whole object and skip ahead instead
+                        get.abort();
+                        response = null;
+                        AtmosTracer.finish(null);
+                        return new AtmosRangeInputStream(download(bucket, name, 0L, -1L), offset, length);
+                    }
+                    try {
+                        InputStream input = entity.getContent();
+
+                        if( codec != null ) {
+                            input = codec.decompress(input);
+                        }
+                        else if( ranged && status == HttpStatus.SC_OK ) {
+                            input = new AtmosRangeInputStream(input, offset, length);
+                        }
+                        response = null;
+                        AtmosTracer.finish(null);
+                        return input;
+                    }
+                    catch( IOException e ) {
+                        logger.error("I/O error from server communications: " + e.getMessage());
+                        e.printStackTrace();
+                        throw new InternalException(e);
+                    }
+                }
+                else {
+                    throw new AtmosException(response);
+                }
+            }
+            finally {
+                if( response != null ) {
+                    release(response);
                 }
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".download()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [GET/download] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
-            HttpResponse response;
+        }
+    }
 
-            try {
-                response = client.execute(get);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
+    /**
+     * Downloads a small object entirely into memory. Concurrent downloads of the same object share a single request
+     * to Atmos, which makes this the preferred way to read small, frequently requested objects such as
+     * configuration files.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @param maxBytes the largest object this call is willing to buffer
+     * @return the content of the object
+     * @throws CloudException an error occurred in Atmos downloading the object, or the object exceeded maxBytes
+     * @throws InternalException an error occurred within Dasein Cloud downloading the object
+     */
+    public @Nonnull byte[] downloadBytes(final @Nonnull String bucket, final @Nonnull String name, final int maxBytes) throws CloudException, InternalException {
+        final AtmosHedger.Read<byte[]> read = new AtmosHedger.Read<byte[]>() {
+            @Override
+            public byte[] read(@Nonnull AtmosMethod method) throws CloudException, InternalException {
+                InputStream input = method.download(bucket, name);
+
+                try {
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    AtmosBufferPool pool = provider.getBufferPool();
+                    byte[] buffer = pool.acquire();
+                    int count;
+
+                    try {
+                        while( (count = input.read(buffer)) > -1 ) {
+                            if( output.size() + count > maxBytes ) {
+                                throw new CloudException("The object " + name + " is larger than " + maxBytes + " bytes");
+                            }
+                            output.write(buffer, 0, count);
+                        }
+                    }
+                    finally {
+                        pool.release(buffer);
+                    }
+                    return output.toByteArray();
+                }
+                catch( IOException e ) {
+                    logger.error("I/O error reading from the cloud: " + e.getMessage());
+                    throw new CloudException(e);
+                }
+                finally {
+                    try { input.close(); }
+                    catch( IOException ignore ) { }
                 }
             }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
+        };
+        AtmosSingleFlight.Call<byte[]> call = new AtmosSingleFlight.Call<byte[]>() {
+            @Override
+            public byte[] call() throws CloudException, InternalException {
+                return hedge(read);
             }
-            int status = response.getStatusLine().getStatusCode();
+        };
 
-            if( status == HttpStatus.SC_OK ) {
-                HttpEntity entity = response.getEntity();
+        if( !provider.isCoalescingReads() ) {
+            return call.call();
+        }
+        byte[] content = provider.getSingleFlight().execute("download:" + toPath(bucket, name) + "|" + maxBytes, call);
 
-                if( entity == null ) {
-                    throw new CloudException("No content was returned");
+        return (content == null ? new byte[0] : content.clone());
+    }
+
+    /**
+     * Signs and executes a request, retrying transient failures as allowed by the {@link AtmosRetryPolicy}. Each
+     * attempt is signed afresh so that its <code>Date</code> header stays within the allowed clock skew. Error
+     * responses that are worth retrying but still fail on the last attempt are thrown as {@link AtmosException}s;
+     * all other responses are returned to the caller.
+     * @param operation the name of the operation issuing the request, as reported to {@link AtmosMetrics}
+     * @param ctx the context under which the request is signed
+     * @param client the client that executes the request
+     * @param method the request, with all of its <code>x-emc</code> headers already set
+     * @param contentType the content type used in the signature
+     * @return the response
+     * @throws CloudException Atmos refused the request or the request could not be admitted by the throttle
+     * @throws InternalException the request could not be sent
+     */
+    private @Nonnull HttpResponse execute(@Nonnull String operation, @Nonnull ProviderContext ctx, @Nonnull HttpClient client, @Nonnull HttpRequestBase method, @Nonnull String contentType) throws CloudException, InternalException {
+        return execute(operation, ctx, client, method, contentType, AtmosTimeouts.forMetadata(provider));
+    }
+
+    /**
+     * Signs and executes a request under the specified timeouts. If the call runs past its deadline, the request in
+     * flight is aborted and the call fails with a {@link CloudErrorType#COMMUNICATION} error. Calls sampled by the
+     * provider's {@link AtmosTracer} carry an <code>X-Request-Id</code> header, and their trace stays open until the
+     * response is released.
+     * @param operation the name of the operation issuing the request, as reported to {@link AtmosMetrics}
+     * @param ctx the context under which the request is signed
+     * @param client the client that executes the request
+     * @param method the request, with all of its <code>x-emc</code> headers already set
+     * @param contentType the content type used in the signature
+     * @param timeouts the timeouts and deadline for the call
+     * @return the response
+     * @throws CloudException Atmos refused the request, the request could not be admitted by the throttle or the
+     * deadline passed
+     * @throws InternalException the request could not be sent
+     */
+    private @Nonnull HttpResponse execute(@Nonnull String operation, @Nonnull ProviderContext ctx, @Nonnull HttpClient client, @Nonnull HttpRequestBase method, @Nonnull String contentType, @Nonnull AtmosTimeouts timeouts) throws CloudException, InternalException {
+        AtmosTrace trace = provider.getTracer().start(operation, method);
+
+        if( trace == null ) {
+            return send(operation, ctx, client, method, contentType, timeouts, null);
+        }
+        method.setHeader("X-Request-Id", trace.getRequestId());
+        try {
+            return send(operation, ctx, client, method, contentType, timeouts, trace);
+        }
+        catch( CloudException e ) {
+            AtmosTracer.finish(e);
+            throw e;
+        }
+        catch( InternalException e ) {
+            AtmosTracer.finish(e);
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            AtmosTracer.finish(e);
+            throw e;
+        }
+    }
+
+    private @Nonnull HttpResponse send(@Nonnull String operation, @Nonnull ProviderContext ctx, @Nonnull HttpClient client, final @Nonnull HttpRequestBase method, @Nonnull String contentType, @Nonnull AtmosTimeouts timeouts, @Nullable AtmosTrace trace) throws CloudException, InternalException {
+        URI uri = method.getURI();
+        AtmosThrottle throttle = provider.getThrottle(uri.getScheme() + "://" + uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : ""));
+        AtmosLoadBalancer.Node node = provider.getLoadBalancer().getNode(uri);
+        AtmosRetryPolicy policy = new AtmosRetryPolicy(provider);
+        AtmosMetrics metrics = provider.getMetrics();
+        final AtomicBoolean expired = new AtomicBoolean(false);
+        long sent = 0L;
+        long startedAt = System.nanoTime();
+        long deadlineAt = (timeouts.getDeadline() > 0 ? startedAt + TimeUnit.MILLISECONDS.toNanos(timeouts.getDeadline()) : Long.MAX_VALUE);
+        int attempt = 0;
+
+        if( method instanceof HttpEntityEnclosingRequest ) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest)method).getEntity();
+
+            sent = (entity == null ? 0L : Math.max(0L, entity.getContentLength()));
+        }
+        timeouts.apply(method);
+        while( true ) {
+            AtmosRetryPolicy.Failure failure = null;
+            AtmosException error = null;
+            IOException ioError = null;
+            boolean overloaded = false;
+
+            attempt++;
+            if( aborted ) {
+                throw new InternalException("The request to " + uri.getPath() + " was aborted");
+            }
+            method.removeHeaders("Date");
+            method.removeHeaders("x-emc-uid");
+            method.removeHeaders("x-emc-signature");
+            throttle.acquire(AtmosOperation.classify(method));
+            ScheduledFuture<?> watchdog = null;
+
+            try {
+                if( deadlineAt != Long.MAX_VALUE ) {
+                    long remaining = deadlineAt - System.nanoTime();
+
+                    if( remaining <= 0L ) {
+                        throw new CloudException(CloudErrorType.COMMUNICATION, 0, "DeadlineExceeded", "The " + timeouts.getDeadline() + "ms deadline for " + method.getMethod() + " " + uri.getPath() + " passed before the request could be sent");
+                    }
+                    watchdog = provider.getDeadlineScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            expired.set(true);
+                            method.abort();
+                        }
+                    }, remaining, TimeUnit.NANOSECONDS);
+                }
+                Header rangeHeader = method.getFirstHeader("Range");
+                String range = (rangeHeader == null ? null : rangeHeader.getValue());
+
+                if( trace == null ) {
+                    authorize(ctx, method, contentType, range);
+                }
+                else {
+                    long signStart = System.nanoTime();
+
+                    authorize(ctx, method, contentType, range);
+                    trace.addSign(System.nanoTime() - signStart);
                 }
                 if( wire.isDebugEnabled() ) {
-                    wire.debug("[CONTENT:" + entity.getContentType() + " - " + entity.getContentLength() + "]");
+                    wire.debug(method.getRequestLine().toString());
+                    for( Header header : method.getAllHeaders() ) {
+                        wire.debug(header.getName() + ": " + header.getValue());
+                    }
+                    wire.debug("");
                 }
                 try {
-                    return entity.getContent();
+                    HttpResponse response;
+
+                    current = method;
+                    if( node != null ) {
+                        node.start();
+                    }
+                    metrics.requestStarted(operation);
+                    long sentAt = System.nanoTime();
+                    int status = 0;
+                    long received = 0L;
+
+                    try {
+                        response = client.execute(method);
+                        status = response.getStatusLine().getStatusCode();
+                        received = (response.getEntity() == null ? 0L : Math.max(0L, response.getEntity().getContentLength()));
+                    }
+                    finally {
+                        long latency = System.nanoTime() - sentAt;
+
+                        current = null;
+                        if( node != null ) {
+                            node.finish(latency, (status == 0 || status >= 500) && !aborted);
+                        }
+                        metrics.requestCompleted(operation, status, latency, sent, received);
+                        if( trace != null ) {
+                            trace.attempted(status, latency, sent, received);
+                        }
+                    }
+                    if( wire.isDebugEnabled() ) {
+                        wire.debug(response.getStatusLine().toString());
+                    }
+                    overloaded = (status >= 500 || status == 429);
+                    if( !overloaded ) {
+                        if( cancel(watchdog) ) {
+                            return response;
+                        }
+                        // the watchdog has already aborted the request and its connection
+                        throw new IOException("Aborted at deadline");
+                    }
+                    error = new AtmosException(response);
+                    failure = AtmosRetryPolicy.classify(status, error.getProviderCode());
+                    metrics.requestFailed(operation, error.getProviderCode());
                 }
                 catch( IOException e ) {
-                    logger.error("I/O error from server communications: " + e.getMessage());
-                    e.printStackTrace();
-                    throw new InternalException(e);
+                    if( aborted ) {
+                        throw new InternalException("The request to " + uri.getPath() + " was aborted");
+                    }
+                    if( expired.get() ) {
+                        throw new CloudException(CloudErrorType.COMMUNICATION, 0, "DeadlineExceeded", "Aborted " + method.getMethod() + " " + uri.getPath() + " after its " + timeouts.getDeadline() + "ms deadline");
+                    }
+                    overloaded = true;
+                    ioError = e;
+                    failure = AtmosRetryPolicy.classify(e);
+                    metrics.requestFailed(operation, e.getClass().getSimpleName());
                 }
             }
-            else {
-                throw new AtmosException(response);
+            finally {
+                cancel(watchdog);
+                throttle.release(overloaded);
             }
-        }
-        finally {
-            if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".download()");
+            long delay = policy.getRetryDelay(method, failure, attempt, startedAt);
+
+            if( delay >= 0L && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) >= deadlineAt ) {
+                delay = -1L;
             }
-            if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [GET/download] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
-                wire.debug("");
+            if( delay < 0L ) {
+                if( error != null ) {
+                    throw error;
+                }
+                logger.error("I/O error from server communications: " + ioError.getMessage());
+                throw new InternalException(ioError);
             }
+            metrics.requestRetried(operation);
+            logger.warn("Retrying " + method.getMethod() + " " + uri.getPath() + " in " + delay + "ms after attempt " + attempt + " failed with " + (error == null ? ioError.toString() : error.getHttpCode() + "/" + error.getProviderCode()));
+            method.reset();
+            AtmosRetryPolicy.pause(delay);
+        }
+    }
+
+    /**
+     * Performs an idempotent read, hedging it across access nodes unless this method is already bound to a node.
+     * @param read the read
+     * @param <T> the type of the result
+     * @return the result of the read
+     * @throws CloudException the read failed in Atmos
+     * @throws InternalException the read failed within Dasein Cloud
+     */
+    private @Nullable <T> T hedge(@Nonnull AtmosHedger.Read<T> read) throws CloudException, InternalException {
+        if( endpoint != null ) {
+            return read.read(this);
+        }
+        return provider.getHedger().execute(read);
+    }
+
+    /**
+     * Cancels a deadline watchdog.
+     * @param watchdog the watchdog, if any
+     * @return true if the watchdog was cancelled before it could abort its request
+     */
+    private boolean cancel(@Nullable ScheduledFuture<?> watchdog) {
+        if( watchdog == null ) {
+            return true;
+        }
+        boolean cancelled = watchdog.cancel(false) || watchdog.isCancelled();
+        ScheduledThreadPoolExecutor scheduler = provider.getDeadlineScheduler();
+
+        // cancelled watchdogs otherwise stay queued until their deadline would have passed
+        if( scheduler.getQueue().size() > 1000 ) {
+            scheduler.purge();
         }
+        return cancelled;
     }
 
     protected @Nonnull HttpClient getClient(String endpoint) throws CloudException, InternalException {
@@ -356,37 +800,56 @@ public class AtmosMethod {
         if( ctx == null ) {
             throw new CloudException("No context was specified for this request");
         }
-        boolean ssl = endpoint.startsWith("https");
         HttpParams params = new BasicHttpParams();
 
         HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
         HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
         HttpProtocolParams.setUserAgent(params, "Dasein Cloud");
 
-        Properties p = ctx.getCustomProperties();
+        HttpHost proxy = getProxy(ctx, endpoint);
 
-        if( p != null ) {
-            String proxyHost = p.getProperty("proxyHost");
-            String proxyPort = p.getProperty("proxyPort");
+        if( proxy != null ) {
+            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        }
+        DefaultHttpClient client = new DefaultHttpClient(provider.getConnectionManager(endpoint), params);
 
-            if( proxyHost != null ) {
-                int port = 0;
+        // retries are handled by AtmosRetryPolicy in execute()
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        return client;
+    }
 
-                if( proxyPort != null && proxyPort.length() > 0 ) {
-                    port = Integer.parseInt(proxyPort);
-                }
-                params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
-            }
+    /**
+     * Determines the proxy, if any, configured through the <code>proxyHost</code> and <code>proxyPort</code> custom
+     * properties for requests to the specified endpoint.
+     * @param ctx the context under which the request is made
+     * @param endpoint the URL of the request
+     * @return the proxy, or null if requests go direct
+     */
+    @Nullable HttpHost getProxy(@Nonnull ProviderContext ctx, @Nonnull String endpoint) {
+        Properties p = ctx.getCustomProperties();
+        String proxyHost = (p == null ? null : p.getProperty("proxyHost"));
+
+        if( proxyHost == null ) {
+            return null;
+        }
+        String proxyPort = p.getProperty("proxyPort");
+        int port = 0;
+
+        if( proxyPort != null && proxyPort.length() > 0 ) {
+            port = Integer.parseInt(proxyPort);
         }
-        return new DefaultHttpClient(params);
+        return new HttpHost(proxyHost, port, endpoint.startsWith("https") ? "https" : "http");
     }
 
     protected @Nonnull String getEndpoint(@Nonnull ProviderContext ctx, @Nonnull EndpointType type, @Nullable String target) throws CloudException, InternalException {
         StringBuilder url = new StringBuilder();
-        String endpoint = ctx.getEndpoint();
+        String endpoint = this.endpoint;
 
         if( endpoint == null ) {
-            throw new CloudException("No endpoint was set for this request");
+            endpoint = provider.getLoadBalancer().choose(null);
+            if( endpoint == null ) {
+                throw new CloudException("No endpoint was set for this request");
+            }
         }
         url.append(endpoint);
         url.append(type.toEndpoint());
@@ -400,7 +863,168 @@ public class AtmosMethod {
         return url.toString();
     }
 
-    public @Nullable Blob info(@Nonnull String bucket, @Nonnull String name) throws CloudException, InternalException {
+    /**
+     * Fetches the user metadata attached to an object or directory without touching its content.
+     * @param bucket the directory holding the object, or the directory itself if <code>name</code> is null
+     * @param name the object whose metadata is being fetched, or null to target the directory
+     * @return the user metadata, or null if no such object or directory exists
+     * @throws CloudException an error occurred in Atmos fetching the metadata
+     * @throws InternalException an error occurred within Dasein Cloud fetching the metadata
+     */
+    public @Nullable AtmosMetadata getMetadata(@Nonnull String bucket, @Nullable String name) throws CloudException, InternalException {
+        return getMetadata(bucket, name, null);
+    }
+
+    /**
+     * Fetches selected user metadata entries attached to an object or directory.
+     * @param bucket the directory holding the object, or the directory itself if <code>name</code> is null
+     * @param name the object whose metadata is being fetched, or null to target the directory
+     * @param tags the names of the entries to fetch, or null for all of them
+     * @return the requested user metadata, or null if no such object or directory exists
+     * @throws CloudException an error occurred in Atmos fetching the metadata
+     * @throws InternalException an error occurred within Dasein Cloud fetching the metadata
+     */
+    public @Nullable AtmosMetadata getMetadata(@Nonnull String bucket, @Nullable String name, @Nullable Collection<String> tags) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".getMetadata(" + bucket + "," + name + "," + tags + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [GET/metadata] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, toPath(bucket, name));
+            HttpGet get = new HttpGet(endpoint + "?metadata/user");
+            HttpClient client = getClient(endpoint);
+
+            get.addHeader("Accept", "*/*");
+            if( tags != null && !tags.isEmpty() ) {
+                get.addHeader("x-emc-tags", AtmosMetadata.encodeNames(tags, true));
+            }
+            get.addHeader("x-emc-utf8", "true");
+            HttpResponse response = execute("getMetadata", ctx, client, get, "");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status == HttpStatus.SC_NOT_FOUND ) {
+                    return null;
+                }
+                if( status == HttpStatus.SC_OK ) {
+                    Header meta = response.getFirstHeader("x-emc-meta");
+                    Header listable = response.getFirstHeader("x-emc-listable-meta");
+                    boolean utf8 = isUtf8(response);
+
+                    return new AtmosMetadata(AtmosMetadata.parse(meta == null ? null : meta.getValue(), utf8), AtmosMetadata.parse(listable == null ? null : listable.getValue(), utf8));
+                }
+                else {
+                    throw new AtmosException(response);
+                }
+            }
+            finally {
+                release(response);
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".getMetadata()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [GET/metadata] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+                wire.debug("");
+            }
+        }
+    }
+
+    /**
+     * Fetches selected system metadata (such as <code>objectid</code>, <code>size</code> or <code>mtime</code>) for
+     * an object without touching its content. This is the cheapest way to tell whether an object has changed.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @param tags the names of the system metadata entries to fetch
+     * @return the requested system metadata, or null if no such object exists
+     * @throws CloudException an error occurred in Atmos fetching the metadata
+     * @throws InternalException an error occurred within Dasein Cloud fetching the metadata
+     */
+    public @Nullable Map<String,String> getSystemMetadata(@Nonnull String bucket, @Nonnull String name, @Nonnull Collection<String> tags) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".getSystemMetadata(" + bucket + "," + name + "," + tags + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [GET/metadata/system] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, toPath(bucket, name));
+            HttpGet get = new HttpGet(endpoint + "?metadata/system");
+            HttpClient client = getClient(endpoint);
+
+            get.addHeader("Accept", "*/*");
+            if( !tags.isEmpty() ) {
+                get.addHeader("x-emc-tags", AtmosMetadata.encodeNames(tags, false));
+            }
+            HttpResponse response = execute("getSystemMetadata", ctx, client, get, "");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status == HttpStatus.SC_NOT_FOUND ) {
+                    return null;
+                }
+                if( status == HttpStatus.SC_OK ) {
+                    Header meta = response.getFirstHeader("x-emc-meta");
+
+                    return AtmosMetadata.parse(meta == null ? null : meta.getValue(), isUtf8(response));
+                }
+                else {
+                    throw new AtmosException(response);
+                }
+            }
+            finally {
+                release(response);
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".getSystemMetadata()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [GET/metadata/system] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+                wire.debug("");
+            }
+        }
+    }
+
+    public @Nullable Blob info(final @Nonnull String bucket, final @Nonnull String name) throws CloudException, InternalException {
+        final AtmosHedger.Read<Blob> read = new AtmosHedger.Read<Blob>() {
+            @Override
+            public Blob read(@Nonnull AtmosMethod method) throws CloudException, InternalException {
+                return method.fetchInfo(bucket, name);
+            }
+        };
+
+        if( !provider.isCoalescingReads() ) {
+            return hedge(read);
+        }
+        return provider.getSingleFlight().execute("info:" + toPath(bucket, name), new AtmosSingleFlight.Call<Blob>() {
+            @Override
+            public Blob call() throws CloudException, InternalException {
+                return hedge(read);
+            }
+        });
+    }
+
+    private @Nullable Blob fetchInfo(@Nonnull String bucket, @Nonnull String name) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("ENTER - " + AtmosMethod.class.getName() + ".info(" + bucket + "," + name + ")");
         }
@@ -439,87 +1063,394 @@ public class AtmosMethod {
             HttpClient client = getClient(endpoint);
 
             get.addHeader("Accept", "*/*");
-            authorize(ctx, get, "", null);
+            get.addHeader("x-emc-tags", AtmosMetadata.encodeNames(Arrays.asList(INFO_SYSTEM_TAGS), false));
+            get.addHeader("x-emc-utf8", "true");
+            HttpResponse response = execute("info", ctx, client, get, "");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status == HttpStatus.SC_NOT_FOUND ) {
+                    return null;
+                }
+                if( status == HttpStatus.SC_OK ) {
+                    return toInfo(ctx, response, bucket);
+                }
+                else {
+                    throw new AtmosException(response);
+                }
+            }
+            finally {
+                release(response);
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".info()");
+            }
             if( wire.isDebugEnabled() ) {
-                wire.debug(get.getRequestLine().toString());
-                for( Header header : get.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
+                wire.debug("<<< [GET/info] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+                wire.debug("");
+            }
+        }
+    }
+
+    boolean isUtf8(@Nonnull HttpResponse response) {
+        Header header = response.getFirstHeader("x-emc-utf8");
+
+        return (header != null && "true".equalsIgnoreCase(header.getValue()));
+    }
+
+    /**
+     * Creates a second namespace path for an existing object entirely on the server side; no content is transferred
+     * and both paths refer to the same object, content and metadata afterwards.
+     * @param fromPath the namespace path of the existing object
+     * @param toPath the new namespace path for the object
+     * @throws CloudException an error occurred in Atmos linking the object
+     * @throws InternalException an error occurred within Dasein Cloud linking the object
+     */
+    public void link(@Nonnull String fromPath, @Nonnull String toPath) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".link(" + fromPath + "," + toPath + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [POST/hardlink] -> " + fromPath + " / " + toPath + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            if( !fromPath.startsWith("/") ) {
+                fromPath = "/" + fromPath;
+            }
+            while( toPath.startsWith("/") ) {
+                toPath = toPath.substring(1);
+            }
+            if( fromPath.endsWith("/") || toPath.length() < 1 || toPath.endsWith("/") ) {
+                throw new CloudException("Only objects may be linked");
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, fromPath);
+            HttpPost post = new HttpPost(endpoint + "?hardlink");
+            HttpClient client = getClient(endpoint);
+
+            post.addHeader("Accept", "*/*");
+            post.addHeader("Content-Type", "application/octet-stream");
+            post.addHeader("x-emc-path", toPath);
+            HttpResponse response = execute("link", ctx, client, post, "application/octet-stream");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_OK && status != HttpStatus.SC_CREATED ) {
+                    throw new AtmosException(response);
                 }
+            }
+            finally {
+                release(response);
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".link()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [POST/hardlink] -> " + fromPath + " / " + toPath + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
-            HttpResponse response;
+        }
+    }
+
+    /**
+     * Lists the full contents of a directory, fetching only the system metadata needed to build each {@link Blob}.
+     * @param directory the directory to list
+     * @return the directories and objects in the directory
+     * @throws CloudException an error occurred in Atmos listing the directory
+     * @throws InternalException an error occurred within Dasein Cloud listing the directory
+     */
+    public Iterable<Blob> list(@Nonnull String directory) throws CloudException, InternalException {
+        return list(directory, Arrays.asList(LIST_SYSTEM_TAGS), null);
+    }
+
+    /**
+     * Lists the full contents of a directory across all result pages.
+     * @param directory the directory to list
+     * @param systemTags the system metadata to fetch for each entry, or null for none
+     * @param userTags the user metadata to fetch for each entry, or null for none
+     * @return the directories and objects in the directory
+     * @throws CloudException an error occurred in Atmos listing the directory
+     * @throws InternalException an error occurred within Dasein Cloud listing the directory
+     */
+    public @Nonnull Iterable<Blob> list(@Nonnull String directory, @Nullable Collection<String> systemTags, @Nullable Collection<String> userTags) throws CloudException, InternalException {
+        ArrayList<Blob> entries = new ArrayList<Blob>();
+        String token = null;
+
+        do {
+            AtmosListPage page = listPage(directory, token, 0, systemTags, userTags);
+
+            entries.addAll(page.getEntries());
+            token = page.getNextToken();
+        } while( token != null );
+        return entries;
+    }
+
+    /**
+     * Lists only the names, types and object IDs of the contents of a directory. Sizes and timestamps in the
+     * resulting blobs are not populated, making this suitable for existence checks.
+     * @param directory the directory to list
+     * @return the directories and objects in the directory
+     * @throws CloudException an error occurred in Atmos listing the directory
+     * @throws InternalException an error occurred within Dasein Cloud listing the directory
+     */
+    public @Nonnull Iterable<Blob> listNames(@Nonnull String directory) throws CloudException, InternalException {
+        return list(directory, null, null);
+    }
+
+    /**
+     * Lists a single page of the contents of a directory. Metadata is only requested from Atmos when system or user
+     * tags are specified, and then only for those tags.
+     * @param directory the directory to list
+     * @param token the continuation token from a previous page, or null for the first page
+     * @param limit the maximum number of entries to return, or 0 to let Atmos decide
+     * @param systemTags the system metadata to fetch for each entry, or null for none
+     * @param userTags the user metadata to fetch for each entry, or null for none
+     * @return the entries in this page along with the token for the next one
+     * @throws CloudException an error occurred in Atmos listing the directory
+     * @throws InternalException an error occurred within Dasein Cloud listing the directory
+     */
+    public @Nonnull AtmosListPage listPage(final @Nonnull String directory, final @Nullable String token, final int limit, final @Nullable Collection<String> systemTags, final @Nullable Collection<String> userTags) throws CloudException, InternalException {
+        final AtmosHedger.Read<AtmosListPage> read = new AtmosHedger.Read<AtmosListPage>() {
+            @Override
+            public AtmosListPage read(@Nonnull AtmosMethod method) throws CloudException, InternalException {
+                return method.fetchPage(directory, token, limit, systemTags, userTags);
+            }
+        };
+
+        if( !provider.isCoalescingReads() ) {
+            return hedge(read);
+        }
+        String key = "list:" + toPath(directory, null) + "|" + token + "|" + limit + "|" + systemTags + "|" + userTags;
+        AtmosListPage page = provider.getSingleFlight().execute(key, new AtmosSingleFlight.Call<AtmosListPage>() {
+            @Override
+            public AtmosListPage call() throws CloudException, InternalException {
+                return hedge(read);
+            }
+        });
+
+        return (page == null ? new AtmosListPage(Collections.<Blob>emptyList(), null) : page);
+    }
+
+    private @Nonnull AtmosListPage fetchPage(@Nonnull String directory, @Nullable String token, int limit, @Nullable Collection<String> systemTags, @Nullable Collection<String> userTags) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".listPage(" + directory + "," + token + "," + limit + "," + systemTags + "," + userTags + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [GET] -> " + directory + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            if( !directory.startsWith("/") ) {
+                directory = "/" + directory;
+            }
+            if( !directory.endsWith("/") ) {
+                directory = directory + "/";
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, directory);
+            HttpGet get = new HttpGet(endpoint);
+            HttpClient client = getClient(endpoint);
+
+            if( (systemTags != null && !systemTags.isEmpty()) || (userTags != null && !userTags.isEmpty()) ) {
+                get.addHeader("x-emc-include-meta", "true");
+                if( systemTags != null && !systemTags.isEmpty() ) {
+                    get.addHeader("x-emc-system-tags", AtmosMetadata.encodeNames(systemTags, false));
+                }
+                if( userTags != null && !userTags.isEmpty() ) {
+                    get.addHeader("x-emc-user-tags", AtmosMetadata.encodeNames(userTags, false));
+                }
+            }
+            if( limit > 0 ) {
+                get.addHeader("x-emc-limit", String.valueOf(limit));
+            }
+            if( token != null ) {
+                get.addHeader("x-emc-token", token);
+            }
+            get.addHeader("Accept", "text/xml");
+            HttpResponse response = execute("list", ctx, client, get, "");
 
             try {
-                response = client.execute(get);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status == HttpStatus.SC_OK ) {
+                    return toPage(ctx, response, directory);
+                }
+                else {
+                    throw new AtmosException(response);
                 }
             }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
+            finally {
+                release(response);
             }
-            int status = response.getStatusLine().getStatusCode();
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".listPage()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [GET] " + directory + "--------------------------------------------------------------------------------------");
+                wire.debug("");
+            }
+        }
+
+    }
+
+    /**
+     * Queries the Atmos object index for objects carrying the specified listable metadata tag. Results are paged;
+     * pass the token from one page to fetch the next.
+     * @param tag the listable metadata tag to search for
+     * @param token the continuation token from a previous page, or null for the first page
+     * @param limit the maximum number of objects to return in the page, or 0 to let Atmos decide
+     * @return the matching objects in this page along with the token for the next one
+     * @throws CloudException an error occurred in Atmos executing the query
+     * @throws InternalException an error occurred within Dasein Cloud processing the query
+     */
+    public @Nonnull AtmosListPage listObjects(@Nonnull String tag, @Nullable String token, int limit) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".listObjects(" + tag + "," + token + "," + limit + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [GET/query] -> " + tag + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.OBJECT, null);
+            HttpGet get = new HttpGet(endpoint);
+            HttpClient client = getClient(endpoint);
+
+            if( AtmosMetadata.requiresEncoding(tag) ) {
+                get.addHeader("x-emc-tags", AtmosMetadata.encodeNames(Collections.singletonList(tag), true));
+                get.addHeader("x-emc-utf8", "true");
+            }
+            else {
+                get.addHeader("x-emc-tags", tag);
+            }
+            get.addHeader("x-emc-include-meta", "true");
+            if( limit > 0 ) {
+                get.addHeader("x-emc-limit", String.valueOf(limit));
+            }
+            if( token != null ) {
+                get.addHeader("x-emc-token", token);
+            }
+            get.addHeader("Accept", "text/xml");
+            HttpResponse response = execute("listObjects", ctx, client, get, "");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status == HttpStatus.SC_NOT_FOUND ) {
+                    return new AtmosListPage(Collections.<Blob>emptyList(), null);
+                }
+                if( status == HttpStatus.SC_OK ) {
+                    Header next = response.getFirstHeader("x-emc-token");
+                    HttpEntity entity = response.getEntity();
+                    String nextToken = (next == null ? null : next.getValue());
+
+                    if( nextToken != null && nextToken.trim().length() < 1 ) {
+                        nextToken = null;
+                    }
+                    if( entity == null ) {
+                        return new AtmosListPage(Collections.<Blob>emptyList(), nextToken);
+                    }
+                    try {
+                        ArrayList<Blob> entries = new ArrayList<Blob>();
+                        String xml = EntityUtils.toString(entity);
+
+                        AtmosTracer.transferred();
+                        if( wire.isDebugEnabled() ) {
+                             wire.debug(xml);
+                        }
+                        ByteArrayInputStream bas = new ByteArrayInputStream(xml.getBytes());
 
-            if( status == HttpStatus.SC_NOT_FOUND ) {
-                return null;
-            }
-            if( status == HttpStatus.SC_OK ) {
-                HttpEntity entity = response.getEntity();
+                        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                        DocumentBuilder parser = factory.newDocumentBuilder();
+                        Document doc = parser.parse(bas);
 
-                if( entity == null ) {
-                    return null;
-                }
-                Header header = response.getFirstHeader("x-emc-meta");
-                Properties p = toProperties(header);
+                        NodeList blocks = doc.getElementsByTagName("Object");
 
-                String objectName = p.getProperty("objname");
-                String objectId = p.getProperty("objectid");
-                String ctime = p.getProperty("ctime");
-                String size = p.getProperty("size");
+                        for( int i=0; i<blocks.getLength(); i++ ) {
+                            Node entry = blocks.item(i);
 
-                if( objectName == null || objectId == null ) {
-                    return null;
-                }
-                if( size == null ) {
-                    size = "0";
-                }
-                if( ctime == null ) {
-                    ctime = "0";
-                }
-                Storage<org.dasein.util.uom.storage.Byte> s = new Storage<org.dasein.util.uom.storage.Byte>(Long.parseLong(size), Storage.BYTE);
+                            Blob blob = toBlob(ctx, entry, "/");
 
-                while( !bucket.equals("/") && bucket.startsWith("/") ) {
-                    bucket = bucket.substring(1);
+                            if( blob != null ) {
+                                entries.add(blob);
+                            }
+                        }
+                        AtmosTracer.parsed();
+                        return new AtmosListPage(entries, nextToken);
+                    }
+                    catch( IOException e ) {
+                        logger.error("I/O error reading from the cloud: " + e.getMessage());
+                        e.printStackTrace();
+                        throw new CloudException("Error reading response from cloud");
+                    }
+                    catch( ParserConfigurationException e ) {
+                        logger.error("Error with internal XML parser: " + e.getMessage());
+                        e.printStackTrace();
+                        throw new InternalException("Error with internal XML parser");
+                    }
+                    catch( SAXException e ) {
+                        logger.error("Invalid XML from the cloud: " + e.getMessage());
+                        e.printStackTrace();
+                        throw new CloudException("Invalid XML from cloud");
+                    }
                 }
-                while( !bucket.equals("/") && bucket.endsWith("/") ) {
-                    bucket = bucket.substring(0, bucket.length()-1);
+                else {
+                    throw new AtmosException(response);
                 }
-                return Blob.getInstance(regionId, "/rest/objects/" + objectId, bucket, objectName, provider.parseTime(ctime), s);
             }
-            else {
-                throw new AtmosException(response);
+            finally {
+                release(response);
             }
         }
         finally {
             if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".download()");
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".listObjects()");
             }
             if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [GET/info] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+                wire.debug("<<< [GET/query] " + tag + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
         }
     }
 
-    public Iterable<Blob> list(@Nonnull String directory) throws CloudException, InternalException {
+    /**
+     * Finds the values a listable tag holds on the objects carrying it, for tags whose value records something about
+     * the object such as the path it was first stored under.
+     * @param tag the listable tag to query
+     * @param limit the most values to return
+     * @return the values of the tag on up to limit objects, in the order Atmos returns them
+     * @throws CloudException an error occurred in Atmos querying the tag
+     * @throws InternalException an error occurred within Dasein Cloud parsing the response
+     */
+    public @Nonnull List<String> listTagValues(@Nonnull String tag, int limit) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".list(" + directory + ")");
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".listTagValues(" + tag + "," + limit + ")");
         }
         if( wire.isDebugEnabled() ) {
             wire.debug("");
-            wire.debug(">>> [GET] -> " + directory + "--------------------------------------------------------------------------------------");
+            wire.debug(">>> [GET/query] -> " + tag + "--------------------------------------------------------------------------------------");
         }
         try {
             ProviderContext ctx = provider.getContext();
@@ -527,109 +1458,110 @@ public class AtmosMethod {
             if( ctx == null ) {
                 throw new CloudException("No context was set for this request");
             }
-            if( !directory.startsWith("/") ) {
-                directory = "/" + directory;
-            }
-            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, directory);
+            String endpoint = getEndpoint(ctx, EndpointType.OBJECT, null);
             HttpGet get = new HttpGet(endpoint);
             HttpClient client = getClient(endpoint);
+            boolean utf8 = AtmosMetadata.requiresEncoding(tag);
 
+            get.addHeader("x-emc-tags", utf8 ? AtmosMetadata.encodeNames(Collections.singletonList(tag), true) : tag);
+            get.addHeader("x-emc-user-tags", utf8 ? AtmosMetadata.encodeNames(Collections.singletonList(tag), true) : tag);
+            if( utf8 ) {
+                get.addHeader("x-emc-utf8", "true");
+            }
             get.addHeader("x-emc-include-meta", "true");
+            get.addHeader("x-emc-limit", String.valueOf(Math.max(1, limit)));
             get.addHeader("Accept", "text/xml");
-            authorize(ctx, get, "", null);
-            if( wire.isDebugEnabled() ) {
-                wire.debug(get.getRequestLine().toString());
-                for( Header header : get.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-            }
-            HttpResponse response;
+            HttpResponse response = execute("listObjects", ctx, client, get, "");
 
             try {
-                response = client.execute(get);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
-                }
-            }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
-            }
-            int status = response.getStatusLine().getStatusCode();
+                int status = response.getStatusLine().getStatusCode();
 
-            if( status == HttpStatus.SC_OK ) {
+                if( status == HttpStatus.SC_NOT_FOUND ) {
+                    return Collections.emptyList();
+                }
+                if( status != HttpStatus.SC_OK ) {
+                    throw new AtmosException(response);
+                }
                 HttpEntity entity = response.getEntity();
+                ArrayList<String> values = new ArrayList<String>();
 
                 if( entity == null ) {
-                    return Collections.emptyList();
+                    return values;
                 }
                 try {
-                    ArrayList<Blob> entries = new ArrayList<Blob>();
                     String xml = EntityUtils.toString(entity);
 
+                    AtmosTracer.transferred();
                     if( wire.isDebugEnabled() ) {
-                         wire.debug(xml);
+                        wire.debug(xml);
                     }
-                    ByteArrayInputStream bas = new ByteArrayInputStream(xml.getBytes());
-
-                    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                    DocumentBuilder parser = factory.newDocumentBuilder();
-                    Document doc = parser.parse(bas);
+                    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("utf-8")));
+                    NodeList metas = doc.getElementsByTagName("Metadata");
 
-                    NodeList blocks = doc.getElementsByTagName("DirectoryEntry");
-
-                    for( int i=0; i<blocks.getLength(); i++ ) {
-                        Node entry = blocks.item(i);
+                    for( int i=0; i<metas.getLength() && values.size() < limit; i++ ) {
+                        NodeList children = metas.item(i).getChildNodes();
+                        String name = null, value = null;
 
-                        Blob blob = toBlob(ctx, entry, directory);
+                        for( int j=0; j<children.getLength(); j++ ) {
+                            Node child = children.item(j);
 
-                        if( blob != null ) {
-                            entries.add(blob);
+                            if( child.getNodeName().equalsIgnoreCase("name") && child.hasChildNodes() ) {
+                                name = child.getFirstChild().getNodeValue().trim();
+                            }
+                            else if( child.getNodeName().equalsIgnoreCase("value") && child.hasChildNodes() ) {
+                                value = child.getFirstChild().getNodeValue().trim();
+                            }
+                        }
+                        if( tag.equals(name) && value != null && value.length() > 0 ) {
+                            values.add(value);
                         }
                     }
-                    return entries;
+                    return values;
                 }
                 catch( IOException e ) {
-                    logger.error("I/O error reading from the cloud: " + e.getMessage());
-                    e.printStackTrace();
-                    throw new CloudException("Error reading response from cloud");
+                    logger.error("I/O error from server communications: " + e.getMessage());
+                    throw new InternalException(e);
                 }
                 catch( ParserConfigurationException e ) {
-                    logger.error("Error with internal XML parser: " + e.getMessage());
-                    e.printStackTrace();
-                    throw new InternalException("Error with internal XML parser");
+                    logger.error("XML parser error: " + e.getMessage());
+                    throw new InternalException(e);
                 }
                 catch( SAXException e ) {
-                    logger.error("Invalid XML from the cloud: " + e.getMessage());
-                    e.printStackTrace();
-                    throw new CloudException("Invalid XML from cloud");
+                    logger.error("XML parsing error: " + e.getMessage());
+                    throw new CloudException(e);
                 }
             }
-            else {
-                throw new AtmosException(response);
+            finally {
+                release(response);
             }
         }
         finally {
             if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".list()");
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".listTagValues()");
             }
             if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [GET] " + directory + "--------------------------------------------------------------------------------------");
+                wire.debug("<<< [GET/query] -> " + tag + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
         }
-
     }
 
-    public void rename(@Nonnull String root, @Nonnull String oldName, @Nonnull String newName) throws CloudException, InternalException {
+    /**
+     * Moves an object or directory to a new path entirely on the server side; no content is transferred. The
+     * source and target may be in different parent directories. Directory paths must end with a slash.
+     * @param fromPath the current namespace path of the object or directory
+     * @param toPath the new namespace path of the object or directory
+     * @param force true to replace any object already at the target path
+     * @throws CloudException an error occurred in Atmos moving the object or directory
+     * @throws InternalException an error occurred within Dasein Cloud moving the object or directory
+     */
+    public void move(@Nonnull String fromPath, @Nonnull String toPath, boolean force) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".rename(" + root + "," + oldName + "," + newName + ")");
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".move(" + fromPath + "," + toPath + "," + force + ")");
         }
         if( wire.isDebugEnabled() ) {
             wire.debug("");
-            wire.debug(">>> [POST/rename] -> " + root + " / " + oldName + " / " + newName + "--------------------------------------------------------------------------------------");
+            wire.debug(">>> [POST/rename] -> " + fromPath + " / " + toPath + "--------------------------------------------------------------------------------------");
         }
         try {
             ProviderContext ctx = provider.getContext();
@@ -637,64 +1569,269 @@ public class AtmosMethod {
             if( ctx == null ) {
                 throw new CloudException("No context was set for this request");
             }
-            if( !root.endsWith("/") ) {
-                root = root + "/";
+            if( !fromPath.startsWith("/") ) {
+                fromPath = "/" + fromPath;
             }
-            if( !root.startsWith("/") ) {
-                root = "/" + root;
+            while( toPath.startsWith("/") ) {
+                toPath = toPath.substring(1);
             }
-            if( !oldName.endsWith("/") ) {
-                oldName = oldName + "/";
+            if( fromPath.equals("/") || toPath.length() < 1 ) {
+                throw new CloudException("The namespace root cannot be moved or replaced");
             }
-            if( !newName.endsWith("/") ) {
-                newName = newName + "/";
+            if( fromPath.endsWith("/") != toPath.endsWith("/") ) {
+                throw new CloudException("Cannot move a directory to an object path or an object to a directory path");
             }
-            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, root + oldName);
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, fromPath);
             HttpPost post = new HttpPost(endpoint + "?rename");
             HttpClient client = getClient(endpoint);
 
             post.addHeader("Accept", "*/*");
             post.addHeader("Content-Type", "application/octet-stream");
-            post.addHeader("x-emc-path", root + "/" + newName);
-            authorize(ctx, post, "application/octet-stream", null);
-            if( wire.isDebugEnabled() ) {
-                wire.debug(post.getRequestLine().toString());
-                for( Header header : post.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
+            post.addHeader("x-emc-path", toPath);
+            if( force ) {
+                post.addHeader("x-emc-force", "true");
+            }
+            HttpResponse response = execute("move", ctx, client, post, "application/octet-stream");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_OK ) {
+                    throw new AtmosException(response);
                 }
+            }
+            finally {
+                release(response);
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".move()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [POST/rename] -> " + fromPath + " / " + toPath + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
-            HttpResponse response;
+        }
+    }
 
-            try {
-                response = client.execute(post);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
+    /**
+     * Builds the request that uploads text content, compressed first if the provider's compression settings call for
+     * it.
+     * @param endpoint the URL of the new object
+     * @param name the name of the new object
+     * @param contentType the content type of the text
+     * @param content the text to upload
+     * @param metadata any non-listable user metadata to attach
+     * @param listable any listable user metadata to attach
+     * @return the request, ready to be signed and executed
+     * @throws InternalException the content could not be encoded or compressed
+     */
+    @Nonnull HttpPost newUpload(@Nonnull String endpoint, @Nonnull String name, @Nonnull String contentType, @Nonnull String content, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws InternalException {
+        HttpPost post = new HttpPost(endpoint);
+        AtmosCompression compression = new AtmosCompression(provider);
+
+        try {
+            byte[] compressed = null;
+
+            if( compression.getCodec() != null ) {
+                byte[] raw = content.getBytes("utf-8");
+
+                if( compression.shouldCompress(name, contentType, raw.length) ) {
+                    compressed = compression.compress(raw);
+                    if( compressed.length < raw.length ) {
+                        metadata = compression.toMetadata(metadata, raw.length);
+                    }
+                    else {
+                        compressed = null;
+                    }
                 }
             }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
+            if( compressed == null ) {
+                post.setEntity(new StringEntity(content, contentType, "utf-8"));
+            }
+            else {
+                ByteArrayEntity entity = new ByteArrayEntity(compressed);
+
+                entity.setContentType(contentType);
+                post.setEntity(entity);
+            }
+        }
+        catch( UnsupportedEncodingException e ) {
+            logger.error("Unsupported UTF-8 encoding: " + e.getMessage());
+            e.printStackTrace();
+            throw new InternalException("Unsupported UTF-8 encoding");
+        }
+        addMetadata(post, metadata, listable);
+        return post;
+    }
+
+    /**
+     * Checks whether the access node behind this method is answering requests by sending a signed HEAD for the
+     * namespace root. Any answer other than a server error counts as healthy.
+     * @return true if the node answered
+     */
+    public boolean probe() {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".probe()");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                return false;
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, "/");
+            HttpHead head = new HttpHead(endpoint + "/");
+            HttpClient client = getClient(endpoint);
+
+            release(execute("probe", ctx, client, head, ""));
+            return true;
+        }
+        catch( CloudException e ) {
+            return (e.getHttpCode() > 0 && e.getHttpCode() < 500);
+        }
+        catch( InternalException e ) {
+            return false;
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".probe()");
+            }
+        }
+    }
+
+    /**
+     * Renames a directory within its parent directory.
+     * @param root the parent directory
+     * @param oldName the current name of the directory
+     * @param newName the new name of the directory
+     * @throws CloudException an error occurred in Atmos renaming the directory
+     * @throws InternalException an error occurred within Dasein Cloud renaming the directory
+     */
+    public void rename(@Nonnull String root, @Nonnull String oldName, @Nonnull String newName) throws CloudException, InternalException {
+        if( !root.endsWith("/") ) {
+            root = root + "/";
+        }
+        if( !root.startsWith("/") ) {
+            root = "/" + root;
+        }
+        if( !oldName.endsWith("/") ) {
+            oldName = oldName + "/";
+        }
+        if( !newName.endsWith("/") ) {
+            newName = newName + "/";
+        }
+        move(root + oldName, root + newName, false);
+    }
+
+    /**
+     * Adds or replaces user metadata on an object or directory without re-uploading its content. All of the
+     * specified entries are sent in a single request.
+     * @param bucket the directory holding the object, or the directory itself if <code>name</code> is null
+     * @param name the object whose metadata is being set, or null to target the directory
+     * @param metadata any non-listable user metadata to set
+     * @param listable any listable user metadata to set
+     * @throws CloudException an error occurred in Atmos setting the metadata
+     * @throws InternalException an error occurred within Dasein Cloud setting the metadata
+     */
+    public void setMetadata(@Nonnull String bucket, @Nullable String name, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".setMetadata(" + bucket + "," + name + "," + metadata + "," + listable + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [POST/metadata] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
             }
-            int status = response.getStatusLine().getStatusCode();
+            if( (metadata == null || metadata.isEmpty()) && (listable == null || listable.isEmpty()) ) {
+                return;
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, toPath(bucket, name));
+            HttpPost post = new HttpPost(endpoint + "?metadata/user");
+            HttpClient client = getClient(endpoint);
+
+            post.addHeader("Accept", "*/*");
+            post.addHeader("Content-Type", "application/octet-stream");
+            addMetadata(post, metadata, listable);
+            HttpResponse response = execute("setMetadata", ctx, client, post, "application/octet-stream");
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
 
-            if( status != HttpStatus.SC_NO_CONTENT ) {
-                throw new AtmosException(response);
+                if( status != HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT ) {
+                    throw new AtmosException(response);
+                }
+            }
+            finally {
+                release(response);
             }
         }
         finally {
             if( logger.isTraceEnabled() ) {
-                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".rename()");
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".setMetadata()");
             }
             if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [POST/rename] -> " +  root + " / " + oldName + " / " + newName  + "--------------------------------------------------------------------------------------");
+                wire.debug("<<< [POST/metadata] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
         }
     }
 
-    private @Nonnull String sign(@Nonnull ProviderContext ctx, @Nonnull String stringToSign) throws InternalException {
+    /**
+     * Parses the body of a namespace directory listing.
+     * @param ctx the context of the listing
+     * @param xml the listing XML
+     * @param directory the directory that was listed
+     * @return the entries in the listing
+     * @throws CloudException the listing describes an entry that cannot be represented
+     * @throws InternalException the context is incomplete
+     * @throws IOException the XML could not be read
+     * @throws ParserConfigurationException no XML parser is available
+     * @throws SAXException the XML is invalid
+     */
+    @Nonnull List<Blob> parseListing(@Nonnull ProviderContext ctx, @Nonnull String xml, @Nonnull String directory) throws CloudException, InternalException, IOException, ParserConfigurationException, SAXException {
+        ArrayList<Blob> entries = new ArrayList<Blob>();
+        ByteArrayInputStream bas = new ByteArrayInputStream(xml.getBytes());
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder parser = factory.newDocumentBuilder();
+        Document doc = parser.parse(bas);
+
+        NodeList blocks = doc.getElementsByTagName("DirectoryEntry");
+
+        for( int i=0; i<blocks.getLength(); i++ ) {
+            Node entry = blocks.item(i);
+
+            Blob blob = toBlob(ctx, entry, directory);
+
+            if( blob != null ) {
+                entries.add(blob);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Consumes whatever remains of the response body so the underlying connection returns to the shared pool.
+     * @param response the response to release
+     */
+    private void release(@Nonnull HttpResponse response) {
+        try {
+            EntityUtils.consume(response.getEntity());
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to release connection: " + e.getMessage());
+        }
+        AtmosTracer.finish(null);
+    }
+
+    @Nonnull String sign(@Nonnull ProviderContext ctx, @Nonnull String stringToSign) throws InternalException {
         try {
             Mac mac = Mac.getInstance("HmacSHA1");
 
@@ -723,7 +1860,7 @@ public class AtmosMethod {
         }
     }
 
-    private @Nonnull Blob toBlob(@Nonnull ProviderContext ctx, @Nonnull Node node, @Nonnull String directory) throws CloudException, InternalException {
+    @Nonnull Blob toBlob(@Nonnull ProviderContext ctx, @Nonnull Node node, @Nonnull String directory) throws CloudException, InternalException {
         String regionId = ctx.getRegionId();
 
         if( regionId == null ) {
@@ -768,7 +1905,13 @@ public class AtmosMethod {
                             }
                         }
                         if( name != null && value != null ) {
-                            if( name.equalsIgnoreCase("itime") ) {
+                            if( name.equalsIgnoreCase("objname") && objectName == null ) {
+                                objectName = value;
+                            }
+                            else if( name.equalsIgnoreCase("type") ) {
+                                bucket = value.equalsIgnoreCase("directory");
+                            }
+                            else if( name.equalsIgnoreCase("itime") ) {
                                 created = provider.parseTime(value);
                             }
                             else if( name.equalsIgnoreCase("size") ) {
@@ -782,6 +1925,9 @@ public class AtmosMethod {
         if( objectId == null ) {
             return null;
         }
+        if( objectName == null ) {
+            objectName = objectId;
+        }
         while( !directory.equals("/") && directory.startsWith("/") ) {
             directory = directory.substring(1);
         }
@@ -802,7 +1948,7 @@ public class AtmosMethod {
         }
     }
 
-    private @Nonnull Blob toBlob(@Nonnull ProviderContext ctx, @Nonnull HttpResponse response, @Nonnull String bucketName, @Nullable String objectName, @Nullable Storage<?> size) throws CloudException, InternalException {
+    @Nonnull Blob toBlob(@Nonnull ProviderContext ctx, @Nonnull HttpResponse response, @Nonnull String bucketName, @Nullable String objectName, @Nullable Storage<?> size) throws CloudException, InternalException {
         String regionId = ctx.getRegionId();
 
         if( regionId == null ) {
@@ -846,28 +1992,130 @@ public class AtmosMethod {
         return location.substring("/rest/objects/".length());
     }
 
-    private @Nonnull Properties toProperties(@Nonnull Header header) {
-        Properties p = new Properties();
+    /**
+     * Builds a blob from the system metadata returned by a successful info request.
+     * @param ctx the context under which the request was made
+     * @param response the response to the info request
+     * @param bucket the directory holding the object
+     * @return the object, or null if the response does not describe one
+     * @throws CloudException no region was set for the request
+     */
+    @Nullable Blob toInfo(@Nonnull ProviderContext ctx, @Nonnull HttpResponse response, @Nonnull String bucket) throws CloudException {
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new CloudException("No region was set for this request");
+        }
+        HttpEntity entity = response.getEntity();
+
+        if( entity == null ) {
+            return null;
+        }
+        Header header = response.getFirstHeader("x-emc-meta");
 
-        if( header.getValue() == null ) {
-            return p;
+        if( header == null ) {
+            return null;
+        }
+        Properties p = toProperties(header, isUtf8(response));
+
+        String objectName = p.getProperty("objname");
+        String objectId = p.getProperty("objectid");
+        String ctime = p.getProperty("ctime");
+        String size = p.getProperty("size");
+
+        if( objectName == null || objectId == null ) {
+            return null;
+        }
+        if( size == null ) {
+            size = "0";
+        }
+        if( ctime == null ) {
+            ctime = "0";
+        }
+        Storage<org.dasein.util.uom.storage.Byte> s = new Storage<org.dasein.util.uom.storage.Byte>(Long.parseLong(size), Storage.BYTE);
+
+        while( !bucket.equals("/") && bucket.startsWith("/") ) {
+            bucket = bucket.substring(1);
+        }
+        while( !bucket.equals("/") && bucket.endsWith("/") ) {
+            bucket = bucket.substring(0, bucket.length()-1);
         }
-        String[] parts = header.getValue().split(",");
+        return Blob.getInstance(regionId, "/rest/objects/" + objectId, bucket, objectName, provider.parseTime(ctime), s);
+    }
 
-        if( parts == null || parts.length < 1 ) {
-            parts = new String[] { header.getValue() };
+    /**
+     * Reads one page of a directory listing from a successful list request.
+     * @param ctx the context under which the request was made
+     * @param response the response to the list request
+     * @param directory the directory that was listed
+     * @return the entries in the page along with the token for the next one
+     * @throws CloudException the listing could not be read or was not valid XML
+     * @throws InternalException the XML parser could not be set up
+     */
+    @Nonnull AtmosListPage toPage(@Nonnull ProviderContext ctx, @Nonnull HttpResponse response, @Nonnull String directory) throws CloudException, InternalException {
+        Header next = response.getFirstHeader("x-emc-token");
+        HttpEntity entity = response.getEntity();
+        String nextToken = (next == null ? null : next.getValue());
+
+        if( nextToken != null && nextToken.trim().length() < 1 ) {
+            nextToken = null;
+        }
+        if( entity == null ) {
+            return new AtmosListPage(Collections.<Blob>emptyList(), nextToken);
         }
-        for( String part : parts ) {
-            String[] s = part.split("=");
+        try {
+            String xml = EntityUtils.toString(entity);
 
-            if( s.length == 2 ) {
-                p.setProperty(s[0].trim(), s[1].trim());
+            AtmosTracer.transferred();
+            if( wire.isDebugEnabled() ) {
+                 wire.debug(xml);
             }
+            List<Blob> entries = parseListing(ctx, xml, directory);
+
+            AtmosTracer.parsed();
+            return new AtmosListPage(entries, nextToken);
+        }
+        catch( IOException e ) {
+            logger.error("I/O error reading from the cloud: " + e.getMessage());
+            e.printStackTrace();
+            throw new CloudException("Error reading response from cloud");
         }
+        catch( ParserConfigurationException e ) {
+            logger.error("Error with internal XML parser: " + e.getMessage());
+            e.printStackTrace();
+            throw new InternalException("Error with internal XML parser");
+        }
+        catch( SAXException e ) {
+            logger.error("Invalid XML from the cloud: " + e.getMessage());
+            e.printStackTrace();
+            throw new CloudException("Invalid XML from cloud");
+        }
+    }
+
+    @Nonnull String toPath(@Nonnull String bucket, @Nullable String name) {
+        if( !bucket.endsWith("/") ) {
+            bucket = bucket + "/";
+        }
+        if( !bucket.startsWith("/") ) {
+            bucket = "/" + bucket;
+        }
+        if( name == null ) {
+            return bucket;
+        }
+        while( name.startsWith("/") && !name.equals("/") ) {
+            name = name.substring(1);
+        }
+        return (name.equals("/") ? bucket : bucket + name);
+    }
+
+    @Nonnull Properties toProperties(@Nonnull Header header, boolean utf8) {
+        Properties p = new Properties();
+
+        p.putAll(AtmosMetadata.parse(header.getValue(), utf8));
         return p;
     }
 
-    private @Nonnull String toSignatureString(@Nonnull HttpRequestBase method, @Nonnull String contentType, @Nonnull String range, @Nonnull String date, @Nonnull URI resource, @Nonnull List<Header> emcHeaders) {
+    @Nonnull String toSignatureString(@Nonnull HttpRequestBase method, @Nonnull String contentType, @Nonnull String range, @Nonnull String date, @Nonnull URI resource, @Nonnull List<Header> emcHeaders) {
         StringBuilder emcHeaderString = new StringBuilder();
 
         TreeSet<String> sorted = new TreeSet<String>();
@@ -918,7 +2166,71 @@ public class AtmosMethod {
         return (method.getMethod()  + "\n" + contentType + "\n" + range + "\n" + date + "\n" + path + "\n" + emcHeaderString.toString());
     }
 
+    /**
+     * Writes content into an existing object starting at the specified offset, replacing whatever was there.
+     * Writing at the current size of the object appends to it. The content is sent as it is, without client-side
+     * compression, so that offsets remain meaningful.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @param content a buffer holding the content to write
+     * @param off the position of the content in the buffer
+     * @param len the number of bytes to write
+     * @param offset the offset within the object at which to write, which may not be beyond its current size
+     * @throws CloudException an error occurred in Atmos updating the object
+     * @throws InternalException an error occurred within Dasein Cloud updating the object
+     */
+    public void update(@Nonnull String bucket, @Nonnull String name, @Nonnull byte[] content, int off, int len, long offset) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("ENTER - " + AtmosMethod.class.getName() + ".update(" + bucket + "," + name + ",[CONTENT]," + off + "," + len + "," + offset + ")");
+        }
+        if( wire.isDebugEnabled() ) {
+            wire.debug("");
+            wire.debug(">>> [PUT/update] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+        }
+        try {
+            ProviderContext ctx = provider.getContext();
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            if( len < 1 ) {
+                return;
+            }
+            String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, toPath(bucket, name));
+            HttpPut put = new HttpPut(endpoint);
+            HttpClient client = getClient(endpoint);
+
+            put.addHeader("Range", "Bytes=" + offset + "-" + (offset + len - 1));
+            put.setEntity(new ByteArrayEntity(content, off, len, ContentType.APPLICATION_OCTET_STREAM));
+            HttpResponse response = execute("update", ctx, client, put, "application/octet-stream", AtmosTimeouts.forTransfer(provider));
+
+            try {
+                int status = response.getStatusLine().getStatusCode();
+
+                if( status != HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT ) {
+                    throw new AtmosException(response);
+                }
+            }
+            finally {
+                release(response);
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("EXIT - " + AtmosMethod.class.getName() + ".update()");
+            }
+            if( wire.isDebugEnabled() ) {
+                wire.debug("<<< [PUT/update] -> " + bucket + " / " + name + "--------------------------------------------------------------------------------------");
+                wire.debug("");
+            }
+        }
+    }
+
     public @Nonnull Blob upload(@Nonnull String bucket, @Nonnull String name, @Nonnull String contentType, @Nonnull String content) throws CloudException, InternalException {
+        return upload(bucket, name, contentType, content, null, null);
+    }
+
+    public @Nonnull Blob upload(@Nonnull String bucket, @Nonnull String name, @Nonnull String contentType, @Nonnull String content, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("ENTER - " + AtmosMethod.class.getName() + ".upload(" + bucket + "," + name + "," + contentType + ",[CONTENT])");
         }
@@ -939,45 +2251,22 @@ public class AtmosMethod {
                 bucket = "/" + bucket;
             }
             String endpoint = getEndpoint(ctx, EndpointType.NAMESPACE, bucket + name);
-            HttpPost post = new HttpPost(endpoint);
+            HttpPost post = newUpload(endpoint, name, contentType, content, metadata, listable);
             HttpClient client = getClient(endpoint);
+            HttpResponse response = execute("upload", ctx, client, post, contentType);
 
-            authorize(ctx, post, contentType, null);
             try {
-                post.setEntity(new StringEntity(content, contentType, "utf-8"));
-            }
-            catch( UnsupportedEncodingException e ) {
-                logger.error("Unsupported UTF-8 encoding: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException("Unsupported UTF-8 encoding");
-            }
-            if( wire.isDebugEnabled() ) {
-                wire.debug(post.getRequestLine().toString());
-                for( Header header : post.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-            }
-            HttpResponse response;
+                int status = response.getStatusLine().getStatusCode();
 
-            try {
-                response = client.execute(post);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
+                if( status == HttpStatus.SC_CREATED ) {
+                    return toBlob(ctx, response, bucket, name, null);
+                }
+                else {
+                    throw new AtmosException(response);
                 }
             }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
-            }
-            int status = response.getStatusLine().getStatusCode();
-
-            if( status == HttpStatus.SC_CREATED ) {
-                return toBlob(ctx, response, bucket, name, null);
-            }
-            else {
-                throw new AtmosException(response);
+            finally {
+                release(response);
             }
         }
         finally {
@@ -992,6 +2281,10 @@ public class AtmosMethod {
     }
 
     public @Nonnull Blob upload(@Nonnull String bucket, @Nonnull String name, @Nonnull InputStream input, Storage<?> size) throws CloudException, InternalException {
+        return upload(bucket, name, input, size, null, null);
+    }
+
+    public @Nonnull Blob upload(@Nonnull String bucket, @Nonnull String name, @Nonnull InputStream input, Storage<?> size, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("ENTER - " + AtmosMethod.class.getName() + ".upload(" + bucket + "," + name + ",[CONTENT]," + size + ")");
         }
@@ -1016,35 +2309,39 @@ public class AtmosMethod {
             HttpPost post = new HttpPost(endpoint);
             HttpClient client = getClient(endpoint);
 
-            authorize(ctx, post, "application/octet-stream", null);
-            post.setEntity(new InputStreamEntity(input, length, ContentType.APPLICATION_OCTET_STREAM));
-            if( wire.isDebugEnabled() ) {
-                wire.debug(post.getRequestLine().toString());
-                for( Header header : post.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-            }
-            HttpResponse response;
+            AtmosCompression compression = new AtmosCompression(provider);
+            AtmosCompression.Compressed compressed = null;
 
             try {
-                response = client.execute(post);
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(response.getStatusLine().toString());
+                if( compression.shouldCompress(name, "application/octet-stream", length) ) {
+                    compressed = compression.compress(input, length);
+                    metadata = compression.toMetadata(metadata, length);
+                    post.setEntity(compressed.toEntity(ContentType.APPLICATION_OCTET_STREAM));
                 }
-            }
-            catch( IOException e ) {
-                logger.error("I/O error from server communications: " + e.getMessage());
-                e.printStackTrace();
-                throw new InternalException(e);
-            }
-            int status = response.getStatusLine().getStatusCode();
+                else {
+                    post.setEntity(new AtmosStreamEntity(input, length, ContentType.APPLICATION_OCTET_STREAM, provider.getBufferPool()));
+                }
+                addMetadata(post, metadata, listable);
+                HttpResponse response = execute("upload", ctx, client, post, "application/octet-stream", AtmosTimeouts.forTransfer(provider));
+
+                try {
+                    int status = response.getStatusLine().getStatusCode();
 
-            if( status == HttpStatus.SC_CREATED ) {
-                return toBlob(ctx, response, bucket, name, null);
+                    if( status == HttpStatus.SC_CREATED ) {
+                        return toBlob(ctx, response, bucket, name, null);
+                    }
+                    else {
+                        throw new AtmosException(response);
+                    }
+                }
+                finally {
+                    release(response);
+                }
             }
-            else {
-                throw new AtmosException(response);
+            finally {
+                if( compressed != null ) {
+                    compressed.close();
+                }
             }
         }
         finally {
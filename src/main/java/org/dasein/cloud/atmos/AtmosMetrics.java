@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Receives measurements of the requests an {@link Atmos} provider makes. Implementations are called on the request
+ * path of every operation and must therefore be thread-safe, non-blocking and cheap. The provider uses an
+ * {@link AtmosMetricsRegistry} by default; a different implementation, or {@link #NONE} to turn measurement off,
+ * may be plugged in with {@link Atmos#setMetrics(AtmosMetrics)}.
+ * <p>Operations are named after the {@link AtmosMethod} operation issuing the request: <code>create</code>,
+ * <code>delete</code>, <code>deleteMetadata</code>, <code>download</code>, <code>getMetadata</code>,
+ * <code>info</code>, <code>list</code>, <code>listObjects</code>, <code>move</code>, <code>probe</code>,
+ * <code>setMetadata</code> and <code>upload</code>.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public interface AtmosMetrics {
+    /**
+     * Discards all measurements.
+     */
+    static public final AtmosMetrics NONE = new AtmosMetrics() {
+        @Override public void connectionLeased(long waitNs) { }
+        @Override public void requestCompleted(@Nonnull String operation, int status, long latencyNs, long bytesSent, long bytesReceived) { }
+        @Override public void requestFailed(@Nonnull String operation, @Nonnull String errorCode) { }
+        @Override public void requestRetried(@Nonnull String operation) { }
+        @Override public void requestStarted(@Nonnull String operation) { }
+    };
+
+    /**
+     * A connection was obtained from a connection pool.
+     * @param waitNs how long the request waited for the connection
+     */
+    public void connectionLeased(@Nonnegative long waitNs);
+
+    /**
+     * A single attempt at a request finished, successfully or not.
+     * @param operation the operation that issued the request
+     * @param status the HTTP status of the response, or 0 if no response was received
+     * @param latencyNs the time from sending the request until the response headers arrived
+     * @param bytesSent the size of the request body
+     * @param bytesReceived the declared size of the response body, or 0 if unknown
+     */
+    public void requestCompleted(@Nonnull String operation, int status, @Nonnegative long latencyNs, @Nonnegative long bytesSent, @Nonnegative long bytesReceived);
+
+    /**
+     * An attempt at a request failed.
+     * @param operation the operation that issued the request
+     * @param errorCode the Atmos error code, or the simple class name of the I/O error
+     */
+    public void requestFailed(@Nonnull String operation, @Nonnull String errorCode);
+
+    /**
+     * A request is about to be retried.
+     * @param operation the operation that issued the request
+     */
+    public void requestRetried(@Nonnull String operation);
+
+    /**
+     * An attempt at a request is about to be sent.
+     * @param operation the operation that issued the request
+     */
+    public void requestStarted(@Nonnull String operation);
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default, in-memory {@link AtmosMetrics} implementation. Measurements are kept per operation in lock-free
+ * counters and {@link AtmosLatencyHistogram}s and can be read at any time as immutable {@link Snapshot}s, for example
+ * to be scraped by a monitoring system.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosMetricsRegistry implements AtmosMetrics {
+    static private class Stats {
+        private final AtmosLatencyHistogram          latency       = new AtmosLatencyHistogram();
+        private final AtomicLong                     bytesReceived = new AtomicLong(0L);
+        private final AtomicLong                     bytesSent     = new AtomicLong(0L);
+        private final ConcurrentMap<String,AtomicLong>  errors     = new ConcurrentHashMap<String, AtomicLong>();
+        private final AtomicInteger                  inFlight      = new AtomicInteger(0);
+        private final AtomicLong                     retries       = new AtomicLong(0L);
+        private final ConcurrentMap<Integer,AtomicLong> statuses   = new ConcurrentHashMap<Integer, AtomicLong>();
+    }
+
+    /**
+     * An immutable view of the measurements for one operation.
+     */
+    static public class Snapshot {
+        private final long               bytesReceived;
+        private final long               bytesSent;
+        private final long               count;
+        private final Map<String,Long>   errors;
+        private final int                inFlight;
+        private final long               maxMicros;
+        private final double             meanMicros;
+        private final long               p50Micros;
+        private final long               p90Micros;
+        private final long               p99Micros;
+        private final long               p999Micros;
+        private final long               retries;
+        private final Map<Integer,Long>  statuses;
+
+        private Snapshot(@Nonnull Stats stats) {
+            AtmosLatencyHistogram h = stats.latency;
+
+            bytesReceived = stats.bytesReceived.get();
+            bytesSent = stats.bytesSent.get();
+            count = h.getCount();
+            errors = copy(stats.errors);
+            inFlight = stats.inFlight.get();
+            maxMicros = h.getMax();
+            meanMicros = h.getMean();
+            p50Micros = h.getPercentile(50.0);
+            p90Micros = h.getPercentile(90.0);
+            p99Micros = h.getPercentile(99.0);
+            p999Micros = h.getPercentile(99.9);
+            retries = stats.retries.get();
+            statuses = copy(stats.statuses);
+        }
+
+        public @Nonnegative long getBytesReceived() { return bytesReceived; }
+
+        public @Nonnegative long getBytesSent() { return bytesSent; }
+
+        /**
+         * @return the number of completed requests, counting each attempt separately
+         */
+        public @Nonnegative long getCount() { return count; }
+
+        /**
+         * @return the number of failures by Atmos error code or I/O error type
+         */
+        public @Nonnull Map<String,Long> getErrors() { return errors; }
+
+        public @Nonnegative int getInFlight() { return inFlight; }
+
+        public @Nonnegative long getMaxMicros() { return maxMicros; }
+
+        public double getMeanMicros() { return meanMicros; }
+
+        public @Nonnegative long getP50Micros() { return p50Micros; }
+
+        public @Nonnegative long getP90Micros() { return p90Micros; }
+
+        public @Nonnegative long getP99Micros() { return p99Micros; }
+
+        public @Nonnegative long getP999Micros() { return p999Micros; }
+
+        public @Nonnegative long getRetries() { return retries; }
+
+        /**
+         * @return the number of responses by HTTP status, with 0 for attempts that received no response
+         */
+        public @Nonnull Map<Integer,Long> getStatuses() { return statuses; }
+
+        @Override
+        public @Nonnull String toString() {
+            return "[count=" + count + ",inFlight=" + inFlight + ",p50=" + p50Micros + "us,p99=" + p99Micros + "us,max=" + maxMicros + "us,sent=" + bytesSent + ",received=" + bytesReceived + ",retries=" + retries + ",statuses=" + statuses + ",errors=" + errors + "]";
+        }
+    }
+
+    static private @Nonnull <K> Map<K,Long> copy(@Nonnull Map<K,AtomicLong> source) {
+        TreeMap<K,Long> copy = new TreeMap<K, Long>();
+
+        for( Map.Entry<K,AtomicLong> entry : source.entrySet() ) {
+            copy.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    static private <K> void increment(@Nonnull ConcurrentMap<K,AtomicLong> counters, @Nonnull K key) {
+        AtomicLong counter = counters.get(key);
+
+        if( counter == null ) {
+            AtomicLong created = new AtomicLong(0L);
+
+            counter = counters.putIfAbsent(key, created);
+            if( counter == null ) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private final AtmosLatencyHistogram     leases     = new AtmosLatencyHistogram();
+    private final ConcurrentMap<String,Stats> operations = new ConcurrentHashMap<String, Stats>();
+
+    public AtmosMetricsRegistry() { }
+
+    @Override
+    public void connectionLeased(@Nonnegative long waitNs) {
+        leases.record(waitNs / 1000L);
+    }
+
+    /**
+     * @return the distribution of time spent waiting for pooled connections
+     */
+    public @Nonnull AtmosLatencyHistogram getLeaseTimes() {
+        return leases;
+    }
+
+    /**
+     * @param operation the name of the operation
+     * @return a snapshot of the measurements for the operation, or null if it has never been called
+     */
+    public @Nullable Snapshot getSnapshot(@Nonnull String operation) {
+        Stats stats = operations.get(operation);
+
+        return (stats == null ? null : new Snapshot(stats));
+    }
+
+    /**
+     * @return snapshots of the measurements for every operation called so far, keyed by operation name
+     */
+    public @Nonnull Map<String,Snapshot> getSnapshots() {
+        TreeMap<String,Snapshot> snapshots = new TreeMap<String, Snapshot>();
+
+        for( Map.Entry<String,Stats> entry : operations.entrySet() ) {
+            snapshots.put(entry.getKey(), new Snapshot(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    @Override
+    public void requestCompleted(@Nonnull String operation, int status, @Nonnegative long latencyNs, @Nonnegative long bytesSent, @Nonnegative long bytesReceived) {
+        Stats stats = stats(operation);
+
+        stats.inFlight.decrementAndGet();
+        stats.latency.record(latencyNs / 1000L);
+        if( bytesSent > 0L ) {
+            stats.bytesSent.addAndGet(bytesSent);
+        }
+        if( bytesReceived > 0L ) {
+            stats.bytesReceived.addAndGet(bytesReceived);
+        }
+        increment(stats.statuses, status);
+    }
+
+    @Override
+    public void requestFailed(@Nonnull String operation, @Nonnull String errorCode) {
+        increment(stats(operation).errors, errorCode);
+    }
+
+    @Override
+    public void requestRetried(@Nonnull String operation) {
+        stats(operation).retries.incrementAndGet();
+    }
+
+    @Override
+    public void requestStarted(@Nonnull String operation) {
+        stats(operation).inFlight.incrementAndGet();
+    }
+
+    private @Nonnull Stats stats(@Nonnull String operation) {
+        Stats stats = operations.get(operation);
+
+        if( stats == null ) {
+            Stats created = new Stats();
+
+            stats = operations.putIfAbsent(operation, created);
+            if( stats == null ) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return getSnapshots() + " leases=" + leases;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import javax.annotation.Nonnull;
+import java.util.Locale;
+
+/**
+ * Broad classes of Atmos operations, used to apply separate rate limits to reads, writes, deletes and listings.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public enum AtmosOperation {
+    /**
+     * Object downloads and metadata reads.
+     */
+    READ,
+    /**
+     * Object and directory creation, uploads, metadata updates and renames.
+     */
+    WRITE,
+    /**
+     * Object, directory and metadata removal.
+     */
+    DELETE,
+    /**
+     * Directory listings and object index queries.
+     */
+    LIST;
+
+    /**
+     * Determines the class of operation a request performs from its HTTP method and target.
+     * @param method the request
+     * @return the class of operation
+     */
+    static public @Nonnull AtmosOperation classify(@Nonnull HttpRequestBase method) {
+        String verb = method.getMethod();
+
+        if( verb.equals("DELETE") ) {
+            return DELETE;
+        }
+        if( verb.equals("GET") || verb.equals("HEAD") ) {
+            String path = method.getURI().getPath();
+            String query = method.getURI().getRawQuery();
+
+            if( query == null && path != null && (path.endsWith("/") || path.endsWith("/rest/objects")) ) {
+                return LIST;
+            }
+            return READ;
+        }
+        return WRITE;
+    }
+
+    /**
+     * @return the suffix used for custom properties that configure this class of operation (e.g. <code>Read</code>
+     * in <code>rateLimitRead</code>)
+     */
+    public @Nonnull String toPropertySuffix() {
+        String name = name().toLowerCase(Locale.ENGLISH);
+
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Uploads content of unknown length as it is written. Content is gathered into fixed-size chunks; the object is
+ * created when the first chunk fills and each chunk is then appended to it with a ranged update at the current end
+ * of the object. Content that never fills a chunk is sent as a single regular upload when the stream is closed.
+ * <p>With pipelining, a full chunk is sent on the provider's asynchronous executor while the caller goes on filling
+ * the next one, so producing and sending content overlap. Atmos only accepts appends at the current end of an object,
+ * so at most one chunk is ever in flight.</p>
+ * <p>Appended objects are never compressed on the client, since compression would make append offsets meaningless.
+ * If writing fails or {@link #abort()} is called, the partially written object is removed. The stream is configured
+ * through the <code>appendChunkBytes</code> (default 4 MB) and <code>appendPipeline</code> (default true) custom
+ * properties.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosOutputStream extends OutputStream {
+    static private final Logger logger = Atmos.getLogger(AtmosOutputStream.class);
+
+    private byte[]                   buffer;
+    private final String             bucket;
+    private int                      count;
+    private boolean                  closed;
+    private boolean                  created;
+    private IOException              error;
+    private Future<Void>             inFlight;
+    private byte[]                   inFlightBuffer;
+    private final Map<String,String> listable;
+    private final Map<String,String> metadata;
+    private final String             name;
+    private long                     offset;
+    private final boolean            pipelined;
+    private final Atmos              provider;
+    private byte[]                   spare;
+
+    public AtmosOutputStream(@Nonnull Atmos provider, @Nonnull String bucket, @Nonnull String name, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) {
+        this(provider, bucket, name, metadata, listable, provider.getIntProperty("appendChunkBytes", 4 * 1024 * 1024), !"false".equalsIgnoreCase(provider.getStringProperty("appendPipeline", "true")));
+    }
+
+    public AtmosOutputStream(@Nonnull Atmos provider, @Nonnull String bucket, @Nonnull String name, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable, @Nonnegative int chunkSize, boolean pipelined) {
+        this.provider = provider;
+        this.bucket = bucket;
+        this.name = name;
+        this.metadata = metadata;
+        this.listable = listable;
+        this.pipelined = pipelined;
+        this.buffer = new byte[Math.max(1024, chunkSize)];
+    }
+
+    /**
+     * Abandons the upload, removing whatever part of the object has already been written. Does nothing if the stream
+     * has already been closed successfully.
+     */
+    public void abort() {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        try {
+            await();
+        }
+        catch( IOException ignore ) {
+            // the object is being removed anyway
+        }
+        if( created ) {
+            try {
+                new AtmosMethod(provider).delete(bucket, name);
+            }
+            catch( Exception e ) {
+                logger.warn("Unable to remove partially written object " + bucket + "/" + name + ": " + e.getMessage());
+            }
+        }
+        buffer = null;
+        spare = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( closed ) {
+            return;
+        }
+        try {
+            check();
+            if( !created ) {
+                Storage<org.dasein.util.uom.storage.Byte> size = new Storage<org.dasein.util.uom.storage.Byte>(count, Storage.BYTE);
+
+                // nothing has been appended, so this can be an ordinary (and possibly compressed) upload
+                new AtmosMethod(provider).upload(bucket, name, new ByteArrayInputStream(buffer, 0, count), size, metadata, listable);
+                offset = count;
+                count = 0;
+            }
+            else {
+                send(false);
+                await();
+            }
+        }
+        catch( IOException e ) {
+            abort();
+            throw e;
+        }
+        catch( CloudException e ) {
+            abort();
+            throw new IOException(e);
+        }
+        catch( InternalException e ) {
+            abort();
+            throw new IOException(e);
+        }
+        closed = true;
+        buffer = null;
+        spare = null;
+    }
+
+    /**
+     * Sends any buffered content and waits for everything written so far to reach Atmos. Flushing often results in
+     * many small requests, so it is best left to {@link #close()} where possible.
+     * @throws IOException an error occurred sending content to Atmos
+     */
+    @Override
+    public void flush() throws IOException {
+        check();
+        if( count > 0 ) {
+            send(false);
+        }
+        await();
+    }
+
+    /**
+     * @return the number of bytes written to the stream so far, whether or not they have reached Atmos
+     */
+    public long getBytesWritten() {
+        return offset + count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        check();
+        if( count == buffer.length ) {
+            send(pipelined);
+        }
+        buffer[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+        check();
+        if( off < 0 || len < 0 || off + len > b.length ) {
+            throw new IndexOutOfBoundsException();
+        }
+        while( len > 0 ) {
+            if( count == buffer.length ) {
+                send(pipelined);
+            }
+            int n = Math.min(len, buffer.length - count);
+
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void await() throws IOException {
+        Future<Void> f = inFlight;
+
+        if( f == null ) {
+            return;
+        }
+        try {
+            f.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while appending to " + bucket + "/" + name);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = (e.getCause() == null ? e : e.getCause());
+
+            error = (cause instanceof IOException ? (IOException)cause : new IOException(cause));
+            throw error;
+        }
+        finally {
+            if( f.isDone() ) {
+                inFlight = null;
+                spare = inFlightBuffer;
+                inFlightBuffer = null;
+            }
+        }
+    }
+
+    private void check() throws IOException {
+        if( closed ) {
+            throw new IOException("The upload of " + bucket + "/" + name + " has been closed");
+        }
+        if( error != null ) {
+            throw error;
+        }
+    }
+
+    private void create() throws IOException {
+        Storage<org.dasein.util.uom.storage.Byte> empty = new Storage<org.dasein.util.uom.storage.Byte>(0, Storage.BYTE);
+
+        try {
+            // an empty object is never compressed, so it can be appended to
+            new AtmosMethod(provider).upload(bucket, name, new ByteArrayInputStream(new byte[0]), empty, metadata, listable);
+            created = true;
+        }
+        catch( CloudException e ) {
+            throw (error = new IOException(e));
+        }
+        catch( InternalException e ) {
+            throw (error = new IOException(e));
+        }
+    }
+
+    private void send(boolean background) throws IOException {
+        if( !created ) {
+            create();
+        }
+        await();
+        final byte[] chunk = buffer;
+        final int len = count;
+        final long at = offset;
+
+        if( background ) {
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    new AtmosMethod(provider).update(bucket, name, chunk, 0, len, at);
+                    return null;
+                }
+            });
+
+            try {
+                provider.getAsyncExecutor().execute(task);
+                inFlight = task;
+                inFlightBuffer = chunk;
+                buffer = (spare == null ? new byte[chunk.length] : spare);
+                spare = null;
+                offset += len;
+                count = 0;
+                return;
+            }
+            catch( RejectedExecutionException e ) {
+                logger.debug("Asynchronous executor is saturated; appending to " + bucket + "/" + name + " inline");
+            }
+        }
+        try {
+            new AtmosMethod(provider).update(bucket, name, chunk, 0, len, at);
+        }
+        catch( CloudException e ) {
+            throw (error = new IOException(e));
+        }
+        catch( InternalException e ) {
+            throw (error = new IOException(e));
+        }
+        offset += len;
+        count = 0;
+    }
+}
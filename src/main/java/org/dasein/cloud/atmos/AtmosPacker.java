@@ -0,0 +1,619 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Packs many small logical objects into a few large container objects in a single Atmos directory, trading one
+ * signed request per object for one request per batch. Writes are buffered and flushed as a batch that is appended
+ * to the current container with a ranged update, while a record of each write (name, offset and length) is appended
+ * to the container's index object. Reads of packed entries are served with ranged reads against their container.
+ * <p>Deleting or overwriting an entry appends a tombstone to the index and leaves the old bytes in place; containers
+ * whose dead bytes pass a threshold are compacted by copying their live entries into the current container and
+ * deleting them. Indexes are replayed in container order when the packer is first used, so the pack directory
+ * should only be written through a single packer at a time.</p>
+ * <p>Packing is tuned through the following custom properties:</p>
+ * <ul>
+ *     <li><code>packBatchBytes</code> - buffered content that triggers a flush (default 1 MB)</li>
+ *     <li><code>packContainerBytes</code> - size at which a new container is started (default 64 MB)</li>
+ *     <li><code>packCompactPercent</code> - percentage of dead bytes that makes a container eligible for compaction
+ *     (default 50)</li>
+ * </ul>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosPacker {
+    static private final Logger logger = Atmos.getLogger(AtmosPacker.class);
+
+    static public final String DATA_SUFFIX  = ".dat";
+    static public final String INDEX_SUFFIX = ".idx";
+    static public final String PREFIX       = "pack-";
+
+    static private class Container {
+        private long                    deadBytes;
+        private long                    indexSize;
+        private long                    liveBytes;
+        private final String            name;
+        private final int               sequence;
+        private long                    size;
+        private final HashSet<String>   tombstones = new HashSet<String>();
+
+        public Container(int sequence) {
+            this.sequence = sequence;
+            this.name = PREFIX + String.format("%08d", sequence);
+        }
+    }
+
+    static private class Location {
+        private final Container container;
+        private final String    contentType;
+        private final int       length;
+        private final long      offset;
+
+        public Location(@Nonnull Container container, long offset, int length, @Nonnull String contentType) {
+            this.container = container;
+            this.offset = offset;
+            this.length = length;
+            this.contentType = contentType;
+        }
+    }
+
+    static private class Pending {
+        private final byte[] content;
+        private final String contentType;
+        private final String name;
+
+        public Pending(@Nonnull String name, @Nullable String contentType, @Nullable byte[] content) {
+            this.name = name;
+            this.contentType = contentType;
+            this.content = content;
+        }
+    }
+
+    static private @Nonnull String decode(@Nonnull String str) throws UnsupportedEncodingException {
+        return URLDecoder.decode(str, "utf-8");
+    }
+
+    static private @Nonnull String encode(@Nonnull String str) throws UnsupportedEncodingException {
+        return URLEncoder.encode(str, "utf-8");
+    }
+
+    private final int                               batchBytes;
+    private final int                               compactPercent;
+    private final long                              containerBytes;
+    private final TreeMap<Integer,Container>        containers = new TreeMap<Integer, Container>();
+    private Container                               current;
+    private final String                            directory;
+    private final HashMap<String,Location>          index      = new HashMap<String, Location>();
+    private int                                     lastSequence;
+    private boolean                                 loaded;
+    private final LinkedHashMap<String,Pending>     pending    = new LinkedHashMap<String, Pending>();
+    private int                                     pendingBytes;
+    private final Atmos                             provider;
+
+    public AtmosPacker(@Nonnull Atmos provider, @Nonnull String directory) {
+        this.provider = provider;
+        this.directory = (directory.endsWith("/") ? directory : directory + "/");
+        this.batchBytes = Math.max(1, provider.getIntProperty("packBatchBytes", 1024 * 1024));
+        this.containerBytes = Math.max(1, provider.getIntProperty("packContainerBytes", 64 * 1024 * 1024));
+        this.compactPercent = Math.max(1, Math.min(100, provider.getIntProperty("packCompactPercent", 50)));
+    }
+
+    /**
+     * Compacts every container other than the current one whose dead bytes have reached the compaction threshold.
+     * Writers are blocked while compaction runs.
+     * @return the number of containers compacted
+     * @throws CloudException an error occurred in Atmos reading or rewriting a container
+     * @throws InternalException an error occurred within Dasein Cloud reading or rewriting a container
+     */
+    public synchronized int compact() throws CloudException, InternalException {
+        load();
+        int count = 0;
+
+        for( Container c : new ArrayList<Container>(containers.values()) ) {
+            if( c != current && isCompactable(c) ) {
+                compact(c);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs {@link #compact()} on the provider's asynchronous executor.
+     * @return a future for the number of containers compacted
+     * @throws CloudException the executor is saturated
+     */
+    public @Nonnull Future<Integer> compactInBackground() throws CloudException {
+        FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return compact();
+            }
+        });
+
+        try {
+            provider.getAsyncExecutor().execute(task);
+        }
+        catch( RejectedExecutionException e ) {
+            throw new CloudException(CloudErrorType.CAPACITY, 0, "RejectedExecution", "Too many asynchronous Atmos requests are queued");
+        }
+        return task;
+    }
+
+    /**
+     * Deletes a packed entry by recording a tombstone. The space it occupied is reclaimed by compaction.
+     * @param name the name of the entry
+     * @return true if the entry existed
+     * @throws CloudException an error occurred in Atmos flushing the batch
+     * @throws InternalException an error occurred within Dasein Cloud flushing the batch
+     */
+    public synchronized boolean delete(@Nonnull String name) throws CloudException, InternalException {
+        load();
+        boolean exists = exists(name);
+
+        if( exists ) {
+            enqueue(new Pending(name, null, null));
+        }
+        return exists;
+    }
+
+    /**
+     * @param name the name of an entry
+     * @return true if the entry exists, whether flushed or still buffered
+     * @throws CloudException an error occurred in Atmos loading the index
+     * @throws InternalException an error occurred within Dasein Cloud loading the index
+     */
+    public synchronized boolean exists(@Nonnull String name) throws CloudException, InternalException {
+        load();
+        Pending p = pending.get(name);
+
+        if( p != null ) {
+            return (p.content != null);
+        }
+        return index.containsKey(name);
+    }
+
+    /**
+     * Writes any buffered entries and tombstones to Atmos.
+     * @throws CloudException an error occurred in Atmos writing the batch
+     * @throws InternalException an error occurred within Dasein Cloud writing the batch
+     */
+    public synchronized void flush() throws CloudException, InternalException {
+        if( pending.isEmpty() ) {
+            return;
+        }
+        AtmosMethod method = new AtmosMethod(provider);
+        Container c = roll(method);
+        ByteArrayOutputStream data = new ByteArrayOutputStream(pendingBytes);
+        StringBuilder records = new StringBuilder();
+
+        try {
+            for( Pending p : pending.values() ) {
+                if( p.content == null ) {
+                    records.append("D\t").append(encode(p.name)).append('\n');
+                }
+                else {
+                    records.append("P\t").append(c.size + data.size()).append('\t').append(p.content.length).append('\t');
+                    records.append(encode(p.contentType)).append('\t').append(encode(p.name)).append('\n');
+                    data.write(p.content, 0, p.content.length);
+                }
+            }
+            byte[] content = data.toByteArray();
+            byte[] idx = records.toString().getBytes("utf-8");
+
+            // content first, so that a failure in between leaves unreferenced bytes rather than dangling records
+            method.update(directory, c.name + DATA_SUFFIX, content, 0, content.length, c.size);
+            method.update(directory, c.name + INDEX_SUFFIX, idx, 0, idx.length, c.indexSize);
+            long offset = c.size;
+
+            for( Pending p : pending.values() ) {
+                if( p.content == null ) {
+                    remove(p.name);
+                    c.tombstones.add(p.name);
+                }
+                else {
+                    put(p.name, new Location(c, offset, p.content.length, p.contentType));
+                    offset += p.content.length;
+                }
+            }
+            c.size += content.length;
+            c.indexSize += idx.length;
+            pending.clear();
+            pendingBytes = 0;
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Reads a packed entry.
+     * @param name the name of the entry
+     * @return the content of the entry, or null if no such entry exists
+     * @throws CloudException an error occurred in Atmos reading the entry
+     * @throws InternalException an error occurred within Dasein Cloud reading the entry
+     */
+    public @Nullable InputStream get(@Nonnull String name) throws CloudException, InternalException {
+        CloudException failure = null;
+        Location previous = null;
+
+        while( true ) {
+            Location location;
+
+            synchronized( this ) {
+                load();
+                Pending p = pending.get(name);
+
+                if( p != null ) {
+                    return (p.content == null ? null : new ByteArrayInputStream(p.content));
+                }
+                location = index.get(name);
+            }
+            if( location == null ) {
+                return null;
+            }
+            if( location == previous ) {
+                throw failure;
+            }
+            if( location.length < 1 ) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            try {
+                return new AtmosMethod(provider).download(directory, location.container.name + DATA_SUFFIX, location.offset, location.length);
+            }
+            catch( CloudException e ) {
+                // compaction may have moved the entry and removed its old container since it was looked up
+                if( e.getHttpCode() != 404 ) {
+                    throw e;
+                }
+                failure = e;
+                previous = location;
+            }
+        }
+    }
+
+    /**
+     * @param name the name of an entry
+     * @return the content type recorded for the entry, or null if no such entry exists
+     * @throws CloudException an error occurred in Atmos loading the index
+     * @throws InternalException an error occurred within Dasein Cloud loading the index
+     */
+    public synchronized @Nullable String getContentType(@Nonnull String name) throws CloudException, InternalException {
+        load();
+        Pending p = pending.get(name);
+
+        if( p != null ) {
+            return p.contentType;
+        }
+        Location location = index.get(name);
+
+        return (location == null ? null : location.contentType);
+    }
+
+    /**
+     * @return the number of containers in the pack directory
+     * @throws CloudException an error occurred in Atmos loading the index
+     * @throws InternalException an error occurred within Dasein Cloud loading the index
+     */
+    public synchronized int getContainerCount() throws CloudException, InternalException {
+        load();
+        return containers.size();
+    }
+
+    public @Nonnull String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the names of all live entries, flushed or buffered
+     * @throws CloudException an error occurred in Atmos loading the index
+     * @throws InternalException an error occurred within Dasein Cloud loading the index
+     */
+    public synchronized @Nonnull Iterable<String> list() throws CloudException, InternalException {
+        load();
+        ArrayList<String> names = new ArrayList<String>(index.size() + pending.size());
+
+        for( String name : index.keySet() ) {
+            if( !pending.containsKey(name) ) {
+                names.add(name);
+            }
+        }
+        for( Pending p : pending.values() ) {
+            if( p.content != null ) {
+                names.add(p.name);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Buffers an entry for the next batch, flushing the batch if it has grown large enough. Writing an existing
+     * name replaces the entry.
+     * @param name the name of the entry
+     * @param contentType the content type of the entry
+     * @param content the content of the entry
+     * @throws CloudException an error occurred in Atmos flushing the batch
+     * @throws InternalException an error occurred within Dasein Cloud flushing the batch
+     */
+    public synchronized void put(@Nonnull String name, @Nonnull String contentType, @Nonnull byte[] content) throws CloudException, InternalException {
+        load();
+        enqueue(new Pending(name, contentType, content.clone()));
+    }
+
+    private void compact(@Nonnull Container c) throws CloudException, InternalException {
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Compacting " + directory + c.name + " (" + c.deadBytes + " of " + c.size + " bytes dead)");
+        }
+        flush();
+        ArrayList<Map.Entry<String,Location>> live = new ArrayList<Map.Entry<String, Location>>();
+
+        for( Map.Entry<String,Location> entry : index.entrySet() ) {
+            if( entry.getValue().container == c ) {
+                live.add(entry);
+            }
+        }
+        Collections.sort(live, new Comparator<Map.Entry<String, Location>>() {
+            @Override
+            public int compare(Map.Entry<String,Location> a, Map.Entry<String,Location> b) {
+                return (a.getValue().offset < b.getValue().offset ? -1 : (a.getValue().offset == b.getValue().offset ? 0 : 1));
+            }
+        });
+        AtmosMethod method = new AtmosMethod(provider);
+
+        if( !live.isEmpty() ) {
+            InputStream input = method.download(directory, c.name + DATA_SUFFIX);
+
+            try {
+                long position = 0L;
+
+                for( Map.Entry<String,Location> entry : live ) {
+                    Location location = entry.getValue();
+                    byte[] content = new byte[location.length];
+                    int read = 0;
+
+                    while( position < location.offset ) {
+                        long skipped = input.skip(location.offset - position);
+
+                        if( skipped < 1 ) {
+                            if( input.read() == -1 ) {
+                                throw new EOFException("Container " + c.name + " ended before offset " + location.offset);
+                            }
+                            skipped = 1;
+                        }
+                        position += skipped;
+                    }
+                    while( read < content.length ) {
+                        int count = input.read(content, read, content.length - read);
+
+                        if( count == -1 ) {
+                            throw new EOFException("Container " + c.name + " ended within entry " + entry.getKey());
+                        }
+                        read += count;
+                    }
+                    position += read;
+                    enqueue(new Pending(entry.getKey(), location.contentType, content));
+                }
+            }
+            catch( IOException e ) {
+                throw new InternalException(e);
+            }
+            finally {
+                try { input.close(); }
+                catch( IOException ignore ) { }
+            }
+        }
+        // tombstones may still be hiding entries in older containers, so they must survive the container
+        if( containers.firstKey() != c.sequence ) {
+            for( String name : c.tombstones ) {
+                if( !index.containsKey(name) && !pending.containsKey(name) ) {
+                    pending.put(name, new Pending(name, null, null));
+                }
+            }
+        }
+        flush();
+        method.delete(directory, c.name + INDEX_SUFFIX);
+        method.delete(directory, c.name + DATA_SUFFIX);
+        containers.remove(c.sequence);
+    }
+
+    private void enqueue(@Nonnull Pending p) throws CloudException, InternalException {
+        Pending previous = pending.remove(p.name);
+
+        if( previous != null && previous.content != null ) {
+            pendingBytes -= previous.content.length;
+        }
+        pending.put(p.name, p);
+        if( p.content != null ) {
+            pendingBytes += p.content.length;
+        }
+        if( pendingBytes >= batchBytes ) {
+            flush();
+        }
+    }
+
+    private boolean isCompactable(@Nonnull Container c) {
+        return (c.size > 0 && c.deadBytes * 100 >= c.size * compactPercent);
+    }
+
+    private void load() throws CloudException, InternalException {
+        if( loaded ) {
+            return;
+        }
+        AtmosMethod method = new AtmosMethod(provider);
+        HashMap<Integer,Long> sizes = new HashMap<Integer, Long>();
+        HashMap<Integer,Long> indexSizes = new HashMap<Integer, Long>();
+
+        try {
+            for( Blob blob : method.list(directory) ) {
+                String name = blob.getObjectName();
+                Storage<?> size = blob.getSize();
+
+                if( name == null || !name.startsWith(PREFIX) || (!name.endsWith(DATA_SUFFIX) && !name.endsWith(INDEX_SUFFIX)) ) {
+                    continue;
+                }
+                try {
+                    int sequence = Integer.parseInt(name.substring(PREFIX.length(), name.length() - DATA_SUFFIX.length()));
+
+                    (name.endsWith(DATA_SUFFIX) ? sizes : indexSizes).put(sequence, size == null ? 0L : size.longValue());
+                    lastSequence = Math.max(lastSequence, sequence);
+                }
+                catch( NumberFormatException ignore ) {
+                    // not one of ours
+                }
+            }
+        }
+        catch( CloudException e ) {
+            if( e.getHttpCode() != 404 ) {
+                throw e;
+            }
+        }
+        for( Integer sequence : new TreeMap<Integer, Long>(sizes).keySet() ) {
+            if( !indexSizes.containsKey(sequence) ) {
+                continue;
+            }
+            Container c = new Container(sequence);
+
+            c.size = sizes.get(sequence);
+            c.indexSize = indexSizes.get(sequence);
+            containers.put(sequence, c);
+            if( c.indexSize > 0 ) {
+                replay(method, c);
+            }
+        }
+        current = (containers.isEmpty() ? null : containers.lastEntry().getValue());
+        loaded = true;
+    }
+
+    private void put(@Nonnull String name, @Nonnull Location location) {
+        remove(name);
+        index.put(name, location);
+        location.container.liveBytes += location.length;
+    }
+
+    private void remove(@Nonnull String name) {
+        Location old = index.remove(name);
+
+        if( old != null ) {
+            old.container.liveBytes -= old.length;
+            old.container.deadBytes += old.length;
+        }
+    }
+
+    private void replay(@Nonnull AtmosMethod method, @Nonnull Container c) throws CloudException, InternalException {
+        InputStream input = method.download(directory, c.name + INDEX_SUFFIX, 0L, c.indexSize);
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, "utf-8"));
+            String line;
+
+            while( (line = reader.readLine()) != null ) {
+                String[] fields = line.split("\t");
+
+                if( fields.length == 2 && fields[0].equals("D") ) {
+                    String name = decode(fields[1]);
+
+                    remove(name);
+                    c.tombstones.add(name);
+                }
+                else if( fields.length == 5 && fields[0].equals("P") ) {
+                    long offset = Long.parseLong(fields[1]);
+                    int length = Integer.parseInt(fields[2]);
+
+                    if( offset + length <= c.size ) {
+                        put(decode(fields[4]), new Location(c, offset, length, decode(fields[3])));
+                    }
+                }
+                else if( line.length() > 0 ) {
+                    logger.warn("Ignoring malformed record in " + directory + c.name + INDEX_SUFFIX + ": " + line);
+                }
+            }
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        finally {
+            try { input.close(); }
+            catch( IOException ignore ) { }
+        }
+    }
+
+    private @Nonnull Container roll(@Nonnull AtmosMethod method) throws CloudException, InternalException {
+        load();
+        if( current != null && current.size > 0 && current.size + pendingBytes > containerBytes ) {
+            current = null;
+            // sealing a container is a natural point to reclaim space in the background
+            for( Container c : containers.values() ) {
+                if( isCompactable(c) ) {
+                    try {
+                        compactInBackground();
+                    }
+                    catch( CloudException e ) {
+                        logger.warn("Unable to start compaction of " + directory + ": " + e.getMessage());
+                    }
+                    break;
+                }
+            }
+        }
+        if( current == null ) {
+            Container c = new Container(++lastSequence);
+            Storage<org.dasein.util.uom.storage.Byte> empty = new Storage<org.dasein.util.uom.storage.Byte>(0, Storage.BYTE);
+
+            method.upload(directory, c.name + DATA_SUFFIX, new ByteArrayInputStream(new byte[0]), empty);
+            method.upload(directory, c.name + INDEX_SUFFIX, new ByteArrayInputStream(new byte[0]), empty);
+            containers.put(c.sequence, c);
+            current = c;
+        }
+        return current;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import javax.annotation.Nonnull;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Exposes a window of an underlying stream, skipping everything before the window's offset on the first read and
+ * reporting end of stream once the window's length has been read. Used where Atmos cannot serve a byte range
+ * directly, such as objects stored with client-side compression.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosRangeInputStream extends FilterInputStream {
+    private long remaining;
+    private long skip;
+
+    /**
+     * @param input the full stream
+     * @param offset the number of bytes to skip before the window
+     * @param length the length of the window, or a negative number to read to the end of the stream
+     */
+    public AtmosRangeInputStream(@Nonnull InputStream input, long offset, long length) {
+        super(input);
+        this.skip = Math.max(0L, offset);
+        this.remaining = (length < 0L ? Long.MAX_VALUE : length);
+    }
+
+    @Override
+    public int available() throws IOException {
+        if( skip > 0L ) {
+            return 0;
+        }
+        return (int)Math.min(remaining, in.available());
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int count = read(b, 0, 1);
+
+        return (count < 1 ? -1 : (b[0] & 0xFF));
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+        position();
+        if( remaining <= 0L ) {
+            return -1;
+        }
+        int count = in.read(b, off, (int)Math.min(len, remaining));
+
+        if( count > 0 ) {
+            remaining -= count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        position();
+        long skipped = in.skip(Math.min(n, remaining));
+
+        if( skipped > 0L ) {
+            remaining -= skipped;
+        }
+        return skipped;
+    }
+
+    private void position() throws IOException {
+        while( skip > 0L ) {
+            long skipped = in.skip(skip);
+
+            if( skipped < 1L ) {
+                if( in.read() == -1 ) {
+                    throw new EOFException("The stream ended before offset was reached");
+                }
+                skipped = 1L;
+            }
+            skip -= skipped;
+        }
+    }
+}
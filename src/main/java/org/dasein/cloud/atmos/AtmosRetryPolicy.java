@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a failed Atmos request should be tried again. Failures are classified by how much of the
+ * request may have been processed: requests that never reached Atmos or that Atmos refused as too busy may be
+ * replayed regardless of their semantics, while requests that may have been partially processed are only replayed
+ * when they are idempotent. Delays grow exponentially with full jitter, and no retry is attempted once the overall
+ * deadline for the call would be exceeded.
+ * <p>The policy is configured through the <code>retryMaxAttempts</code> (default 4), <code>retryBaseDelayMs</code>
+ * (default 200), <code>retryMaxDelayMs</code> (default 10000) and <code>retryDeadlineMs</code> (default 120000)
+ * custom properties.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosRetryPolicy {
+    /**
+     * The classes of failure that may be worth retrying.
+     */
+    public enum Failure {
+        /**
+         * No connection could be established, so the request never reached Atmos.
+         */
+        CONNECT,
+        /**
+         * Atmos refused the request because it is overloaded (503, 429 or Atmos code 1040).
+         */
+        SERVER_BUSY,
+        /**
+         * The connection failed or timed out after the request may have been sent.
+         */
+        NETWORK,
+        /**
+         * Atmos reported a transient internal error (500, 502, 504 or Atmos code 1001).
+         */
+        SERVER_ERROR
+    }
+
+    static private final Random random = new Random();
+
+    /**
+     * Classifies an I/O failure from executing a request.
+     * @param e the failure
+     * @return the class of failure, or null if it is not worth retrying
+     */
+    static public @Nullable Failure classify(@Nonnull IOException e) {
+        if( e instanceof ConnectException || e instanceof ConnectTimeoutException || e instanceof ConnectionPoolTimeoutException ) {
+            return Failure.CONNECT;
+        }
+        if( e instanceof SocketTimeoutException || e instanceof SocketException || e instanceof NoHttpResponseException ) {
+            return Failure.NETWORK;
+        }
+        return null;
+    }
+
+    /**
+     * Classifies an error response from Atmos.
+     * @param status the HTTP status code
+     * @param code the Atmos error code from the response body, if any
+     * @return the class of failure, or null if it is not worth retrying
+     */
+    static public @Nullable Failure classify(int status, @Nullable String code) {
+        if( status == HttpStatus.SC_SERVICE_UNAVAILABLE || status == 429 || AtmosException.SERVER_BUSY.equals(code) ) {
+            return Failure.SERVER_BUSY;
+        }
+        if( status == HttpStatus.SC_INTERNAL_SERVER_ERROR || status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_GATEWAY_TIMEOUT || AtmosException.INTERNAL_ERROR.equals(code) ) {
+            return Failure.SERVER_ERROR;
+        }
+        return null;
+    }
+
+    /**
+     * Indicates whether repeating a request has the same effect as issuing it once. Reads, deletes and metadata
+     * updates are idempotent; creates, appends and renames are not.
+     * @param method the request
+     * @return true if the request is idempotent
+     */
+    static public boolean isIdempotent(@Nonnull HttpRequestBase method) {
+        String verb = method.getMethod();
+
+        if( verb.equals("GET") || verb.equals("HEAD") || verb.equals("DELETE") || verb.equals("OPTIONS") ) {
+            return true;
+        }
+        String query = method.getURI().getRawQuery();
+
+        return (verb.equals("POST") && query != null && query.startsWith("metadata"));
+    }
+
+    /**
+     * Indicates whether a request can physically be sent again, which is not the case once a streamed body has
+     * been consumed.
+     * @param method the request
+     * @return true if the request may be sent again
+     */
+    static public boolean isReplayable(@Nonnull HttpRequestBase method) {
+        if( method instanceof HttpEntityEnclosingRequest ) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest)method).getEntity();
+
+            return (entity == null || entity.isRepeatable());
+        }
+        return true;
+    }
+
+    /**
+     * Waits before the next attempt.
+     * @param delay the time to wait in milliseconds
+     * @throws InternalException the calling thread was interrupted
+     */
+    static public void pause(@Nonnegative long delay) throws InternalException {
+        try {
+            Thread.sleep(delay);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+    }
+
+    private final long baseDelay;
+    private final long deadline;
+    private final int  maxAttempts;
+    private final long maxDelay;
+
+    public AtmosRetryPolicy(@Nonnull Atmos provider) {
+        maxAttempts = Math.max(1, provider.getIntProperty("retryMaxAttempts", 4));
+        baseDelay = Math.max(1, provider.getIntProperty("retryBaseDelayMs", 200));
+        maxDelay = Math.max(baseDelay, provider.getIntProperty("retryMaxDelayMs", 10000));
+        deadline = Math.max(0, provider.getIntProperty("retryDeadlineMs", 120000));
+    }
+
+    /**
+     * @return the maximum number of attempts, including the first, for any single call
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Determines whether a failed attempt should be retried and, if so, how long to wait first.
+     * @param failure the class of the failure, or null if it was not classified as transient
+     * @param idempotent true if the request is idempotent
+     * @param attempt the number of attempts made so far
+     * @param startedAt the {@link System#nanoTime()} at which the first attempt started
+     * @return the delay in milliseconds before the next attempt, or -1 if the call should fail now
+     */
+    public long getRetryDelay(@Nullable Failure failure, boolean idempotent, @Nonnegative int attempt, long startedAt) {
+        if( failure == null || attempt >= maxAttempts ) {
+            return -1L;
+        }
+        if( !idempotent && (failure.equals(Failure.NETWORK) || failure.equals(Failure.SERVER_ERROR)) ) {
+            return -1L;
+        }
+        long ceiling = (attempt > 20 ? maxDelay : Math.min(maxDelay, baseDelay << (attempt - 1)));
+        long delay;
+
+        synchronized( random ) {
+            delay = (long)(random.nextDouble() * ceiling);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+        if( elapsed + delay >= deadline ) {
+            return -1L;
+        }
+        return delay;
+    }
+
+    /**
+     * Convenience for deciding on a retry of a specific request.
+     * @param method the failed request
+     * @param failure the class of the failure, or null if it was not classified as transient
+     * @param attempt the number of attempts made so far
+     * @param startedAt the {@link System#nanoTime()} at which the first attempt started
+     * @return the delay in milliseconds before the next attempt, or -1 if the call should fail now
+     */
+    public long getRetryDelay(@Nonnull HttpRequestBase method, @Nullable Failure failure, @Nonnegative int attempt, long startedAt) {
+        if( !isReplayable(method) ) {
+            return -1L;
+        }
+        return getRetryDelay(failure, isIdempotent(method), attempt, startedAt);
+    }
+}
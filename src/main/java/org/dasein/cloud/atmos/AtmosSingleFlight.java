@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical read requests so that only one of them goes to Atmos. The first caller for a given
+ * key performs the request while later callers arriving before it finishes wait for and share its outcome, whether
+ * a result or an error. Nothing is cached once the request completes, so callers never see stale data beyond the
+ * lifetime of a single in-flight request.
+ * <p>Only idempotent reads whose results are immutable (or copied per caller) should be coalesced.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosSingleFlight {
+    /**
+     * A read operation that may be shared among concurrent callers.
+     * @param <T> the type of the result
+     */
+    public interface Call<T> {
+        public @Nullable T call() throws CloudException, InternalException;
+    }
+
+    static private class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Exception   error;
+        private volatile Object      result;
+    }
+
+    private final AtomicLong                          coalesced = new AtomicLong(0L);
+    private final ConcurrentHashMap<String,Flight>    flights   = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong                          issued    = new AtomicLong(0L);
+
+    public AtmosSingleFlight() { }
+
+    /**
+     * Executes the call unless an identical call is already in flight, in which case this waits for and returns
+     * the outcome of that call.
+     * @param key a key identifying the request, which must capture everything that affects its result
+     * @param call the request to execute
+     * @param <T> the type of the result
+     * @return the result of the call (which may be shared with other callers)
+     * @throws CloudException the shared call failed in Atmos
+     * @throws InternalException the shared call failed within Dasein Cloud or this thread was interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable <T> T execute(@Nonnull String key, @Nonnull Call<T> call) throws CloudException, InternalException {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(key, flight);
+
+        if( existing != null ) {
+            coalesced.incrementAndGet();
+            try {
+                existing.done.await();
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+            if( existing.error instanceof CloudException ) {
+                throw (CloudException)existing.error;
+            }
+            else if( existing.error instanceof InternalException ) {
+                throw (InternalException)existing.error;
+            }
+            else if( existing.error != null ) {
+                throw (RuntimeException)existing.error;
+            }
+            return (T)existing.result;
+        }
+        issued.incrementAndGet();
+        try {
+            T result = call.call();
+
+            flight.result = result;
+            return result;
+        }
+        catch( CloudException e ) {
+            flight.error = e;
+            throw e;
+        }
+        catch( InternalException e ) {
+            flight.error = e;
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            flight.error = e;
+            throw e;
+        }
+        catch( Error e ) {
+            flight.error = new RuntimeException(e);
+            throw e;
+        }
+        finally {
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * @return the number of calls that were satisfied by sharing another caller's request
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of calls that actually went to Atmos
+     */
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    /**
+     * @return the number of distinct requests currently in flight
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,735 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A write-behind queue for uploads and deletes. Each operation is made durable in a local spool directory and
+ * acknowledged at once; a bounded pool of threads then applies the spooled operations to Atmos. Operations on the
+ * same path are applied strictly in the order they were spooled, while different paths proceed in parallel.
+ * Transient failures are retried with a capped exponential backoff for as long as it takes; operations Atmos rejects
+ * outright are moved to a <code>failed</code> subdirectory for inspection. Operations still in the spool when the
+ * process stops are picked up again the next time a spool is opened on the same directory.
+ * <p>Reads of paths with spooled operations should consult {@link #getPending(String, String)} first, which makes
+ * this client read-your-writes consistent even before the spool has drained. Operations the spool cannot answer
+ * itself, such as listings, metadata changes, moves, renames and streaming uploads, should instead call
+ * {@link #awaitApplied(String, String)} for the paths they touch so that they never act on a namespace Atmos has
+ * not caught up with.</p>
+ * <p>The spool is configured through the following custom properties:</p>
+ * <ul>
+ *     <li><code>spoolDirectory</code> - the directory holding spooled operations; write-behind is off unless this is
+ *     set</li>
+ *     <li><code>spoolThreads</code> - the number of operations applied concurrently (default 4)</li>
+ *     <li><code>spoolSync</code> - <code>false</code> to skip forcing spooled content to disk before acknowledging
+ *     (default true)</li>
+ *     <li><code>spoolRetryMaxSeconds</code> - the longest pause between retries of an operation (default 60)</li>
+ *     <li><code>spoolAwaitSeconds</code> - how long an operation waits for spooled changes to the paths it touches
+ *     to reach Atmos (default 60)</li>
+ * </ul>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosSpool {
+    static private final Logger logger = Atmos.getLogger(AtmosSpool.class);
+
+    static private final long   BACKLOG_DELAY   = 1000L;
+    static private final String DATA_SUFFIX     = ".dat";
+    static private final String FAILED          = "failed";
+    static private final String MANIFEST_SUFFIX = ".op";
+    static private final String TEMP_SUFFIX     = ".tmp";
+
+    /**
+     * A spooled operation that has not yet been applied to Atmos.
+     */
+    static public class Pending {
+        private final String              bucket;
+        private final long                created;
+        private final File                data;
+        private final Map<String,String>  listable;
+        private final File                manifest;
+        private final Map<String,String>  metadata;
+        private final String              name;
+        private final long                sequence;
+        private final long                size;
+
+        private Pending(long sequence, long created, @Nonnull String bucket, @Nonnull String name, @Nullable File data, long size, @Nonnull Map<String,String> metadata, @Nonnull Map<String,String> listable, @Nonnull File manifest) {
+            this.sequence = sequence;
+            this.created = created;
+            this.bucket = bucket;
+            this.name = name;
+            this.data = data;
+            this.size = size;
+            this.metadata = metadata;
+            this.listable = listable;
+            this.manifest = manifest;
+        }
+
+        public @Nonnull String getBucket() {
+            return bucket;
+        }
+
+        /**
+         * @return when the operation was spooled, in milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        /**
+         * @return the size of the spooled content, or 0 for a delete
+         */
+        public @Nonnegative long getSize() {
+            return size;
+        }
+
+        /**
+         * @return true if the operation deletes the object rather than writing it
+         */
+        public boolean isDelete() {
+            return (data == null);
+        }
+
+        /**
+         * Opens the spooled content of an upload.
+         * @return the spooled content, or null if the operation has been applied (and its content removed) since it
+         * was looked up
+         */
+        public @Nullable InputStream open() {
+            if( data == null ) {
+                return null;
+            }
+            try {
+                return new FileInputStream(data);
+            }
+            catch( FileNotFoundException e ) {
+                return null;
+            }
+        }
+    }
+
+    static private class PathQueue {
+        private boolean                  active;
+        private final ArrayDeque<Pending> operations = new ArrayDeque<Pending>();
+    }
+
+    static private @Nonnull String toPath(@Nonnull String bucket, @Nonnull String name) {
+        while( bucket.startsWith("/") ) {
+            bucket = bucket.substring(1);
+        }
+        while( bucket.endsWith("/") ) {
+            bucket = bucket.substring(0, bucket.length()-1);
+        }
+        while( name.startsWith("/") ) {
+            name = name.substring(1);
+        }
+        return (bucket.length() < 1 ? "/" + name : "/" + bucket + "/" + name);
+    }
+
+    private final AtomicLong                 applied   = new AtomicLong(0L);
+    private final HashMap<Long,Integer>      attempts  = new HashMap<Long, Integer>();
+    private final long                       awaitMs;
+    private final File                       directory;
+    private final AtmosThreadPool            executor;
+    private final AtomicLong                 failed    = new AtomicLong(0L);
+    private int                              pending;
+    private final Atmos                      provider;
+    private final HashMap<String,PathQueue>  queues    = new HashMap<String, PathQueue>();
+    private final long                       retryMaxMs;
+    private final AtomicLong                 retries   = new AtomicLong(0L);
+    private final AtomicLong                 sequence;
+    private final boolean                    sync;
+
+    public AtmosSpool(@Nonnull Atmos provider, @Nonnull File directory, @Nonnegative int threads, boolean sync, @Nonnegative long retryMaxMs, @Nonnegative long awaitMs) {
+        this.provider = provider;
+        this.directory = directory;
+        this.sync = sync;
+        this.retryMaxMs = Math.max(1L, retryMaxMs);
+        this.awaitMs = awaitMs;
+        this.executor = new AtmosThreadPool("spool", threads, 10000, AtmosThreadPool.Rejection.ABORT);
+        this.sequence = new AtomicLong(System.currentTimeMillis() * 1000L);
+        if( !directory.isDirectory() && !directory.mkdirs() ) {
+            logger.warn("Unable to create spool directory " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Waits for the spooled operations on an object, or on everything below a directory, to be applied to Atmos (or
+     * set aside as failed).
+     * @param bucket the directory holding the object, or the target directory
+     * @param name the name of the object, or null to wait for everything below the directory
+     * @throws CloudException the operations did not reach Atmos within the configured time
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    public synchronized void awaitApplied(@Nonnull String bucket, @Nullable String name) throws CloudException, InternalException {
+        String path = toPath(bucket, name == null ? "" : name);
+        long until = System.currentTimeMillis() + awaitMs;
+
+        while( isPending(path, name == null) ) {
+            long remaining = until - System.currentTimeMillis();
+
+            if( remaining <= 0L ) {
+                throw new CloudException(CloudErrorType.GENERAL, 0, "SpoolPending", "Spooled operations on " + path + " have not reached Atmos yet");
+            }
+            try {
+                wait(remaining);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
+            }
+        }
+    }
+
+    /**
+     * Waits for every operation spooled so far to be applied to Atmos (or set aside as failed).
+     * @param timeout the longest time to wait, in milliseconds
+     * @return true if the spool drained, false if the time ran out first
+     * @throws InterruptedException the calling thread was interrupted while waiting
+     */
+    public synchronized boolean awaitDrained(@Nonnegative long timeout) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeout;
+
+        while( pending > 0 ) {
+            long remaining = until - System.currentTimeMillis();
+
+            if( remaining <= 0L ) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops applying operations. Anything still spooled stays on disk and is recovered by the next spool opened on
+     * the same directory.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Spools the deletion of an object.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @throws InternalException the operation could not be written to the spool
+     */
+    public void delete(@Nonnull String bucket, @Nonnull String name) throws InternalException {
+        long seq = sequence.incrementAndGet();
+        File manifest = new File(directory, toName(seq) + MANIFEST_SUFFIX);
+
+        writeManifest(manifest, bucket, name, null, null, null);
+        enqueue(new Pending(seq, System.currentTimeMillis(), bucket, name, null, 0L, new HashMap<String, String>(), new HashMap<String, String>(), manifest));
+    }
+
+    /**
+     * @return the number of operations applied to Atmos
+     */
+    public long getAppliedCount() {
+        return applied.get();
+    }
+
+    public @Nonnull File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of operations Atmos rejected, which were moved to the <code>failed</code> subdirectory
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of operations waiting to be applied
+     */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * @return the number of times an operation was put back to be retried later
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Looks up the most recent operation spooled for a path that has not yet been applied. Reads should prefer this
+     * to Atmos when it exists.
+     * @param bucket the directory holding the object
+     * @param name the name of the object
+     * @return the most recent pending operation for the path, or null if Atmos is up to date
+     */
+    public synchronized @Nullable Pending getPending(@Nonnull String bucket, @Nonnull String name) {
+        PathQueue queue = queues.get(toPath(bucket, name));
+
+        return (queue == null ? null : queue.operations.peekLast());
+    }
+
+    /**
+     * Spools the upload of a file. The file is copied into the spool, so the caller may change or delete it as soon as
+     * this returns.
+     * @param file the file to upload
+     * @param bucket the directory into which the file is uploaded
+     * @param name the name of the new object
+     * @param metadata any non-listable user metadata to attach
+     * @param listable any listable user metadata to attach
+     * @return the pending operation
+     * @throws InternalException the file could not be written to the spool
+     */
+    public @Nonnull Pending upload(@Nonnull File file, @Nonnull String bucket, @Nonnull String name, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws InternalException {
+        long seq = sequence.incrementAndGet();
+        String base = toName(seq);
+        File data = new File(directory, base + DATA_SUFFIX);
+        File manifest = new File(directory, base + MANIFEST_SUFFIX);
+
+        try {
+            copy(file, data);
+        }
+        catch( IOException e ) {
+            delete(data);
+            throw new InternalException(e);
+        }
+        writeManifest(manifest, bucket, name, data, metadata, listable);
+        Pending p = new Pending(seq, System.currentTimeMillis(), bucket, name, data, data.length(), copy(metadata), copy(listable), manifest);
+
+        enqueue(p);
+        return p;
+    }
+
+    private void apply(@Nonnull Pending p) throws CloudException, InternalException {
+        AtmosMethod method = new AtmosMethod(provider);
+
+        if( p.isDelete() ) {
+            try {
+                method.delete(p.bucket, p.name);
+            }
+            catch( CloudException e ) {
+                if( e.getHttpCode() != 404 ) {
+                    throw e;
+                }
+            }
+            return;
+        }
+        try {
+            write(method, p);
+        }
+        catch( CloudException e ) {
+            if( !AtmosException.OBJECT_EXISTS.equals(e.getProviderCode()) ) {
+                throw e;
+            }
+            // a later write to an existing path replaces it
+            method.delete(p.bucket, p.name);
+            write(method, p);
+        }
+    }
+
+    private @Nonnull Map<String,String> copy(@Nullable Map<String,String> map) {
+        return (map == null ? new HashMap<String, String>() : new LinkedHashMap<String, String>(map));
+    }
+
+    private void copy(@Nonnull File from, @Nonnull File to) throws IOException {
+        FileInputStream input = new FileInputStream(from);
+
+        try {
+            FileOutputStream output = new FileOutputStream(to);
+
+            try {
+                FileChannel source = input.getChannel();
+                FileChannel target = output.getChannel();
+                long size = source.size();
+                long position = 0L;
+
+                while( position < size ) {
+                    long count = source.transferTo(position, size - position, target);
+
+                    if( count < 1 ) {
+                        throw new IOException(from + " ended at " + position + " of " + size + " bytes");
+                    }
+                    position += count;
+                }
+                if( sync ) {
+                    output.getFD().sync();
+                }
+            }
+            finally {
+                output.close();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private void delete(@Nullable File file) {
+        if( file != null && file.exists() && !file.delete() ) {
+            logger.warn("Unable to delete spool file " + file);
+        }
+    }
+
+    private void drain(@Nonnull String path) {
+        while( true ) {
+            Pending p;
+
+            synchronized( this ) {
+                PathQueue queue = queues.get(path);
+
+                p = (queue == null ? null : queue.operations.peekFirst());
+                if( p == null ) {
+                    // only the drainer retires a queue, so a later enqueue always starts a fresh drainer
+                    if( queue != null ) {
+                        queue.active = false;
+                        queues.remove(path);
+                    }
+                    return;
+                }
+            }
+            try {
+                apply(p);
+                applied.incrementAndGet();
+                finish(path, p, false);
+            }
+            catch( CloudException e ) {
+                int status = e.getHttpCode();
+
+                if( status >= 400 && status < 500 && status != 408 && status != 429 ) {
+                    logger.error("Atmos rejected spooled " + (p.isDelete() ? "delete" : "upload") + " of " + path + ": " + e.getMessage());
+                    failed.incrementAndGet();
+                    finish(path, p, true);
+                    continue;
+                }
+                retry(path, p, e);
+                return;
+            }
+            catch( InternalException e ) {
+                retry(path, p, e);
+                return;
+            }
+            catch( RuntimeException e ) {
+                retry(path, p, e);
+                return;
+            }
+        }
+    }
+
+    private synchronized void enqueue(@Nonnull Pending p) {
+        String path = toPath(p.bucket, p.name);
+        PathQueue queue = queues.get(path);
+
+        if( queue == null ) {
+            queue = new PathQueue();
+            queues.put(path, queue);
+        }
+        queue.operations.addLast(p);
+        pending++;
+        if( !queue.active ) {
+            queue.active = true;
+            schedule(path, 0L);
+        }
+    }
+
+    private void finish(@Nonnull String path, @Nonnull Pending p, boolean failed) {
+        synchronized( this ) {
+            PathQueue queue = queues.get(path);
+
+            if( queue != null ) {
+                queue.operations.pollFirst();
+            }
+            attempts.remove(p.sequence);
+            pending--;
+            notifyAll();
+        }
+        if( failed ) {
+            File dir = new File(directory, FAILED);
+
+            if( !dir.isDirectory() && !dir.mkdirs() ) {
+                logger.warn("Unable to create " + dir);
+            }
+            if( p.data != null && !p.data.renameTo(new File(dir, p.data.getName())) ) {
+                delete(p.data);
+            }
+            if( !p.manifest.renameTo(new File(dir, p.manifest.getName())) ) {
+                delete(p.manifest);
+            }
+        }
+        else {
+            delete(p.manifest);
+            delete(p.data);
+        }
+    }
+
+    private boolean isPending(@Nonnull String path, boolean below) {
+        if( !below ) {
+            PathQueue queue = queues.get(path);
+
+            return (queue != null && !queue.operations.isEmpty());
+        }
+        for( Map.Entry<String,PathQueue> entry : queues.entrySet() ) {
+            if( entry.getKey().startsWith(path) && !entry.getValue().operations.isEmpty() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recover() {
+        File[] files = directory.listFiles();
+
+        if( files == null ) {
+            return;
+        }
+        Arrays.sort(files);
+        int count = 0;
+
+        for( File file : files ) {
+            String name = file.getName();
+
+            if( !file.isFile() ) {
+                continue;
+            }
+            if( name.endsWith(TEMP_SUFFIX) ) {
+                delete(file);
+                continue;
+            }
+            if( name.endsWith(DATA_SUFFIX) ) {
+                if( !new File(directory, name.substring(0, name.length() - DATA_SUFFIX.length()) + MANIFEST_SUFFIX).exists() ) {
+                    // spooled content that was never acknowledged
+                    delete(file);
+                }
+                continue;
+            }
+            if( !name.endsWith(MANIFEST_SUFFIX) ) {
+                continue;
+            }
+            try {
+                long seq = Long.parseLong(name.substring(0, name.length() - MANIFEST_SUFFIX.length()));
+                Properties p = new Properties();
+                FileInputStream input = new FileInputStream(file);
+
+                try {
+                    p.load(input);
+                }
+                finally {
+                    input.close();
+                }
+                HashMap<String,String> metadata = new HashMap<String, String>();
+                HashMap<String,String> listable = new HashMap<String, String>();
+
+                for( String key : p.stringPropertyNames() ) {
+                    if( key.startsWith("meta.") ) {
+                        metadata.put(key.substring(5), p.getProperty(key));
+                    }
+                    else if( key.startsWith("listable.") ) {
+                        listable.put(key.substring(9), p.getProperty(key));
+                    }
+                }
+                String data = p.getProperty("data");
+                File content = (data == null ? null : new File(directory, data));
+
+                if( content != null && !content.exists() ) {
+                    logger.error("Discarding spooled upload " + file + " whose content is missing");
+                    delete(file);
+                    continue;
+                }
+                while( true ) {
+                    long current = sequence.get();
+
+                    if( current >= seq || sequence.compareAndSet(current, seq) ) {
+                        break;
+                    }
+                }
+                enqueue(new Pending(seq, file.lastModified(), p.getProperty("bucket"), p.getProperty("name"), content, content == null ? 0L : content.length(), metadata, listable, file));
+                count++;
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring unexpected file in spool: " + file);
+            }
+            catch( IOException e ) {
+                logger.error("Unable to read spooled operation " + file + ": " + e.getMessage());
+            }
+        }
+        if( count > 0 ) {
+            logger.info("Recovered " + count + " spooled operations from " + directory);
+        }
+    }
+
+    private void retry(@Nonnull String path, @Nonnull Pending p, @Nonnull Exception cause) {
+        int attempt;
+
+        synchronized( this ) {
+            Integer count = attempts.get(p.sequence);
+
+            attempt = (count == null ? 1 : count + 1);
+            attempts.put(p.sequence, attempt);
+        }
+        long delay = Math.min(retryMaxMs, 500L << Math.min(16, attempt - 1));
+
+        retries.incrementAndGet();
+        logger.warn("Retrying spooled operation on " + path + " in " + delay + "ms: " + cause.getMessage());
+        schedule(path, delay);
+    }
+
+    private void schedule(@Nonnull final String path, long delay) {
+        if( delay < 1L ) {
+            if( submit(path) ) {
+                return;
+            }
+            if( executor.isShutdown() ) {
+                logger.warn("Spool for " + directory + " is closed; " + path + " will be retried on restart");
+                return;
+            }
+            // never apply an operation on the calling thread; wait for the pool to catch up instead
+            delay = BACKLOG_DELAY;
+        }
+        try {
+            provider.getDeadlineScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    schedule(path, 0L);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch( RejectedExecutionException e ) {
+            logger.warn("Spool for " + directory + " is closed; " + path + " will be retried on restart");
+        }
+    }
+
+    private boolean submit(@Nonnull final String path) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(path);
+                }
+            });
+            return true;
+        }
+        catch( RejectedExecutionException e ) {
+            return false;
+        }
+    }
+
+    private @Nonnull String toName(long seq) {
+        return String.format("%019d", seq);
+    }
+
+    private void write(@Nonnull AtmosMethod method, @Nonnull Pending p) throws CloudException, InternalException {
+        AtmosDeduplicator deduplicator = provider.getDeduplicator();
+
+        if( deduplicator != null && p.metadata.isEmpty() && p.listable.isEmpty() ) {
+            deduplicator.upload(p.data, p.bucket, p.name);
+            return;
+        }
+        InputStream input;
+
+        try {
+            input = new FileInputStream(p.data);
+        }
+        catch( FileNotFoundException e ) {
+            throw new InternalException(e);
+        }
+        try {
+            method.upload(p.bucket, p.name, input, new Storage<org.dasein.util.uom.storage.Byte>(p.size, Storage.BYTE), p.metadata, p.listable);
+        }
+        finally {
+            try {
+                input.close();
+            }
+            catch( IOException ignore ) {
+                // an attempt that failed before sending the body never consumed the stream
+            }
+        }
+    }
+
+    private void writeManifest(@Nonnull File manifest, @Nonnull String bucket, @Nonnull String name, @Nullable File data, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws InternalException {
+        Properties p = new Properties();
+        File temp = new File(manifest.getPath() + TEMP_SUFFIX);
+
+        p.setProperty("bucket", bucket);
+        p.setProperty("name", name);
+        if( data != null ) {
+            p.setProperty("data", data.getName());
+        }
+        if( metadata != null ) {
+            for( Map.Entry<String,String> entry : metadata.entrySet() ) {
+                p.setProperty("meta." + entry.getKey(), entry.getValue() == null ? "" : entry.getValue());
+            }
+        }
+        if( listable != null ) {
+            for( Map.Entry<String,String> entry : listable.entrySet() ) {
+                p.setProperty("listable." + entry.getKey(), entry.getValue() == null ? "" : entry.getValue());
+            }
+        }
+        try {
+            FileOutputStream output = new FileOutputStream(temp);
+
+            try {
+                p.store(output, null);
+                if( sync ) {
+                    output.getFD().sync();
+                }
+            }
+            finally {
+                output.close();
+            }
+            // the manifest appearing is what makes the operation durable, so it must appear whole
+            if( !temp.renameTo(manifest) ) {
+                throw new IOException("Unable to rename " + temp + " to " + manifest);
+            }
+        }
+        catch( IOException e ) {
+            delete(temp);
+            delete(data);
+            throw new InternalException(e);
+        }
+    }
+}
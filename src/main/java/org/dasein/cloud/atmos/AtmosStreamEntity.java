@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A one-shot request entity that streams its content from an {@link InputStream} through a buffer borrowed from the
+ * provider's {@link AtmosBufferPool}, instead of the small buffer HttpClient's own stream entity allocates for every
+ * request. The stream is closed once it has been written.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosStreamEntity extends AbstractHttpEntity {
+    private final InputStream     content;
+    private final long            length;
+    private final AtmosBufferPool pool;
+
+    /**
+     * @param content the content to send
+     * @param length the number of bytes to send, or a negative number to send everything up to the end of the stream
+     * @param contentType the content type of the entity
+     * @param pool the pool from which the transfer buffer is borrowed
+     */
+    public AtmosStreamEntity(@Nonnull InputStream content, long length, @Nonnull ContentType contentType, @Nonnull AtmosBufferPool pool) {
+        this.content = content;
+        this.length = length;
+        this.pool = pool;
+        setContentType(contentType.toString());
+    }
+
+    @Override
+    public @Nonnull InputStream getContent() {
+        return content;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(@Nonnull OutputStream output) throws IOException {
+        byte[] buffer = pool.acquire();
+
+        try {
+            int count;
+
+            if( length < 0 ) {
+                while( (count = content.read(buffer)) != -1 ) {
+                    output.write(buffer, 0, count);
+                }
+            }
+            else {
+                long remaining = length;
+
+                while( remaining > 0 ) {
+                    count = content.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                    if( count == -1 ) {
+                        break;
+                    }
+                    output.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+        }
+        finally {
+            pool.release(buffer);
+            content.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.dasein.util.NamedThreadFactory;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size, named thread pool with a bounded queue that keeps track of how long work waits to run. Pools are
+ * owned by the {@link Atmos} provider and shared by every operation against that cloud, so bursts of work queue up
+ * (and are eventually rejected) rather than spawning new threads.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosThreadPool extends ThreadPoolExecutor {
+    /**
+     * What happens to work submitted when every thread is busy and the queue is full.
+     */
+    public enum Rejection {
+        /**
+         * Fail the submission with a {@link RejectedExecutionException}.
+         */
+        ABORT,
+        /**
+         * Run the work on the submitting thread, slowing the submitter down to the rate the pool can sustain.
+         */
+        CALLER_RUNS;
+
+        static public @Nonnull Rejection parse(@Nonnull String value) {
+            for( Rejection r : values() ) {
+                if( r.name().replace("_", "").equalsIgnoreCase(value.replace("_", "").replace("-", "")) ) {
+                    return r;
+                }
+            }
+            return ABORT;
+        }
+    }
+
+    static private class TimedTask implements Runnable {
+        private final boolean  offered;
+        private final long     queuedAt = System.nanoTime();
+        private final Runnable task;
+
+        public TimedTask(@Nonnull Runnable task, boolean offered) {
+            this.task = task;
+            this.offered = offered;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private final AtomicLong maxWaitNs   = new AtomicLong(0L);
+    private final String     name;
+    private final AtomicLong rejected    = new AtomicLong(0L);
+    private final AtomicLong started     = new AtomicLong(0L);
+    private final AtomicLong totalWaitNs = new AtomicLong(0L);
+
+    public AtmosThreadPool(@Nonnull String name, @Nonnegative int threads, @Nonnegative int queueSize, @Nonnull final Rejection rejection) {
+        super(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new NamedThreadFactory(AtmosThreadPool.class, name));
+        this.name = name;
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                rejected.incrementAndGet();
+                if( rejection.equals(Rejection.CALLER_RUNS) && !executor.isShutdown() && !(r instanceof TimedTask && ((TimedTask)r).offered) ) {
+                    r.run();
+                }
+                else {
+                    throw new RejectedExecutionException("The " + AtmosThreadPool.this.name + " pool is saturated");
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if( r instanceof TimedTask ) {
+            long wait = System.nanoTime() - ((TimedTask)r).queuedAt;
+            long max = maxWaitNs.get();
+
+            started.incrementAndGet();
+            totalWaitNs.addAndGet(wait);
+            while( wait > max && !maxWaitNs.compareAndSet(max, wait) ) {
+                max = maxWaitNs.get();
+            }
+        }
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable command) {
+        super.execute(new TimedTask(command, false));
+    }
+
+    /**
+     * Hands work to the pool only if a thread or queue slot is free, whatever the pool's {@link Rejection} policy.
+     * Work offered to a saturated pool is never run on the submitting thread, so callers that keep their own backlog
+     * can leave it there for their running tasks to pick up.
+     * @param command the work to run
+     * @return true if the pool accepted the work, false if it is saturated or shut down
+     */
+    public boolean offer(@Nonnull Runnable command) {
+        try {
+            super.execute(new TimedTask(command, true));
+            return true;
+        }
+        catch( RejectedExecutionException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the mean time tasks spent queued before starting, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = started.get();
+
+        return (count < 1 ? 0.0 : (totalWaitNs.get() / (double)count) / 1000000.0);
+    }
+
+    /**
+     * @return the longest time any task spent queued before starting, in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNs.get() / 1000000.0;
+    }
+
+    public @Nonnull String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return the number of submissions that found the pool saturated, whether they were then rejected or run on
+     * the submitting thread
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return name + "[active=" + getActiveCount() + ",queued=" + getQueueDepth() + ",rejected=" + getRejectedCount() + ",avgWaitMs=" + getAverageWaitMillis() + "]";
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side admission control for a single Atmos endpoint. Each request must first obtain a token from the
+ * rate limit for its {@link AtmosOperation} class and then a slot in the endpoint's concurrency window. The window
+ * follows an AIMD scheme: it grows by roughly one slot per window's worth of successful requests and is halved
+ * when Atmos signals overload (5xx responses, throttling or I/O failures), at most once per backoff interval.
+ * Blocking callers wait in {@link #acquire(AtmosOperation)}; non-blocking callers register an {@link Admission} with
+ * {@link #acquire(AtmosOperation, Admission)} and are handed a slot as one frees up.
+ * <p>Throttles are owned by the {@link Atmos} provider, one per endpoint, and are configured through the following
+ * custom properties:</p>
+ * <ul>
+ *     <li><code>rateLimitRead</code>, <code>rateLimitWrite</code>, <code>rateLimitDelete</code>,
+ *     <code>rateLimitList</code> - requests per second for each class of operation (0, the default, means
+ *     unlimited)</li>
+ *     <li><code>rateBurst</code> - the number of requests that may be issued at once above the rate (defaults to one
+ *     second's worth)</li>
+ *     <li><code>concurrencyMin</code>, <code>concurrencyMax</code> - the bounds of the concurrency window (defaults
+ *     1 and <code>maxConnectionsPerRoute</code>)</li>
+ *     <li><code>concurrencyBackoffMs</code> - the minimum time between successive window reductions (default 1000)</li>
+ *     <li><code>throttleMaxWaitMs</code> - how long a request may wait for admission before failing (default 60000)</li>
+ * </ul>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosThrottle {
+    /**
+     * Receives the outcome of a non-blocking request for admission.
+     */
+    public interface Admission {
+        /**
+         * Called once the request has been admitted. The admission must be matched by a call to
+         * {@link AtmosThrottle#release(boolean)} once the request completes.
+         */
+        public void admitted();
+
+        /**
+         * Called if the request could not be admitted within the configured maximum wait.
+         * @param error the reason the request was refused
+         */
+        public void refused(@Nonnull CloudException error);
+    }
+
+    static private class Waiter {
+        private final Admission    admission;
+        private ScheduledFuture<?> timeout;
+
+        public Waiter(@Nonnull Admission admission) { this.admission = admission; }
+    }
+
+    static private class TokenBucket {
+        private final double capacity;
+        private final double rate;
+        private double       tokens;
+        private long         updated = System.nanoTime();
+
+        public TokenBucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * Reserves a token, going into debt if none is available.
+         * @param maxWaitNs the longest the caller is willing to wait for the token
+         * @return how long the caller must wait before using the token, or -1 if that exceeds maxWaitNs
+         */
+        public synchronized long reserve(long maxWaitNs) {
+            long now = System.nanoTime();
+
+            tokens = Math.min(capacity, tokens + ((now - updated) / 1000000000.0) * rate);
+            updated = now;
+            if( tokens >= 1.0 ) {
+                tokens -= 1.0;
+                return 0L;
+            }
+            long wait = (long)(((1.0 - tokens) / rate) * 1000000000.0);
+
+            if( wait > maxWaitNs ) {
+                return -1L;
+            }
+            tokens -= 1.0;
+            return wait;
+        }
+    }
+
+    private final long                                  backoffNs;
+    private final Map<AtmosOperation,TokenBucket>       buckets = new EnumMap<AtmosOperation, TokenBucket>(AtmosOperation.class);
+    private final String                                endpoint;
+    private int                                         inFlight;
+    private long                                        lastDecrease;
+    private final int                                   maxWindow;
+    private final long                                  maxWaitNs;
+    private final int                                   minWindow;
+    private final AtomicLong                            overloads = new AtomicLong(0L);
+    private final Atmos                                 provider;
+    private final AtomicLong                            throttled = new AtomicLong(0L);
+    private final ArrayDeque<Waiter>                    waiters   = new ArrayDeque<Waiter>();
+    private double                                      window;
+
+    public AtmosThrottle(@Nonnull Atmos provider, @Nonnull String endpoint) {
+        int burst = provider.getIntProperty("rateBurst", 0);
+
+        this.provider = provider;
+        this.endpoint = endpoint;
+        for( AtmosOperation op : AtmosOperation.values() ) {
+            int rate = provider.getIntProperty("rateLimit" + op.toPropertySuffix(), 0);
+
+            if( rate > 0 ) {
+                buckets.put(op, new TokenBucket(rate, burst > 0 ? burst : rate));
+            }
+        }
+        minWindow = Math.max(1, provider.getIntProperty("concurrencyMin", 1));
+        maxWindow = Math.max(minWindow, provider.getIntProperty("concurrencyMax", provider.getIntProperty("maxConnectionsPerRoute", 50)));
+        window = maxWindow;
+        lastDecrease = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+        backoffNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, provider.getIntProperty("concurrencyBackoffMs", 1000)));
+        maxWaitNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, provider.getIntProperty("throttleMaxWaitMs", 60000)));
+    }
+
+    /**
+     * Waits until the rate limit for the operation and the concurrency window both admit another request. Every
+     * successful call must be matched by a call to {@link #release(boolean)} once the request completes.
+     * @param operation the class of operation about to be issued
+     * @throws CloudException the request could not be admitted within the configured maximum wait
+     * @throws InternalException the calling thread was interrupted while waiting
+     */
+    public void acquire(@Nonnull AtmosOperation operation) throws CloudException, InternalException {
+        long deadline = System.nanoTime() + maxWaitNs;
+        TokenBucket bucket = buckets.get(operation);
+
+        try {
+            if( bucket != null ) {
+                long wait = bucket.reserve(maxWaitNs);
+
+                if( wait < 0L ) {
+                    throttled.incrementAndGet();
+                    throw new CloudException(CloudErrorType.THROTTLING, 0, "RateLimited", "The " + operation + " rate limit for " + endpoint + " is exhausted");
+                }
+                if( wait > 0L ) {
+                    throttled.incrementAndGet();
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            synchronized( this ) {
+                if( inFlight >= (int)window ) {
+                    throttled.incrementAndGet();
+                }
+                while( inFlight >= (int)window ) {
+                    long remaining = deadline - System.nanoTime();
+
+                    if( remaining <= 0L ) {
+                        throw new CloudException(CloudErrorType.THROTTLING, 0, "ConcurrencyLimited", "Timed out waiting for a request slot on " + endpoint + " (window=" + (int)window + ")");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                inFlight++;
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Requests admission without blocking the calling thread. The admission is notified, on whatever thread frees
+     * the slot or on the provider's deadline scheduler, once the rate limit and the concurrency window both admit the
+     * request, or once it is clear they will not within the configured maximum wait.
+     * @param operation the class of operation about to be issued
+     * @param admission the recipient of the outcome
+     */
+    public void acquire(@Nonnull AtmosOperation operation, final @Nonnull Admission admission) {
+        TokenBucket bucket = buckets.get(operation);
+
+        if( bucket != null ) {
+            long wait = bucket.reserve(maxWaitNs);
+
+            if( wait < 0L ) {
+                throttled.incrementAndGet();
+                admission.refused(new CloudException(CloudErrorType.THROTTLING, 0, "RateLimited", "The " + operation + " rate limit for " + endpoint + " is exhausted"));
+                return;
+            }
+            if( wait > 0L ) {
+                throttled.incrementAndGet();
+                try {
+                    provider.getDeadlineScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            admit(admission);
+                        }
+                    }, wait, TimeUnit.NANOSECONDS);
+                }
+                catch( RejectedExecutionException e ) {
+                    admission.refused(new CloudException(CloudErrorType.THROTTLING, 0, "ConcurrencyLimited", "The throttle for " + endpoint + " has been shut down"));
+                }
+                return;
+            }
+        }
+        admit(admission);
+    }
+
+    /**
+     * @return the number of requests currently admitted and not yet released
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of times the window has been reduced in response to overload
+     */
+    public long getOverloadCount() {
+        return overloads.get();
+    }
+
+    /**
+     * @return the number of requests that had to wait (or were refused) for admission
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the current size of the concurrency window
+     */
+    public synchronized @Nonnegative int getWindow() {
+        return (int)window;
+    }
+
+    /**
+     * Releases a slot obtained through {@link #acquire(AtmosOperation)} and adjusts the window based on the outcome.
+     * @param overloaded true if Atmos signalled overload or the request failed at the network level
+     */
+    public void release(boolean overloaded) {
+        ArrayList<Waiter> admitted = null;
+
+        synchronized( this ) {
+            inFlight = Math.max(0, inFlight - 1);
+            if( overloaded ) {
+                long now = System.nanoTime();
+
+                if( now - lastDecrease >= backoffNs ) {
+                    lastDecrease = now;
+                    window = Math.max(minWindow, window / 2.0);
+                    overloads.incrementAndGet();
+                }
+            }
+            else if( window < maxWindow ) {
+                window = Math.min(maxWindow, window + 1.0 / window);
+            }
+            while( !waiters.isEmpty() && inFlight < (int)window ) {
+                if( admitted == null ) {
+                    admitted = new ArrayList<Waiter>();
+                }
+                admitted.add(waiters.pollFirst());
+                inFlight++;
+            }
+            notifyAll();
+        }
+        if( admitted != null ) {
+            for( Waiter waiter : admitted ) {
+                if( waiter.timeout != null ) {
+                    waiter.timeout.cancel(false);
+                }
+                waiter.admission.admitted();
+            }
+        }
+    }
+
+    private void admit(@Nonnull Admission admission) {
+        final Waiter waiter = new Waiter(admission);
+        boolean closed = false;
+
+        synchronized( this ) {
+            if( inFlight < (int)window ) {
+                inFlight++;
+            }
+            else {
+                throttled.incrementAndGet();
+                try {
+                    // the timeout takes this lock first, so it cannot run before the waiter is queued
+                    waiter.timeout = provider.getDeadlineScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            boolean expired;
+
+                            synchronized( AtmosThrottle.this ) {
+                                expired = waiters.remove(waiter);
+                            }
+                            if( expired ) {
+                                waiter.admission.refused(new CloudException(CloudErrorType.THROTTLING, 0, "ConcurrencyLimited", "Timed out waiting for a request slot on " + endpoint + " (window=" + getWindow() + ")"));
+                            }
+                        }
+                    }, maxWaitNs, TimeUnit.NANOSECONDS);
+                    waiters.addLast(waiter);
+                    return;
+                }
+                catch( RejectedExecutionException e ) {
+                    closed = true;
+                }
+            }
+        }
+        if( closed ) {
+            admission.refused(new CloudException(CloudErrorType.THROTTLING, 0, "ConcurrencyLimited", "The throttle for " + endpoint + " has been shut down"));
+        }
+        else {
+            admission.admitted();
+        }
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return endpoint + "[window=" + getWindow() + ",inFlight=" + getInFlight() + ",throttled=" + getThrottledCount() + ",overloads=" + getOverloadCount() + "]";
+    }
+}
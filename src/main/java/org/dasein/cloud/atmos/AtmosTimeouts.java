@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * The timeouts that apply to a single Atmos call. Metadata operations (info, listings, creates, deletes, renames
+ * and metadata updates) and bulk transfers (uploads and downloads of object content) have separate defaults, each
+ * overridable through custom properties:
+ * <table>
+ *     <tr><th>Timeout</th><th>Metadata property (default)</th><th>Transfer property (default)</th></tr>
+ *     <tr><td>TCP connect</td><td colspan="2"><code>connectTimeoutMs</code> (10000)</td></tr>
+ *     <tr><td>Wait for a pooled connection</td><td colspan="2"><code>connectionRequestTimeoutMs</code> (10000)</td></tr>
+ *     <tr><td>Socket read inactivity</td><td><code>readTimeoutMs</code> (30000)</td><td><code>transferReadTimeoutMs</code> (120000)</td></tr>
+ *     <tr><td>Overall call, including retries</td><td><code>deadlineMs</code> (60000)</td><td><code>transferDeadlineMs</code> (3600000)</td></tr>
+ * </table>
+ * <p>A value of 0 disables the corresponding timeout. For downloads, the deadline covers the request up to the
+ * point the content starts to arrive; reading the content is bounded by the socket read timeout.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosTimeouts {
+    static public @Nonnull AtmosTimeouts forMetadata(@Nonnull Atmos provider) {
+        return new AtmosTimeouts(provider, provider.getIntProperty("readTimeoutMs", 30000), provider.getIntProperty("deadlineMs", 60000));
+    }
+
+    static public @Nonnull AtmosTimeouts forTransfer(@Nonnull Atmos provider) {
+        return new AtmosTimeouts(provider, provider.getIntProperty("transferReadTimeoutMs", 120000), provider.getIntProperty("transferDeadlineMs", 3600000));
+    }
+
+    private final int connectTimeout;
+    private final int connectionRequestTimeout;
+    private final int deadline;
+    private final int readTimeout;
+
+    private AtmosTimeouts(@Nonnull Atmos provider, int readTimeout, int deadline) {
+        this.connectTimeout = Math.max(0, provider.getIntProperty("connectTimeoutMs", 10000));
+        this.connectionRequestTimeout = Math.max(0, provider.getIntProperty("connectionRequestTimeoutMs", 10000));
+        this.readTimeout = Math.max(0, readTimeout);
+        this.deadline = Math.max(0, deadline);
+    }
+
+    /**
+     * Applies the connect, pool and read timeouts to a request. Request parameters take precedence over those of
+     * the client executing it.
+     * @param method the request
+     */
+    public void apply(@Nonnull HttpRequestBase method) {
+        HttpParams params = method.getParams();
+
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+        HttpClientParams.setConnectionManagerTimeout(params, connectionRequestTimeout);
+    }
+
+    public @Nonnegative int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public @Nonnegative int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * @return the overall time allowed for the call in milliseconds, or 0 if the call has no deadline
+     */
+    public @Nonnegative int getDeadline() {
+        return deadline;
+    }
+
+    public @Nonnegative int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "[connect=" + connectTimeout + ",lease=" + connectionRequestTimeout + ",read=" + readTimeout + ",deadline=" + deadline + "]";
+    }
+}
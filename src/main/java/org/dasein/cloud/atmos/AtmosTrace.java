@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timings of a single traced Atmos call, broken down into the phases the call went through. All durations are
+ * in nanoseconds and are summed over every attempt the call made. A trace is created by the {@link AtmosTracer} only
+ * for sampled calls, so untraced calls pay nothing for it.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosTrace {
+    private int               attempts;
+    private long              bytesReceived;
+    private long              bytesSent;
+    private long              connectNs;
+    private Object            context;
+    private long              finished;
+    private Throwable         error;
+    private long              lastMark;
+    private long              leaseNs;
+    private String            method;
+    private String            operation;
+    private long              parseNs;
+    private String            path;
+    private String            requestId;
+    private long              signNs;
+    private final long        started = System.nanoTime();
+    private int               status;
+    private final AtmosTracer tracer;
+    private long              transferNs;
+    private long              ttfbNs;
+
+    AtmosTrace(@Nonnull String requestId, @Nonnull String operation, @Nonnull String method, @Nonnull String path, @Nullable Object context, @Nonnull AtmosTracer tracer) {
+        this.requestId = requestId;
+        this.tracer = tracer;
+        this.operation = operation;
+        this.method = method;
+        this.path = path;
+        this.context = context;
+        this.lastMark = started;
+    }
+
+    void addConnect(long ns) { connectNs += ns; }
+
+    void addLease(long ns) { leaseNs += ns; }
+
+    void addSign(long ns) { signNs += ns; }
+
+    void attempted(int status, long executeNs, long bytesSent, long bytesReceived) {
+        long now = System.nanoTime();
+
+        attempts++;
+        this.status = status;
+        this.bytesSent += bytesSent;
+        this.bytesReceived = bytesReceived;
+        ttfbNs += Math.max(0L, executeNs);
+        lastMark = now;
+    }
+
+    void finish(@Nullable Throwable error) {
+        finished = System.nanoTime();
+        this.error = error;
+    }
+
+    void publish() {
+        tracer.publish(this);
+    }
+
+    void parsed() {
+        long now = System.nanoTime();
+
+        parseNs += now - lastMark;
+        lastMark = now;
+    }
+
+    void transferred() {
+        long now = System.nanoTime();
+
+        transferNs += now - lastMark;
+        lastMark = now;
+    }
+
+    public @Nonnegative int getAttempts() { return attempts; }
+
+    public @Nonnegative long getBytesReceived() { return bytesReceived; }
+
+    public @Nonnegative long getBytesSent() { return bytesSent; }
+
+    /**
+     * @return time spent opening new connections, excluding the wait for a pooled connection
+     */
+    public @Nonnegative long getConnectNs() { return connectNs; }
+
+    /**
+     * @return the caller-supplied context attached through {@link AtmosTracer#attach(Object)}, if any
+     */
+    public @Nullable Object getContext() { return context; }
+
+    /**
+     * @return the error that ended the call, if it failed
+     */
+    public @Nullable Throwable getError() { return error; }
+
+    /**
+     * @return time spent waiting to lease a pooled connection
+     */
+    public @Nonnegative long getLeaseNs() { return leaseNs; }
+
+    public @Nonnull String getMethod() { return method; }
+
+    public @Nonnull String getOperation() { return operation; }
+
+    /**
+     * @return time spent parsing the response, for operations that parse one
+     */
+    public @Nonnegative long getParseNs() { return parseNs; }
+
+    public @Nonnull String getPath() { return path; }
+
+    /**
+     * @return the client-generated identifier for this call, also sent as the <code>X-Request-Id</code> header
+     */
+    public @Nonnull String getRequestId() { return requestId; }
+
+    /**
+     * @return time spent computing request signatures
+     */
+    public @Nonnegative long getSignNs() { return signNs; }
+
+    /**
+     * @return the HTTP status of the last response, or 0 if none was received
+     */
+    public int getStatus() { return status; }
+
+    /**
+     * @return the total duration of the call
+     */
+    public @Nonnegative long getTotalNs() { return (finished > 0L ? finished : System.nanoTime()) - started; }
+
+    /**
+     * @return time spent reading the response body, for operations that read it before returning
+     */
+    public @Nonnegative long getTransferNs() { return transferNs; }
+
+    /**
+     * @return time from sending each request until its response headers arrived, excluding connection setup
+     */
+    public @Nonnegative long getTtfbNs() { return Math.max(0L, ttfbNs - leaseNs - connectNs); }
+
+    /**
+     * @return the trace as a single line of space-separated <code>key=value</code> pairs, with times in microseconds
+     */
+    @Override
+    public @Nonnull String toString() {
+        StringBuilder str = new StringBuilder(256);
+
+        str.append("id=").append(requestId);
+        str.append(" op=").append(operation);
+        str.append(" method=").append(method);
+        str.append(" path=").append(path);
+        str.append(" status=").append(status);
+        str.append(" attempts=").append(attempts);
+        str.append(" total_us=").append(TimeUnit.NANOSECONDS.toMicros(getTotalNs()));
+        str.append(" sign_us=").append(TimeUnit.NANOSECONDS.toMicros(signNs));
+        str.append(" lease_us=").append(TimeUnit.NANOSECONDS.toMicros(leaseNs));
+        str.append(" connect_us=").append(TimeUnit.NANOSECONDS.toMicros(connectNs));
+        str.append(" ttfb_us=").append(TimeUnit.NANOSECONDS.toMicros(getTtfbNs()));
+        str.append(" transfer_us=").append(TimeUnit.NANOSECONDS.toMicros(transferNs));
+        str.append(" parse_us=").append(TimeUnit.NANOSECONDS.toMicros(parseNs));
+        str.append(" sent=").append(bytesSent);
+        str.append(" received=").append(bytesReceived);
+        if( context != null ) {
+            str.append(" context=").append(context);
+        }
+        if( error != null ) {
+            str.append(" error=").append(error.getClass().getSimpleName());
+        }
+        return str.toString();
+    }
+}
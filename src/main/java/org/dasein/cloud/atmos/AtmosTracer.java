@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples Atmos calls for tracing and hands the resulting {@link AtmosTrace}s to a listener. By default, traces are
+ * logged at INFO as single-line <code>key=value</code> events to the <code>dasein.cloud.atmos.trace</code> logger.
+ * <p>The share of calls traced is set by the <code>traceSampleRate</code> custom property, a fraction between 0 (the
+ * default, tracing nothing) and 1. A calling thread may attach its own context (such as the identifier of the request
+ * it is serving) with {@link #attach(Object)}; every trace taken on that thread then carries it.</p>
+ * <p>The trace in progress is tracked per thread. When no trace is in progress, every hook is a single thread-local
+ * lookup.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosTracer {
+    static private final Logger events = Logger.getLogger("dasein.cloud.atmos.trace");
+
+    static private final ThreadLocal<Object>     attached = new ThreadLocal<Object>();
+    static private final ThreadLocal<AtmosTrace> current  = new ThreadLocal<AtmosTrace>();
+    static private final AtomicLong              sequence = new AtomicLong(0L);
+
+    static private final AtmosTraceListener LOG = new AtmosTraceListener() {
+        @Override
+        public void traceCompleted(@Nonnull AtmosTrace trace) {
+            if( events.isInfoEnabled() ) {
+                events.info(trace.toString());
+            }
+        }
+    };
+
+    /**
+     * Attaches a caller-supplied context to all traces taken on the calling thread until {@link #detach()}.
+     * @param context the context, typically an identifier from the caller's own tracing
+     */
+    static public void attach(@Nullable Object context) {
+        attached.set(context);
+    }
+
+    /**
+     * @return the trace in progress on the calling thread, if any
+     */
+    static public @Nullable AtmosTrace current() {
+        return current.get();
+    }
+
+    /**
+     * Removes any context attached to the calling thread.
+     */
+    static public void detach() {
+        attached.remove();
+    }
+
+    /**
+     * Ends the trace in progress on the calling thread, if any, and publishes it.
+     * @param error the error that ended the call, or null if it succeeded
+     */
+    static public void finish(@Nullable Throwable error) {
+        AtmosTrace trace = current.get();
+
+        if( trace != null ) {
+            current.remove();
+            trace.finish(error);
+            trace.publish();
+        }
+    }
+
+    /**
+     * Marks the end of parsing for the trace in progress, if any.
+     */
+    static public void parsed() {
+        AtmosTrace trace = current.get();
+
+        if( trace != null ) {
+            trace.parsed();
+        }
+    }
+
+    /**
+     * Marks the end of reading the response body for the trace in progress, if any.
+     */
+    static public void transferred() {
+        AtmosTrace trace = current.get();
+
+        if( trace != null ) {
+            trace.transferred();
+        }
+    }
+
+    private volatile AtmosTraceListener listener = LOG;
+    private final Random                random = new Random();
+    private final double                sampleRate;
+
+    public AtmosTracer(@Nonnull Atmos provider) {
+        double rate = 0.0;
+        String value = provider.getStringProperty("traceSampleRate", null);
+
+        if( value != null ) {
+            try {
+                rate = Double.parseDouble(value);
+            }
+            catch( NumberFormatException e ) {
+                Atmos.getLogger(AtmosTracer.class).warn("Invalid value for traceSampleRate: " + value);
+            }
+        }
+        sampleRate = Math.min(1.0, Math.max(0.0, rate));
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Routes completed traces to a different listener.
+     * @param listener the new listener, or null to restore logging
+     */
+    public void setListener(@Nullable AtmosTraceListener listener) {
+        this.listener = (listener == null ? LOG : listener);
+    }
+
+    /**
+     * Decides whether to trace a call that is about to start and, if so, makes its trace current on the calling
+     * thread. Nothing happens if a trace is already in progress on the thread.
+     * @param operation the name of the operation making the call
+     * @param method the request
+     * @return the new trace, or null if the call is not traced
+     */
+    public @Nullable AtmosTrace start(@Nonnull String operation, @Nonnull HttpRequestBase method) {
+        if( current.get() != null ) {
+            return null;
+        }
+        AtmosTrace trace = sample(operation, method);
+
+        if( trace != null ) {
+            current.set(trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Decides whether to trace a call without tying the trace to the calling thread, for calls that complete on
+     * another thread. The caller must finish and publish the trace itself.
+     * @param operation the name of the operation making the call
+     * @param method the request
+     * @return the new trace, or null if the call is not traced
+     */
+    @Nullable AtmosTrace sample(@Nonnull String operation, @Nonnull HttpRequestBase method) {
+        if( sampleRate <= 0.0 ) {
+            return null;
+        }
+        if( sampleRate < 1.0 ) {
+            double roll;
+
+            synchronized( random ) {
+                roll = random.nextDouble();
+            }
+            if( roll >= sampleRate ) {
+                return null;
+            }
+        }
+        String id = Long.toHexString(System.currentTimeMillis()) + "-" + Long.toHexString(sequence.incrementAndGet());
+
+        return new AtmosTrace(id, operation, method.getMethod(), method.getURI().getRawPath(), attached.get(), this);
+    }
+
+    void publish(@Nonnull AtmosTrace trace) {
+        try {
+            listener.traceCompleted(trace);
+        }
+        catch( RuntimeException e ) {
+            events.warn("Trace listener failed: " + e.getMessage());
+        }
+    }
+}
@@ -19,21 +19,32 @@
 
 package org.dasein.cloud.atmos.storage;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.NameRules;
 import org.dasein.cloud.OperationNotSupportedException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.atmos.Atmos;
+import org.dasein.cloud.atmos.AtmosBufferPool;
+import org.dasein.cloud.atmos.AtmosDeduplicator;
+import org.dasein.cloud.atmos.AtmosDiskCache;
+import org.dasein.cloud.atmos.AtmosListPage;
+import org.dasein.cloud.atmos.AtmosMetadata;
 import org.dasein.cloud.atmos.AtmosMethod;
+import org.dasein.cloud.atmos.AtmosOutputStream;
+import org.dasein.cloud.atmos.AtmosException;
+import org.dasein.cloud.atmos.AtmosRetryPolicy;
+import org.dasein.cloud.atmos.AtmosSpool;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.storage.AbstractBlobStoreSupport;
 import org.dasein.cloud.storage.Blob;
 import org.dasein.cloud.storage.FileTransfer;
 import org.dasein.util.Jiterator;
 import org.dasein.util.JiteratorPopulator;
-import org.dasein.util.PopulatorThread;
 import org.dasein.util.uom.storage.Byte;
 import org.dasein.util.uom.storage.Storage;
 
@@ -41,20 +52,78 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Provides interaction with the EMC Atmos object storage engine in accordance with the Dasein Cloud API.
+ * <p>When a write-behind spool is configured (see {@link AtmosSpool}), uploads and deletes return once spooled and
+ * object reads are answered from the spool. Listings, metadata operations, moves, renames, directory removal and
+ * streaming uploads first wait for spooled operations on the paths they touch to reach Atmos.</p>
  * <p>Created by George Reese: 10/5/12 8:52 AM</p>
  * @author George Reese
  * @version 2012.09 initial version
+ * @version 2013.07 added parallel tree walking
  * @since 2012.09
  */
 public class AtmosObjectStore extends AbstractBlobStoreSupport {
+    static private final Logger logger = Atmos.getLogger(AtmosObjectStore.class);
+
+    /**
+     * Marks an error reading a download from Atmos, as opposed to writing it locally, so that only the former is
+     * retried.
+     */
+    static private class ReadFailure extends IOException {
+        public ReadFailure(@Nonnull IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    static private class DownloadStream extends FilterInputStream {
+        public DownloadStream(@Nonnull InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            }
+            catch( IOException e ) {
+                throw new ReadFailure(e);
+            }
+        }
+
+        @Override
+        public int read(@Nonnull byte[] buffer, int offset, int length) throws IOException {
+            try {
+                return super.read(buffer, offset, length);
+            }
+            catch( IOException e ) {
+                throw new ReadFailure(e);
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            try {
+                return super.skip(count);
+            }
+            catch( IOException e ) {
+                throw new ReadFailure(e);
+            }
+        }
+    }
+
     private Atmos provider;
 
     AtmosObjectStore(Atmos provider) { this.provider = provider; }
@@ -75,6 +144,44 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
         return false;
     }
 
+    /**
+     * Copies a stream through a buffer borrowed from the provider's {@link AtmosBufferPool} rather than a freshly
+     * allocated one. Both streams are closed when the copy ends.
+     * @param input the source of the content
+     * @param output the destination of the content
+     * @param xfer an optional transfer to keep informed of progress
+     * @throws IOException an error occurred reading or writing the content
+     */
+    @Override
+    protected void copy(@Nonnull InputStream input, @Nonnull OutputStream output, @Nullable FileTransfer xfer) throws IOException {
+        AtmosBufferPool pool = provider.getBufferPool();
+        byte[] buffer = pool.acquire();
+
+        try {
+            long total = 0L;
+            int count;
+
+            if( xfer != null ) {
+                xfer.setBytesTransferred(0L);
+            }
+            while( (count = input.read(buffer, 0, buffer.length)) != -1 ) {
+                if( count > 0 ) {
+                    output.write(buffer, 0, count);
+                    total += count;
+                    if( xfer != null ) {
+                        xfer.setBytesTransferred(total);
+                    }
+                }
+            }
+            output.flush();
+        }
+        finally {
+            pool.release(buffer);
+            input.close();
+            output.close();
+        }
+    }
+
     @Override
     public @Nonnull Blob createBucket(@Nonnull String bucket, boolean findFreeName) throws InternalException, CloudException {
         while( bucket.endsWith("/") && !bucket.equals("/") ) {
@@ -114,21 +221,11 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
         if( bucket.equals("/") ) {
             return true;
         }
+        awaitSpool(bucket, null);
+        AtmosMethod method = new AtmosMethod(provider);
         int idx = bucket.lastIndexOf("/");
 
-        if( idx < 0 ) {
-            for( Blob b : list(null) ) {
-                String name = b.getBucketName();
-
-                if( name != null && name.equals(bucket) ) {
-                    return true;
-                }
-            }
-            return false;
-        }
-        String root = bucket.substring(0, idx);
-
-        for( Blob b : list(root) ) {
+        for( Blob b : method.listNames(idx < 0 ? "/" : bucket.substring(0, idx)) ) {
             String name = b.getBucketName();
 
             if( name != null && name.equals(bucket) ) {
@@ -138,49 +235,100 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
         return false;
     }
 
+    /**
+     * Downloads an object into a file. Content still waiting in the write-behind spool (see {@link AtmosSpool}) is
+     * copied from the spool. When a disk cache is configured (see {@link AtmosDiskCache}), an unchanged
+     * cached copy is used instead of downloading the object again.
+     * @param bucket the directory holding the object
+     * @param object the name of the object
+     * @param toFile the file to write
+     * @param transfer an optional transfer to keep informed of progress
+     * @throws InternalException an error occurred within Dasein Cloud writing the file
+     * @throws CloudException an error occurred in Atmos downloading the object
+     */
     @Override
-    protected void get(@Nullable String bucket, @Nonnull String object, @Nonnull File toFile, @Nullable FileTransfer transfer) throws InternalException, CloudException {
+    protected void get(@Nullable final String bucket, @Nonnull final String object, @Nonnull File toFile, @Nullable final FileTransfer transfer) throws InternalException, CloudException {
         if( bucket == null ) {
             throw new CloudException("No bucket was specified");
         }
-        IOException lastError = null;
-        int attempts = 0;
-
-        while( attempts < 5 ) {
-            AtmosMethod method = new AtmosMethod(provider);
+        AtmosSpool.Pending pending = getPending(bucket, object);
 
-            try {
-                InputStream input = method.download(bucket, object);
+        if( pending != null ) {
+            if( pending.isDelete() ) {
+                throw new CloudException(CloudErrorType.GENERAL, HttpStatus.SC_NOT_FOUND, AtmosException.NOT_FOUND, "No such object: " + bucket + "/" + object);
+            }
+            InputStream input = pending.open();
 
+            // a null stream means the upload was applied while we looked, so Atmos is now current
+            if( input != null ) {
                 try {
-                    copy(input, new FileOutputStream(toFile), transfer);
-                    return;
+                    try {
+                        copy(input, new FileOutputStream(toFile), transfer);
+                    }
+                    finally {
+                        input.close();
+                    }
                 }
-                catch( FileNotFoundException e ) {
-                    e.printStackTrace();
+                catch( IOException e ) {
                     throw new InternalException(e);
                 }
-                catch( IOException e ) {
-                    lastError = e;
-                    try { Thread.sleep(10000L); }
-                    catch( InterruptedException ignore ) { }
+                return;
+            }
+        }
+        AtmosDiskCache cache = provider.getDiskCache();
+
+        if( cache == null ) {
+            fetch(bucket, object, toFile, transfer);
+        }
+        else {
+            cache.get(bucket, object, toFile, transfer, new AtmosDiskCache.Loader() {
+                @Override
+                public void load(@Nonnull File target) throws CloudException, InternalException {
+                    fetch(bucket, object, target, transfer);
                 }
-                finally {
+            });
+        }
+    }
+
+    private void fetch(@Nonnull String bucket, @Nonnull String object, @Nonnull File toFile, @Nullable FileTransfer transfer) throws InternalException, CloudException {
+        AtmosRetryPolicy policy = new AtmosRetryPolicy(provider);
+        long startedAt = System.nanoTime();
+        int attempt = 0;
+
+        while( true ) {
+            AtmosMethod method = new AtmosMethod(provider);
+            InputStream input = new DownloadStream(method.download(bucket, object));
+            IOException error;
+
+            attempt++;
+            try {
+                copy(input, new FileOutputStream(toFile), transfer);
+                return;
+            }
+            catch( ReadFailure e ) {
+                error = (IOException)e.getCause();
+            }
+            catch( IOException e ) {
+                // the local file could not be written; downloading it again would fail the same way
+                logger.error("Unable to write " + bucket + "/" + object + " to " + toFile + ": " + e.getMessage());
+                throw new InternalException(e);
+            }
+            finally {
+                try {
                     input.close();
                 }
+                catch( IOException ignore ) {
+                    // the download is either complete or being abandoned
+                }
             }
-            catch( IOException e ) {
-                e.printStackTrace();
-                throw new CloudException(e);
+            long delay = policy.getRetryDelay(AtmosRetryPolicy.Failure.NETWORK, true, attempt, startedAt);
+
+            if( delay < 0L ) {
+                logger.error("Download of " + bucket + "/" + object + " failed after " + attempt + " attempts: " + error.getMessage());
+                throw new InternalException(error);
             }
-            attempts++;
-        }
-        if( lastError != null ) {
-            lastError.printStackTrace();
-            throw new InternalException(lastError);
-        }
-        else {
-            throw new InternalException("Unknown error");
+            logger.warn("Retrying download of " + bucket + "/" + object + " in " + delay + "ms: " + error.getMessage());
+            AtmosRetryPolicy.pause(delay);
         }
     }
 
@@ -226,27 +374,94 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
         return null;
     }
 
+    /**
+     * Calculates the base64-encoded MD5 hash of a stream using a pooled buffer. The stream is closed afterwards.
+     * @param input the content to hash
+     * @return the base64-encoded MD5 hash of the content
+     * @throws NoSuchAlgorithmException MD5 is not supported on this platform
+     * @throws IOException an error occurred reading the content
+     */
+    @Override
+    protected String getChecksum(@Nonnull InputStream input) throws NoSuchAlgorithmException, IOException {
+        AtmosBufferPool pool = provider.getBufferPool();
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        byte[] buffer = pool.acquire();
+
+        try {
+            int count;
+
+            while( (count = input.read(buffer, 0, buffer.length)) != -1 ) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        finally {
+            pool.release(buffer);
+            try { input.close(); }
+            catch( IOException e ) { logger.warn("Unable to close input stream of hash candidate: " + e.getMessage()); }
+        }
+        return new String(Base64.encodeBase64(digest.digest()), "utf-8");
+    }
+
     @Override
     public Blob getObject(@Nullable String bucketName, @Nonnull String objectName) throws InternalException, CloudException {
         if( bucketName == null ) {
             return null;
         }
+        AtmosSpool.Pending pending = getPending(bucketName, objectName);
+
+        if( pending != null ) {
+            return (pending.isDelete() ? null : toBlob(pending));
+        }
         AtmosMethod method = new AtmosMethod(provider);
 
         return method.info(bucketName, objectName);
     }
 
+    /**
+     * Fetches the user metadata of an object, or of a directory if no object name is specified.
+     * @param bucket the directory holding the object, or the target directory
+     * @param object the object whose metadata is sought, or null to target the directory itself
+     * @return the user metadata, or null if no such object or directory exists
+     * @throws CloudException an error occurred in Atmos fetching the metadata
+     * @throws InternalException an error occurred within Dasein Cloud fetching the metadata
+     */
+    public @Nullable AtmosMetadata getMetadata(@Nonnull String bucket, @Nullable String object) throws CloudException, InternalException {
+        awaitSpool(bucket, object);
+        AtmosMethod method = new AtmosMethod(provider);
+
+        return method.getMetadata(bucket, object);
+    }
+
     @Override
     public Storage<Byte> getObjectSize(@Nullable String bucketName, @Nullable String objectName) throws InternalException, CloudException {
         if( bucketName == null ) {
             throw new CloudException("No such object: /" + objectName);
         }
+        AtmosSpool.Pending pending = (objectName == null ? null : getPending(bucketName, objectName));
+
+        if( pending != null ) {
+            return (pending.isDelete() ? null : new Storage<Byte>(pending.getSize(), Storage.BYTE));
+        }
         AtmosMethod method = new AtmosMethod(provider);
         Blob object = method.info(bucketName, objectName);
 
         return (object == null ? null : object.getSize());
     }
 
+    private void awaitSpool(@Nonnull String bucket, @Nullable String object) throws CloudException, InternalException {
+        AtmosSpool spool = provider.getSpool();
+
+        if( spool != null ) {
+            spool.awaitApplied(bucket, object);
+        }
+    }
+
+    private @Nullable AtmosSpool.Pending getPending(@Nonnull String bucket, @Nonnull String object) {
+        AtmosSpool spool = provider.getSpool();
+
+        return (spool == null ? null : spool.getPending(bucket, object));
+    }
+
     @Override
     public int getMaxBuckets() throws CloudException, InternalException {
         return 100000;
@@ -306,25 +521,77 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
 
     @Override
     public @Nonnull Iterable<Blob> list(final @Nullable String bucket) throws CloudException, InternalException {
-        PopulatorThread<Blob> populator = new PopulatorThread<Blob>(new JiteratorPopulator<Blob>() {
+        awaitSpool(bucket == null ? "/" : bucket, null);
+        return populate("list", new JiteratorPopulator<Blob>() {
             @Override
             public void populate(@Nonnull Jiterator<Blob> iterator) throws Exception {
-                try {
-                    AtmosMethod method = new AtmosMethod(provider);
+                AtmosMethod method = new AtmosMethod(provider);
 
-                    for( Blob b : method.list(bucket == null ? "/" : bucket) ) {
+                for( Blob b : method.list(bucket == null ? "/" : bucket) ) {
+                    iterator.push(b);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finds all objects carrying the specified listable metadata tag using the Atmos object index rather than
+     * scanning the namespace. Pages are fetched in the background as the result is iterated.
+     * @param tag the listable metadata tag to search for
+     * @return the objects carrying the tag; namespace paths are not part of the index, so only object names are set
+     * @throws CloudException an error occurred in Atmos starting the query
+     * @throws InternalException an error occurred within Dasein Cloud starting the query
+     */
+    public @Nonnull Iterable<Blob> listTagged(final @Nonnull String tag) throws CloudException, InternalException {
+        awaitSpool("/", null);
+        return populate("listTagged", new JiteratorPopulator<Blob>() {
+            @Override
+            public void populate(@Nonnull Jiterator<Blob> iterator) throws Exception {
+                AtmosMethod method = new AtmosMethod(provider);
+                String token = null;
+
+                do {
+                    AtmosListPage page = method.listObjects(tag, token, 0);
+
+                    for( Blob b : page.getEntries() ) {
                         iterator.push(b);
                     }
-                }
-                finally {
-                    provider.release();
-                }
+                    token = page.getNextToken();
+                } while( token != null );
             }
         });
+    }
 
-        provider.hold();
-        populator.populate();
-        return populator.getResult();
+    /**
+     * Adds or replaces user metadata on an object, or on a directory if no object name is specified, without
+     * re-uploading any content. All entries are updated in a single request.
+     * @param bucket the directory holding the object, or the target directory
+     * @param object the object whose metadata is being set, or null to target the directory itself
+     * @param metadata any non-listable user metadata to set
+     * @param listable any listable user metadata to set
+     * @throws CloudException an error occurred in Atmos setting the metadata
+     * @throws InternalException an error occurred within Dasein Cloud setting the metadata
+     */
+    public void setMetadata(@Nonnull String bucket, @Nullable String object, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws CloudException, InternalException {
+        awaitSpool(bucket, object);
+        AtmosMethod method = new AtmosMethod(provider);
+
+        method.setMetadata(bucket, object, metadata, listable);
+    }
+
+    /**
+     * Recursively walks the namespace below the specified directory, listing subdirectories in parallel. Unlike
+     * {@link #list(String)}, the result includes the contents of nested directories down to the depth allowed by
+     * the walk options. A walker abandoned before its end must be closed.
+     * @param bucket the directory at which the walk starts, or null for the namespace root
+     * @param options the traversal and filter options for the walk
+     * @return a walker yielding matching directories and objects as they are found
+     * @throws CloudException spooled operations below the directory did not reach Atmos in time
+     * @throws InternalException the calling thread was interrupted waiting for spooled operations
+     */
+    public @Nonnull AtmosTreeWalker walk(@Nullable String bucket, @Nonnull TreeWalkOptions options) throws CloudException, InternalException {
+        awaitSpool(bucket == null ? "/" : bucket, null);
+        return new AtmosTreeWalker(provider, bucket, options);
     }
 
     @Override
@@ -339,7 +606,88 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
 
     @Override
     public void move(@Nullable String fromBucket, @Nullable String objectName, @Nullable String toBucket) throws InternalException, CloudException {
-        //To change body of implemented methods use File | Settings | File Templates.
+        move(fromBucket, objectName, toBucket, false);
+    }
+
+    /**
+     * Moves an object to another directory on the server side without transferring its content.
+     * @param fromBucket the directory currently holding the object
+     * @param objectName the name of the object to move
+     * @param toBucket the directory into which the object is moved
+     * @param overwrite true to replace any object of the same name in the target directory
+     * @throws InternalException an error occurred within Dasein Cloud moving the object
+     * @throws CloudException an error occurred in Atmos moving the object
+     */
+    public void move(@Nullable String fromBucket, @Nullable String objectName, @Nullable String toBucket, boolean overwrite) throws InternalException, CloudException {
+        if( fromBucket == null || toBucket == null ) {
+            throw new CloudException("Objects cannot be moved into or out of the root");
+        }
+        if( objectName == null ) {
+            throw new CloudException("No object was specified");
+        }
+        awaitSpool(fromBucket, objectName);
+        awaitSpool(toBucket, objectName);
+        AtmosMethod method = new AtmosMethod(provider);
+
+        method.move(toObjectPath(fromBucket, objectName), toObjectPath(toBucket, objectName), overwrite);
+    }
+
+    /**
+     * Opens a stream that uploads whatever is written to it, for content whose length is not known in advance. The
+     * object is written in chunks as the stream fills (see {@link AtmosOutputStream}) and is complete once the stream
+     * has been closed successfully.
+     * @param bucket the directory into which the content is uploaded
+     * @param objectName the name of the new object
+     * @param metadata any non-listable user metadata to attach
+     * @param listable any listable user metadata to attach
+     * @return a stream for the object content
+     * @throws CloudException spooled operations on the object did not reach Atmos in time
+     * @throws InternalException no directory was specified
+     */
+    public @Nonnull AtmosOutputStream openUpload(@Nullable String bucket, @Nonnull String objectName, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws CloudException, InternalException {
+        if( bucket == null || bucket.equals("/") ) {
+            throw new OperationNotSupportedException("You may not upload objects into the root");
+        }
+        awaitSpool(bucket, objectName);
+        return new AtmosOutputStream(provider, bucket, objectName, metadata, listable);
+    }
+
+    /**
+     * Runs a populator on the provider's shared listing pool, handing back the results as they are pushed.
+     * @param name a name for the resulting iterator, used in diagnostics
+     * @param populator the populator that loads the results
+     * @return an iterable over the results
+     * @throws CloudException the listing pool is saturated and configured to reject new work
+     */
+    private @Nonnull Iterable<Blob> populate(@Nonnull String name, @Nonnull final JiteratorPopulator<Blob> populator) throws CloudException {
+        final Jiterator<Blob> iterator = new Jiterator<Blob>(name);
+
+        provider.hold();
+        try {
+            provider.getListingExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        populator.populate(iterator);
+                    }
+                    catch( Exception e ) {
+                        iterator.setLoadException(e);
+                    }
+                    catch( Throwable t ) {
+                        iterator.setLoadException(new RuntimeException(t));
+                    }
+                    finally {
+                        iterator.complete();
+                        provider.release();
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            provider.release();
+            throw new CloudException(CloudErrorType.CAPACITY, 0, "RejectedExecution", "Too many Atmos listings are in progress");
+        }
+        return iterator;
     }
 
     @Override
@@ -379,8 +727,24 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
     }
 
 
+    /**
+     * Removes the named user metadata entries from an object, or from a directory if no object name is specified.
+     * @param bucket the directory holding the object, or the target directory
+     * @param object the object whose metadata is being removed, or null to target the directory itself
+     * @param names the names of the entries to remove
+     * @throws CloudException an error occurred in Atmos removing the metadata
+     * @throws InternalException an error occurred within Dasein Cloud removing the metadata
+     */
+    public void removeMetadata(@Nonnull String bucket, @Nullable String object, @Nonnull Collection<String> names) throws CloudException, InternalException {
+        awaitSpool(bucket, object);
+        AtmosMethod method = new AtmosMethod(provider);
+
+        method.deleteMetadata(bucket, object, names);
+    }
+
     @Override
     public void removeBucket(@Nonnull String bucket) throws CloudException, InternalException {
+        awaitSpool(bucket, null);
         AtmosMethod method = new AtmosMethod(provider);
 
         method.delete(bucket, null);
@@ -391,6 +755,12 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
         if( bucket == null ) {
             throw new CloudException("No such object: /" + object);
         }
+        AtmosSpool spool = provider.getSpool();
+
+        if( spool != null ) {
+            spool.delete(bucket, object);
+            return;
+        }
         AtmosMethod method = new AtmosMethod(provider);
 
         method.delete(bucket, object);
@@ -421,49 +791,103 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
         while( newName.endsWith("/") ) {
             newName = newName.substring(0, newName.length()-1);
         }
-        int idx = oldName.lastIndexOf("/");
-        String oldRoot;
-
-        if( idx < 0 ) {
-            oldRoot = null;
+        if( newName.startsWith(oldName + "/") ) {
+            throw new CloudException("Cannot move a directory into itself");
         }
-        else {
-            oldRoot = oldName.substring(0, idx);
-            oldName = oldName.substring(idx+1);
+        String tmp = newName;
+        int idx = 1;
+
+        while( exists(tmp) ) {
+            if( !findFreeName ) {
+                throw new CloudException("A directory already exists with the name " + newName);
+            }
+            tmp = newName + "-" + (idx++);
         }
+        AtmosMethod method = new AtmosMethod(provider);
 
-        String newRoot;
+        method.move("/" + oldName + "/", tmp + "/", false);
+        return tmp;
+    }
 
-        idx = newName.lastIndexOf("/");
-        if( idx < 0 ) {
-            newRoot = null;
-        }
-        else {
-            newRoot = newName.substring(0, idx);
-            newName = newName.substring(idx+1);
+    @Override
+    public void renameObject(@Nullable String bucket, @Nonnull String oldName, @Nonnull String newName) throws CloudException, InternalException {
+        renameObject(bucket, oldName, newName, false);
+    }
+
+    /**
+     * Renames an object within its directory on the server side without transferring its content.
+     * @param bucket the directory holding the object
+     * @param oldName the current name of the object
+     * @param newName the new name of the object
+     * @param overwrite true to replace any object already having the new name
+     * @throws CloudException an error occurred in Atmos renaming the object
+     * @throws InternalException an error occurred within Dasein Cloud renaming the object
+     */
+    public void renameObject(@Nullable String bucket, @Nonnull String oldName, @Nonnull String newName, boolean overwrite) throws CloudException, InternalException {
+        if( bucket == null ) {
+            throw new CloudException("No such object: /" + oldName);
         }
-        if( (oldRoot == null && newRoot == null) || (oldRoot != null && oldRoot.equals(newRoot)) ) {
-            AtmosMethod method = new AtmosMethod(provider);
+        awaitSpool(bucket, oldName);
+        awaitSpool(bucket, newName);
+        AtmosMethod method = new AtmosMethod(provider);
+
+        method.move(toObjectPath(bucket, oldName), toObjectPath(bucket, newName), overwrite);
+    }
 
-            method.rename("/", oldName, newName);
-            return (oldRoot == null ? newName : oldRoot + "/" + newName);
+    private @Nonnull Blob toBlob(@Nonnull AtmosSpool.Pending pending) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
         }
-        else {
-            // TODO: rename to new root
-            return null;
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new CloudException("No region was set for this request");
         }
+        return Blob.getInstance(regionId, "/rest/namespace" + toObjectPath(pending.getBucket(), pending.getName()), pending.getBucket(), pending.getName(), pending.getCreated(), new Storage<Byte>(pending.getSize(), Storage.BYTE));
     }
 
-    @Override
-    public void renameObject(@Nullable String bucket, @Nonnull String oldName, @Nonnull String newName) throws CloudException, InternalException {
-        //To change body of implemented methods use File | Settings | File Templates.
+    private @Nonnull String toObjectPath(@Nonnull String bucket, @Nonnull String objectName) {
+        while( bucket.startsWith("/") ) {
+            bucket = bucket.substring(1);
+        }
+        while( bucket.endsWith("/") ) {
+            bucket = bucket.substring(0, bucket.length()-1);
+        }
+        while( objectName.startsWith("/") ) {
+            objectName = objectName.substring(1);
+        }
+        return (bucket.length() < 1 ? "/" + objectName : "/" + bucket + "/" + objectName);
     }
 
+    /**
+     * Uploads a file. When deduplication is enabled (see {@link AtmosDeduplicator}) and an object with identical
+     * content already exists, the new object is linked to it on the server instead of sending the file again. When a
+     * write-behind spool is configured (see {@link AtmosSpool}), the file is spooled and this returns before it reaches
+     * Atmos.
+     * @param sourceFile the file to upload
+     * @param bucket the directory into which the file is uploaded
+     * @param objectName the name of the new object
+     * @return the newly uploaded object
+     * @throws CloudException an error occurred in Atmos uploading the file
+     * @throws InternalException an error occurred within Dasein Cloud uploading the file
+     */
     @Override
     public @Nonnull Blob upload(@Nonnull File sourceFile, @Nullable String bucket, @Nonnull String objectName) throws CloudException, InternalException {
         if( bucket == null || bucket.equals("/") ) {
             throw new OperationNotSupportedException("You may not upload objects into the root");
         }
+        AtmosSpool spool = provider.getSpool();
+
+        if( spool != null ) {
+            return toBlob(spool.upload(sourceFile, bucket, objectName, null, null));
+        }
+        AtmosDeduplicator deduplicator = provider.getDeduplicator();
+
+        if( deduplicator != null ) {
+            return deduplicator.upload(sourceFile, bucket, objectName);
+        }
         AtmosMethod method = new AtmosMethod(provider);
 
         try {
@@ -475,6 +899,42 @@ public class AtmosObjectStore extends AbstractBlobStoreSupport {
         }
     }
 
+    /**
+     * Uploads a file, attaching user metadata in the same request. Listable metadata is indexed by Atmos and may later
+     * be used to find the object through {@link #listTagged(String)}. Since linked objects share their metadata,
+     * uploads with metadata are never deduplicated.
+     * @param sourceFile the file to upload
+     * @param bucket the directory into which the file is uploaded
+     * @param objectName the name of the new object
+     * @param metadata any non-listable user metadata to attach
+     * @param listable any listable user metadata to attach
+     * @return the newly uploaded object
+     * @throws CloudException an error occurred in Atmos uploading the file
+     * @throws InternalException an error occurred within Dasein Cloud uploading the file
+     */
+    public @Nonnull Blob upload(@Nonnull File sourceFile, @Nullable String bucket, @Nonnull String objectName, @Nullable Map<String,String> metadata, @Nullable Map<String,String> listable) throws CloudException, InternalException {
+        if( bucket == null || bucket.equals("/") ) {
+            throw new OperationNotSupportedException("You may not upload objects into the root");
+        }
+        if( (metadata == null || metadata.isEmpty()) && (listable == null || listable.isEmpty()) ) {
+            return upload(sourceFile, bucket, objectName);
+        }
+        AtmosSpool spool = provider.getSpool();
+
+        if( spool != null ) {
+            return toBlob(spool.upload(sourceFile, bucket, objectName, metadata, listable));
+        }
+        AtmosMethod method = new AtmosMethod(provider);
+
+        try {
+            return method.upload(bucket, objectName, new FileInputStream(sourceFile), new Storage<org.dasein.util.uom.storage.Byte>(sourceFile.length(), Storage.BYTE), metadata, listable);
+        }
+        catch( IOException e ) {
+            e.printStackTrace();
+            throw new InternalException(e);
+        }
+    }
+
     @Override
     public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
         return new String[0];
@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.atmos.Atmos;
+import org.dasein.cloud.atmos.AtmosMethod;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.JiteratorLoadException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Recursively walks the Atmos namespace below a root directory, listing subdirectories concurrently on the provider's
+ * shared listing pool (see {@link Atmos#getListingExecutor()}), with at most as many listings in progress as the
+ * walk options allow. Matching entries are handed to the consumer through a bounded queue so that listing threads
+ * wait (rather than buffering the whole tree) when the consumer falls behind. Entries arrive in no particular order.
+ * <p>A walk starts when it is first iterated and ends when its entries are exhausted, an error occurs, or
+ * {@link #close()} is called. A consumer that stops iterating before the end must close the walk, or its listings
+ * keep waiting on the queue and the provider stays held. Errors encountered while listing are rethrown to the
+ * consumer as a {@link JiteratorLoadException}.</p>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosTreeWalker implements Iterator<Blob>, Iterable<Blob>, Closeable {
+    static private final Logger logger = Atmos.getLogger(AtmosTreeWalker.class);
+
+    static private final Object END     = new Object();
+    static private final long   POLL_MS = 100L;
+
+    static private class Directory {
+        private final int    depth;
+        private final String path;
+
+        public Directory(@Nonnull String path, @Nonnegative int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    private int                              active;
+    private volatile boolean                 aborted;
+    private final AtomicBoolean              closed      = new AtomicBoolean(false);
+    private final ArrayDeque<Directory>      directories = new ArrayDeque<Directory>();
+    private boolean                          ended;
+    private final AtomicReference<Throwable> failure     = new AtomicReference<Throwable>();
+    private int                              listing;
+    private Object                           next;
+    private final TreeWalkOptions            options;
+    private final BlockingQueue<Object>      output;
+    private final Atmos                      provider;
+    private final AtomicBoolean              released    = new AtomicBoolean(false);
+    private final String                     root;
+    private final AtomicBoolean              started     = new AtomicBoolean(false);
+
+    public AtmosTreeWalker(@Nonnull Atmos provider, @Nullable String root, @Nonnull TreeWalkOptions options) {
+        if( root != null ) {
+            while( root.startsWith("/") && !root.equals("/") ) {
+                root = root.substring(1);
+            }
+            while( root.endsWith("/") && !root.equals("/") ) {
+                root = root.substring(0, root.length()-1);
+            }
+        }
+        this.provider = provider;
+        this.root = (root == null || root.equals("/") ? null : root);
+        this.options = options;
+        this.output = new ArrayBlockingQueue<Object>(options.getQueueCapacity());
+    }
+
+    /**
+     * Stops the walk, abandoning any listings in progress and discarding entries not yet consumed. Calling close()
+     * on a walk that has already ended has no effect.
+     */
+    @Override
+    public void close() {
+        finish(null);
+    }
+
+    private void complete() {
+        if( closed.compareAndSet(false, true) ) {
+            release();
+        }
+    }
+
+    private boolean emit(@Nonnull Object item) throws InterruptedException {
+        while( !output.offer(item, POLL_MS, TimeUnit.MILLISECONDS) ) {
+            if( closed.get() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(@Nonnull String path, @Nonnegative int depth) {
+        synchronized( this ) {
+            directories.addLast(new Directory(path, depth));
+        }
+        launch();
+    }
+
+    private void finish(@Nullable Throwable t) {
+        if( t != null ) {
+            failure.compareAndSet(null, t);
+        }
+        if( closed.compareAndSet(false, true) ) {
+            // the consumer notices the flag rather than an END marker, which listings still emitting could crowd out
+            aborted = true;
+            output.clear();
+            if( started.get() ) {
+                release();
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        start();
+        while( next == null ) {
+            if( aborted ) {
+                next = END;
+                break;
+            }
+            try {
+                next = output.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new JiteratorLoadException(e);
+            }
+            if( next == null ) {
+                // directories the saturated pool could not take while no listing was running are offered again here
+                launch();
+            }
+        }
+        if( next == END ) {
+            Throwable t = failure.get();
+
+            if( t != null ) {
+                throw new JiteratorLoadException(t);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public @Nonnull Iterator<Blob> iterator() {
+        return this;
+    }
+
+    /**
+     * Starts workers on the listing pool until the walk's parallelism is reached or there are no more directories
+     * waiting to be listed. Work is only offered to the pool, never run inline: directories the saturated pool
+     * cannot take stay queued on the walk for its running workers (or, failing that, the consumer) to hand out.
+     */
+    private void launch() {
+        while( !closed.get() ) {
+            synchronized( this ) {
+                if( active >= options.getParallelism() || active >= directories.size() ) {
+                    return;
+                }
+                active++;
+            }
+            boolean accepted = provider.getListingExecutor().offer(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+
+            if( !accepted ) {
+                synchronized( this ) {
+                    active--;
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public @Nonnull Blob next() {
+        if( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        Blob blob = (Blob)next;
+
+        next = null;
+        return blob;
+    }
+
+    private void release() {
+        if( released.compareAndSet(false, true) ) {
+            provider.release();
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Walked entries cannot be removed through the iterator");
+    }
+
+    private void start() {
+        if( closed.get() || !started.compareAndSet(false, true) ) {
+            return;
+        }
+        provider.hold();
+        enqueue(root == null ? "/" : root, 0);
+    }
+
+    private void walk(@Nonnull String directory, @Nonnegative int depth) throws Exception {
+        AtmosMethod method = new AtmosMethod(provider);
+
+        for( Blob blob : method.list(directory) ) {
+            if( closed.get() ) {
+                return;
+            }
+            if( blob.isContainer() ) {
+                String path = blob.getBucketName();
+
+                if( path != null && options.descendInto(path, depth + 1) ) {
+                    enqueue(path, depth + 1);
+                }
+            }
+            if( options.matches(blob) && !emit(blob) ) {
+                return;
+            }
+        }
+    }
+
+    private void work() {
+        while( true ) {
+            Directory d;
+
+            synchronized( this ) {
+                d = (closed.get() ? null : directories.pollFirst());
+                if( d == null ) {
+                    active--;
+                    if( ended || listing > 0 || !directories.isEmpty() || closed.get() ) {
+                        return;
+                    }
+                    ended = true;
+                }
+                else {
+                    listing++;
+                }
+            }
+            if( d == null ) {
+                // nothing is being listed and nothing is waiting, so the walk is over
+                try {
+                    if( emit(END) ) {
+                        complete();
+                    }
+                }
+                catch( InterruptedException e ) {
+                    finish(null);
+                }
+                return;
+            }
+            try {
+                walk(d.path, d.depth);
+            }
+            catch( InterruptedException e ) {
+                finish(null);
+            }
+            catch( Throwable t ) {
+                logger.error("Failed to list " + d.path + ": " + t.getMessage());
+                finish(t);
+            }
+            finally {
+                synchronized( this ) {
+                    listing--;
+                }
+            }
+        }
+    }
+}
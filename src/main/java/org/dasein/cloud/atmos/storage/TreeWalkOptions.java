@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.atmos.storage;
+
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.uom.storage.Byte;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.regex.Pattern;
+
+/**
+ * Options governing a recursive walk of the Atmos namespace via {@link AtmosTreeWalker}. Depth, prefix and
+ * parallelism options shape the traversal itself while the glob, size and timestamp options filter what is emitted.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class TreeWalkOptions {
+    static public final int DEFAULT_PARALLELISM    = 8;
+    static public final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    static public @Nonnull TreeWalkOptions getInstance() {
+        return new TreeWalkOptions();
+    }
+
+    static public @Nonnull TreeWalkOptions getInstance(@Nonnegative int maxDepth) {
+        TreeWalkOptions options = new TreeWalkOptions();
+
+        options.maxDepth = maxDepth;
+        return options;
+    }
+
+    private String  glob;
+    private Pattern globPattern;
+    private boolean includeDirectories = true;
+    private int     maxDepth           = -1;
+    private long    maxSize            = -1L;
+    private long    minSize            = -1L;
+    private long    modifiedSince      = 0L;
+    private int     parallelism        = DEFAULT_PARALLELISM;
+    private String  prefix;
+    private int     queueCapacity      = DEFAULT_QUEUE_CAPACITY;
+
+    private TreeWalkOptions() { }
+
+    /**
+     * @return the glob against which object names (or paths, if the glob contains a /) are matched, if any
+     */
+    public @Nullable String getGlob() {
+        return glob;
+    }
+
+    /**
+     * @return the maximum depth below the walk root to list (0 lists only the root), or -1 for no limit
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public long getModifiedSince() {
+        return modifiedSince;
+    }
+
+    /**
+     * @return the maximum number of directories listed concurrently
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return a path prefix (relative to the namespace root) that all emitted entries must share
+     */
+    public @Nullable String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the number of entries buffered ahead of the consumer before listing threads block
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public boolean isIncludeDirectories() {
+        return includeDirectories;
+    }
+
+    /**
+     * Indicates whether the walk should list the contents of the specified directory.
+     * @param directory the full path of the directory, without leading or trailing slashes
+     * @param depth the depth of the directory below the walk root, the root's own subdirectories being at depth 1
+     * @return true if the directory should be listed
+     */
+    public boolean descendInto(@Nonnull String directory, @Nonnegative int depth) {
+        if( maxDepth > -1 && depth > maxDepth ) {
+            return false;
+        }
+        if( prefix == null ) {
+            return true;
+        }
+        String path = directory + "/";
+
+        return (path.startsWith(prefix) || prefix.startsWith(path));
+    }
+
+    /**
+     * Matches a walked entry against the filter criteria in these options.
+     * @param blob the directory or object found during the walk
+     * @return true if the entry should be emitted
+     */
+    public boolean matches(@Nonnull Blob blob) {
+        String path = toPath(blob);
+
+        if( prefix != null && !path.startsWith(prefix) ) {
+            return false;
+        }
+        if( blob.isContainer() ) {
+            return includeDirectories;
+        }
+        if( globPattern != null ) {
+            String name = (glob.indexOf('/') > -1 ? path : blob.getObjectName());
+
+            if( name == null || !globPattern.matcher(name).matches() ) {
+                return false;
+            }
+        }
+        if( minSize > -1L || maxSize > -1L ) {
+            Storage<Byte> size = blob.getSize();
+            long bytes = (size == null ? 0L : size.getQuantity().longValue());
+
+            if( minSize > -1L && bytes < minSize ) {
+                return false;
+            }
+            if( maxSize > -1L && bytes > maxSize ) {
+                return false;
+            }
+        }
+        return (modifiedSince < 1L || blob.getCreationTimestamp() >= modifiedSince);
+    }
+
+    static @Nonnull String toPath(@Nonnull Blob blob) {
+        String bucket = blob.getBucketName();
+
+        if( blob.isContainer() || blob.getObjectName() == null ) {
+            return (bucket == null ? "" : bucket);
+        }
+        return (bucket == null ? blob.getObjectName() : bucket + "/" + blob.getObjectName());
+    }
+
+    static @Nonnull Pattern toPattern(@Nonnull String glob) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+
+        while( i < glob.length() ) {
+            char c = glob.charAt(i);
+
+            if( c == '*' ) {
+                if( i + 1 < glob.length() && glob.charAt(i+1) == '*' ) {
+                    regex.append(".*");
+                    i++;
+                }
+                else {
+                    regex.append("[^/]*");
+                }
+            }
+            else if( c == '?' ) {
+                regex.append("[^/]");
+            }
+            else if( Character.isLetterOrDigit(c) ) {
+                regex.append(c);
+            }
+            else {
+                regex.append('\\').append(c);
+            }
+            i++;
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    public @Nonnull TreeWalkOptions matchingGlob(@Nonnull String glob) {
+        this.glob = glob;
+        this.globPattern = toPattern(glob);
+        return this;
+    }
+
+    public @Nonnull TreeWalkOptions withDirectories(boolean includeDirectories) {
+        this.includeDirectories = includeDirectories;
+        return this;
+    }
+
+    public @Nonnull TreeWalkOptions withMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public @Nonnull TreeWalkOptions withModifiedSince(long timestamp) {
+        this.modifiedSince = timestamp;
+        return this;
+    }
+
+    public @Nonnull TreeWalkOptions withParallelism(@Nonnegative int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    public @Nonnull TreeWalkOptions withPrefix(@Nonnull String prefix) {
+        while( prefix.startsWith("/") ) {
+            prefix = prefix.substring(1);
+        }
+        this.prefix = (prefix.length() < 1 ? null : prefix);
+        return this;
+    }
+
+    public @Nonnull TreeWalkOptions withQueueCapacity(@Nonnegative int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        return this;
+    }
+
+    public @Nonnull TreeWalkOptions withSizeBetween(long minSize, long maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        return this;
+    }
+}
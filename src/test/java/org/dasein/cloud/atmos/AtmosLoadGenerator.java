@@ -0,0 +1,722 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.commons.codec.binary.Base64;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.atmos.storage.AtmosObjectStore;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.cloud.storage.FileTransfer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Drives a configurable mix of operations through {@link AtmosObjectStore} from many threads for a fixed time and
+ * reports throughput, latency percentiles and errors per operation. It runs against any Atmos endpoint, or against an
+ * {@link AtmosStandIn} started in-process when no endpoint is given, so client pool sizes and client versions can be
+ * compared before they reach production.
+ * <p>Everything is configured through system properties:</p>
+ * <ul>
+ *     <li><code>endpoint</code>, <code>accountNumber</code>, <code>accessPublic</code>, <code>accessPrivate</code>,
+ *     <code>regionId</code> - the cloud to load (same names as the test suite); omit <code>endpoint</code> or set it
+ *     to <code>standin</code> to use a local stand-in</li>
+ *     <li><code>standin.latency</code> (e.g. <code>5-20</code> ms), <code>standin.bandwidth</code> (bytes/s),
+ *     <code>standin.errorRate</code> - stand-in behavior</li>
+ *     <li><code>load.workload</code> - a preset (<code>mixed</code>, <code>listing</code>, <code>write-heavy</code>,
+ *     <code>delete-storm</code>) or weights such as <code>info:70,upload:20,download:10</code></li>
+ *     <li><code>load.sizes</code> - object sizes such as <code>4k</code>, <code>1k-64k</code> or
+ *     <code>4k:90,1m-8m:10</code> (weighted ranges)</li>
+ *     <li><code>load.threads</code>, <code>load.duration</code> and <code>load.warmup</code> (seconds),
+ *     <code>load.objects</code> (size of the working set), <code>load.bucket</code>, <code>load.cleanup</code></li>
+ *     <li><code>atmos.*</code> - passed to the provider as custom properties with the prefix removed, e.g.
+ *     <code>-Datmos.maxConnectionsPerRoute=100</code></li>
+ * </ul>
+ * <pre>
+ *     mvn package
+ *     java -cp "target/classes:target/test-classes:target/lib/*" -Dload.workload=mixed -Dload.threads=32 org.dasein.cloud.atmos.AtmosLoadGenerator
+ * </pre>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosLoadGenerator {
+    /**
+     * The operations a workload may mix.
+     */
+    public enum Operation {
+        INFO, UPLOAD, DOWNLOAD, LIST, METADATA, DELETE;
+
+        static public @Nonnull Operation parse(@Nonnull String value) {
+            for( Operation op : values() ) {
+                if( op.name().equalsIgnoreCase(value.trim()) ) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation: " + value);
+        }
+    }
+
+    /**
+     * A weighted mix of operations.
+     */
+    static public class Workload {
+        /**
+         * Parses a preset name or a list of <code>operation:weight</code> pairs.
+         * @param spec the workload specification
+         * @return the workload
+         */
+        static public @Nonnull Workload parse(@Nonnull String spec) {
+            String s = spec.trim().toLowerCase();
+
+            if( s.equals("mixed") ) {
+                s = "info:70,upload:20,download:10";
+            }
+            else if( s.equals("listing") ) {
+                s = "list:80,info:20";
+            }
+            else if( s.equals("write-heavy") ) {
+                s = "upload:70,info:20,delete:10";
+            }
+            else if( s.equals("delete-storm") ) {
+                s = "delete:80,upload:20";
+            }
+            Workload workload = new Workload(spec);
+
+            for( String part : s.split(",") ) {
+                int idx = part.indexOf(':');
+
+                if( part.trim().length() < 1 ) {
+                    continue;
+                }
+                Operation op = Operation.parse(idx < 0 ? part : part.substring(0, idx));
+                int weight = (idx < 0 ? 1 : Integer.parseInt(part.substring(idx + 1).trim()));
+
+                if( weight > 0 ) {
+                    workload.weights.put(op, weight);
+                    workload.total += weight;
+                }
+            }
+            if( workload.total < 1 ) {
+                throw new IllegalArgumentException("The workload " + spec + " contains no operations");
+            }
+            return workload;
+        }
+
+        private final String                      name;
+        private int                               total;
+        private final EnumMap<Operation,Integer>  weights = new EnumMap<Operation, Integer>(Operation.class);
+
+        private Workload(@Nonnull String name) { this.name = name; }
+
+        public @Nonnull Operation next(@Nonnull Random random) {
+            int pick = random.nextInt(total);
+
+            for( Map.Entry<Operation,Integer> entry : weights.entrySet() ) {
+                pick -= entry.getValue();
+                if( pick < 0 ) {
+                    return entry.getKey();
+                }
+            }
+            return weights.keySet().iterator().next();
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return name + " " + weights;
+        }
+    }
+
+    /**
+     * A weighted set of object size ranges, in bytes.
+     */
+    static public class SizeDistribution {
+        static private long toBytes(@Nonnull String value) {
+            String v = value.trim().toLowerCase();
+            long multiplier = 1L;
+
+            if( v.endsWith("b") ) {
+                v = v.substring(0, v.length() - 1);
+            }
+            if( v.endsWith("k") ) {
+                multiplier = 1024L;
+            }
+            else if( v.endsWith("m") ) {
+                multiplier = 1024L * 1024L;
+            }
+            else if( v.endsWith("g") ) {
+                multiplier = 1024L * 1024L * 1024L;
+            }
+            if( multiplier > 1L ) {
+                v = v.substring(0, v.length() - 1);
+            }
+            return Long.parseLong(v.trim()) * multiplier;
+        }
+
+        /**
+         * Parses a list of <code>size[-size][:weight]</code> entries.
+         * @param spec the size specification
+         * @return the distribution
+         */
+        static public @Nonnull SizeDistribution parse(@Nonnull String spec) {
+            SizeDistribution sizes = new SizeDistribution(spec);
+
+            for( String part : spec.split(",") ) {
+                if( part.trim().length() < 1 ) {
+                    continue;
+                }
+                int colon = part.indexOf(':');
+                String range = (colon < 0 ? part : part.substring(0, colon));
+                int weight = (colon < 0 ? 1 : Integer.parseInt(part.substring(colon + 1).trim()));
+                int dash = range.indexOf('-');
+                long min = toBytes(dash < 0 ? range : range.substring(0, dash));
+                long max = (dash < 0 ? min : toBytes(range.substring(dash + 1)));
+
+                sizes.ranges.add(new long[] { min, Math.max(min, max), weight });
+                sizes.total += weight;
+            }
+            if( sizes.total < 1 ) {
+                throw new IllegalArgumentException("The size distribution " + spec + " is empty");
+            }
+            return sizes;
+        }
+
+        private final String       name;
+        private final ArrayList<long[]> ranges = new ArrayList<long[]>();
+        private long               total;
+
+        private SizeDistribution(@Nonnull String name) { this.name = name; }
+
+        public @Nonnegative long next(@Nonnull Random random) {
+            long pick = (long)(random.nextDouble() * total);
+
+            for( long[] range : ranges ) {
+                pick -= range[2];
+                if( pick < 0 ) {
+                    return range[0] + (long)(random.nextDouble() * (range[1] - range[0] + 1));
+                }
+            }
+            return ranges.get(0)[0];
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * What was observed for one operation during the measured part of a run.
+     */
+    static public class Result {
+        private final AtomicLong                         bytes     = new AtomicLong(0L);
+        private final ConcurrentHashMap<String,AtomicLong> errors  = new ConcurrentHashMap<String, AtomicLong>();
+        private final AtmosLatencyHistogram              latencies = new AtmosLatencyHistogram();
+
+        public @Nonnegative long getBytes() {
+            return bytes.get();
+        }
+
+        public @Nonnegative long getCount() {
+            return latencies.getCount();
+        }
+
+        /**
+         * @return the number of failures of each kind, keyed by error type and Atmos error code
+         */
+        public @Nonnull Map<String,Long> getErrors() {
+            TreeMap<String,Long> map = new TreeMap<String, Long>();
+
+            for( Map.Entry<String,AtomicLong> entry : errors.entrySet() ) {
+                map.put(entry.getKey(), entry.getValue().get());
+            }
+            return map;
+        }
+
+        public @Nonnegative long getErrorCount() {
+            long count = 0L;
+
+            for( AtomicLong c : errors.values() ) {
+                count += c.get();
+            }
+            return count;
+        }
+
+        /**
+         * @return the latencies of successful calls, in microseconds
+         */
+        public @Nonnull AtmosLatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        private void failed(@Nonnull String kind) {
+            AtomicLong count = errors.get(kind);
+
+            if( count == null ) {
+                AtomicLong existing = errors.putIfAbsent(kind, count = new AtomicLong(0L));
+
+                if( existing != null ) {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    static public @Nonnull AtmosLoadGenerator getInstance(@Nonnull Atmos provider) {
+        return new AtmosLoadGenerator(provider);
+    }
+
+    static public void main(String ... args) throws Exception {
+        Properties system = System.getProperties();
+        String endpoint = system.getProperty("endpoint");
+        AtmosStandIn standIn = null;
+        ProviderContext ctx;
+
+        if( endpoint == null || endpoint.trim().length() < 1 || endpoint.equalsIgnoreCase("standin") ) {
+            byte[] key = new byte[24];
+            String latency = system.getProperty("standin.latency", "0");
+            int dash = latency.indexOf('-');
+
+            new Random().nextBytes(key);
+            String secret = Base64.encodeBase64String(key);
+
+            standIn = AtmosStandIn.getInstance("load/subtenant", secret);
+            standIn.withLatency(Long.parseLong(dash < 0 ? latency : latency.substring(0, dash)), Long.parseLong(dash < 0 ? latency : latency.substring(dash + 1)));
+            standIn.withBandwidth(Long.parseLong(system.getProperty("standin.bandwidth", "0")));
+            standIn.withErrorRate(Double.parseDouble(system.getProperty("standin.errorRate", "0")));
+            standIn.withThreads(Integer.parseInt(system.getProperty("standin.threads", "64")));
+            standIn.start();
+            ctx = new ProviderContext("subtenant", "standin");
+            ctx.setAccessPublic("load".getBytes("utf-8"));
+            ctx.setAccessPrivate(secret.getBytes("utf-8"));
+            ctx.setEndpoint(standIn.getEndpoint());
+        }
+        else {
+            ctx = new ProviderContext(system.getProperty("accountNumber"), system.getProperty("regionId", "atmos"));
+            ctx.setAccessPublic(system.getProperty("accessPublic", "").getBytes("utf-8"));
+            ctx.setAccessPrivate(system.getProperty("accessPrivate", "").getBytes("utf-8"));
+            ctx.setEndpoint(endpoint);
+        }
+        ctx.setCloudName(system.getProperty("cloudName", "Atmos"));
+        ctx.setProviderName(system.getProperty("providerName", "EMC"));
+
+        Properties custom = new Properties();
+
+        for( String name : system.stringPropertyNames() ) {
+            if( name.startsWith("atmos.") ) {
+                custom.setProperty(name.substring("atmos.".length()), system.getProperty(name));
+            }
+        }
+        ctx.setCustomProperties(custom);
+
+        Atmos provider = new Atmos();
+
+        provider.connect(ctx);
+        try {
+            AtmosLoadGenerator generator = getInstance(provider)
+                    .withWorkload(Workload.parse(system.getProperty("load.workload", "mixed")))
+                    .withSizes(SizeDistribution.parse(system.getProperty("load.sizes", "1k-64k")))
+                    .withThreads(Integer.parseInt(system.getProperty("load.threads", "16")))
+                    .withDuration(Long.parseLong(system.getProperty("load.duration", "60")), TimeUnit.SECONDS)
+                    .withWarmup(Long.parseLong(system.getProperty("load.warmup", "5")), TimeUnit.SECONDS)
+                    .withObjects(Integer.parseInt(system.getProperty("load.objects", "500")))
+                    .withBucket(system.getProperty("load.bucket", "dasein-load"))
+                    .withCleanup(Boolean.parseBoolean(system.getProperty("load.cleanup", "true")));
+
+            generator.run();
+            generator.report(System.out);
+        }
+        finally {
+            provider.close();
+            if( standIn != null ) {
+                standIn.stop();
+            }
+        }
+    }
+
+    private String                      bucket     = "dasein-load";
+    private boolean                     cleanup    = true;
+    private long                        durationNs = TimeUnit.SECONDS.toNanos(60);
+    private long                        measuredNs;
+    private final AtomicLong            nextName   = new AtomicLong(0L);
+    private int                         objects    = 500;
+    private final Atmos                 provider;
+    private final EnumMap<Operation,Result> results = new EnumMap<Operation, Result>(Operation.class);
+    private File[]                      samples;
+    private SizeDistribution            sizes      = SizeDistribution.parse("1k-64k");
+    private int                         threads    = 16;
+    private long                        warmupNs   = TimeUnit.SECONDS.toNanos(5);
+    private Workload                    workload   = Workload.parse("mixed");
+    private AtomicReferenceArray<String> working;
+
+    private AtmosLoadGenerator(@Nonnull Atmos provider) {
+        this.provider = provider;
+        for( Operation op : Operation.values() ) {
+            results.put(op, new Result());
+        }
+    }
+
+    public @Nonnull AtmosLoadGenerator withBucket(@Nonnull String bucket) {
+        this.bucket = bucket;
+        return this;
+    }
+
+    /**
+     * @param cleanup true to delete everything the run created once it finishes
+     * @return this
+     */
+    public @Nonnull AtmosLoadGenerator withCleanup(boolean cleanup) {
+        this.cleanup = cleanup;
+        return this;
+    }
+
+    public @Nonnull AtmosLoadGenerator withDuration(@Nonnegative long duration, @Nonnull TimeUnit unit) {
+        this.durationNs = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param objects the number of objects uploaded before the run and kept in the working set
+     * @return this
+     */
+    public @Nonnull AtmosLoadGenerator withObjects(@Nonnegative int objects) {
+        this.objects = Math.max(1, objects);
+        return this;
+    }
+
+    public @Nonnull AtmosLoadGenerator withSizes(@Nonnull SizeDistribution sizes) {
+        this.sizes = sizes;
+        return this;
+    }
+
+    public @Nonnull AtmosLoadGenerator withThreads(@Nonnegative int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * @param warmup how long to run before measuring
+     * @param unit the unit of the warmup time
+     * @return this
+     */
+    public @Nonnull AtmosLoadGenerator withWarmup(@Nonnegative long warmup, @Nonnull TimeUnit unit) {
+        this.warmupNs = unit.toNanos(warmup);
+        return this;
+    }
+
+    public @Nonnull AtmosLoadGenerator withWorkload(@Nonnull Workload workload) {
+        this.workload = workload;
+        return this;
+    }
+
+    public @Nonnull Map<Operation,Result> getResults() {
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * @return the length of the measured part of the run, in seconds
+     */
+    public double getMeasuredSeconds() {
+        return measuredNs / 1000000000.0;
+    }
+
+    /**
+     * Prepares the working set, runs the workload and, if requested, removes everything it created.
+     * @throws CloudException Atmos refused to set up or clean up the working set
+     * @throws InternalException the working set could not be prepared locally
+     * @throws InterruptedException this thread was interrupted while waiting for the workers
+     */
+    public void run() throws CloudException, InternalException, InterruptedException {
+        AtmosObjectStore store = provider.getStorageServices().getOnlineStorageSupport();
+
+        prepare(store);
+        try {
+            final CountDownLatch done = new CountDownLatch(threads);
+            final long started = System.nanoTime();
+            final long measureFrom = started + warmupNs;
+            final long end = measureFrom + durationNs;
+
+            for( int i=0; i<threads; i++ ) {
+                final int worker = i;
+                Thread t = new Thread("load-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            work(worker, measureFrom, end);
+                        }
+                        finally {
+                            done.countDown();
+                        }
+                    }
+                };
+
+                t.setDaemon(true);
+                t.start();
+            }
+            done.await();
+            measuredNs = Math.max(1L, Math.min(System.nanoTime(), end) - measureFrom);
+        }
+        finally {
+            for( File sample : samples ) {
+                if( !sample.delete() ) {
+                    sample.deleteOnExit();
+                }
+            }
+            if( cleanup ) {
+                clean(store);
+            }
+        }
+    }
+
+    /**
+     * Writes a summary of the run, followed by the client-side metrics if the provider is recording them.
+     * @param out where to write the summary
+     */
+    public void report(@Nonnull PrintStream out) {
+        double seconds = getMeasuredSeconds();
+        long total = 0L, errors = 0L;
+
+        out.println("Workload: " + workload + ", sizes " + sizes + ", " + threads + " threads, " + String.format("%.1f", seconds) + "s measured");
+        out.println(String.format("%-9s %9s %10s %9s %9s %9s %9s %9s %9s %8s %10s", "operation", "count", "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors", "MB/s"));
+        for( Map.Entry<Operation,Result> entry : results.entrySet() ) {
+            Result r = entry.getValue();
+            AtmosLatencyHistogram h = r.getLatencies();
+
+            if( r.getCount() < 1 && r.getErrorCount() < 1 ) {
+                continue;
+            }
+            total += r.getCount();
+            errors += r.getErrorCount();
+            out.println(String.format("%-9s %9d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %8d %10.2f", entry.getKey().name().toLowerCase(), r.getCount(), r.getCount() / seconds, h.getMean() / 1000.0, h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0, h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0, h.getMax() / 1000.0, r.getErrorCount(), r.getBytes() / seconds / (1024.0 * 1024.0)));
+        }
+        out.println(String.format("%-9s %9d %10.1f %69s %8d", "total", total, total / seconds, "", errors));
+        for( Map.Entry<Operation,Result> entry : results.entrySet() ) {
+            for( Map.Entry<String,Long> error : entry.getValue().getErrors().entrySet() ) {
+                out.println("  " + entry.getKey().name().toLowerCase() + " " + error.getKey() + ": " + error.getValue());
+            }
+        }
+        AtmosMetrics metrics = provider.getMetrics();
+
+        if( metrics instanceof AtmosMetricsRegistry ) {
+            out.println("Client metrics:");
+            for( Map.Entry<String,AtmosMetricsRegistry.Snapshot> entry : ((AtmosMetricsRegistry)metrics).getSnapshots().entrySet() ) {
+                out.println("  " + entry.getKey() + " " + entry.getValue());
+            }
+            out.println("  lease " + ((AtmosMetricsRegistry)metrics).getLeaseTimes());
+        }
+    }
+
+    private void clean(@Nonnull AtmosObjectStore store) {
+        try {
+            for( Blob blob : store.list(bucket) ) {
+                if( !blob.isContainer() ) {
+                    try {
+                        store.removeObject(bucket, blob.getObjectName());
+                    }
+                    catch( CloudException e ) {
+                        System.err.println("Unable to remove " + bucket + "/" + blob.getObjectName() + ": " + e.getMessage());
+                    }
+                }
+            }
+            store.removeBucket(bucket);
+        }
+        catch( CloudException e ) {
+            System.err.println("Unable to clean up " + bucket + ": " + e.getMessage());
+        }
+        catch( InternalException e ) {
+            System.err.println("Unable to clean up " + bucket + ": " + e.getMessage());
+        }
+    }
+
+    private long fetch(@Nonnull AtmosObjectStore store, @Nonnull String name, @Nonnull File sink) throws CloudException, InternalException, InterruptedException {
+        FileTransfer transfer = store.download(bucket, name, sink);
+
+        synchronized( transfer ) {
+            while( !transfer.isComplete() ) {
+                transfer.wait(1000L);
+            }
+        }
+        Throwable error = transfer.getTransferError();
+
+        if( error instanceof CloudException ) {
+            throw (CloudException)error;
+        }
+        else if( error instanceof InternalException ) {
+            throw (InternalException)error;
+        }
+        else if( error != null ) {
+            throw new InternalException(error);
+        }
+        return sink.length();
+    }
+
+    private void prepare(@Nonnull AtmosObjectStore store) throws CloudException, InternalException {
+        Random random = new Random();
+        int count = Math.min(16, objects);
+
+        samples = new File[count];
+        try {
+            byte[] buffer = new byte[65536];
+
+            random.nextBytes(buffer);
+            for( int i=0; i<count; i++ ) {
+                long size = sizes.next(random);
+                File file = File.createTempFile("atmos-load", ".dat");
+                FileOutputStream out = new FileOutputStream(file);
+
+                file.deleteOnExit();
+                try {
+                    while( size > 0 ) {
+                        int n = (int)Math.min(buffer.length, size);
+
+                        out.write(buffer, 0, n);
+                        size -= n;
+                    }
+                }
+                finally {
+                    out.close();
+                }
+                samples[i] = file;
+            }
+        }
+        catch( IOException e ) {
+            throw new InternalException(e);
+        }
+        if( !store.exists(bucket) ) {
+            store.createBucket(bucket, false);
+        }
+        working = new AtomicReferenceArray<String>(objects);
+        for( int i=0; i<objects; i++ ) {
+            String name = "load-" + nextName.getAndIncrement();
+
+            store.upload(samples[random.nextInt(samples.length)], bucket, name);
+            working.set(i, name);
+        }
+    }
+
+    private void work(int worker, long measureFrom, long end) {
+        AtmosObjectStore store = provider.getStorageServices().getOnlineStorageSupport();
+        Random random = new Random();
+        File sink;
+
+        try {
+            sink = File.createTempFile("atmos-load-" + worker, ".dat");
+            sink.deleteOnExit();
+        }
+        catch( IOException e ) {
+            throw new RuntimeException(e);
+        }
+        try {
+            long now;
+
+            while( (now = System.nanoTime()) < end ) {
+                Operation op = workload.next(random);
+                int slot = random.nextInt(objects);
+                String name = working.get(slot);
+                long bytes = 0L;
+
+                if( name == null && !op.equals(Operation.UPLOAD) && !op.equals(Operation.LIST) ) {
+                    // the object was deleted; fill the slot instead so the working set recovers
+                    op = Operation.UPLOAD;
+                }
+                long start = System.nanoTime();
+
+                try {
+                    switch( op ) {
+                        case INFO:
+                            store.getObject(bucket, name);
+                            break;
+                        case DOWNLOAD:
+                            bytes = fetch(store, name, sink);
+                            break;
+                        case LIST:
+                            for( Blob ignore : store.list(bucket) ) {
+                                bytes++;
+                            }
+                            bytes = 0L;
+                            break;
+                        case METADATA:
+                            store.getMetadata(bucket, name);
+                            break;
+                        case DELETE:
+                            if( working.compareAndSet(slot, name, null) ) {
+                                store.removeObject(bucket, name);
+                            }
+                            break;
+                        case UPLOAD:
+                            File sample = samples[random.nextInt(samples.length)];
+                            String fresh = "load-" + nextName.getAndIncrement();
+
+                            store.upload(sample, bucket, fresh);
+                            bytes = sample.length();
+                            working.set(slot, fresh);
+                            break;
+                    }
+                    if( now >= measureFrom ) {
+                        Result r = results.get(op);
+
+                        r.latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                        r.bytes.addAndGet(bytes);
+                    }
+                }
+                catch( Throwable t ) {
+                    if( now >= measureFrom ) {
+                        results.get(op).failed(toErrorKind(t));
+                    }
+                }
+            }
+        }
+        finally {
+            if( !sink.delete() ) {
+                sink.deleteOnExit();
+            }
+        }
+    }
+
+    private @Nonnull String toErrorKind(@Nullable Throwable t) {
+        if( t instanceof CloudException ) {
+            CloudException e = (CloudException)t;
+            String code = e.getProviderCode();
+
+            return e.getErrorType() + (code == null ? "" : ":" + code);
+        }
+        return (t == null ? "unknown" : t.getClass().getSimpleName());
+    }
+}
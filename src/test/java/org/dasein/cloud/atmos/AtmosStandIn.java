@@ -0,0 +1,1400 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Atmos REST API, for functional tests and throughput benchmarks that must not touch
+ * a real Atmos cluster. It serves the namespace (<code>rest/namespace</code>) and object (<code>rest/objects</code>)
+ * endpoints as used by {@link AtmosMethod}: directory creation and paginated listing, object create/read/update/delete
+ * including byte ranges, user and listable metadata, listable tag queries, rename and hard links. Requests must be signed the way
+ * {@link AtmosMethod#authorize} signs them, and failures are reported with Atmos error codes.
+ * <p>Object content lives in memory unless a directory is supplied with {@link #withDirectory(File)}. Latency,
+ * bandwidth and error rates may be injected to approximate a remote, loaded cluster.</p>
+ * <pre>
+ *     AtmosStandIn server = AtmosStandIn.getInstance("uid/subtenant", secret).withLatency(5, 20).start();
+ *     // point a ProviderContext at server.getEndpoint()
+ *     server.stop();
+ * </pre>
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosStandIn {
+    static public final String BAD_RANGE          = "1004";
+    static public final String DIRECTORY_NOT_EMPTY = "1023";
+    static public final String EXISTS             = "1016";
+    static public final String INTERNAL_ERROR     = AtmosException.INTERNAL_ERROR;
+    static public final String INVALID_ARGUMENT   = "1002";
+    static public final String NOT_FOUND          = "1003";
+    static public final String SERVER_BUSY        = AtmosException.SERVER_BUSY;
+    static public final String SIGNATURE_MISMATCH = "1032";
+    static public final String UID_NOT_FOUND      = "1033";
+
+    static private final String NAMESPACE = "/rest/namespace";
+    static private final String OBJECTS   = "/rest/objects";
+
+    static public @Nonnull AtmosStandIn getInstance(@Nonnull String uid, @Nonnull String sharedSecret) {
+        return new AtmosStandIn(uid, sharedSecret);
+    }
+
+    static private @Nonnull String formatIso(long timestamp) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return fmt.format(new Date(timestamp));
+    }
+
+    static private @Nonnull String formatHttp(long timestamp) {
+        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+
+        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return fmt.format(new Date(timestamp));
+    }
+
+    static private @Nonnull String escape(@Nonnull String str) {
+        return str.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * An error to report to the client with an Atmos error code.
+     */
+    static private class Failure extends Exception {
+        private final String code;
+        private final int    status;
+
+        public Failure(int status, @Nonnull String code, @Nonnull String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    /**
+     * An object or directory in the namespace.
+     */
+    static private class Entry {
+        private long                         atime;
+        private byte[]                       content;
+        private final long                   ctime;
+        private final boolean                directory;
+        private File                         file;
+        private final LinkedHashMap<String,String> listable = new LinkedHashMap<String, String>();
+        private final LinkedHashMap<String,String> metadata = new LinkedHashMap<String, String>();
+        private long                         mtime;
+        private final String                 objectId;
+        private String                       path;
+        private long                         size;
+
+        public Entry(@Nonnull String path, boolean directory) {
+            this.objectId = UUID.randomUUID().toString().replace("-", "") + Long.toHexString(System.nanoTime());
+            this.path = path;
+            this.directory = directory;
+            this.ctime = System.currentTimeMillis();
+            this.mtime = ctime;
+            this.atime = ctime;
+        }
+
+        public @Nonnull String getName() {
+            String p = (directory ? path.substring(0, path.length()-1) : path);
+
+            return p.substring(p.lastIndexOf('/') + 1);
+        }
+    }
+
+    /**
+     * Paces a stream to the configured bandwidth cap.
+     */
+    private class Throttled extends FilterOutputStream {
+        private final long started = System.nanoTime();
+        private long       written;
+
+        public Throttled(@Nonnull OutputStream out) { super(out); }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+            while( len > 0 ) {
+                int chunk = Math.min(len, 8192);
+
+                out.write(b, off, chunk);
+                written += chunk;
+                off += chunk;
+                len -= chunk;
+                pace(started, written);
+            }
+        }
+    }
+
+    private final AtomicLong                          bytesIn       = new AtomicLong(0L);
+    private final AtomicLong                          bytesOut      = new AtomicLong(0L);
+    private long                                      bytesPerSecond;
+    private File                                      directory;
+    private double                                    errorRate;
+    private final AtomicLong                          errors        = new AtomicLong(0L);
+    private ExecutorService                           executor;
+    private final AtomicLong                          injected      = new AtomicLong(0L);
+    private long                                      maxLatency;
+    private long                                      minLatency;
+    private final ConcurrentSkipListMap<String,Entry> namespace     = new ConcurrentSkipListMap<String, Entry>();
+    private final ConcurrentSkipListMap<String,Entry> objects       = new ConcurrentSkipListMap<String, Entry>();
+    private int                                       pageSize      = 1000;
+    private int                                       port;
+    private final Random                              random        = new Random();
+    private final AtomicLong                          requests      = new AtomicLong(0L);
+    private HttpServer                                server;
+    private final byte[]                              sharedSecret;
+    private boolean                                   verifySignatures = true;
+    private int                                       threads       = 64;
+    private final String                              uid;
+
+    private AtmosStandIn(@Nonnull String uid, @Nonnull String sharedSecret) {
+        this.uid = uid;
+        this.sharedSecret = Base64.decodeBase64(sharedSecret);
+        Entry root = new Entry("/", true);
+
+        namespace.put("/", root);
+        objects.put(root.objectId, root);
+    }
+
+    /**
+     * Caps the rate at which each response body is written and each request body is read.
+     * @param bytesPerSecond the cap per request, or 0 for no cap
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withBandwidth(@Nonnegative long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Stores object content as files in the specified directory instead of in memory.
+     * @param directory an existing, writable directory
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withDirectory(@Nullable File directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * Fails the specified fraction of requests with a 500 and the Atmos "server busy" error code, before they
+     * have any effect.
+     * @param errorRate the fraction of requests to fail, from 0 to 1
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withErrorRate(double errorRate) {
+        this.errorRate = Math.max(0.0, Math.min(1.0, errorRate));
+        return this;
+    }
+
+    /**
+     * Delays every request by a uniformly distributed amount before handling it.
+     * @param minMillis the minimum delay
+     * @param maxMillis the maximum delay
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withLatency(@Nonnegative long minMillis, @Nonnegative long maxMillis) {
+        this.minLatency = minMillis;
+        this.maxLatency = Math.max(minMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * @param pageSize the number of listing entries returned when the client does not ask for a limit
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withPageSize(@Nonnegative int pageSize) {
+        this.pageSize = Math.max(1, pageSize);
+        return this;
+    }
+
+    /**
+     * @param port the local port to listen on, or 0 to pick a free port
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withPort(@Nonnegative int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @param verifySignatures false to accept unsigned or badly signed requests
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withSignatureVerification(boolean verifySignatures) {
+        this.verifySignatures = verifySignatures;
+        return this;
+    }
+
+    /**
+     * @param threads the number of threads handling requests
+     * @return this
+     */
+    public @Nonnull AtmosStandIn withThreads(@Nonnegative int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * @return the base URL of the stand-in, suitable for {@link org.dasein.cloud.ProviderContext#setEndpoint(String)}
+     */
+    public @Nonnull String getEndpoint() {
+        if( server == null ) {
+            throw new IllegalStateException("The stand-in has not been started");
+        }
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * @return the number of requests that failed, including injected failures
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of requests failed by error injection
+     */
+    public long getInjectedErrorCount() {
+        return injected.get();
+    }
+
+    /**
+     * @return the number of objects and directories stored, excluding the namespace root
+     */
+    public int getObjectCount() {
+        return namespace.size() - 1;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public synchronized @Nonnull AtmosStandIn start() throws IOException {
+        if( server != null ) {
+            return this;
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/rest", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                AtmosStandIn.this.handle(exchange);
+            }
+        });
+        server.start();
+        return this;
+    }
+
+    public synchronized void stop() {
+        if( server != null ) {
+            server.stop(0);
+            server = null;
+        }
+        if( executor != null ) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void handle(@Nonnull HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            try {
+                if( maxLatency > 0 ) {
+                    long delay = minLatency + (maxLatency > minLatency ? (long)(random.nextDouble() * (maxLatency - minLatency)) : 0L);
+
+                    Thread.sleep(delay);
+                }
+                if( errorRate > 0.0 && random.nextDouble() < errorRate ) {
+                    injected.incrementAndGet();
+                    throw new Failure(500, SERVER_BUSY, "The server is busy. Please try again.");
+                }
+                verify(exchange);
+                route(exchange);
+            }
+            catch( Failure f ) {
+                errors.incrementAndGet();
+                drain(exchange);
+                sendError(exchange, f.status, f.code, f.getMessage());
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                errors.incrementAndGet();
+                sendError(exchange, 500, INTERNAL_ERROR, "An internal error occurred.");
+            }
+            catch( RuntimeException e ) {
+                errors.incrementAndGet();
+                sendError(exchange, 500, INTERNAL_ERROR, "An internal error occurred: " + e.getMessage());
+            }
+        }
+        catch( IOException ignore ) {
+            // the client went away
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void route(@Nonnull HttpExchange exchange) throws Failure, IOException, InterruptedException {
+        URI uri = exchange.getRequestURI();
+        String path = uri.getPath();
+        String query = uri.getRawQuery();
+        String method = exchange.getRequestMethod().toUpperCase();
+
+        if( path.equals(NAMESPACE) || path.startsWith(NAMESPACE + "/") ) {
+            String target = path.substring(NAMESPACE.length());
+
+            if( target.length() < 1 ) {
+                target = "/";
+            }
+            handle(exchange, method, query, target, null);
+        }
+        else if( path.equals(OBJECTS) || path.equals(OBJECTS + "/") ) {
+            if( method.equals("GET") ) {
+                listObjects(exchange);
+            }
+            else if( method.equals("POST") ) {
+                createObject(exchange, null);
+            }
+            else {
+                throw new Failure(400, INVALID_ARGUMENT, "The requested operation is not supported on the object endpoint.");
+            }
+        }
+        else if( path.startsWith(OBJECTS + "/") ) {
+            handle(exchange, method, query, null, path.substring(OBJECTS.length() + 1));
+        }
+        else {
+            throw new Failure(404, NOT_FOUND, "The requested object was not found.");
+        }
+    }
+
+    private void handle(@Nonnull HttpExchange exchange, @Nonnull String method, @Nullable String query, @Nullable String path, @Nullable String objectId) throws Failure, IOException, InterruptedException {
+        if( "rename".equals(query) ) {
+            if( !method.equals("POST") || path == null ) {
+                throw new Failure(400, INVALID_ARGUMENT, "Rename is only supported on the namespace endpoint.");
+            }
+            rename(exchange, path);
+            return;
+        }
+        if( "hardlink".equals(query) ) {
+            if( !method.equals("POST") || path == null ) {
+                throw new Failure(400, INVALID_ARGUMENT, "Hard links are only supported on the namespace endpoint.");
+            }
+            link(exchange, path);
+            return;
+        }
+        if( method.equals("POST") && path != null && query == null && !namespace.containsKey(path) ) {
+            if( path.endsWith("/") ) {
+                createDirectory(exchange, path);
+            }
+            else {
+                createObject(exchange, path);
+            }
+            return;
+        }
+        Entry entry = (path == null ? objects.get(objectId) : namespace.get(path));
+
+        if( entry == null ) {
+            throw new Failure(404, NOT_FOUND, "The requested object was not found.");
+        }
+        if( "metadata/user".equals(query) ) {
+            if( method.equals("GET") ) {
+                getUserMetadata(exchange, entry);
+            }
+            else if( method.equals("POST") ) {
+                setUserMetadata(exchange, entry);
+            }
+            else if( method.equals("DELETE") ) {
+                deleteUserMetadata(exchange, entry);
+            }
+            else {
+                throw new Failure(400, INVALID_ARGUMENT, "Unsupported metadata operation.");
+            }
+        }
+        else if( "metadata/system".equals(query) ) {
+            getSystemMetadata(exchange, entry);
+        }
+        else if( query != null ) {
+            throw new Failure(400, INVALID_ARGUMENT, "Unsupported query: " + query);
+        }
+        else if( method.equals("POST") ) {
+            throw new Failure(400, EXISTS, "The resource you are trying to create already exists.");
+        }
+        else if( method.equals("GET") ) {
+            if( entry.directory ) {
+                listDirectory(exchange, entry);
+            }
+            else {
+                read(exchange, entry);
+            }
+        }
+        else if( method.equals("HEAD") ) {
+            Headers headers = exchange.getResponseHeaders();
+
+            synchronized( entry ) {
+                headers.add("x-emc-meta", toSystemMetadata(entry, null));
+            }
+            send(exchange, 200, null, null);
+        }
+        else if( method.equals("PUT") ) {
+            update(exchange, entry);
+        }
+        else if( method.equals("DELETE") ) {
+            delete(exchange, entry);
+        }
+        else {
+            throw new Failure(400, INVALID_ARGUMENT, "Unsupported method: " + method);
+        }
+    }
+
+    private void createDirectory(@Nonnull HttpExchange exchange, @Nonnull String path) throws Failure, IOException {
+        drain(exchange);
+        Entry entry = new Entry(path, true);
+
+        applyMetadata(exchange, entry);
+        synchronized( namespace ) {
+            if( namespace.containsKey(path) ) {
+                throw new Failure(400, EXISTS, "The resource you are trying to create already exists.");
+            }
+            ensureParents(path);
+            namespace.put(path, entry);
+            objects.put(entry.objectId, entry);
+        }
+        sendCreated(exchange, entry);
+    }
+
+    private void createObject(@Nonnull HttpExchange exchange, @Nullable String path) throws Failure, IOException, InterruptedException {
+        if( exchange.getRequestHeaders().getFirst("Range") != null ) {
+            throw new Failure(400, BAD_RANGE, "A range may not be specified when creating an object.");
+        }
+        Entry entry = new Entry(path == null ? "" : path, false);
+
+        applyMetadata(exchange, entry);
+        write(exchange, entry, 0L, true);
+        if( path == null ) {
+            objects.put(entry.objectId, entry);
+        }
+        else {
+            synchronized( namespace ) {
+                if( namespace.containsKey(path) ) {
+                    discard(entry);
+                    throw new Failure(400, EXISTS, "The resource you are trying to create already exists.");
+                }
+                ensureParents(path);
+                namespace.put(path, entry);
+                objects.put(entry.objectId, entry);
+            }
+        }
+        sendCreated(exchange, entry);
+    }
+
+    private void delete(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws Failure, IOException {
+        drain(exchange);
+        synchronized( namespace ) {
+            if( entry.path.equals("/") ) {
+                throw new Failure(400, INVALID_ARGUMENT, "The namespace root may not be deleted.");
+            }
+            if( entry.directory && hasChildren(entry.path) ) {
+                throw new Failure(400, DIRECTORY_NOT_EMPTY, "The directory you are trying to delete is not empty.");
+            }
+            if( entry.path.length() > 0 ) {
+                namespace.remove(entry.path);
+            }
+            objects.remove(entry.objectId);
+        }
+        discard(entry);
+        send(exchange, 204, null, null);
+    }
+
+    private void deleteUserMetadata(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws IOException {
+        drain(exchange);
+        Collection<String> tags = getTags(exchange, "x-emc-tags");
+
+        synchronized( entry ) {
+            for( String tag : tags ) {
+                entry.metadata.remove(tag);
+                entry.listable.remove(tag);
+            }
+            entry.mtime = System.currentTimeMillis();
+        }
+        send(exchange, 204, null, null);
+    }
+
+    private void getSystemMetadata(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws IOException {
+        drain(exchange);
+        Collection<String> tags = getTags(exchange, "x-emc-tags");
+        Headers headers = exchange.getResponseHeaders();
+
+        synchronized( entry ) {
+            headers.add("x-emc-meta", toSystemMetadata(entry, tags.isEmpty() ? null : tags));
+        }
+        send(exchange, 200, null, null);
+    }
+
+    private void getUserMetadata(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws IOException {
+        drain(exchange);
+        Collection<String> tags = getTags(exchange, "x-emc-tags");
+        boolean utf8 = isUtf8(exchange);
+        Headers headers = exchange.getResponseHeaders();
+        LinkedHashMap<String,String> metadata = new LinkedHashMap<String, String>();
+        LinkedHashMap<String,String> listable = new LinkedHashMap<String, String>();
+
+        synchronized( entry ) {
+            for( Map.Entry<String,String> e : entry.metadata.entrySet() ) {
+                if( tags.isEmpty() || tags.contains(e.getKey()) ) {
+                    metadata.put(e.getKey(), e.getValue());
+                }
+            }
+            for( Map.Entry<String,String> e : entry.listable.entrySet() ) {
+                if( tags.isEmpty() || tags.contains(e.getKey()) ) {
+                    listable.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        if( !metadata.isEmpty() ) {
+            headers.add("x-emc-meta", AtmosMetadata.encode(metadata, utf8));
+        }
+        if( !listable.isEmpty() ) {
+            headers.add("x-emc-listable-meta", AtmosMetadata.encode(listable, utf8));
+        }
+        if( utf8 ) {
+            headers.add("x-emc-utf8", "true");
+        }
+        send(exchange, 200, null, null);
+    }
+
+    private void listDirectory(@Nonnull HttpExchange exchange, @Nonnull Entry directory) throws IOException {
+        drain(exchange);
+        Headers request = exchange.getRequestHeaders();
+        boolean includeMeta = "true".equalsIgnoreCase(request.getFirst("x-emc-include-meta"));
+        Collection<String> systemTags = getTags(exchange, "x-emc-system-tags");
+        Collection<String> userTags = getTags(exchange, "x-emc-user-tags");
+        String start = fromToken(request.getFirst("x-emc-token"));
+        int limit = getLimit(exchange);
+        StringBuilder xml = new StringBuilder();
+        String prefix = directory.path;
+        String next = null;
+        int count = 0;
+
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>");
+        xml.append("<ListDirectoryResponse xmlns='http://www.emc.com/cos/'><DirectoryList>");
+        for( Entry entry : namespace.subMap(start == null ? prefix : start, true, prefix + Character.MAX_VALUE, false).values() ) {
+            if( entry.path.equals(prefix) || !isChild(prefix, entry.path) ) {
+                continue;
+            }
+            if( count >= limit ) {
+                next = entry.path;
+                break;
+            }
+            count++;
+            synchronized( entry ) {
+                xml.append("<DirectoryEntry>");
+                xml.append("<ObjectID>").append(entry.objectId).append("</ObjectID>");
+                xml.append("<FileType>").append(entry.directory ? "directory" : "regular").append("</FileType>");
+                xml.append("<Filename>").append(escape(entry.getName())).append("</Filename>");
+                if( includeMeta ) {
+                    appendMetadata(xml, entry, systemTags, userTags);
+                }
+                xml.append("</DirectoryEntry>");
+            }
+        }
+        xml.append("</DirectoryList></ListDirectoryResponse>");
+        if( next != null ) {
+            exchange.getResponseHeaders().add("x-emc-token", toToken(next));
+        }
+        send(exchange, 200, "text/xml", xml.toString().getBytes("utf-8"));
+    }
+
+    private void listObjects(@Nonnull HttpExchange exchange) throws Failure, IOException {
+        drain(exchange);
+        Headers request = exchange.getRequestHeaders();
+        Collection<String> tags = getTags(exchange, "x-emc-tags");
+
+        if( tags.size() != 1 ) {
+            throw new Failure(400, INVALID_ARGUMENT, "Exactly one tag must be specified.");
+        }
+        String tag = tags.iterator().next();
+        boolean includeMeta = "true".equalsIgnoreCase(request.getFirst("x-emc-include-meta"));
+        String start = fromToken(request.getFirst("x-emc-token"));
+        int limit = getLimit(exchange);
+        StringBuilder xml = new StringBuilder();
+        boolean found = false;
+        String next = null;
+        int count = 0;
+
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>");
+        xml.append("<ListObjectsResponse xmlns='http://www.emc.com/cos/'>");
+        for( Entry entry : (start == null ? objects : objects.tailMap(start, true)).values() ) {
+            synchronized( entry ) {
+                if( !entry.listable.containsKey(tag) ) {
+                    continue;
+                }
+                found = true;
+                if( count >= limit ) {
+                    next = entry.objectId;
+                    break;
+                }
+                count++;
+                xml.append("<Object>");
+                xml.append("<ObjectID>").append(entry.objectId).append("</ObjectID>");
+                if( includeMeta ) {
+                    appendMetadata(xml, entry, null, null);
+                }
+                xml.append("</Object>");
+            }
+        }
+        xml.append("</ListObjectsResponse>");
+        if( !found && start == null ) {
+            throw new Failure(404, NOT_FOUND, "The requested tag was not found.");
+        }
+        if( next != null ) {
+            exchange.getResponseHeaders().add("x-emc-token", toToken(next));
+        }
+        send(exchange, 200, "text/xml", xml.toString().getBytes("utf-8"));
+    }
+
+    /**
+     * Links are modelled as copies made on the server, which clients cannot tell apart from shared objects as long
+     * as neither path is updated afterwards.
+     */
+    private void link(@Nonnull HttpExchange exchange, @Nonnull String from) throws Failure, IOException {
+        drain(exchange);
+        String to = exchange.getRequestHeaders().getFirst("x-emc-path");
+
+        if( to == null || to.trim().length() < 1 ) {
+            throw new Failure(400, INVALID_ARGUMENT, "No target path was specified.");
+        }
+        if( isUtf8(exchange) ) {
+            to = URLDecoder.decode(to, "utf-8");
+        }
+        to = (to.startsWith("/") ? to : "/" + to);
+        if( from.endsWith("/") || to.endsWith("/") ) {
+            throw new Failure(400, INVALID_ARGUMENT, "Only objects may be linked.");
+        }
+        synchronized( namespace ) {
+            Entry source = namespace.get(from);
+
+            if( source == null ) {
+                throw new Failure(404, NOT_FOUND, "The requested object was not found.");
+            }
+            if( namespace.containsKey(to) ) {
+                throw new Failure(400, EXISTS, "The resource you are trying to create already exists.");
+            }
+            Entry link = new Entry(to, false);
+
+            synchronized( source ) {
+                link.metadata.putAll(source.metadata);
+                link.listable.putAll(source.listable);
+                link.size = source.size;
+                if( source.file == null ) {
+                    link.content = (source.content == null ? null : Arrays.copyOf(source.content, (int)source.size));
+                }
+                else {
+                    link.file = new File(directory, link.objectId);
+                    copy(source.file, link.file);
+                }
+            }
+            ensureParents(to);
+            namespace.put(to, link);
+            objects.put(link.objectId, link);
+        }
+        send(exchange, 200, null, null);
+    }
+
+    private void read(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws Failure, IOException {
+        drain(exchange);
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Headers headers = exchange.getResponseHeaders();
+        long offset, length;
+        byte[] content = null;
+        File file = null;
+        long size;
+
+        synchronized( entry ) {
+            size = entry.size;
+            entry.atime = System.currentTimeMillis();
+            LinkedHashMap<String,String> metadata = toSystemMetadataMap(entry);
+            boolean utf8 = isUtf8(exchange);
+
+            metadata.putAll(entry.metadata);
+            headers.add("x-emc-meta", AtmosMetadata.encode(metadata, utf8));
+            if( !entry.listable.isEmpty() ) {
+                headers.add("x-emc-listable-meta", AtmosMetadata.encode(entry.listable, utf8));
+            }
+            if( utf8 ) {
+                headers.add("x-emc-utf8", "true");
+            }
+            if( entry.file == null ) {
+                content = (entry.content == null ? new byte[0] : Arrays.copyOf(entry.content, (int)entry.size));
+            }
+            else {
+                file = entry.file;
+            }
+        }
+        if( range == null ) {
+            offset = 0L;
+            length = size;
+        }
+        else {
+            long[] r = parseRange(range, size);
+
+            if( r[0] >= size || r[1] < r[0] ) {
+                throw new Failure(416, BAD_RANGE, "The requested range cannot be satisfied.");
+            }
+            offset = r[0];
+            length = Math.min(r[1], size - 1) - offset + 1;
+            headers.add("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + size);
+        }
+        headers.add("Content-Type", "application/octet-stream");
+        headers.add("Date", formatHttp(System.currentTimeMillis()));
+        exchange.sendResponseHeaders(range == null ? 200 : 206, length < 1 ? -1 : length);
+        if( length < 1 ) {
+            return;
+        }
+        OutputStream out = exchange.getResponseBody();
+
+        if( bytesPerSecond > 0 ) {
+            out = new Throttled(out);
+        }
+        if( content != null ) {
+            out.write(content, (int)offset, (int)length);
+        }
+        else {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try {
+                byte[] buffer = new byte[65536];
+                long remaining = length;
+
+                raf.seek(offset);
+                while( remaining > 0 ) {
+                    int count = raf.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+
+                    if( count < 0 ) {
+                        break;
+                    }
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+            finally {
+                raf.close();
+            }
+        }
+        bytesOut.addAndGet(length);
+        out.flush();
+    }
+
+    private void rename(@Nonnull HttpExchange exchange, @Nonnull String from) throws Failure, IOException {
+        drain(exchange);
+        Headers request = exchange.getRequestHeaders();
+        String to = request.getFirst("x-emc-path");
+        boolean force = "true".equalsIgnoreCase(request.getFirst("x-emc-force"));
+
+        if( to == null || to.trim().length() < 1 ) {
+            throw new Failure(400, INVALID_ARGUMENT, "No target path was specified.");
+        }
+        if( isUtf8(exchange) ) {
+            to = URLDecoder.decode(to, "utf-8");
+        }
+        to = (to.startsWith("/") ? to : "/" + to);
+        if( from.endsWith("/") != to.endsWith("/") ) {
+            throw new Failure(400, INVALID_ARGUMENT, "A directory may only be renamed to a directory path.");
+        }
+        synchronized( namespace ) {
+            Entry source = namespace.get(from);
+            Entry existing = namespace.get(to);
+
+            if( source == null ) {
+                throw new Failure(404, NOT_FOUND, "The requested object was not found.");
+            }
+            if( from.equals("/") || (from.endsWith("/") && to.startsWith(from)) ) {
+                throw new Failure(400, INVALID_ARGUMENT, "A directory may not be moved into itself.");
+            }
+            if( existing != null ) {
+                if( !force ) {
+                    throw new Failure(400, EXISTS, "The resource you are trying to create already exists.");
+                }
+                if( existing.directory && hasChildren(to) ) {
+                    throw new Failure(400, DIRECTORY_NOT_EMPTY, "The directory you are trying to replace is not empty.");
+                }
+                namespace.remove(to);
+                objects.remove(existing.objectId);
+                discard(existing);
+            }
+            ensureParents(to);
+            ArrayList<Entry> moved = new ArrayList<Entry>(namespace.subMap(from, true, from + Character.MAX_VALUE, false).values());
+
+            for( Entry entry : moved ) {
+                if( !entry.path.equals(from) && !from.endsWith("/") ) {
+                    continue;
+                }
+                namespace.remove(entry.path);
+                synchronized( entry ) {
+                    entry.path = to + entry.path.substring(from.length());
+                    entry.mtime = System.currentTimeMillis();
+                }
+                namespace.put(entry.path, entry);
+            }
+        }
+        send(exchange, 200, null, null);
+    }
+
+    private void setUserMetadata(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws IOException {
+        drain(exchange);
+        applyMetadata(exchange, entry);
+        send(exchange, 200, null, null);
+    }
+
+    private void update(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws Failure, IOException, InterruptedException {
+        if( entry.directory ) {
+            throw new Failure(400, INVALID_ARGUMENT, "A directory has no content to update.");
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+
+        applyMetadata(exchange, entry);
+        if( range == null ) {
+            write(exchange, entry, 0L, true);
+        }
+        else {
+            long[] r;
+
+            synchronized( entry ) {
+                r = parseRange(range, Long.MAX_VALUE);
+                if( r[0] > entry.size ) {
+                    throw new Failure(400, BAD_RANGE, "The requested range starts beyond the end of the object.");
+                }
+            }
+            write(exchange, entry, r[0], false);
+        }
+        send(exchange, 200, null, null);
+    }
+
+    private void appendMetadata(@Nonnull StringBuilder xml, @Nonnull Entry entry, @Nullable Collection<String> systemTags, @Nullable Collection<String> userTags) {
+        xml.append("<SystemMetadataList>");
+        for( Map.Entry<String,String> e : toSystemMetadataMap(entry).entrySet() ) {
+            if( systemTags == null || systemTags.isEmpty() || systemTags.contains(e.getKey()) ) {
+                appendMetadata(xml, e.getKey(), e.getValue(), null);
+            }
+        }
+        xml.append("</SystemMetadataList><UserMetadataList>");
+        for( Map.Entry<String,String> e : entry.metadata.entrySet() ) {
+            if( userTags == null || userTags.isEmpty() || userTags.contains(e.getKey()) ) {
+                appendMetadata(xml, e.getKey(), e.getValue(), "false");
+            }
+        }
+        for( Map.Entry<String,String> e : entry.listable.entrySet() ) {
+            if( userTags == null || userTags.isEmpty() || userTags.contains(e.getKey()) ) {
+                appendMetadata(xml, e.getKey(), e.getValue(), "true");
+            }
+        }
+        xml.append("</UserMetadataList>");
+    }
+
+    private void appendMetadata(@Nonnull StringBuilder xml, @Nonnull String name, @Nullable String value, @Nullable String listable) {
+        xml.append("<Metadata><Name>").append(escape(name)).append("</Name><Value>").append(escape(value == null ? "" : value)).append("</Value>");
+        if( listable != null ) {
+            xml.append("<Listable>").append(listable).append("</Listable>");
+        }
+        xml.append("</Metadata>");
+    }
+
+    private void applyMetadata(@Nonnull HttpExchange exchange, @Nonnull Entry entry) {
+        Headers request = exchange.getRequestHeaders();
+        boolean utf8 = isUtf8(exchange);
+        Map<String,String> metadata = AtmosMetadata.parse(request.getFirst("x-emc-meta"), utf8);
+        Map<String,String> listable = AtmosMetadata.parse(request.getFirst("x-emc-listable-meta"), utf8);
+
+        synchronized( entry ) {
+            for( Map.Entry<String,String> e : metadata.entrySet() ) {
+                entry.listable.remove(e.getKey());
+                entry.metadata.put(e.getKey(), e.getValue());
+            }
+            for( Map.Entry<String,String> e : listable.entrySet() ) {
+                entry.metadata.remove(e.getKey());
+                entry.listable.put(e.getKey(), e.getValue());
+            }
+            if( !metadata.isEmpty() || !listable.isEmpty() ) {
+                entry.mtime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void copy(@Nonnull File from, @Nonnull File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+
+        try {
+            OutputStream out = new FileOutputStream(to);
+            byte[] buffer = new byte[65536];
+            int count;
+
+            try {
+                while( (count = in.read(buffer)) > -1 ) {
+                    out.write(buffer, 0, count);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void discard(@Nonnull Entry entry) {
+        synchronized( entry ) {
+            if( entry.file != null && !entry.file.delete() ) {
+                entry.file.deleteOnExit();
+            }
+            entry.file = null;
+            entry.content = null;
+            entry.size = 0L;
+        }
+    }
+
+    private void drain(@Nonnull HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[8192];
+
+        while( in.read(buffer) > -1 ) {
+            // discard
+        }
+    }
+
+    /**
+     * Creates any missing directories above the specified path. The caller must hold the namespace lock.
+     * @param path the path whose parents must exist
+     */
+    private void ensureParents(@Nonnull String path) {
+        String p = (path.endsWith("/") ? path.substring(0, path.length()-1) : path);
+        int idx = p.lastIndexOf('/');
+
+        if( idx < 1 ) {
+            return;
+        }
+        String parent = p.substring(0, idx + 1);
+
+        if( !namespace.containsKey(parent) ) {
+            ensureParents(parent);
+            Entry dir = new Entry(parent, true);
+
+            namespace.put(parent, dir);
+            objects.put(dir.objectId, dir);
+        }
+    }
+
+    private @Nullable String fromToken(@Nullable String token) throws UnsupportedEncodingException {
+        if( token == null || token.trim().length() < 1 ) {
+            return null;
+        }
+        return URLDecoder.decode(token.trim(), "utf-8");
+    }
+
+    private int getLimit(@Nonnull HttpExchange exchange) {
+        String limit = exchange.getRequestHeaders().getFirst("x-emc-limit");
+
+        if( limit != null ) {
+            try {
+                int l = Integer.parseInt(limit.trim());
+
+                if( l > 0 ) {
+                    return l;
+                }
+            }
+            catch( NumberFormatException ignore ) {
+                // use the default
+            }
+        }
+        return pageSize;
+    }
+
+    private @Nonnull Collection<String> getTags(@Nonnull HttpExchange exchange, @Nonnull String header) {
+        String value = exchange.getRequestHeaders().getFirst(header);
+        TreeSet<String> tags = new TreeSet<String>();
+
+        if( value == null ) {
+            return tags;
+        }
+        boolean utf8 = isUtf8(exchange);
+
+        for( String tag : value.split(",") ) {
+            tag = tag.trim();
+            if( tag.length() > 0 ) {
+                if( utf8 ) {
+                    try {
+                        tag = URLDecoder.decode(tag, "utf-8");
+                    }
+                    catch( UnsupportedEncodingException e ) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                tags.add(tag);
+            }
+        }
+        return tags;
+    }
+
+    private boolean hasChildren(@Nonnull String directory) {
+        for( String path : namespace.subMap(directory, false, directory + Character.MAX_VALUE, false).keySet() ) {
+            if( path.startsWith(directory) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isChild(@Nonnull String directory, @Nonnull String path) {
+        if( !path.startsWith(directory) || path.length() <= directory.length() ) {
+            return false;
+        }
+        int slash = path.indexOf('/', directory.length());
+
+        return (slash < 0 || slash == path.length() - 1);
+    }
+
+    private boolean isUtf8(@Nonnull HttpExchange exchange) {
+        return "true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("x-emc-utf8"));
+    }
+
+    private void pace(long started, long transferred) throws IOException {
+        if( bytesPerSecond < 1 ) {
+            return;
+        }
+        long due = (transferred * 1000000000L) / bytesPerSecond;
+        long elapsed = System.nanoTime() - started;
+
+        if( due > elapsed ) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(due - elapsed);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while pacing the transfer");
+            }
+        }
+    }
+
+    private @Nonnull long[] parseRange(@Nonnull String range, long size) throws Failure {
+        String r = range.trim();
+        int eq = r.indexOf('=');
+
+        if( eq < 0 || !r.substring(0, eq).trim().equalsIgnoreCase("bytes") || r.indexOf(',') > -1 ) {
+            throw new Failure(400, BAD_RANGE, "Invalid range: " + range);
+        }
+        r = r.substring(eq + 1).trim();
+        int dash = r.indexOf('-');
+
+        if( dash < 0 ) {
+            throw new Failure(400, BAD_RANGE, "Invalid range: " + range);
+        }
+        try {
+            String first = r.substring(0, dash).trim();
+            String last = r.substring(dash + 1).trim();
+
+            if( first.length() < 1 ) {
+                long suffix = Long.parseLong(last);
+
+                return new long[] { Math.max(0L, size - suffix), size - 1 };
+            }
+            return new long[] { Long.parseLong(first), (last.length() < 1 ? size - 1 : Long.parseLong(last)) };
+        }
+        catch( NumberFormatException e ) {
+            throw new Failure(400, BAD_RANGE, "Invalid range: " + range);
+        }
+    }
+
+    private void send(@Nonnull HttpExchange exchange, int status, @Nullable String contentType, @Nullable byte[] body) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+
+        headers.add("Date", formatHttp(System.currentTimeMillis()));
+        if( contentType != null ) {
+            headers.add("Content-Type", contentType);
+        }
+        if( body == null || body.length < 1 || exchange.getRequestMethod().equalsIgnoreCase("HEAD") ) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+
+        if( bytesPerSecond > 0 ) {
+            out = new Throttled(out);
+        }
+        out.write(body);
+        out.flush();
+        bytesOut.addAndGet(body.length);
+    }
+
+    private void sendCreated(@Nonnull HttpExchange exchange, @Nonnull Entry entry) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+
+        headers.add("Location", OBJECTS + "/" + entry.objectId);
+        headers.add("x-emc-policy", "default");
+        send(exchange, 201, null, null);
+    }
+
+    private void sendError(@Nonnull HttpExchange exchange, int status, @Nonnull String code, @Nonnull String message) throws IOException {
+        String xml = "<?xml version='1.0' encoding='UTF-8'?><Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message></Error>";
+
+        send(exchange, status, "text/xml", xml.getBytes("utf-8"));
+    }
+
+    private @Nonnull String toSystemMetadata(@Nonnull Entry entry, @Nullable Collection<String> tags) {
+        LinkedHashMap<String,String> metadata = toSystemMetadataMap(entry);
+
+        if( tags != null ) {
+            metadata.keySet().retainAll(tags);
+        }
+        return AtmosMetadata.encode(metadata, false);
+    }
+
+    private @Nonnull LinkedHashMap<String,String> toSystemMetadataMap(@Nonnull Entry entry) {
+        LinkedHashMap<String,String> metadata = new LinkedHashMap<String, String>();
+
+        metadata.put("atime", formatIso(entry.atime));
+        metadata.put("mtime", formatIso(entry.mtime));
+        metadata.put("ctime", formatIso(entry.ctime));
+        metadata.put("itime", formatIso(entry.ctime));
+        metadata.put("type", entry.directory ? "directory" : "regular");
+        metadata.put("uid", uid.substring(0, uid.indexOf('/') < 0 ? uid.length() : uid.indexOf('/')));
+        metadata.put("gid", "apache");
+        metadata.put("objectid", entry.objectId);
+        metadata.put("objname", entry.path.length() < 1 ? entry.objectId : entry.getName());
+        metadata.put("size", String.valueOf(entry.size));
+        metadata.put("nlink", "1");
+        metadata.put("policyname", "default");
+        return metadata;
+    }
+
+    private @Nonnull String toToken(@Nonnull String next) throws UnsupportedEncodingException {
+        return URLEncoder.encode(next, "utf-8");
+    }
+
+    private void verify(@Nonnull HttpExchange exchange) throws Failure {
+        if( !verifySignatures ) {
+            return;
+        }
+        Headers request = exchange.getRequestHeaders();
+        String requestUid = request.getFirst("x-emc-uid");
+        String signature = request.getFirst("x-emc-signature");
+        String date = request.getFirst("Date");
+
+        if( requestUid == null || !requestUid.equals(uid) ) {
+            throw new Failure(403, UID_NOT_FOUND, "The UID does not exist.");
+        }
+        if( signature == null || date == null ) {
+            throw new Failure(403, SIGNATURE_MISMATCH, "The request was not signed.");
+        }
+        TreeSet<String> names = new TreeSet<String>();
+
+        for( String name : request.keySet() ) {
+            if( name.toLowerCase().startsWith("x-emc") && !name.equalsIgnoreCase("x-emc-signature") ) {
+                names.add(name.toLowerCase());
+            }
+        }
+        StringBuilder emc = new StringBuilder();
+
+        for( String name : names ) {
+            for( Map.Entry<String,List<String>> header : request.entrySet() ) {
+                if( !header.getKey().equalsIgnoreCase(name) ) {
+                    continue;
+                }
+                for( String value : header.getValue() ) {
+                    if( emc.length() > 0 ) {
+                        emc.append("\n");
+                    }
+                    emc.append(name).append(":").append(value.replaceAll("\\s+", " ").trim());
+                }
+            }
+        }
+        URI uri = exchange.getRequestURI();
+        String path = uri.getRawPath().toLowerCase();
+        String range = request.getFirst("Range");
+        String contentType = request.getFirst("Content-Type");
+
+        if( uri.getRawQuery() != null ) {
+            path = path + "?" + uri.getRawQuery().toLowerCase();
+        }
+        String prefix = exchange.getRequestMethod() + "\n";
+        String suffix = "\n" + (range == null ? "" : range) + "\n" + date + "\n" + path + "\n" + emc;
+
+        if( signature.equals(sign(prefix + (contentType == null ? "" : contentType) + suffix)) ) {
+            return;
+        }
+        // clients may sign just the media type of a content type that carries a charset parameter
+        if( contentType != null && contentType.indexOf(';') > -1 ) {
+            if( signature.equals(sign(prefix + contentType.substring(0, contentType.indexOf(';')).trim() + suffix)) ) {
+                return;
+            }
+        }
+        throw new Failure(403, SIGNATURE_MISMATCH, "The signature in the request does not match the signature computed by the server.");
+    }
+
+    private @Nonnull String sign(@Nonnull String stringToSign) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+
+            mac.init(new SecretKeySpec(sharedSecret, "HmacSHA1"));
+            return new String(Base64.encodeBase64(mac.doFinal(stringToSign.getBytes("utf-8"))), "utf-8");
+        }
+        catch( GeneralSecurityException e ) {
+            throw new RuntimeException(e);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the request body into the entry, either replacing its content or writing at an offset.
+     * @param exchange the request
+     * @param entry the target object
+     * @param offset where to start writing
+     * @param replace true to discard any existing content first
+     * @throws IOException the request body could not be read or the content could not be stored
+     */
+    private void write(@Nonnull HttpExchange exchange, @Nonnull Entry entry, long offset, boolean replace) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        long started = System.nanoTime();
+        byte[] buffer = new byte[65536];
+        long total = 0L;
+
+        if( directory == null ) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int count;
+
+            while( (count = in.read(buffer)) > -1 ) {
+                body.write(buffer, 0, count);
+                total += count;
+                pace(started, total);
+            }
+            byte[] data = body.toByteArray();
+
+            synchronized( entry ) {
+                if( replace ) {
+                    entry.content = data;
+                    entry.size = data.length;
+                }
+                else {
+                    long end = offset + data.length;
+
+                    if( entry.content == null || entry.content.length < end ) {
+                        entry.content = Arrays.copyOf(entry.content == null ? new byte[0] : entry.content, (int)Math.max(end, entry.size * 2));
+                    }
+                    System.arraycopy(data, 0, entry.content, (int)offset, data.length);
+                    entry.size = Math.max(entry.size, end);
+                }
+                entry.mtime = System.currentTimeMillis();
+            }
+        }
+        else {
+            synchronized( entry ) {
+                if( entry.file == null ) {
+                    entry.file = new File(directory, entry.objectId);
+                }
+                RandomAccessFile raf = new RandomAccessFile(entry.file, "rw");
+
+                try {
+                    int count;
+
+                    if( replace ) {
+                        raf.setLength(0L);
+                    }
+                    raf.seek(offset);
+                    while( (count = in.read(buffer)) > -1 ) {
+                        raf.write(buffer, 0, count);
+                        total += count;
+                        pace(started, total);
+                    }
+                    entry.size = raf.length();
+                }
+                finally {
+                    raf.close();
+                }
+                entry.mtime = System.currentTimeMillis();
+            }
+        }
+        bytesIn.addAndGet(total);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "AtmosStandIn[" + (server == null ? "stopped" : getEndpoint()) + ",objects=" + getObjectCount() + ",requests=" + getRequestCount() + "]";
+    }
+}
@@ -0,0 +1,1480 @@
+/**
+ * Copyright (C) 2012-2013 Dell, Inc.
+ * See annotations for authorship information
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.atmos;
+
+import org.apache.commons.codec.binary.Base64;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.atmos.storage.AtmosObjectStore;
+import org.dasein.cloud.atmos.storage.AtmosTreeWalker;
+import org.dasein.cloud.atmos.storage.TreeWalkOptions;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.cloud.storage.FileTransfer;
+import org.dasein.util.JiteratorLoadException;
+import org.dasein.util.uom.storage.Storage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises {@link AtmosMethod} end to end against an {@link AtmosStandIn}, so it runs without network access or
+ * Atmos credentials.
+ * @version 2013.07 initial version
+ * @since 2013.07
+ */
+public class AtmosStandInTest {
+    static public final String SECRET = Base64.encodeBase64String("stand-in shared secret".getBytes());
+
+    /**
+     * Connects a provider to the specified stand-in.
+     * @param server a running stand-in
+     * @param secret the shared secret to sign requests with
+     * @param properties custom properties for the context, if any
+     * @return the connected provider
+     * @throws UnsupportedEncodingException the platform does not support UTF-8
+     */
+    static public @Nonnull Atmos connect(@Nonnull AtmosStandIn server, @Nonnull String secret, @Nullable Properties properties) throws UnsupportedEncodingException {
+        ProviderContext ctx = new ProviderContext("subtenant", "standin");
+
+        ctx.setAccessPublic("standin".getBytes("utf-8"));
+        ctx.setAccessPrivate(secret.getBytes("utf-8"));
+        ctx.setEndpoint(server.getEndpoint());
+        ctx.setRegionId("standin");
+        ctx.setCloudName("Atmos");
+        ctx.setProviderName("EMC");
+        if( properties != null ) {
+            ctx.setCustomProperties(properties);
+        }
+        Atmos provider = new Atmos();
+
+        provider.connect(ctx);
+        return provider;
+    }
+
+    private Atmos        provider;
+    private AtmosStandIn server;
+
+    @Before
+    public void setUp() throws IOException {
+        Properties p = new Properties();
+
+        p.setProperty("retryBaseDelayMs", "1");
+        p.setProperty("retryMaxDelayMs", "5");
+        p.setProperty("retryMaxAttempts", "10");
+        server = AtmosStandIn.getInstance("standin/subtenant", SECRET).start();
+        provider = connect(server, SECRET, p);
+    }
+
+    @After
+    public void tearDown() {
+        if( provider != null ) {
+            provider.close();
+        }
+        if( server != null ) {
+            server.stop();
+        }
+    }
+
+    private void backlog(@Nonnull AtmosObjectStore store, @Nonnull File source, @Nonnull String prefix) throws CloudException, InternalException {
+        for( int i=0; i<5; i++ ) {
+            store.upload(source, "/backlog", prefix + "-" + i + ".txt");
+        }
+    }
+
+    private void finish(@Nonnull AtmosLoadBalancer.Node node, long latencyMs) {
+        node.start();
+        node.finish(latencyMs * 1000000L, false);
+    }
+
+    private @Nonnull String read(@Nonnull InputStream input) throws IOException {
+        try {
+            StringBuilder str = new StringBuilder();
+            byte[] buffer = new byte[1024];
+            int count;
+
+            while( (count = input.read(buffer)) > -1 ) {
+                str.append(new String(buffer, 0, count, "utf-8"));
+            }
+            return str.toString();
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private @Nonnull String download(@Nonnull AtmosObjectStore store, @Nonnull String bucket, @Nonnull String name, @Nonnull File directory) throws CloudException, InternalException, IOException, InterruptedException {
+        File target = File.createTempFile("download", ".txt", directory.getParentFile());
+
+        assertTrue(target.delete());
+        try {
+            FileTransfer transfer = store.download(bucket, name, target);
+
+            synchronized( transfer ) {
+                while( !transfer.isComplete() ) {
+                    transfer.wait(1000L);
+                }
+            }
+            assertNull(transfer.getTransferError());
+            return read(new FileInputStream(target));
+        }
+        finally {
+            target.delete();
+        }
+    }
+
+    private @Nonnull String toEntry(int i) {
+        StringBuilder str = new StringBuilder();
+
+        while( str.length() < 1000 + i * 20 ) {
+            str.append("entry ").append(i).append(' ');
+        }
+        return str.toString();
+    }
+
+    private @Nonnull List<String> walk(@Nonnull AtmosObjectStore store, @Nonnull String root, @Nonnull TreeWalkOptions options) throws CloudException, InternalException {
+        ArrayList<String> names = new ArrayList<String>();
+        AtmosTreeWalker walker = store.walk(root, options);
+
+        try {
+            for( Blob blob : walker ) {
+                names.add(blob.isContainer() ? blob.getBucketName() + "/" : blob.getObjectName());
+            }
+        }
+        finally {
+            walker.close();
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private void write(@Nonnull File file, @Nonnull String content) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write(content.getBytes("utf-8"));
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private @Nonnull List<String> toList(@Nonnull Iterable<String> names) {
+        ArrayList<String> list = new ArrayList<String>();
+
+        for( String name : names ) {
+            list.add(name);
+        }
+        return list;
+    }
+
+    @Test
+    public void concurrentReadsCoalesce() throws CloudException, InternalException, InterruptedException {
+        final AtmosMethod method = new AtmosMethod(provider);
+
+        method.upload("/hot/", "object.txt", "text/plain", "hot content");
+        server.withLatency(200, 200);
+
+        final CyclicBarrier barrier = new CyclicBarrier(10);
+        final ArrayList<Object> results = new ArrayList<Object>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        long requests = server.getRequestCount();
+
+        for( int i=0; i<10; i++ ) {
+            Thread t = new Thread() {
+                public void run() {
+                    Object result;
+
+                    try {
+                        barrier.await();
+                        result = method.info("/hot/", "object.txt");
+                    }
+                    catch( Exception e ) {
+                        result = e;
+                    }
+                    synchronized( results ) {
+                        results.add(result);
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        assertEquals(10, results.size());
+        for( Object result : results ) {
+            assertTrue("Every caller should get the object, not " + result, result instanceof Blob);
+            assertEquals(11L, ((Blob)result).getSize().longValue());
+        }
+        assertTrue("Concurrent identical reads should share requests", server.getRequestCount() - requests < 10);
+        assertTrue(provider.getSingleFlight().getCoalescedCount() > 0);
+
+        // once the shared request is over, the next read goes to Atmos again
+        server.withLatency(0, 0);
+        method.delete("/hot/", "object.txt");
+        assertNull(method.info("/hot/", "object.txt"));
+    }
+
+    @Test
+    public void createAndList() throws CloudException, InternalException {
+        AtmosMethod method = new AtmosMethod(provider);
+
+        method.create("/", "dasein");
+        for( int i=0; i<25; i++ ) {
+            method.upload("/dasein/", "object-" + i, "text/plain", "content " + i);
+        }
+        method.create("/dasein", "child");
+
+        ArrayList<Blob> blobs = new ArrayList<Blob>();
+        String token = null;
+        int pages = 0;
+
+        do {
+            AtmosListPage page = method.listPage("/dasein/", token, 10, Arrays.asList(AtmosMethod.LIST_SYSTEM_TAGS), null);
+
+            blobs.addAll(page.getEntries());
+            token = page.getNextToken();
+            pages++;
+        } while( token != null );
+        assertEquals("Listing should span pages", 3, pages);
+        assertEquals("Listing should include every object and subdirectory", 26, blobs.size());
+
+        int containers = 0;
+
+        for( Blob blob : blobs ) {
+            if( blob.isContainer() ) {
+                containers++;
+            }
+            else {
+                assertEquals("dasein", blob.getBucketName());
+            }
+        }
+        assertEquals(1, containers);
+    }
+
+    @Test
+    public void uploadDownloadAndInfo() throws CloudException, InternalException, IOException {
+        AtmosMethod method = new AtmosMethod(provider);
+        byte[] content = "The quick brown fox jumps over the lazy dog".getBytes("utf-8");
+
+        method.upload("/data/", "fox.txt", new ByteArrayInputStream(content), new Storage<org.dasein.util.uom.storage.Byte>(content.length, Storage.BYTE));
+
+        Blob blob = method.info("/data/", "fox.txt");
+
+        assertNotNull("Uploaded object should exist", blob);
+        assertEquals(content.length, blob.getSize().longValue());
+        assertEquals("The quick brown fox jumps over the lazy dog", read(method.download("/data/", "fox.txt")));
+        assertArrayEquals(content, method.downloadBytes("/data/", "fox.txt", 1024));
+        assertNull("Missing objects should have no info", method.info("/data/", "missing.txt"));
+    }
+
+    @Test
+    public void diskCache() throws CloudException, InternalException, IOException, InterruptedException {
+        Properties p = new Properties();
+        File directory = File.createTempFile("cache", "");
+
+        assertTrue(directory.delete() && directory.mkdirs());
+        File unrelated = new File(directory, "notes.txt");
+
+        write(unrelated, "not part of the cache");
+        assertTrue(unrelated.setLastModified(0L));
+        p.setProperty("cacheDirectory", directory.getAbsolutePath());
+        p.setProperty("cacheMaxMegabytes", "1");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+            AtmosDiskCache cache = atmos.getDiskCache();
+            AtmosMethod method = new AtmosMethod(atmos);
+            StringBuilder model = new StringBuilder();
+
+            assertNotNull("The cache should be configured", cache);
+            while( model.length() < 400 * 1024 ) {
+                model.append("weights ").append(model.length()).append('\n');
+            }
+            method.upload("/models/", "model.txt", "text/plain", model.toString());
+            assertEquals(model.toString(), download(store, "/models", "model.txt", directory));
+            long sent = server.getBytesOut();
+
+            assertEquals(model.toString(), download(store, "/models", "model.txt", directory));
+            assertEquals(1, cache.getHitCount());
+            assertTrue("A hit should not download the object again", server.getBytesOut() - sent < 1024);
+
+            method.delete("/models/", "model.txt");
+            method.upload("/models/", "model.txt", "text/plain", "retrained");
+            assertEquals("A changed object should be downloaded again", "retrained", download(store, "/models", "model.txt", directory));
+            assertEquals(2, cache.getMissCount());
+
+            for( int i=0; i<3; i++ ) {
+                method.upload("/models/", "other-" + i + ".txt", "text/plain", model.toString());
+                download(store, "/models", "other-" + i + ".txt", directory);
+            }
+            assertTrue("The cache should stay within its limit", cache.getSize() <= 1024 * 1024);
+            assertTrue("Old entries should have been evicted", cache.getEvictionCount() > 0);
+            assertTrue("Files the cache did not create should be left alone", unrelated.exists());
+        }
+        finally {
+            atmos.close();
+            for( File file : directory.listFiles() ) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void fileBacked() throws CloudException, InternalException, IOException {
+        File directory = File.createTempFile("standin", "");
+
+        assertTrue(directory.delete() && directory.mkdirs());
+        AtmosStandIn files = AtmosStandIn.getInstance("standin/subtenant", SECRET).withDirectory(directory).start();
+        Atmos atmos = connect(files, SECRET, null);
+
+        try {
+            AtmosMethod method = new AtmosMethod(atmos);
+
+            method.upload("/files/", "one.txt", "text/plain", "stored on disk");
+            assertEquals(1, directory.listFiles().length);
+            assertEquals("stored on disk", read(method.download("/files/", "one.txt")));
+            method.delete("/files/", "one.txt");
+            assertEquals(0, directory.listFiles().length);
+        }
+        finally {
+            atmos.close();
+            files.stop();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void bufferPoolReuseAndCap() throws InterruptedException {
+        AtmosBufferPool pool = new AtmosBufferPool(4096, 8192, 10);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        byte[] fallback = pool.acquire();
+
+        assertEquals(4096, first.length);
+        assertEquals(4096, second.length);
+        assertTrue("A saturated pool should hand out a smaller, unpooled buffer", fallback.length < 4096);
+        assertEquals(1, pool.getFallbackCount());
+        assertEquals(2, pool.getInUseCount());
+        pool.release(fallback);
+        assertEquals("Releasing an unpooled buffer must not free a slot", 2, pool.getInUseCount());
+        pool.release(first);
+        assertSame("A released buffer should be reused", first, pool.acquire());
+        assertEquals(2, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+
+        final AtmosBufferPool waiting = new AtmosBufferPool(4096, 4096, 5000);
+        final byte[] held = waiting.acquire();
+        Thread releaser = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                }
+                catch( InterruptedException ignore ) {
+                    // release early
+                }
+                waiting.release(held);
+            }
+        };
+
+        releaser.start();
+        assertSame("A waiting acquisition should get the buffer released meanwhile", held, waiting.acquire());
+        releaser.join();
+        assertEquals(0, waiting.getFallbackCount());
+    }
+
+    @Test
+    public void compression() throws CloudException, InternalException, IOException {
+        Properties p = new Properties();
+        StringBuilder log = new StringBuilder();
+
+        p.setProperty("compression", "gzip");
+        p.setProperty("compressionLevel", "1");
+        for( int i=0; i<500; i++ ) {
+            log.append("2013-07-01 12:00:00 INFO request ").append(i).append(" completed\n");
+        }
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosMethod method = new AtmosMethod(atmos);
+            byte[] bytes = log.toString().getBytes("utf-8");
+
+            method.upload("/logs/", "text.log", "text/plain", log.toString());
+            method.upload("/logs/", "stream.log", new ByteArrayInputStream(bytes), new Storage<org.dasein.util.uom.storage.Byte>(bytes.length, Storage.BYTE));
+            method.upload("/logs/", "image.png", new ByteArrayInputStream(bytes), new Storage<org.dasein.util.uom.storage.Byte>(bytes.length, Storage.BYTE));
+
+            Map<String,String> metadata = method.getMetadata("/logs/", "stream.log").getMetadata();
+
+            assertEquals("gzip", metadata.get(AtmosCompression.CODEC));
+            assertEquals(bytes.length, AtmosCompression.getOriginalSize(metadata));
+            assertTrue("Compressed object should be smaller", method.info("/logs/", "stream.log").getSize().longValue() < bytes.length);
+            assertEquals(bytes.length, method.info("/logs/", "image.png").getSize().longValue());
+            assertEquals(log.toString(), read(method.download("/logs/", "text.log")));
+            assertEquals(log.toString(), read(method.download("/logs/", "stream.log")));
+            assertEquals(log.toString().substring(100, 150), read(method.download("/logs/", "stream.log", 100L, 50L)));
+            assertEquals(log.toString().substring(100, 150), read(method.download("/logs/", "image.png", 100L, 50L)));
+            try {
+                method.upload("/logs/", "short.log", new ByteArrayInputStream(bytes), new Storage<org.dasein.util.uom.storage.Byte>(bytes.length + 10, Storage.BYTE));
+                fail("Content shorter than its declared length should not be uploaded");
+            }
+            catch( InternalException expected ) {
+                assertNull(method.info("/logs/", "short.log"));
+            }
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void deduplication() throws CloudException, InternalException, IOException {
+        Properties p = new Properties();
+        File file = File.createTempFile("artifact", ".bin");
+        byte[] content = new byte[64 * 1024];
+
+        p.setProperty("deduplicate", "true");
+        new Random(42).nextBytes(content);
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content);
+        }
+        finally {
+            out.close();
+        }
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+            AtmosDeduplicator deduplicator = atmos.getDeduplicator();
+            AtmosMethod method = new AtmosMethod(atmos);
+
+            assertNotNull("Deduplication should be enabled", deduplicator);
+            store.upload(file, "/builds/1", "artifact.bin");
+            long sent = server.getBytesIn();
+
+            store.upload(file, "/builds/2", "artifact.bin");
+            assertEquals("The duplicate should not have been sent", sent, server.getBytesIn());
+            assertArrayEquals(content, method.downloadBytes("/builds/2/", "artifact.bin", content.length));
+            assertEquals(1, deduplicator.getLinkedCount());
+            assertEquals(1, deduplicator.getIndexHits());
+
+            // a fresh index must find the original through its listable hash tag
+            new AtmosDeduplicator(atmos, 10).upload(file, "/builds/3", "artifact.bin");
+            assertEquals("The duplicate should not have been sent", sent, server.getBytesIn());
+
+            // once every path the hash tag points at is gone, the content is sent again
+            method.delete("/builds/1/", "artifact.bin");
+            store.upload(file, "/builds/4", "artifact.bin");
+            assertTrue("The content should have been sent again", server.getBytesIn() > sent);
+            assertEquals(2, deduplicator.getUploadedCount());
+            assertArrayEquals(content, method.downloadBytes("/builds/4/", "artifact.bin", content.length));
+
+            // an indexed path that now holds other content must not be linked to
+            method.delete("/builds/4/", "artifact.bin");
+            method.upload("/builds/4/", "artifact.bin", "text/plain", "replaced");
+            store.upload(file, "/builds/5", "artifact.bin");
+            assertEquals(3, deduplicator.getUploadedCount());
+            assertArrayEquals(content, method.downloadBytes("/builds/5/", "artifact.bin", content.length));
+        }
+        finally {
+            atmos.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void latencyOutlierEjection() throws UnsupportedEncodingException, InterruptedException {
+        Properties p = new Properties();
+
+        p.setProperty("ejectionMs", "300");
+        p.setProperty("maxEjectionPercent", "100");
+        p.setProperty("probeIntervalMs", "0");
+        Atmos atmos = connect(server, SECRET, p);
+        AtmosLoadBalancer balancer = new AtmosLoadBalancer(atmos, Arrays.asList("http://node-a:8080/", "http://node-b:8080/", "http://node-c:8080/"));
+
+        try {
+            AtmosLoadBalancer.Node slow = balancer.getNodes().get(2);
+
+            for( int i=0; i<20; i++ ) {
+                finish(balancer.getNodes().get(0), 10L);
+                finish(balancer.getNodes().get(1), 10L);
+            }
+            for( int i=0; i<20 && !slow.isEjected(); i++ ) {
+                finish(slow, 500L);
+            }
+            assertTrue("A latency outlier should be ejected", slow.isEjected());
+            assertEquals(1, slow.getEjectionCount());
+
+            Thread.sleep(350L);
+            assertFalse(slow.isEjected());
+            finish(slow, 10L);
+            assertFalse("A returning node should not be judged on the latency that got it ejected", slow.isEjected());
+            assertEquals("A returning node should start a fresh latency average", 10.0, slow.getLatency(), 0.01);
+
+            for( int i=0; i<20 && !slow.isEjected(); i++ ) {
+                finish(slow, 500L);
+            }
+            assertTrue("A node that is still slow should be ejected again", slow.isEjected());
+            assertEquals(2, slow.getEjectionCount());
+            Thread.sleep(350L);
+            assertTrue("A second ejection should last longer", slow.isEjected());
+            Thread.sleep(300L);
+            assertFalse(slow.isEjected());
+
+            for( int i=0; i<100; i++ ) {
+                finish(slow, 10L);
+            }
+            assertFalse(slow.isEjected());
+            assertEquals("A run of healthy requests should forgive a past ejection", 1, slow.getEjectionCount());
+        }
+        finally {
+            balancer.close();
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void ejectionCapUnderConcurrentFailures() throws UnsupportedEncodingException, InterruptedException {
+        Properties p = new Properties();
+
+        p.setProperty("ejectAfterFailures", "1");
+        p.setProperty("ejectionMs", "60000");
+        p.setProperty("maxEjectionPercent", "50");
+        p.setProperty("probeIntervalMs", "0");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            for( int round=0; round<50; round++ ) {
+                ArrayList<String> endpoints = new ArrayList<String>();
+
+                for( int i=0; i<10; i++ ) {
+                    endpoints.add("http://node-" + i + ":8080/");
+                }
+                final AtmosLoadBalancer balancer = new AtmosLoadBalancer(atmos, endpoints);
+                final CyclicBarrier barrier = new CyclicBarrier(endpoints.size());
+                ArrayList<Thread> threads = new ArrayList<Thread>();
+
+                try {
+                    for( final AtmosLoadBalancer.Node node : balancer.getNodes() ) {
+                        Thread t = new Thread() {
+                            public void run() {
+                                try {
+                                    barrier.await();
+                                }
+                                catch( Exception ignore ) {
+                                    // fail anyway
+                                }
+                                node.start();
+                                node.finish(1000000L, true);
+                            }
+                        };
+
+                        threads.add(t);
+                        t.start();
+                    }
+                    for( Thread t : threads ) {
+                        t.join();
+                    }
+                    int ejected = 0;
+
+                    for( AtmosLoadBalancer.Node node : balancer.getNodes() ) {
+                        if( node.isEjected() ) {
+                            ejected++;
+                        }
+                    }
+                    assertEquals("Exactly half of the nodes should be ejected", 5, ejected);
+                }
+                finally {
+                    balancer.close();
+                }
+            }
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void listingPool() throws CloudException, InternalException, UnsupportedEncodingException {
+        AtmosMethod method = new AtmosMethod(provider);
+
+        for( int i=0; i<3; i++ ) {
+            method.upload("/listing/", "object-" + i, "text/plain", "content " + i);
+        }
+        Properties p = new Properties();
+
+        p.setProperty("listingThreads", "2");
+        p.setProperty("listingQueueSize", "2");
+        p.setProperty("listingRejection", "abort");
+        Atmos atmos = connect(server, SECRET, p);
+
+        server.withLatency(100, 100);
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+            ArrayList<Iterable<Blob>> listings = new ArrayList<Iterable<Blob>>();
+            int rejected = 0;
+
+            for( int i=0; i<20; i++ ) {
+                try {
+                    listings.add(store.list("/listing"));
+                }
+                catch( CloudException e ) {
+                    assertEquals(CloudErrorType.CAPACITY, e.getErrorType());
+                    rejected++;
+                }
+            }
+            assertTrue("A saturated pool should reject listings", rejected > 0);
+            assertEquals(rejected, atmos.getListingExecutor().getRejectedCount());
+            for( Iterable<Blob> listing : listings ) {
+                int count = 0;
+
+                for( Blob ignore : listing ) {
+                    count++;
+                }
+                assertEquals(3, count);
+            }
+            assertTrue("Listings should share a bounded pool", atmos.getListingExecutor().getLargestPoolSize() <= 2);
+            assertTrue("Queued listings should report their wait", atmos.getListingExecutor().getMaxWaitMillis() > 0.0);
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void metadataAndTags() throws CloudException, InternalException {
+        AtmosMethod method = new AtmosMethod(provider);
+        HashMap<String,String> metadata = new HashMap<String, String>();
+        HashMap<String,String> listable = new HashMap<String, String>();
+
+        metadata.put("owner", "dasein, inc.");
+        metadata.put("naïve", "café=1");
+        listable.put("standin-tag", "yes");
+        method.upload("/tagged/", "one", "text/plain", "1", metadata, listable);
+        method.upload("/tagged/", "two", "text/plain", "2", null, listable);
+
+        AtmosMetadata found = method.getMetadata("/tagged/", "one");
+
+        assertNotNull(found);
+        assertEquals("dasein, inc.", found.getValue("owner"));
+        assertEquals("café=1", found.getValue("naïve"));
+        assertEquals("yes", found.getListable().get("standin-tag"));
+
+        AtmosListPage page = method.listObjects("standin-tag", null, 0);
+
+        assertEquals(2, page.getEntries().size());
+
+        method.deleteMetadata("/tagged/", "one", Collections.singletonList("owner"));
+        found = method.getMetadata("/tagged/", "one");
+        assertNotNull(found);
+        assertNull(found.getValue("owner"));
+
+        Map<String,String> update = Collections.singletonMap("owner", "someone else");
+
+        method.setMetadata("/tagged/", "two", update, null);
+        found = method.getMetadata("/tagged/", "two");
+        assertNotNull(found);
+        assertEquals("someone else", found.getValue("owner"));
+        assertEquals(0, method.listObjects("no-such-tag", null, 0).getEntries().size());
+    }
+
+    @Test
+    public void packing() throws CloudException, InternalException, IOException {
+        Properties p = new Properties();
+
+        p.setProperty("packBatchBytes", "4096");
+        p.setProperty("packContainerBytes", "16384");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosPacker packer = atmos.getPacker("/packed");
+            long requests = server.getRequestCount();
+
+            for( int i=0; i<40; i++ ) {
+                packer.put("entry-" + i, "text/plain", toEntry(i).getBytes("utf-8"));
+            }
+            assertEquals("Buffered entries should be readable", toEntry(39), read(packer.get("entry-39")));
+            packer.flush();
+            assertTrue("Entries should have been written in batches", server.getRequestCount() - requests < 40);
+            assertTrue("Entries should span several containers", packer.getContainerCount() > 1);
+            for( int i=0; i<40; i++ ) {
+                assertEquals(toEntry(i), read(packer.get("entry-" + i)));
+            }
+            for( int i=0; i<30; i++ ) {
+                assertTrue(packer.delete("entry-" + i));
+            }
+            packer.put("entry-39", "text/plain", "replaced".getBytes("utf-8"));
+            packer.flush();
+            assertNull(packer.get("entry-0"));
+            assertTrue("Mostly dead containers should have been compacted", packer.compact() > 0);
+
+            AtmosPacker reloaded = new AtmosPacker(atmos, "/packed");
+            ArrayList<String> expected = new ArrayList<String>();
+
+            for( int i=30; i<40; i++ ) {
+                expected.add("entry-" + i);
+            }
+            Collections.sort(expected);
+            assertEquals(expected, toList(reloaded.list()));
+            assertNull("Tombstones should survive compaction", reloaded.get("entry-5"));
+            assertEquals(toEntry(31), read(reloaded.get("entry-31")));
+            assertEquals("replaced", read(reloaded.get("entry-39")));
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void selectiveMetadata() throws CloudException, InternalException {
+        AtmosMethod method = new AtmosMethod(provider);
+        List<String> everything = Arrays.asList("atime", "ctime", "gid", "itime", "mtime", "nlink", "objectid", "objname", "policyname", "size", "type", "uid");
+
+        for( int i=0; i<10; i++ ) {
+            method.upload("/selective/", "object-" + i, "text/plain", "content " + i);
+        }
+        long before = server.getBytesOut();
+        int count = 0;
+
+        for( Blob ignore : method.list("/selective/", everything, null) ) {
+            count++;
+        }
+        long full = server.getBytesOut() - before;
+
+        assertEquals(10, count);
+        before = server.getBytesOut();
+        count = 0;
+        for( Blob blob : method.list("/selective/") ) {
+            assertEquals(9L, blob.getSize().longValue());
+            count++;
+        }
+        long selective = server.getBytesOut() - before;
+
+        assertEquals(10, count);
+        assertTrue("A default listing should ask only for the tags it reads (" + selective + " vs " + full + ")", selective * 2 < full);
+
+        before = server.getBytesOut();
+        count = 0;
+        for( Blob ignore : method.listNames("/selective/") ) {
+            count++;
+        }
+        assertEquals(10, count);
+        assertTrue("A names-only listing should be smaller still", server.getBytesOut() - before < selective);
+
+        Blob info = method.info("/selective/", "object-3");
+
+        assertNotNull(info);
+        assertEquals(9L, info.getSize().longValue());
+    }
+
+    @Test
+    public void spoolWriteBehind() throws CloudException, InternalException, IOException, InterruptedException {
+        Properties p = new Properties();
+        File directory = File.createTempFile("spool", "");
+        File source = File.createTempFile("source", ".txt");
+
+        assertTrue(directory.delete() && directory.mkdirs());
+        p.setProperty("spoolDirectory", directory.getAbsolutePath());
+        p.setProperty("spoolRetryMaxSeconds", "1");
+        p.setProperty("retryMaxAttempts", "1");
+
+        AtmosStandIn offline = AtmosStandIn.getInstance("standin/subtenant", SECRET).start();
+        Atmos atmos = connect(offline, SECRET, p);
+
+        offline.stop();
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+
+            write(source, "written while offline");
+            store.upload(source, "/spooled", "offline.txt");
+            assertEquals("Spooled content should be readable at once", "written while offline", download(store, "/spooled", "offline.txt", directory));
+            assertEquals(1, atmos.getSpool().getPendingCount());
+        }
+        finally {
+            atmos.close();
+        }
+
+        server.withLatency(50, 100);
+        atmos = connect(server, SECRET, p);
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+            AtmosSpool spool = atmos.getSpool();
+            AtmosMethod method = new AtmosMethod(atmos);
+
+            assertNotNull("The spool should be configured", spool);
+            for( int i=0; i<3; i++ ) {
+                write(source, "version " + i);
+                store.upload(source, "/spooled", "ordered.txt");
+            }
+            store.removeObject("/spooled", "ordered.txt");
+            write(source, "final version");
+            Blob blob = store.upload(source, "/spooled", "ordered.txt");
+
+            assertEquals(13, blob.getSize().longValue());
+            assertEquals("final version", download(store, "/spooled", "ordered.txt", directory));
+            assertEquals(13, store.getObjectSize("/spooled", "ordered.txt").longValue());
+            assertTrue("Spooled operations should be acknowledged before they reach Atmos", spool.getPendingCount() > 0);
+
+            assertTrue(spool.awaitDrained(30000L));
+            assertEquals("Operations on one path should be applied in order", "final version", read(method.download("/spooled/", "ordered.txt")));
+            assertEquals("Operations left behind should be recovered", "written while offline", read(method.download("/spooled/", "offline.txt")));
+            assertEquals(0, spool.getFailedCount());
+            assertEquals(6, spool.getAppliedCount());
+
+            store.removeObject("/spooled", "offline.txt");
+            assertNull("A spooled delete should hide the object at once", store.getObject("/spooled", "offline.txt"));
+            assertTrue(spool.awaitDrained(30000L));
+            assertNull(method.info("/spooled/", "offline.txt"));
+        }
+        finally {
+            atmos.close();
+            for( File file : directory.listFiles() ) {
+                file.delete();
+            }
+            directory.delete();
+            source.delete();
+        }
+    }
+
+    @Test
+    public void spoolAwaitedByNamespaceOperations() throws CloudException, InternalException, IOException, InterruptedException {
+        Properties p = new Properties();
+        File directory = File.createTempFile("spool", "");
+        File source = File.createTempFile("source", ".txt");
+
+        assertTrue(directory.delete() && directory.mkdirs());
+        p.setProperty("spoolDirectory", directory.getAbsolutePath());
+        p.setProperty("spoolThreads", "1");
+        server.withLatency(50, 100);
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+            AtmosSpool spool = atmos.getSpool();
+            AtmosMethod method = new AtmosMethod(atmos);
+            HashMap<String,String> metadata = new HashMap<String, String>();
+            ArrayList<String> names = new ArrayList<String>();
+
+            write(source, "spooled");
+            backlog(store, source, "list");
+            store.upload(source, "/awaited", "listed.txt");
+            for( Blob blob : store.list("/awaited") ) {
+                names.add(blob.getObjectName());
+            }
+            assertTrue("A listing should include spooled uploads", names.contains("listed.txt"));
+
+            metadata.put("color", "blue");
+            backlog(store, source, "metadata");
+            store.upload(source, "/awaited", "tagged.txt", metadata, null);
+            AtmosMetadata found = store.getMetadata("/awaited", "tagged.txt");
+
+            assertNotNull("Metadata of a spooled upload should be found", found);
+            assertEquals("blue", found.getValue("color"));
+
+            backlog(store, source, "rename");
+            store.upload(source, "/awaited", "old.txt");
+            store.renameObject("/awaited", "old.txt", "new.txt");
+            assertNotNull("A spooled upload should be renamed", method.info("/awaited/", "new.txt"));
+            assertNull(method.info("/awaited/", "old.txt"));
+
+            backlog(store, source, "stream");
+            store.removeObject("/awaited", "listed.txt");
+            AtmosOutputStream output = store.openUpload("/awaited", "listed.txt", null, null);
+
+            output.write("streamed".getBytes("utf-8"));
+            output.close();
+            assertTrue(spool.awaitDrained(30000L));
+            assertEquals("A spooled delete should not remove a later streaming upload", "streamed", read(method.download("/awaited/", "listed.txt")));
+            assertEquals(0, spool.getFailedCount());
+        }
+        finally {
+            atmos.close();
+            for( File file : directory.listFiles() ) {
+                file.delete();
+            }
+            directory.delete();
+            source.delete();
+        }
+    }
+
+    @Test
+    public void streamingUpload() throws CloudException, InternalException, IOException {
+        Properties p = new Properties();
+
+        p.setProperty("appendChunkBytes", "65536");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+            AtmosMethod method = new AtmosMethod(atmos);
+            StringBuilder dump = new StringBuilder();
+            Random random = new Random(7L);
+            AtmosOutputStream output = store.openUpload("/backups", "dump.txt", null, null);
+
+            while( dump.length() < 250 * 1024 ) {
+                String line = "row " + dump.length() + " " + random.nextInt() + "\n";
+
+                dump.append(line);
+                output.write(line.getBytes("utf-8"));
+            }
+            output.close();
+            assertEquals(dump.length(), output.getBytesWritten());
+            assertEquals(dump.toString(), read(method.download("/backups/", "dump.txt")));
+            assertEquals(dump.length(), method.info("/backups/", "dump.txt").getSize().longValue());
+
+            long requests = server.getRequestCount();
+
+            output = store.openUpload("/backups", "small.txt", null, null);
+            output.write("fits in one chunk".getBytes("utf-8"));
+            output.close();
+            assertEquals("A stream that never fills a chunk should be one upload", 1, server.getRequestCount() - requests);
+            assertEquals("fits in one chunk", read(method.download("/backups/", "small.txt")));
+
+            output = store.openUpload("/backups", "abandoned.txt", null, null);
+            output.write(new byte[200 * 1024]);
+            output.abort();
+            assertNull("An aborted upload should leave nothing behind", method.info("/backups/", "abandoned.txt"));
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void throttleWindowAndWaiters() throws CloudException, InternalException, UnsupportedEncodingException, InterruptedException {
+        Properties p = new Properties();
+
+        p.setProperty("concurrencyMax", "4");
+        p.setProperty("concurrencyBackoffMs", "0");
+        p.setProperty("throttleMaxWaitMs", "200");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosThrottle throttle = new AtmosThrottle(atmos, "http://throttled:8080");
+
+            assertEquals(4, throttle.getWindow());
+            throttle.acquire(AtmosOperation.READ);
+            throttle.release(true);
+            assertEquals("Overload should halve the window", 2, throttle.getWindow());
+            assertEquals(1, throttle.getOverloadCount());
+            throttle.acquire(AtmosOperation.READ);
+            throttle.release(true);
+            throttle.acquire(AtmosOperation.READ);
+            throttle.release(true);
+            assertEquals("The window should never drop below its minimum", 1, throttle.getWindow());
+            for( int i=0; i<20; i++ ) {
+                throttle.acquire(AtmosOperation.READ);
+                throttle.release(false);
+            }
+            assertTrue("Success should grow the window again", throttle.getWindow() > 1);
+
+            while( throttle.getWindow() > 1 ) {
+                throttle.acquire(AtmosOperation.READ);
+                throttle.release(true);
+            }
+            final ArrayList<String> outcomes = new ArrayList<String>();
+            final CountDownLatch refused = new CountDownLatch(1);
+            AtmosThrottle.Admission admission = new AtmosThrottle.Admission() {
+                public void admitted() {
+                    synchronized( outcomes ) {
+                        outcomes.add("admitted");
+                    }
+                }
+
+                public void refused(@Nonnull CloudException error) {
+                    synchronized( outcomes ) {
+                        outcomes.add(error.getProviderCode());
+                    }
+                    refused.countDown();
+                }
+            };
+
+            throttle.acquire(AtmosOperation.READ);
+            throttle.acquire(AtmosOperation.READ, admission);
+            assertTrue("A full window should queue the waiter rather than block", outcomes.isEmpty());
+            assertEquals(1, throttle.getInFlight());
+            throttle.release(false);
+            assertEquals("A released slot should go to the queued waiter", Arrays.asList("admitted"), outcomes);
+            assertEquals(1, throttle.getInFlight());
+
+            // the successful release grew the window to 2, so fill it again before queueing
+            assertEquals(2, throttle.getWindow());
+            throttle.acquire(AtmosOperation.READ);
+            throttle.acquire(AtmosOperation.READ, admission);
+            assertTrue("A waiter left in the queue should be refused at its limit", refused.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("admitted", "ConcurrencyLimited"), outcomes);
+            throttle.release(false);
+            throttle.release(false);
+            assertEquals(0, throttle.getInFlight());
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void deadlineAbortsSlowRequest() throws CloudException, InternalException, UnsupportedEncodingException {
+        Properties p = new Properties();
+
+        p.setProperty("deadlineMs", "300");
+        p.setProperty("readTimeoutMs", "30000");
+        p.setProperty("retryMaxAttempts", "10");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosMethod method = new AtmosMethod(atmos);
+
+            method.upload("/deadline", "slow.txt", "text/plain", "slow");
+            server.withLatency(2000, 2000);
+            long requests = server.getRequestCount();
+            long start = System.currentTimeMillis();
+
+            try {
+                method.getMetadata("/deadline", "slow.txt");
+                fail("A request slower than its deadline should be aborted");
+            }
+            catch( CloudException e ) {
+                assertEquals("DeadlineExceeded", e.getProviderCode());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+
+            assertTrue("The request should be aborted at its deadline, not after the server answers (" + elapsed + "ms)", elapsed < 1500);
+            assertEquals("An aborted request should not be retried past its deadline", requests + 1, server.getRequestCount());
+            server.withLatency(0, 0);
+            assertNotNull("The provider should recover once the server is fast again", method.getMetadata("/deadline", "slow.txt"));
+        }
+        finally {
+            server.withLatency(0, 0);
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void hedgedReadWins() throws CloudException, InternalException, IOException {
+        AtmosStandIn fast = AtmosStandIn.getInstance("standin/subtenant", SECRET).start();
+
+        try {
+            Properties p = new Properties();
+
+            p.setProperty("endpoints", server.getEndpoint() + "," + fast.getEndpoint());
+            p.setProperty("hedgeReads", "true");
+            p.setProperty("hedgeDelayMs", "50");
+            Atmos atmos = connect(server, SECRET, p);
+
+            try {
+                List<String> endpoints = atmos.getEndpoints();
+                AtmosLoadBalancer balancer = atmos.getLoadBalancer();
+
+                assertEquals(2, endpoints.size());
+                for( String endpoint : endpoints ) {
+                    new AtmosMethod(atmos, endpoint).upload("/hedge", "object.txt", "text/plain", "hedged content");
+                }
+                // make the slow node look fastest so that it is chosen as the primary
+                AtmosLoadBalancer.Node slowNode = balancer.getNode(endpoints.get(0));
+                AtmosLoadBalancer.Node fastNode = balancer.getNode(endpoints.get(1));
+
+                assertNotNull(slowNode);
+                assertNotNull(fastNode);
+                finish(slowNode, 1);
+                finish(fastNode, 1000);
+                server.withLatency(2000, 2000);
+                AtmosHedger hedger = atmos.getHedger();
+                long start = System.currentTimeMillis();
+                byte[] content = new AtmosMethod(atmos).downloadBytes("/hedge", "object.txt", 1024);
+                long elapsed = System.currentTimeMillis() - start;
+
+                assertEquals("hedged content", new String(content, "utf-8"));
+                assertTrue("The hedge should answer long before the slow node (" + elapsed + "ms)", elapsed < 1500);
+                assertEquals(1, hedger.getHedgedCount());
+                assertEquals(1, hedger.getHedgeWinCount());
+            }
+            finally {
+                server.withLatency(0, 0);
+                atmos.close();
+            }
+        }
+        finally {
+            fast.stop();
+        }
+    }
+
+    @Test
+    public void latencyPercentiles() throws CloudException, InternalException {
+        AtmosLatencyHistogram histogram = new AtmosLatencyHistogram();
+
+        assertEquals(0L, histogram.getPercentile(99));
+        for( int i=1000; i>0; i-- ) {
+            histogram.record(i);
+        }
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(1000L, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000L, histogram.getPercentile(100));
+        assertEquals(1L, histogram.getPercentile(0));
+        for( double percentile : new double[] { 50, 90, 99, 99.9 } ) {
+            long expected = (long)Math.ceil(percentile * 10);
+            long actual = histogram.getPercentile(percentile);
+
+            assertTrue("p" + percentile + " should not undershoot (" + actual + ")", actual >= expected);
+            assertTrue("p" + percentile + " should be within the bucket error (" + actual + ")", actual <= expected * 1.07);
+        }
+
+        AtmosMetricsRegistry registry = new AtmosMetricsRegistry();
+        AtmosMethod method = new AtmosMethod(provider);
+
+        provider.setMetrics(registry);
+        for( int i=0; i<5; i++ ) {
+            method.upload("/metrics", "object-" + i + ".txt", "text/plain", "0123456789");
+        }
+        AtmosMetricsRegistry.Snapshot snapshot = registry.getSnapshot("upload");
+
+        assertNotNull(snapshot);
+        assertEquals(5L, snapshot.getCount());
+        assertEquals(50L, snapshot.getBytesSent());
+        assertEquals(0, snapshot.getInFlight());
+        assertTrue(snapshot.getErrors().isEmpty());
+        long statuses = 0L;
+
+        for( Long count : snapshot.getStatuses().values() ) {
+            statuses += count;
+        }
+        assertEquals(5L, statuses);
+        assertTrue(snapshot.getP50Micros() > 0L);
+        assertTrue(snapshot.getP50Micros() <= snapshot.getP99Micros());
+        assertTrue(snapshot.getP99Micros() <= snapshot.getMaxMicros());
+        assertNull("Operations that never ran should have no snapshot", registry.getSnapshot("move"));
+    }
+
+    @Test
+    public void tracePhases() throws CloudException, InternalException, UnsupportedEncodingException {
+        final List<AtmosTrace> traces = Collections.synchronizedList(new ArrayList<AtmosTrace>());
+        AtmosTraceListener listener = new AtmosTraceListener() {
+            public void traceCompleted(@Nonnull AtmosTrace trace) {
+                traces.add(trace);
+            }
+        };
+        AtmosMethod method = new AtmosMethod(provider);
+
+        assertEquals(0.0, provider.getTracer().getSampleRate(), 0.0);
+        provider.getTracer().setListener(listener);
+        method.upload("/traced", "untraced.txt", "text/plain", "0123456789");
+        method.listPage("/traced/", null, 10, null, null);
+        assertTrue("Nothing should be traced at a sample rate of 0", traces.isEmpty());
+
+        Properties p = new Properties();
+
+        p.setProperty("traceSampleRate", "1");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            method = new AtmosMethod(atmos);
+            atmos.getTracer().setListener(listener);
+            AtmosTracer.attach("caller-42");
+            try {
+                method.upload("/traced", "traced.txt", "text/plain", "0123456789");
+                method.listPage("/traced/", null, 10, null, null);
+            }
+            finally {
+                AtmosTracer.detach();
+            }
+            assertNull("A finished trace should not linger on the thread", AtmosTracer.current());
+            assertEquals(2, traces.size());
+
+            AtmosTrace upload = traces.get(0);
+
+            assertEquals("upload", upload.getOperation());
+            assertEquals("POST", upload.getMethod());
+            assertTrue(upload.getPath().endsWith("/traced/traced.txt"));
+            assertEquals("caller-42", upload.getContext());
+            assertNull(upload.getError());
+            assertEquals(201, upload.getStatus());
+            assertEquals(1, upload.getAttempts());
+            assertEquals(10L, upload.getBytesSent());
+            assertTrue("Signing should be timed", upload.getSignNs() > 0L);
+            assertTrue(upload.getTotalNs() >= upload.getSignNs() + upload.getTtfbNs());
+
+            AtmosTrace list = traces.get(1);
+
+            assertEquals("list", list.getOperation());
+            assertEquals("GET", list.getMethod());
+            assertEquals(200, list.getStatus());
+            assertTrue("Reading the listing should be timed", list.getTransferNs() > 0L);
+            assertTrue("Parsing the listing should be timed", list.getParseNs() > 0L);
+            assertFalse("Each trace should carry its own request id", upload.getRequestId().equals(list.getRequestId()));
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void treeWalk() throws CloudException, InternalException, UnsupportedEncodingException {
+        AtmosObjectStore store = provider.getStorageServices().getOnlineStorageSupport();
+        AtmosMethod method = new AtmosMethod(provider);
+
+        method.upload("/tree/", "a.txt", "text/plain", "a");
+        method.upload("/tree/one/", "b.txt", "text/plain", "b");
+        method.upload("/tree/one/two/", "c.txt", "text/plain", "c");
+        method.upload("/tree/other/", "d.log", "text/plain", "d");
+
+        assertEquals(Arrays.asList("a.txt"), walk(store, "/tree", TreeWalkOptions.getInstance(0).withDirectories(false)));
+        assertEquals(Arrays.asList("a.txt", "b.txt", "d.log"), walk(store, "/tree", TreeWalkOptions.getInstance(1).withDirectories(false)));
+        assertEquals(Arrays.asList("a.txt", "b.txt", "c.txt", "d.log"), walk(store, "/tree", TreeWalkOptions.getInstance().withDirectories(false)));
+        assertEquals(Arrays.asList("b.txt", "c.txt"), walk(store, "/tree", TreeWalkOptions.getInstance().withDirectories(false).withPrefix("/tree/one/")));
+        assertEquals(Arrays.asList("a.txt", "b.txt", "c.txt"), walk(store, "/tree", TreeWalkOptions.getInstance().withDirectories(false).matchingGlob("*.txt").withParallelism(1)));
+        assertEquals(Arrays.asList("a.txt", "tree/one/", "tree/other/"), walk(store, "/tree", TreeWalkOptions.getInstance(0)));
+
+        Properties p = new Properties();
+
+        p.setProperty("listingThreads", "1");
+        p.setProperty("listingQueueSize", "1");
+        Atmos saturated = connect(server, SECRET, p);
+
+        try {
+            AtmosObjectStore small = saturated.getStorageServices().getOnlineStorageSupport();
+
+            assertEquals("A saturated listing pool should still finish the walk", Arrays.asList("a.txt", "b.txt", "c.txt", "d.log"), walk(small, "/tree", TreeWalkOptions.getInstance().withDirectories(false).withQueueCapacity(1)));
+        }
+        finally {
+            saturated.close();
+        }
+    }
+
+    @Test
+    public void treeWalkClosedEarly() throws CloudException, InternalException, InterruptedException {
+        AtmosObjectStore store = provider.getStorageServices().getOnlineStorageSupport();
+        AtmosMethod method = new AtmosMethod(provider);
+
+        for( int d=0; d<4; d++ ) {
+            for( int i=0; i<20; i++ ) {
+                method.upload("/wide/dir-" + d + "/", "object-" + i, "text/plain", "content " + i);
+            }
+        }
+        AtmosTreeWalker walker = store.walk("/wide", TreeWalkOptions.getInstance().withQueueCapacity(2).withParallelism(4));
+
+        assertTrue(walker.hasNext());
+        assertNotNull(walker.next());
+        walker.close();
+        assertFalse("A closed walk should end", walker.hasNext());
+
+        long until = System.currentTimeMillis() + 5000L;
+
+        while( provider.getListingExecutor().getActiveCount() > 0 && System.currentTimeMillis() < until ) {
+            Thread.sleep(20L);
+        }
+        assertEquals("Listings blocked on a closed walk should give their threads back", 0, provider.getListingExecutor().getActiveCount());
+    }
+
+    @Test(timeout=30000L)
+    public void treeWalkFailure() throws CloudException, InternalException, UnsupportedEncodingException {
+        AtmosMethod method = new AtmosMethod(provider);
+
+        for( int d=0; d<16; d++ ) {
+            for( int i=0; i<10; i++ ) {
+                method.upload("/failing/dir-" + d + "/", "object-" + i, "text/plain", "content " + i);
+            }
+        }
+        Properties p = new Properties();
+
+        p.setProperty("retryMaxAttempts", "1");
+        Atmos atmos = connect(server, SECRET, p);
+
+        server.withPageSize(3).withErrorRate(0.3);
+        try {
+            AtmosObjectStore store = atmos.getStorageServices().getOnlineStorageSupport();
+
+            walk(store, "/failing", TreeWalkOptions.getInstance().withQueueCapacity(1).withParallelism(4));
+            fail("A listing error should end the walk with an error");
+        }
+        catch( JiteratorLoadException expected ) {
+            assertTrue(expected.getCause() instanceof CloudException);
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void renameAndDelete() throws CloudException, InternalException, IOException {
+        AtmosMethod method = new AtmosMethod(provider);
+
+        method.upload("/moving/", "from.txt", "text/plain", "moved");
+        method.move("/moving/from.txt", "/moving/to.txt", false);
+        assertNull(method.info("/moving/", "from.txt"));
+        assertEquals("moved", read(method.download("/moving/", "to.txt")));
+        try {
+            method.delete("/moving", null);
+            fail("Deleting a non-empty directory should fail");
+        }
+        catch( CloudException expected ) {
+            assertEquals(AtmosStandIn.DIRECTORY_NOT_EMPTY, expected.getProviderCode());
+        }
+        method.delete("/moving/", "to.txt");
+        method.delete("/moving", null);
+        assertEquals(0, server.getObjectCount());
+    }
+
+    @Test
+    public void asyncOperations() throws CloudException, InternalException, IOException, InterruptedException, ExecutionException {
+        Properties p = new Properties();
+
+        p.setProperty("asyncIoThreads", "1");
+        Atmos atmos = connect(server, SECRET, p);
+
+        try {
+            AtmosAsyncMethod method = new AtmosAsyncMethod(atmos);
+            final CountDownLatch notified = new CountDownLatch(1);
+            final ArrayList<Object> results = new ArrayList<Object>();
+
+            method.create("/", "async", null).get();
+            method.upload("/async/", "object.txt", "text/plain", "async content", new AtmosCallback<Blob>() {
+                public void cancelled() { }
+
+                public void completed(@Nullable Blob result) {
+                    synchronized( results ) {
+                        results.add(result);
+                    }
+                    notified.countDown();
+                }
+
+                public void failed(@Nonnull Throwable error) { }
+            }).get();
+            assertTrue("The callback should have been notified", notified.await(5, TimeUnit.SECONDS));
+            assertEquals(1, results.size());
+            assertEquals("object.txt", ((Blob)results.get(0)).getObjectName());
+            assertEquals(13L, method.info("/async/", "object.txt", null).get().getSize().longValue());
+            assertNull(method.info("/async/", "missing.txt", null).get());
+            assertEquals("async content", read(method.download("/async/", "object.txt", null).get()));
+
+            // one I/O thread keeps every request in flight at once rather than working through them one at a time
+            server.withLatency(200, 200);
+            ArrayList<Future<Blob>> uploads = new ArrayList<Future<Blob>>();
+            long started = System.currentTimeMillis();
+
+            for( int i=0; i<20; i++ ) {
+                byte[] content = ("content " + i).getBytes("utf-8");
+
+                uploads.add(method.upload("/async/", "object-" + i + ".txt", new ByteArrayInputStream(content), new Storage<org.dasein.util.uom.storage.Byte>(content.length, Storage.BYTE), null));
+            }
+            for( Future<Blob> upload : uploads ) {
+                assertNotNull(upload.get());
+            }
+            assertTrue("Concurrent uploads should overlap", System.currentTimeMillis() - started < 20 * 200L / 2);
+            server.withLatency(0, 0);
+
+            final AtomicBoolean closed = new AtomicBoolean(false);
+            InputStream tracked = new ByteArrayInputStream("tracked".getBytes("utf-8")) {
+                @Override
+                public void close() throws IOException {
+                    closed.set(true);
+                    super.close();
+                }
+            };
+
+            method.delete("/async/", "object-0.txt", null).get();
+            assertNotNull(method.upload("/async/", "object-0.txt", tracked, new Storage<org.dasein.util.uom.storage.Byte>(7, Storage.BYTE), null).get());
+            assertTrue("The uploaded stream should be closed", closed.get());
+
+            int count = 0;
+
+            for( Blob blob : method.list("/async/", null).get() ) {
+                count++;
+            }
+            assertEquals(21, count);
+            method.move("/async/object.txt", "/async/moved.txt", false, null).get();
+            assertEquals("async content", read(method.download("/async/", "moved.txt", null).get()));
+            method.delete("/async/", "moved.txt", null).get();
+            assertNull(method.info("/async/", "moved.txt", null).get());
+            try {
+                method.download("/async/", "object.txt", null).get();
+                fail("Downloading a moved object should fail");
+            }
+            catch( ExecutionException expected ) {
+                assertTrue(expected.getCause() instanceof CloudException);
+            }
+        }
+        finally {
+            atmos.close();
+        }
+    }
+
+    @Test
+    public void badSignature() throws CloudException, InternalException, UnsupportedEncodingException {
+        Atmos impostor = connect(server, Base64.encodeBase64String("the wrong secret".getBytes()), null);
+
+        try {
+            new AtmosMethod(impostor).create("/", "forbidden");
+            fail("A request signed with the wrong secret should be rejected");
+        }
+        catch( CloudException expected ) {
+            assertEquals(CloudErrorType.AUTHENTICATION, expected.getErrorType());
+            assertEquals(AtmosStandIn.SIGNATURE_MISMATCH, expected.getProviderCode());
+        }
+        finally {
+            impostor.close();
+        }
+    }
+
+    @Test
+    public void injectedErrorsAreRetried() throws CloudException, InternalException {
+        AtmosMethod method = new AtmosMethod(provider);
+
+        server.withErrorRate(0.3);
+        for( int i=0; i<20; i++ ) {
+            method.upload("/flaky/", "object-" + i, "text/plain", "content " + i);
+            assertNotNull(method.info("/flaky/", "object-" + i));
+        }
+        assertTrue("Some requests should have failed", server.getInjectedErrorCount() > 0);
+    }
+}